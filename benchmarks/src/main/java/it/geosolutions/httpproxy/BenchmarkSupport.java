@@ -0,0 +1,90 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * The configuration and the client requests shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+
+    /**
+     * A WMS GetMap request, as proxied for a web map
+     */
+    static final String GETMAP_URL = "http://demo1.geo-solutions.it/geoserver/ows?SERVICE=WMS"
+            + "&VERSION=1.1.1&REQUEST=GetMap&FORMAT=image%2Fpng&TRANSPARENT=true"
+            + "&LAYERS=topp%3Astates&STYLES=&SRS=EPSG%3A4326&BBOX=-124.73,24.96,-66.97,49.37"
+            + "&WIDTH=768&HEIGHT=330";
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * @return Properties the proxy.properties shipped with the proxy, with the host white lists
+     *         enabled so that every check has some work to do
+     */
+    static Properties proxyProperties() {
+        Properties props = new Properties();
+
+        InputStream in = ProxyConfig.class.getResourceAsStream("/proxy.properties");
+        if (in == null)
+            throw new IllegalStateException("proxy.properties not found in the proxy jar");
+
+        try {
+            props.load(in);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // loaded anyway
+            }
+        }
+
+        props.setProperty("hostnameWhitelist",
+                "localhost,demo1.geo-solutions.it,demo.geo-solutions.it");
+        props.setProperty("hostsWhitelist", "127.0.0.1,10.0.0.0/24,2001:db8::/32");
+        props.setProperty("configReloadInterval", "0");
+
+        return props;
+    }
+
+    /**
+     * @param queryString
+     * @return MockHttpServletRequest a GET request with the headers of a browser
+     */
+    static MockHttpServletRequest browserRequest(String queryString) {
+        return new MockHttpServletRequest("GET", queryString)
+                .addHeader("Host", "localhost:8080")
+                .addHeader("User-Agent",
+                        "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0")
+                .addHeader("Accept", "image/avif,image/webp,*/*")
+                .addHeader("Accept-Language", "en-US,en;q=0.5")
+                .addHeader("Accept-Language", "it;q=0.3")
+                .addHeader("Accept-Encoding", "gzip, deflate, br")
+                .addHeader("Referer", "http://localhost:8080/viewer/index.html")
+                .addHeader("Cookie", "JSESSIONID=8F1A3C0D9B2E4F6A7C8D9E0F1A2B3C4D")
+                .addHeader("Connection", "keep-alive");
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.httpclient.Header;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@link ProxyCallback} chain run on every request: the request checks and the remote response
+ * checks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackChainBenchmark {
+
+    private HTTPProxy proxy;
+
+    private URL url;
+
+    private MockHttpServletRequest request;
+
+    private MockHttpServletResponse response;
+
+    private UpstreamMethod method;
+
+    @Setup
+    public void setUp() throws IOException {
+        proxy = new HTTPProxy();
+        proxy.init(new ProxyConfig(BenchmarkSupport.proxyProperties()));
+
+        url = new URL(BenchmarkSupport.GETMAP_URL);
+        request = BenchmarkSupport.browserRequest("url=" + BenchmarkSupport.GETMAP_URL);
+        response = new MockHttpServletResponse();
+
+        method = new UpstreamMethod("GET", BenchmarkSupport.GETMAP_URL);
+        method.setResponse("HTTP/1.1 200 OK", new Header[] {
+                new Header("Date", "Mon, 02 Oct 2023 10:00:00 GMT"),
+                new Header("Content-Type", "application/vnd.ogc.gml; charset=UTF-8"),
+                new Header("Content-Length", "24576"),
+                new Header("Cache-Control", "max-age=60") }, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        proxy.destroy();
+    }
+
+    @Benchmark
+    public MockHttpServletResponse onInit() throws IOException {
+        proxy.onInit(request, response, url);
+        return response;
+    }
+
+    @Benchmark
+    public UpstreamMethod onRemoteResponse() throws IOException {
+        proxy.onRemoteResponse(request, method);
+        return method;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * An in memory client request, holding just what the proxy reads.
+ */
+@SuppressWarnings("rawtypes")
+final class MockHttpServletRequest implements HttpServletRequest {
+
+    private final String method;
+
+    private final String queryString;
+
+    private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    private String remoteAddr = "127.0.0.1";
+
+    private byte[] body = new byte[0];
+
+    /**
+     * @param method
+     * @param queryString
+     */
+    MockHttpServletRequest(String method, String queryString) {
+        this.method = method;
+        this.queryString = queryString;
+    }
+
+    /**
+     * Adds a header value, headers sent several times keep all of their values.
+     */
+    MockHttpServletRequest addHeader(String name, String value) {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>();
+            headers.put(name, values);
+        }
+        values.add(value);
+        return this;
+    }
+
+    MockHttpServletRequest setRemoteAddr(String remoteAddr) {
+        this.remoteAddr = remoteAddr;
+        return this;
+    }
+
+    MockHttpServletRequest setBody(byte[] body) {
+        this.body = body;
+        return this;
+    }
+
+    // ///////////////////////////////////////
+    // HttpServletRequest
+    // ///////////////////////////////////////
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getQueryString() {
+        return queryString;
+    }
+
+    public String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet())
+            if (header.getKey().equalsIgnoreCase(name))
+                return header.getValue().get(0);
+        return null;
+    }
+
+    public Enumeration getHeaders(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet())
+            if (header.getKey().equalsIgnoreCase(name))
+                return Collections.enumeration(header.getValue());
+        return Collections.enumeration(Collections.emptyList());
+    }
+
+    public Enumeration getHeaderNames() {
+        return Collections.enumeration(headers.keySet());
+    }
+
+    public long getDateHeader(String name) {
+        return -1;
+    }
+
+    public int getIntHeader(String name) {
+        String value = getHeader(name);
+        return value != null ? Integer.parseInt(value) : -1;
+    }
+
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    public String getRemoteHost() {
+        return remoteAddr;
+    }
+
+    public int getRemotePort() {
+        return 50000;
+    }
+
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    public Enumeration getAttributeNames() {
+        return Collections.enumeration(attributes.keySet());
+    }
+
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    public int getContentLength() {
+        return body.length;
+    }
+
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    public ServletInputStream getInputStream() {
+        final ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return new ServletInputStream() {
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+        };
+    }
+
+    public BufferedReader getReader() throws IOException {
+        return new BufferedReader(new InputStreamReader(getInputStream(), "UTF-8"));
+    }
+
+    public String getCharacterEncoding() {
+        return null;
+    }
+
+    public void setCharacterEncoding(String encoding) {
+    }
+
+    public String getParameter(String name) {
+        return null;
+    }
+
+    public Enumeration getParameterNames() {
+        return Collections.enumeration(Collections.emptyList());
+    }
+
+    public String[] getParameterValues(String name) {
+        return null;
+    }
+
+    public Map getParameterMap() {
+        return Collections.emptyMap();
+    }
+
+    public String getProtocol() {
+        return "HTTP/1.1";
+    }
+
+    public String getScheme() {
+        return "http";
+    }
+
+    public String getServerName() {
+        return "localhost";
+    }
+
+    public int getServerPort() {
+        return 8080;
+    }
+
+    public String getLocalName() {
+        return "localhost";
+    }
+
+    public String getLocalAddr() {
+        return "127.0.0.1";
+    }
+
+    public int getLocalPort() {
+        return 8080;
+    }
+
+    public Locale getLocale() {
+        return Locale.getDefault();
+    }
+
+    public Enumeration getLocales() {
+        return Collections.enumeration(Collections.singletonList(Locale.getDefault()));
+    }
+
+    public boolean isSecure() {
+        return false;
+    }
+
+    public RequestDispatcher getRequestDispatcher(String path) {
+        return null;
+    }
+
+    public String getRealPath(String path) {
+        return null;
+    }
+
+    public String getAuthType() {
+        return null;
+    }
+
+    public Cookie[] getCookies() {
+        return null;
+    }
+
+    public String getPathInfo() {
+        return null;
+    }
+
+    public String getPathTranslated() {
+        return null;
+    }
+
+    public String getContextPath() {
+        return "/http_proxy";
+    }
+
+    public String getServletPath() {
+        return "/proxy";
+    }
+
+    public String getRequestURI() {
+        return getContextPath() + getServletPath() + "/";
+    }
+
+    public StringBuffer getRequestURL() {
+        return new StringBuffer("http://localhost:8080").append(getRequestURI());
+    }
+
+    public String getRemoteUser() {
+        return null;
+    }
+
+    public boolean isUserInRole(String role) {
+        return false;
+    }
+
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    public String getRequestedSessionId() {
+        return null;
+    }
+
+    public HttpSession getSession(boolean create) {
+        return null;
+    }
+
+    public HttpSession getSession() {
+        return null;
+    }
+
+    public boolean isRequestedSessionIdValid() {
+        return false;
+    }
+
+    public boolean isRequestedSessionIdFromCookie() {
+        return false;
+    }
+
+    public boolean isRequestedSessionIdFromURL() {
+        return false;
+    }
+
+    public boolean isRequestedSessionIdFromUrl() {
+        return false;
+    }
+}
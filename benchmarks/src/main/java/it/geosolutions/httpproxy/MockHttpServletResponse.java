@@ -0,0 +1,206 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A client response discarding its body, counting the bytes written.
+ */
+final class MockHttpServletResponse implements HttpServletResponse {
+
+    private final Map<String, String> headers = new HashMap<String, String>();
+
+    private int status = SC_OK;
+
+    private long written;
+
+    private final ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    };
+
+    /**
+     * @return long the number of body bytes written so far
+     */
+    long getWritten() {
+        return written;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * Makes the response reusable by the next benchmark invocation
+     */
+    void clear() {
+        headers.clear();
+        status = SC_OK;
+        written = 0;
+    }
+
+    // ///////////////////////////////////////
+    // HttpServletResponse
+    // ///////////////////////////////////////
+
+    public ServletOutputStream getOutputStream() {
+        return out;
+    }
+
+    public PrintWriter getWriter() {
+        try {
+            return new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    public void setStatus(int status, String message) {
+        this.status = status;
+    }
+
+    public void sendError(int status, String message) {
+        this.status = status;
+    }
+
+    public void sendError(int status) {
+        this.status = status;
+    }
+
+    public void sendRedirect(String location) {
+        this.status = SC_MOVED_TEMPORARILY;
+        headers.put("Location", location);
+    }
+
+    public boolean containsHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    public void addHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    public void setIntHeader(String name, int value) {
+        headers.put(name, String.valueOf(value));
+    }
+
+    public void addIntHeader(String name, int value) {
+        headers.put(name, String.valueOf(value));
+    }
+
+    public void setDateHeader(String name, long date) {
+        headers.put(name, String.valueOf(date));
+    }
+
+    public void addDateHeader(String name, long date) {
+        headers.put(name, String.valueOf(date));
+    }
+
+    public void addCookie(Cookie cookie) {
+    }
+
+    public String encodeURL(String url) {
+        return url;
+    }
+
+    public String encodeRedirectURL(String url) {
+        return url;
+    }
+
+    public String encodeUrl(String url) {
+        return url;
+    }
+
+    public String encodeRedirectUrl(String url) {
+        return url;
+    }
+
+    public String getCharacterEncoding() {
+        return "ISO-8859-1";
+    }
+
+    public void setCharacterEncoding(String encoding) {
+    }
+
+    public String getContentType() {
+        return headers.get("Content-Type");
+    }
+
+    public void setContentType(String type) {
+        headers.put("Content-Type", type);
+    }
+
+    public void setContentLength(int length) {
+        headers.put("Content-Length", String.valueOf(length));
+    }
+
+    public void setBufferSize(int size) {
+    }
+
+    public int getBufferSize() {
+        return 0;
+    }
+
+    public void flushBuffer() {
+    }
+
+    public void resetBuffer() {
+    }
+
+    public boolean isCommitted() {
+        return false;
+    }
+
+    public void reset() {
+        clear();
+    }
+
+    public void setLocale(Locale locale) {
+    }
+
+    public Locale getLocale() {
+        return Locale.getDefault();
+    }
+}
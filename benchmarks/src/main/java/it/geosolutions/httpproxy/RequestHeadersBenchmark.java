@@ -0,0 +1,87 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The parsing of the client request: the query string of POST and PUT requests and the headers
+ * forwarded to the remote server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHeadersBenchmark {
+
+    private HTTPProxy proxy;
+
+    private URL url;
+
+    private MockHttpServletRequest request;
+
+    private String queryString;
+
+    @Setup
+    public void setUp() throws IOException {
+        proxy = new HTTPProxy();
+        proxy.init(new ProxyConfig(BenchmarkSupport.proxyProperties()));
+
+        url = new URL(BenchmarkSupport.GETMAP_URL);
+        queryString = "url=" + URLEncoder.encode(BenchmarkSupport.GETMAP_URL, "UTF-8")
+                + "&user=admin&password=geoserver";
+        request = BenchmarkSupport.browserRequest(queryString);
+    }
+
+    @TearDown
+    public void tearDown() {
+        proxy.destroy();
+    }
+
+    @Benchmark
+    public UpstreamMethod setProxyRequestHeaders() {
+        UpstreamMethod method = new UpstreamMethod("GET", BenchmarkSupport.GETMAP_URL);
+        proxy.setProxyRequestHeaders(url, request, method);
+        return method;
+    }
+
+    @Benchmark
+    public Map<String, String> splitQuery() throws IOException {
+        return proxy.splitQuery(queryString);
+    }
+}
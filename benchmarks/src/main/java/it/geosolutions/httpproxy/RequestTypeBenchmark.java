@@ -0,0 +1,110 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The request type check against the <code>reqtypeWhitelist.*</code> regular expressions, with and
+ * without the decision cache, for repeated and for distinct URLs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestTypeBenchmark {
+
+    /**
+     * The reqtypeCacheSize
+     */
+    @Param({ "0", "1024" })
+    public int cacheSize;
+
+    /**
+     * The number of distinct URLs checked in turn, more than the cache size to defeat it
+     */
+    @Param({ "1", "4096" })
+    public int distinctUrls;
+
+    private RequestTypeChecker checker;
+
+    private RequestTypeMatcher matcher;
+
+    private URL[] allowed;
+
+    private String[] rejected;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        Properties props = BenchmarkSupport.proxyProperties();
+        props.setProperty("reqtypeCacheSize", String.valueOf(cacheSize));
+
+        ProxyConfig config = new ProxyConfig(props);
+        checker = new RequestTypeChecker(config);
+        matcher = config.getReqtypeMatcher();
+
+        allowed = new URL[distinctUrls];
+        rejected = new String[distinctUrls];
+        for (int i = 0; i < distinctUrls; i++) {
+            allowed[i] = new URL(BenchmarkSupport.GETMAP_URL + "&_=" + i);
+            rejected[i] = "http://10.0.0.1/private/archive.zip?_=" + i;
+        }
+
+        if (matcher.match(allowed[0].toExternalForm()) < 0 || matcher.match(rejected[0]) >= 0)
+            throw new IllegalStateException("The shipped request types changed,"
+                    + " update the benchmark URLs");
+    }
+
+    @Benchmark
+    public RequestTypeChecker checkAllowed() throws IOException {
+        checker.onRequest(null, null, allowed[next()]);
+        return checker;
+    }
+
+    @Benchmark
+    public int matchRejected() {
+        return matcher.match(rejected[next()]);
+    }
+
+    private int next() {
+        int current = next;
+        next = current + 1 == distinctUrls ? 0 : current + 1;
+        return current;
+    }
+}
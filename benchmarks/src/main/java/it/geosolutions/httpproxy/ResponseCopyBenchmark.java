@@ -0,0 +1,96 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The loop relaying the remote response body to the client, at several
+ * <code>defaultStreamByteSize</code> values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCopyBenchmark {
+
+    @Param({ "1024", "8192", "65536" })
+    public int defaultStreamByteSize;
+
+    /**
+     * The response body size: a small XML document, a map tile, a large download
+     */
+    @Param({ "2048", "65536", "4194304" })
+    public int bodySize;
+
+    private HTTPProxy proxy;
+
+    private ByteArrayInputStream body;
+
+    private MockHttpServletResponse response;
+
+    @Setup
+    public void setUp() {
+        Properties props = BenchmarkSupport.proxyProperties();
+        props.setProperty("defaultStreamByteSize", String.valueOf(defaultStreamByteSize));
+
+        proxy = new HTTPProxy();
+        proxy.init(new ProxyConfig(props));
+
+        byte[] bytes = new byte[bodySize];
+        new Random(42).nextBytes(bytes);
+        body = new ByteArrayInputStream(bytes);
+
+        response = new MockHttpServletResponse();
+    }
+
+    @TearDown
+    public void tearDown() {
+        proxy.destroy();
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        body.reset();
+        response.clear();
+
+        proxy.copyResponseBody(body, response.getOutputStream(), null);
+        return response.getWritten();
+    }
+}
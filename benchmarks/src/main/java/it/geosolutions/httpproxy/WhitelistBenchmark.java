@@ -0,0 +1,81 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The white list lookups of the {@link ProxyConfig}, as the callbacks do them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhitelistBenchmark {
+
+    private ProxyConfig config;
+
+    @Setup
+    public void setUp() {
+        config = new ProxyConfig(BenchmarkSupport.proxyProperties());
+    }
+
+    @Benchmark
+    public boolean hostname() {
+        return config.getHostnameMatcher().matches("demo1.geo-solutions.it", 80);
+    }
+
+    @Benchmark
+    public boolean mimetype() {
+        return config.getMimetypeWhitelist().contains("application/vnd.ogc.gml");
+    }
+
+    @Benchmark
+    public boolean method() {
+        return config.getMethodsWhitelist().contains("GET");
+    }
+
+    @Benchmark
+    public boolean clientHost() {
+        return config.getHostsMatcher().matches("10.0.0.2");
+    }
+
+    @Benchmark
+    public void all(Blackhole blackhole) {
+        blackhole.consume(hostname());
+        blackhole.consume(mimetype());
+        blackhole.consume(method());
+        blackhole.consume(clientHost());
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Matches client addresses against a list of IPv4 and IPv6 addresses and CIDR ranges, such as
+ * <code>10.0.0.0/8</code> or <code>2001:db8::/32</code>, compiled once into a compressed binary
+ * radix tree over the 128 address bits. IPv4 addresses are stored as IPv4-mapped IPv6 ones, so that
+ * <code>::ffff:10.0.0.1</code> matches <code>10.0.0.0/8</code>.
+ * <p>
+ * A lookup parses the address in place and walks at most one node per distinct prefix length, without
+ * allocating. Entries that are not addresses are compared as plain strings, as the whitelists did
+ * so far.
+ */
+final class AddressMatcher {
+
+    private final static Logger LOGGER = Logger.getLogger(AddressMatcher.class.toString());
+
+    private static final long V4_MAPPED = 0xffff00000000L;
+
+    private static final int KIND = 0;
+
+    private static final int HIGH = 1;
+
+    private static final int LOW = 2;
+
+    private static final int V4 = 4;
+
+    private static final int V6 = 6;
+
+    private Node root;
+
+    private final Set<String> names = new HashSet<String>();
+
+    private final boolean empty;
+
+    /**
+     * @param entries the addresses and ranges, blank ones are ignored and invalid ranges never match
+     */
+    AddressMatcher(Collection<String> entries) {
+        boolean empty = true;
+
+        for (String entry : entries) {
+            String value = entry.trim();
+            if (value.length() == 0)
+                continue;
+
+            empty = false;
+
+            int slash = value.indexOf('/');
+            String address = slash >= 0 ? value.substring(0, slash) : value;
+
+            long kind = parse(address, 0, address.length(), KIND);
+            if (kind == 0 && slash < 0) {
+                names.add(value.toLowerCase());
+                continue;
+            }
+
+            int bits = kind == V4 ? 32 : 128;
+            if (slash >= 0) {
+                try {
+                    bits = kind != 0 ? Integer.parseInt(value.substring(slash + 1).trim()) : -1;
+                } catch (NumberFormatException e) {
+                    bits = -1;
+                }
+
+                if (bits < 0 || bits > (kind == V4 ? 32 : 128)) {
+                    if (LOGGER.isLoggable(Level.WARNING))
+                        LOGGER.log(Level.WARNING, "Invalid address range " + entry);
+                    continue;
+                }
+            }
+
+            insert(parse(address, 0, address.length(), HIGH), parse(address, 0,
+                    address.length(), LOW), kind == V4 ? bits + 96 : bits);
+        }
+
+        this.empty = empty;
+    }
+
+    /**
+     * @return boolean true if no entry is configured
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @param address
+     * @return boolean true if the address is in one of the ranges
+     */
+    boolean matches(String address) {
+        return matches(address, 0, address.length());
+    }
+
+    /**
+     * @param s
+     * @param start the first character of the address
+     * @param end after the last character of the address
+     * @return boolean true if the address is in one of the ranges
+     */
+    boolean matches(String s, int start, int end) {
+        if (parse(s, start, end, KIND) == 0)
+            return !names.isEmpty() && names.contains(s.substring(start, end).trim().toLowerCase());
+
+        long hi = parse(s, start, end, HIGH);
+        long lo = parse(s, start, end, LOW);
+
+        Node node = root;
+        while (node != null) {
+            if (maskHigh(hi, node.length) != node.hi || maskLow(lo, node.length) != node.lo)
+                return false;
+            if (node.terminal)
+                return true;
+            if (node.length == 128)
+                return false;
+
+            node = bit(hi, lo, node.length) == 0 ? node.zero : node.one;
+        }
+
+        return false;
+    }
+
+    private void insert(long hi, long lo, int length) {
+        Node leaf = new Node(hi, lo, length, true);
+        if (root == null) {
+            root = leaf;
+            return;
+        }
+
+        Node parent = null;
+        Node node = root;
+        while (true) {
+            int common = Math.min(Math.min(commonPrefix(hi, lo, node.hi, node.lo), node.length),
+                    length);
+
+            if (common < node.length) {
+                // the key diverges inside the node prefix, or ends there
+                Node split = new Node(hi, lo, common, common == length);
+                split.setChild(bit(node.hi, node.lo, common), node);
+                if (common < length)
+                    split.setChild(bit(hi, lo, common), leaf);
+
+                if (parent == null)
+                    root = split;
+                else
+                    parent.setChild(bit(hi, lo, parent.length), split);
+                return;
+            }
+
+            if (length == node.length) {
+                node.terminal = true;
+                return;
+            }
+
+            Node child = bit(hi, lo, node.length) == 0 ? node.zero : node.one;
+            if (child == null) {
+                node.setChild(bit(hi, lo, node.length), leaf);
+                return;
+            }
+
+            parent = node;
+            node = child;
+        }
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address, possibly within brackets and with a zone, in place.
+     * 
+     * @param s
+     * @param start
+     * @param end
+     * @param what {@link #KIND}, {@link #HIGH} or {@link #LOW}
+     * @return long the kind of address, 0 if invalid, or the high or low 64 bits of the address
+     */
+    private static long parse(String s, int start, int end, int what) {
+        while (start < end && s.charAt(start) <= ' ')
+            start++;
+        while (end > start && s.charAt(end - 1) <= ' ')
+            end--;
+
+        if (start < end && s.charAt(start) == '[') {
+            int close = s.indexOf(']', start);
+            if (close < 0 || close >= end)
+                return 0;
+            start++;
+            end = close;
+        }
+
+        boolean v6 = false;
+        for (int i = start; i < end; i++) {
+            char ch = s.charAt(i);
+            if (ch == '%') {
+                end = i;
+                break;
+            }
+            if (ch == ':')
+                v6 = true;
+        }
+
+        if (start == end)
+            return 0;
+
+        if (!v6) {
+            long v4 = parseV4(s, start, end);
+            if (v4 < 0)
+                return 0;
+
+            return what == KIND ? V4 : what == HIGH ? 0 : V4_MAPPED | v4;
+        }
+
+        // the groups before and after the "::" gap, right aligned
+        long headHi = 0, headLo = 0, tailHi = 0, tailLo = 0;
+        int groups = 0, gap = -1;
+
+        int i = start;
+        if (s.startsWith("::", i)) {
+            gap = 0;
+            i += 2;
+        } else if (s.charAt(i) == ':') {
+            return 0;
+        }
+
+        while (i < end) {
+            int j = i;
+            boolean dotted = false;
+            while (j < end && s.charAt(j) != ':') {
+                if (s.charAt(j) == '.')
+                    dotted = true;
+                j++;
+            }
+
+            int count;
+            long value;
+            if (dotted) {
+                // trailing IPv4 address, two groups
+                if (j != end)
+                    return 0;
+                value = parseV4(s, i, j);
+                count = 2;
+            } else {
+                value = parseHex(s, i, j);
+                count = 1;
+            }
+            if (value < 0)
+                return 0;
+
+            int shift = 16 * count;
+            if (gap < 0) {
+                headHi = (headHi << shift) | (headLo >>> (64 - shift));
+                headLo = (headLo << shift) | value;
+            } else {
+                tailHi = (tailHi << shift) | (tailLo >>> (64 - shift));
+                tailLo = (tailLo << shift) | value;
+            }
+            groups += count;
+
+            if (j == end)
+                break;
+
+            if (j + 1 < end && s.charAt(j + 1) == ':') {
+                if (gap >= 0)
+                    return 0;
+                gap = groups;
+                i = j + 2;
+            } else {
+                i = j + 1;
+                if (i == end)
+                    return 0;
+            }
+        }
+
+        if (gap < 0 ? groups != 8 : groups > 7)
+            return 0;
+
+        if (what == KIND)
+            return V6;
+
+        int shift = gap < 0 ? 0 : (8 - gap) * 16;
+        if (what == HIGH)
+            return shiftLeftHigh(headHi, headLo, shift) | tailHi;
+        return shiftLeftLow(headLo, shift) | tailLo;
+    }
+
+    /**
+     * @return long the address, -1 if invalid
+     */
+    private static long parseV4(String s, int start, int end) {
+        long address = 0;
+        int parts = 0;
+
+        int i = start;
+        while (true) {
+            int value = 0, digits = 0;
+            while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9' && digits < 3) {
+                value = value * 10 + s.charAt(i) - '0';
+                digits++;
+                i++;
+            }
+            if (digits == 0 || value > 255)
+                return -1;
+
+            address = (address << 8) | value;
+            parts++;
+
+            if (i == end)
+                return parts == 4 ? address : -1;
+            if (s.charAt(i) != '.' || parts == 4)
+                return -1;
+            i++;
+        }
+    }
+
+    /**
+     * @return long the group, -1 if invalid
+     */
+    private static long parseHex(String s, int start, int end) {
+        if (start == end || end - start > 4)
+            return -1;
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(s.charAt(i), 16);
+            if (digit < 0)
+                return -1;
+            value = (value << 4) | digit;
+        }
+
+        return value;
+    }
+
+    private static long shiftLeftHigh(long hi, long lo, int shift) {
+        if (shift == 0)
+            return hi;
+        if (shift >= 128)
+            return 0;
+        if (shift >= 64)
+            return lo << (shift - 64);
+        return (hi << shift) | (lo >>> (64 - shift));
+    }
+
+    private static long shiftLeftLow(long lo, int shift) {
+        return shift >= 64 ? 0 : lo << shift;
+    }
+
+    private static long maskHigh(long hi, int length) {
+        if (length >= 64)
+            return hi;
+        return length == 0 ? 0 : hi & (-1L << (64 - length));
+    }
+
+    private static long maskLow(long lo, int length) {
+        if (length <= 64)
+            return 0;
+        return length == 128 ? lo : lo & (-1L << (128 - length));
+    }
+
+    private static int bit(long hi, long lo, int index) {
+        return (int) (index < 64 ? (hi >>> (63 - index)) & 1 : (lo >>> (127 - index)) & 1);
+    }
+
+    private static int commonPrefix(long hi1, long lo1, long hi2, long lo2) {
+        if (hi1 != hi2)
+            return Long.numberOfLeadingZeros(hi1 ^ hi2);
+        if (lo1 != lo2)
+            return 64 + Long.numberOfLeadingZeros(lo1 ^ lo2);
+        return 128;
+    }
+
+    /**
+     * A prefix of the tree, the address bits beyond its length cleared.
+     */
+    private static final class Node {
+
+        final long hi;
+
+        final long lo;
+
+        final int length;
+
+        boolean terminal;
+
+        Node zero;
+
+        Node one;
+
+        Node(long hi, long lo, int length, boolean terminal) {
+            this.hi = maskHigh(hi, length);
+            this.lo = maskLow(lo, length);
+            this.length = length;
+            this.terminal = terminal;
+        }
+
+        void setChild(int bit, Node child) {
+            if (bit == 0)
+                zero = child;
+            else
+                one = child;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.mortbay.util.ajax.Continuation;
+
+/**
+ * A proxy request executed on the upstream executor while the client request is suspended.
+ * <p>
+ * The exchange is stored as a request attribute, so that the dispatch resuming the request can find
+ * the executed method. Whoever gives up on the exchange first, the upstream thread on failure or the
+ * container on timeout, is in charge of releasing the connection.
+ */
+final class AsyncExchange implements Runnable {
+
+    static final String ATTRIBUTE = AsyncExchange.class.getName();
+
+    private static final int RUNNING = 0;
+
+    private static final int DONE = 1;
+
+    private static final int ABANDONED = 2;
+
+    private final UpstreamTransport transport;
+
+    private final UpstreamMethod method;
+
+    private final UsernamePasswordCredentials credentials;
+
+    private final ProxyInfo proxyInfo;
+
+    private final Continuation continuation;
+
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    private volatile int status;
+
+    private volatile IOException failure;
+
+    private volatile boolean completed;
+
+    AsyncExchange(UpstreamTransport transport, UpstreamMethod method,
+            UsernamePasswordCredentials credentials, ProxyInfo proxyInfo,
+            Continuation continuation) {
+        this.transport = transport;
+        this.method = method;
+        this.credentials = credentials;
+        this.proxyInfo = proxyInfo;
+        this.continuation = continuation;
+    }
+
+    /**
+     * @param request
+     * @return AsyncExchange the exchange started for the request, null if none
+     */
+    static AsyncExchange get(HttpServletRequest request) {
+        return (AsyncExchange) request.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * @param request
+     * @return boolean true if the request waits for its exchange to be completed
+     */
+    static boolean isSuspended(HttpServletRequest request) {
+        AsyncExchange exchange = get(request);
+        return exchange != null && !exchange.completed;
+    }
+
+    public void run() {
+        try {
+            status = transport.execute(method, credentials);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+        }
+
+        if (state.compareAndSet(RUNNING, DONE)) {
+            continuation.resume();
+        } else {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Suspends the client request until the remote server answers or the timeout expires.
+     *
+     * @param timeout
+     */
+    void suspend(long timeout) {
+        continuation.suspend(timeout);
+    }
+
+    /**
+     * Marks the exchange as completed by the container.
+     *
+     * @return boolean true if the remote server answered, false if the exchange timed out and has been
+     *         abandoned
+     */
+    boolean complete() {
+        completed = true;
+
+        if (state.compareAndSet(RUNNING, ABANDONED))
+            return false;
+
+        return state.get() == DONE;
+    }
+
+    UpstreamMethod getMethod() {
+        return method;
+    }
+
+    ProxyInfo getProxyInfo() {
+        return proxyInfo;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    IOException getFailure() {
+        return failure;
+    }
+}
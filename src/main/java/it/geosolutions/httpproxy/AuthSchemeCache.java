@@ -0,0 +1,82 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the authentication scheme each remote host asked for, so that the credentials of the
+ * following requests to a Basic host are sent up front instead of after a 401 challenge.
+ * <p>
+ * The number of hosts is bounded: once full, an arbitrary host is forgotten for each new one.
+ */
+final class AuthSchemeCache {
+
+    static final String BASIC = "basic";
+
+    private final int maxHosts;
+
+    private final ConcurrentMap<String, String> schemes = new ConcurrentHashMap<String, String>();
+
+    /**
+     * @param maxHosts the number of hosts remembered
+     */
+    AuthSchemeCache(int maxHosts) {
+        this.maxHosts = maxHosts;
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @return boolean true if the host is known to authenticate with Basic
+     */
+    boolean isBasic(String host, int port) {
+        return BASIC.equals(schemes.get(key(host, port)));
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param scheme the name of the scheme the host authenticated with
+     */
+    void put(String host, int port, String scheme) {
+        String key = key(host, port);
+        scheme = scheme.toLowerCase();
+
+        if (scheme.equals(schemes.get(key)))
+            return;
+
+        if (!schemes.containsKey(key)) {
+            Iterator<String> keys = schemes.keySet().iterator();
+            while (schemes.size() >= maxHosts && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+
+        schemes.put(key, scheme);
+    }
+
+    private static String key(String host, int port) {
+        return host.toLowerCase() + ":" + port;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.SimpleHttpConnectionManager;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+
+/**
+ * The {@link UpstreamTransport} balancing the requests to a remote host having
+ * <code>upstream.&lt;name&gt;.backends</code> on them, see {@link LoadBalancer}.
+ * <p>
+ * The request is sent to the chosen backend, keeping its <code>Host</code> header, and gets its
+ * URI back once the response headers are received, so that the other transports and the proxy see
+ * the remote host. Connection errors, timeouts and the 502, 503 and 504 responses count as
+ * failures of the backend. The backends of the hosts having a
+ * <code>upstream.&lt;name&gt;.health_check</code> path are also checked every
+ * <code>healthCheckInterval</code>, one after the other, a check failing on an error status or
+ * after <code>healthCheckTimeout</code>.
+ */
+final class BalancingTransport implements UpstreamTransport {
+
+    private final static Logger LOGGER = Logger.getLogger(BalancingTransport.class.toString());
+
+    private final UpstreamTransport transport;
+
+    private final ProxyConfig proxyConfig;
+
+    /**
+     * The groups of backends, by host and port of their remote host
+     */
+    private final Map<String, Group> groups = new HashMap<String, Group>();
+
+    private final ScheduledExecutorService healthChecks;
+
+    /**
+     * @param proxyConfig
+     * @return boolean true if an upstream host has backends
+     */
+    static boolean isConfigured(ProxyConfig proxyConfig) {
+        for (HostConfig host : proxyConfig.getUpstreamHosts())
+            if (!host.getBackends().isEmpty())
+                return true;
+
+        return false;
+    }
+
+    /**
+     * @param transport the transport executing the requests
+     * @param proxyConfig
+     */
+    BalancingTransport(UpstreamTransport transport, ProxyConfig proxyConfig) {
+        this.transport = transport;
+        this.proxyConfig = proxyConfig;
+
+        final List<Group> checked = new ArrayList<Group>();
+        for (HostConfig host : proxyConfig.getUpstreamHosts()) {
+            if (host.getBackends().isEmpty())
+                continue;
+
+            Group group = new Group(host);
+            if (group.healthCheck != null)
+                checked.add(group);
+
+            int[] ports = host.getPort() > 0 ? new int[] { host.getPort() } : new int[] { 80, 443 };
+            for (int port : ports) {
+                String key = HostRoutingTransport.hostKey(host.getHost(), port);
+                if (!groups.containsKey(key))
+                    groups.put(key, group);
+            }
+        }
+
+        if (checked.isEmpty() || proxyConfig.getHealthCheckInterval() <= 0) {
+            healthChecks = null;
+            return;
+        }
+
+        healthChecks = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proxy-health-checks");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final HttpClient client = new HttpClient(new SimpleHttpConnectionManager(true));
+        healthChecks.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                for (Group group : checked)
+                    for (LoadBalancer.Backend backend : group.balancer.getBackends())
+                        check(client, group, backend);
+            }
+        }, 0, proxyConfig.getHealthCheckInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    public int execute(UpstreamMethod method, UsernamePasswordCredentials credentials)
+            throws IOException {
+        URI uri = method.getURI();
+
+        Group group = groups.isEmpty() ? null : groups.get(HostRoutingTransport.hostKey(uri));
+        if (group == null)
+            return transport.execute(method, credentials);
+
+        long started = System.nanoTime();
+        LoadBalancer.Backend backend = group.balancer.acquire(started, TimeUnit.MILLISECONDS
+                .toNanos(proxyConfig.getSlowStartTime()));
+
+        Boolean failed = Boolean.TRUE;
+        try {
+            String pathQuery = uri.getEscapedPathQuery();
+            method.setURI(new URI(uri.getScheme() + "://" + authority(backend, uri.getPort())
+                    + (pathQuery != null ? pathQuery : "/"), true));
+
+            int status = transport.execute(method, credentials);
+            failed = status == HttpServletResponse.SC_BAD_GATEWAY
+                    || status == HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                    || status == HttpServletResponse.SC_GATEWAY_TIMEOUT;
+            return status;
+        } finally {
+            method.setURI(uri);
+
+            long now = System.nanoTime();
+            if (method.isAborted())
+                failed = null;
+
+            if (group.balancer.complete(backend, now - started, failed, now, proxyConfig
+                    .getEjectFailures(), TimeUnit.MILLISECONDS.toNanos(proxyConfig
+                    .getEjectTime()))
+                    && LOGGER.isLoggable(Level.WARNING))
+                LOGGER.log(Level.WARNING, "The backend " + backend.authority + " of "
+                        + group.name + " failed " + proxyConfig.getEjectFailures()
+                        + " requests in a row, it is ejected for " + proxyConfig.getEjectTime()
+                        + "ms");
+        }
+    }
+
+    public void shutdown() {
+        if (healthChecks != null)
+            healthChecks.shutdownNow();
+        transport.shutdown();
+    }
+
+    private void check(HttpClient client, Group group, LoadBalancer.Backend backend) {
+        int timeout = proxyConfig.getHealthCheckTimeout();
+        HttpConnectionManagerParams params = client.getHttpConnectionManager().getParams();
+        params.setConnectionTimeout(timeout);
+        params.setSoTimeout(timeout);
+
+        String scheme = (backend.port > 0 ? backend.port : group.port) == 443 ? "https" : "http";
+        boolean healthy = false;
+        GetMethod method = null;
+        try {
+            method = new GetMethod(scheme + "://" + authority(backend, group.port)
+                    + group.healthCheck);
+            method.setFollowRedirects(false);
+
+            int status = client.executeMethod(method);
+            healthy = status >= 200 && status < 400;
+        } catch (Exception e) {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Health check of " + backend.authority + " failed", e);
+        } finally {
+            if (method != null)
+                method.releaseConnection();
+        }
+
+        if (!backend.checked(healthy, System.nanoTime()))
+            return;
+
+        if (!healthy && LOGGER.isLoggable(Level.WARNING))
+            LOGGER.log(Level.WARNING, "The backend " + backend.authority + " of " + group.name
+                    + " failed its health check, it is ejected");
+        else if (healthy && LOGGER.isLoggable(Level.INFO))
+            LOGGER.log(Level.INFO, "The backend " + backend.authority + " of " + group.name
+                    + " passed its health check again");
+    }
+
+    /**
+     * @param backend
+     * @param port the port of the remote host, -1 for the default one
+     * @return String the host and port of the backend, the port of the remote host if it has none
+     */
+    private static String authority(LoadBalancer.Backend backend, int port) {
+        if (backend.port > 0 || port <= 0)
+            return backend.authority;
+        return backend.authority + ":" + port;
+    }
+
+    /**
+     * The backends of a remote host
+     */
+    private static final class Group {
+
+        final String name;
+
+        final int port;
+
+        final String healthCheck;
+
+        final LoadBalancer balancer;
+
+        Group(HostConfig host) {
+            name = host.getName();
+            port = host.getPort();
+            balancer = new LoadBalancer(host.getBackends());
+
+            String path = host.getHealthCheck();
+            healthCheck = path != null && !path.startsWith("/") ? "/" + path : path;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the phases a {@link ProxyCallback} does something in, so that the other phases skip it.
+ * Callbacks without this annotation are called in every phase, in the configured order.
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CallbackPhases {
+
+    /**
+     * The phases of a proxy request.
+     */
+    enum Phase {
+        /**
+         * {@link ProxyCallback#onRequest}, before the remote request
+         */
+        REQUEST,
+
+        /**
+         * {@link ProxyCallback#onRemoteResponse}, once the remote response headers are received
+         */
+        REMOTE_RESPONSE,
+
+        /**
+         * {@link ProxyCallback#onFinish}, once the request is over
+         */
+        FINISH
+    }
+
+    /**
+     * @return Phase[] the phases the callback does something in
+     */
+    Phase[] value();
+
+    /**
+     * @return boolean true if the callback only accepts or rejects requests, depending on no other
+     *         callback, so that it can run in any order with the other checks, the cheapest and
+     *         most selective first
+     */
+    boolean check() default false;
+}
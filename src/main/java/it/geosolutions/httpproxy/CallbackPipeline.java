@@ -0,0 +1,341 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import it.geosolutions.httpproxy.CallbackPhases.Phase;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * The {@link ProxyCallback}s compiled into one chain per {@link Phase}, each holding only the
+ * callbacks doing something in that phase as declared by {@link CallbackPhases}.
+ * <p>
+ * In each chain the checks run first, ordered by their measured cost and selectivity: the time they
+ * take and how often they reject a request are sampled on one call out of {@link #SAMPLE_RATE},
+ * and they are sorted by time over rejection probability, so that requests bound to be rejected
+ * are rejected by the cheapest check that can. The other callbacks follow in the configured order.
+ */
+final class CallbackPipeline {
+
+    private final static Logger LOGGER = Logger.getLogger(CallbackPipeline.class.toString());
+
+    /**
+     * One call out of this many is timed, a power of 2
+     */
+    static final int SAMPLE_RATE = 16;
+
+    /**
+     * The checks are sorted again every this many samples
+     */
+    static final int REORDER_SAMPLES = 64;
+
+    /**
+     * Beyond this many samples the statistics of a check are halved, to follow changes in the
+     * traffic
+     */
+    private static final long MAX_SAMPLES = 4096;
+
+    private static final String PACKAGE = CallbackPipeline.class.getPackage().getName() + ".";
+
+    private final Chain[] chains = new Chain[Phase.values().length];
+
+    /**
+     * @param callbacks the callbacks, in the configured order
+     */
+    CallbackPipeline(List<ProxyCallback> callbacks) {
+        for (Phase phase : Phase.values()) {
+            List<Check> checks = new ArrayList<Check>();
+            List<ProxyCallback> others = new ArrayList<ProxyCallback>();
+
+            for (ProxyCallback callback : callbacks) {
+                CallbackPhases phases = callback.getClass().getAnnotation(CallbackPhases.class);
+                if (phases == null)
+                    others.add(callback);
+                else if (Arrays.asList(phases.value()).contains(phase))
+                    if (phases.check())
+                        checks.add(new Check(callback));
+                    else
+                        others.add(callback);
+            }
+
+            chains[phase.ordinal()] = new Chain(phase, checks.toArray(new Check[checks.size()]),
+                    others.toArray(new ProxyCallback[others.size()]));
+        }
+    }
+
+    /**
+     * Creates the callbacks listed in the configuration, followed by the ones registered as
+     * <code>META-INF/services/it.geosolutions.httpproxy.ProxyCallback</code> providers.
+     * Configured callbacks are created with their {@link ProxyConfig} constructor if they have one,
+     * the others with their default constructor.
+     * 
+     * @param config
+     * @return List<ProxyCallback>
+     * @throws IllegalArgumentException if a configured callback cannot be created, the proxy must
+     *         not run without one of its checks
+     */
+    static List<ProxyCallback> load(ProxyConfig config) {
+        List<ProxyCallback> callbacks = new ArrayList<ProxyCallback>();
+        Set<Class<?>> loaded = new HashSet<Class<?>>();
+
+        for (String name : config.getCallbacks()) {
+            String className = name.indexOf('.') < 0 ? PACKAGE + name : name;
+
+            try {
+                Class<?> type = Class.forName(className, true, CallbackPipeline.class
+                        .getClassLoader());
+                callbacks.add(create(type.asSubclass(ProxyCallback.class), config));
+                loaded.add(type);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Unable to create the proxy callback " + name,
+                        e);
+            }
+        }
+
+        for (ProxyCallback callback : ServiceLoader.load(ProxyCallback.class)) {
+            if (loaded.add(callback.getClass()))
+                callbacks.add(callback);
+        }
+
+        if (LOGGER.isLoggable(Level.INFO)) {
+            List<String> names = new ArrayList<String>();
+            for (ProxyCallback callback : callbacks)
+                names.add(callback.getClass().getName());
+            LOGGER.log(Level.INFO, "Proxy callbacks: " + names);
+        }
+
+        return callbacks;
+    }
+
+    private static ProxyCallback create(Class<? extends ProxyCallback> type, ProxyConfig config)
+            throws Exception {
+        Constructor<? extends ProxyCallback> constructor;
+        try {
+            constructor = type.getConstructor(ProxyConfig.class);
+        } catch (NoSuchMethodException e) {
+            return type.getDeclaredConstructor().newInstance();
+        }
+
+        return constructor.newInstance(config);
+    }
+
+    /**
+     * @param phase
+     * @return List<ProxyCallback> the callbacks called in the phase, in their current order
+     */
+    List<ProxyCallback> getCallbacks(Phase phase) {
+        return chains[phase.ordinal()].getCallbacks();
+    }
+
+    /**
+     * @param context
+     * @throws IOException
+     */
+    void onRequest(ProxyContext context) throws IOException {
+        run(Phase.REQUEST, context);
+    }
+
+    /**
+     * @param context
+     * @param method the remote request, its response headers received
+     * @throws IOException
+     */
+    void onRemoteResponse(ProxyContext context, HttpMethod method) throws IOException {
+        context.setMethod(method);
+        run(Phase.REMOTE_RESPONSE, context);
+    }
+
+    /**
+     * @param context
+     * @throws IOException
+     */
+    void onFinish(ProxyContext context) throws IOException {
+        run(Phase.FINISH, context);
+    }
+
+    private void run(Phase phase, ProxyContext context) throws IOException {
+        Chain chain = chains[phase.ordinal()];
+        if (chain.isEmpty())
+            return;
+
+        context.attach();
+        try {
+            chain.run(context);
+        } finally {
+            ProxyContext.detach();
+        }
+    }
+
+    private static void call(Phase phase, ProxyCallback callback, ProxyContext context)
+            throws IOException {
+        switch (phase) {
+        case REQUEST:
+            callback.onRequest(context.getRequest(), context.getResponse(), context.getUrl());
+            break;
+        case REMOTE_RESPONSE:
+            callback.onRemoteResponse(context.getMethod());
+            break;
+        default:
+            callback.onFinish();
+        }
+    }
+
+    /**
+     * The callbacks of a phase.
+     */
+    private static final class Chain {
+
+        private final Phase phase;
+
+        private volatile Check[] checks;
+
+        private final ProxyCallback[] others;
+
+        /**
+         * Counts the calls to pick the sampled ones: updates lost to races only change the
+         * sampling rate a bit
+         */
+        private int calls;
+
+        private int samples;
+
+        Chain(Phase phase, Check[] checks, ProxyCallback[] others) {
+            this.phase = phase;
+            this.checks = checks;
+            this.others = others;
+        }
+
+        boolean isEmpty() {
+            return checks.length == 0 && others.length == 0;
+        }
+
+        List<ProxyCallback> getCallbacks() {
+            List<ProxyCallback> callbacks = new ArrayList<ProxyCallback>();
+            for (Check check : checks)
+                callbacks.add(check.callback);
+            callbacks.addAll(Arrays.asList(others));
+            return callbacks;
+        }
+
+        void run(ProxyContext context) throws IOException {
+            Check[] current = checks;
+
+            if ((++calls & (SAMPLE_RATE - 1)) != 0 || current.length < 2) {
+                for (Check check : current)
+                    call(phase, check.callback, context);
+            } else {
+                for (Check check : current) {
+                    long started = System.nanoTime();
+                    try {
+                        call(phase, check.callback, context);
+                    } catch (HttpErrorException e) {
+                        sample(check, System.nanoTime() - started, true);
+                        throw e;
+                    }
+                    sample(check, System.nanoTime() - started, false);
+                }
+            }
+
+            for (ProxyCallback callback : others)
+                call(phase, callback, context);
+        }
+
+        private synchronized void sample(Check check, long nanos, boolean rejected) {
+            check.samples++;
+            check.nanos += nanos;
+            if (rejected)
+                check.rejections++;
+
+            if (++samples < REORDER_SAMPLES)
+                return;
+            samples = 0;
+
+            Check[] sorted = checks.clone();
+            for (Check current : sorted)
+                current.score();
+
+            // stable: checks of equal score keep their order
+            Arrays.sort(sorted, new Comparator<Check>() {
+                public int compare(Check o1, Check o2) {
+                    return Double.compare(o1.score, o2.score);
+                }
+            });
+
+            if (!Arrays.equals(sorted, checks)) {
+                checks = sorted;
+
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.log(Level.FINE, "Reordered the " + phase + " checks: "
+                            + getCallbacks());
+            }
+        }
+    }
+
+    /**
+     * A check with its sampled statistics, guarded by the {@link Chain}.
+     */
+    private static final class Check {
+
+        final ProxyCallback callback;
+
+        long samples;
+
+        long nanos;
+
+        long rejections;
+
+        double score;
+
+        Check(ProxyCallback callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * The expected time spent in the check for each rejection it makes, the rejection
+         * probability smoothed so that checks never seen rejecting still compare by time.
+         */
+        void score() {
+            if (samples == 0)
+                return;
+
+            double time = (double) nanos / samples;
+            double rejection = (rejections + 1.0) / (samples + 2.0);
+            score = time / rejection;
+
+            if (samples > MAX_SAMPLES) {
+                samples /= 2;
+                nanos /= 2;
+                rejections /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The circuit breaker of a remote host: closed while its requests succeed, open once too many of
+ * them fail, so that the next ones are rejected at once instead of holding connections and threads
+ * until they time out. After a while it is half open: a single request probes the host, closing the
+ * circuit if it succeeds or opening it again if it fails.
+ * <p>
+ * The outcomes are counted in a ring of time buckets made of atomic counters, and the state is kept
+ * along with the time the circuit opened in a single atomic value, no lock is taken.
+ */
+final class CircuitBreaker {
+
+    /**
+     * The request is allowed, the circuit being closed
+     */
+    static final int CLOSED = 0;
+
+    /**
+     * The request is rejected, the circuit being open
+     */
+    static final int OPEN = 1;
+
+    /**
+     * The request is allowed to probe the host, the circuit being half open
+     */
+    static final int HALF_OPEN = 2;
+
+    /**
+     * The buckets of the window, each one counting the outcomes of a tenth of it
+     */
+    private static final int BUCKETS = 10;
+
+    private final double errorRate;
+
+    private final int minRequests;
+
+    private final long bucketMillis;
+
+    private final long openMillis;
+
+    /**
+     * The time the circuit opened, shifted left by two bits, and the state
+     */
+    private final AtomicLong status = new AtomicLong(CLOSED);
+
+    private final AtomicLongArray epochs = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLongArray requests = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLongArray failures = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param errorRate the share of failed requests opening the circuit
+     * @param minRequests the requests in the window needed to open the circuit
+     * @param windowMillis the time over which the outcomes are counted
+     * @param openMillis the time the circuit stays open before a request probes the host
+     */
+    CircuitBreaker(double errorRate, int minRequests, long windowMillis, long openMillis) {
+        this.errorRate = errorRate;
+        this.minRequests = Math.max(1, minRequests);
+        this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+        this.openMillis = openMillis;
+
+        for (int i = 0; i < BUCKETS; i++)
+            epochs.set(i, -1);
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return int {@link #CLOSED} or {@link #HALF_OPEN} if the request can be sent, it must then
+     *         be reported to {@link #complete}, {@link #OPEN} if it is rejected
+     */
+    int allow(long now) {
+        long current = status.get();
+        switch ((int) (current & 3)) {
+        case CLOSED:
+            return CLOSED;
+        case OPEN:
+            if (now - (current >> 2) >= openMillis
+                    && status.compareAndSet(current, (current & ~3L) | HALF_OPEN))
+                return HALF_OPEN;
+            return OPEN;
+        default:
+            return OPEN;
+        }
+    }
+
+    /**
+     * Reports the outcome of an allowed request
+     * 
+     * @param allowed what {@link #allow} returned for the request
+     * @param failed whether the request failed, null if it was aborted by the proxy
+     * @param now the current time in milliseconds
+     */
+    void complete(int allowed, Boolean failed, long now) {
+        if (allowed == HALF_OPEN) {
+            if (failed == null) {
+                // ////////////////////////////////////////
+                // Nothing learnt, let the next one probe
+                // ////////////////////////////////////////
+
+                status.set(((now - openMillis) << 2) | OPEN);
+            } else if (failed) {
+                status.set((now << 2) | OPEN);
+            } else {
+                for (int i = 0; i < BUCKETS; i++)
+                    epochs.set(i, -1);
+                status.set(CLOSED);
+            }
+            return;
+        }
+
+        if (failed == null)
+            return;
+
+        long epoch = now / bucketMillis;
+        int i = (int) (epoch % BUCKETS);
+
+        long stamp = epochs.get(i);
+        if (stamp != epoch && epochs.compareAndSet(i, stamp, epoch)) {
+            requests.set(i, 0);
+            failures.set(i, 0);
+        }
+
+        requests.incrementAndGet(i);
+        if (!failed)
+            return;
+
+        failures.incrementAndGet(i);
+
+        // ////////////////////////////////////////
+        // Open the circuit once the failures in
+        // the window are too many
+        // ////////////////////////////////////////
+
+        long total = 0, errors = 0;
+        for (int j = 0; j < BUCKETS; j++) {
+            if (epochs.get(j) > epoch - BUCKETS) {
+                total += requests.get(j);
+                errors += failures.get(j);
+            }
+        }
+
+        if (total >= minRequests && errors >= errorRate * total)
+            status.compareAndSet(CLOSED, (now << 2) | OPEN);
+    }
+
+    /**
+     * @return int the state, {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}
+     */
+    int getState() {
+        return (int) (status.get() & 3);
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return long the milliseconds before a request can probe the host, 0 if the circuit is not
+     *         open
+     */
+    long getRemainingMillis(long now) {
+        long current = status.get();
+        if ((current & 3) != OPEN)
+            return 0;
+
+        return Math.max(0, (current >> 2) + openMillis - now);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScheme;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.cookie.CookiePolicy;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * The {@link UpstreamTransport} built on the commons HTTP client: HTTP/1.1 over a pool of persistent
+ * connections, limited per remote host.
+ * <p>
+ * Each request runs with its own {@link HttpState}, so that neither credentials nor cookies leak
+ * from a client to another and no lock is shared. Cookies are left to the clients, which send them
+ * along with the request headers.
+ */
+final class CommonsHttpTransport implements UpstreamTransport {
+
+    /**
+     * Allows to reuse connections to the backing server and to limit the max number of concurrent
+     * connections. Threads waiting for a connection park on a semaphore, so virtual threads do not
+     * pin their carrier.
+     */
+    private final UpstreamConnectionManager connectionManager;
+
+    /**
+     * Closes the pooled connections left idle, before the remote servers drop them.
+     */
+    private final IdleConnectionTimeoutThread idleConnectionReaper;
+
+    /**
+     * Resolves the remote hosts out of the request path, null to let the JVM resolve them
+     */
+    private final DnsCache dnsCache;
+
+    /**
+     * An HTTP "user-agent", containing an HTTP state and one or more HTTP connections, to which HTTP
+     * methods can be applied.
+     */
+    private final HttpClient httpClient;
+
+    /**
+     * The authentication schemes of the remote hosts, null if credentials are never sent up front
+     */
+    private final AuthSchemeCache authSchemes;
+
+    /**
+     * @param proxyConfig
+     */
+    CommonsHttpTransport(ProxyConfig proxyConfig) {
+        dnsCache = proxyConfig.getDnsCacheTtl() > 0 ? newDnsCache(proxyConfig) : null;
+        DnsSocketFactory.install(dnsCache);
+
+        if (proxyConfig.isMetricsEnabled())
+            TimedSocketFactory.install();
+
+        connectionManager = new UpstreamConnectionManager();
+        HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+
+        params.setSoTimeout(proxyConfig.getSoTimeout());
+        params.setConnectionTimeout(proxyConfig.getConnectionTimeout());
+        params.setMaxTotalConnections(proxyConfig.getMaxTotalConnections());
+        params.setDefaultMaxConnectionsPerHost(proxyConfig.getDefaultMaxConnectionsPerHost());
+        params.setTcpNoDelay(proxyConfig.isTcpNoDelay());
+        params.setStaleCheckingEnabled(proxyConfig.isStaleChecking());
+
+        if (proxyConfig.getSendBufferSize() > 0)
+            params.setSendBufferSize(proxyConfig.getSendBufferSize());
+        if (proxyConfig.getReceiveBufferSize() > 0)
+            params.setReceiveBufferSize(proxyConfig.getReceiveBufferSize());
+
+        connectionManager.setParams(params);
+
+        for (HostConfig host : proxyConfig.getUpstreamHosts()) {
+            connectionManager.configureHost(host);
+            for (HostConfig backend : host.getBackendConfigs())
+                connectionManager.configureHost(backend);
+        }
+
+        httpClient = new HttpClient(connectionManager);
+
+        authSchemes = proxyConfig.getAuthSchemeCacheSize() > 0 ? new AuthSchemeCache(proxyConfig
+                .getAuthSchemeCacheSize()) : null;
+
+        if (proxyConfig.getIdleConnectionTimeout() > 0) {
+            idleConnectionReaper = new IdleConnectionTimeoutThread();
+            idleConnectionReaper.setName("proxy-idle-connections");
+            idleConnectionReaper.setConnectionTimeout(proxyConfig.getIdleConnectionTimeout());
+            idleConnectionReaper.setTimeoutInterval(proxyConfig.getIdleCheckInterval());
+            idleConnectionReaper.addConnectionManager(connectionManager);
+            idleConnectionReaper.start();
+        } else {
+            idleConnectionReaper = null;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public int execute(UpstreamMethod method, UsernamePasswordCredentials credentials)
+            throws IOException {
+        HttpState state = new HttpState();
+        method.getParams().setCookiePolicy(CookiePolicy.IGNORE_COOKIES);
+
+        if (credentials == null)
+            return httpClient.executeMethod(null, method, state);
+
+        URI uri = method.getURI();
+        String host = uri.getHost();
+        int port = uri.getPort() > 0 ? uri.getPort()
+                : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+
+        state.setCredentials(new AuthScope(host, port), credentials);
+
+        // ////////////////////////////////////////////////////
+        // Skip the 401 round trip of the hosts known to use
+        // Basic, the state being private to this request
+        // ////////////////////////////////////////////////////
+
+        if (authSchemes != null && authSchemes.isBasic(host, port))
+            state.setAuthenticationPreemptive(true);
+
+        int status = httpClient.executeMethod(null, method, state);
+
+        AuthScheme scheme = method.getHostAuthState().getAuthScheme();
+        if (authSchemes != null && scheme != null)
+            authSchemes.put(host, port, scheme.getSchemeName());
+
+        return status;
+    }
+
+    /**
+     * @return UpstreamConnectionManager the connection pool
+     */
+    UpstreamConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public void shutdown() {
+        if (idleConnectionReaper != null)
+            idleConnectionReaper.shutdown();
+
+        if (dnsCache != null) {
+            DnsSocketFactory.uninstall(dnsCache);
+            dnsCache.shutdown();
+        }
+
+        connectionManager.shutdown();
+    }
+
+    private static DnsCache newDnsCache(ProxyConfig proxyConfig) {
+        Map<String, Long> hostTtls = new HashMap<String, Long>();
+        for (HostConfig host : proxyConfig.getUpstreamHosts()) {
+            if (host.getDnsTtl() == null)
+                continue;
+
+            hostTtls.put(host.getHost(), host.getDnsTtl());
+            for (HostConfig backend : host.getBackendConfigs())
+                hostTtls.put(backend.getHost(), host.getDnsTtl());
+        }
+
+        return new DnsCache(proxyConfig.getDnsCacheTtl(), proxyConfig.getDnsNegativeTtl(),
+                hostTtls);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An adaptive limit of the concurrent requests to a remote host, along the lines of the gradient
+ * limits: the limit grows while the latency stays close to the one of the unloaded host, and shrinks
+ * as requests queue up on the host and the latency grows. Failures and timeouts cut it by a tenth.
+ * <p>
+ * Acquiring a permit takes no lock, the limit is updated under the lock of the limiter once a
+ * request completes.
+ */
+final class ConcurrencyLimiter {
+
+    /**
+     * The latencies averaged by the long term latency, taken as the one of the unloaded host
+     */
+    private static final int LONG_WINDOW = 600;
+
+    /**
+     * The latencies simply averaged before the long term average starts
+     */
+    private static final int WARMUP = 10;
+
+    /**
+     * How much the latency may grow before the limit shrinks
+     */
+    private static final double TOLERANCE = 1.5;
+
+    private static final double SMOOTHING = 0.2;
+
+    private static final double BACKOFF = 0.9;
+
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile int limit;
+
+    /**
+     * The limit before rounding, guarded by this
+     */
+    private double estimate;
+
+    /**
+     * The long term latency in nanoseconds, guarded by this
+     */
+    private double longRtt;
+
+    /**
+     * Guarded by this
+     */
+    private int samples;
+
+    /**
+     * @param initialLimit
+     * @param maxLimit
+     */
+    ConcurrencyLimiter(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.estimate = Math.max(1, Math.min(initialLimit, this.maxLimit));
+        this.limit = (int) estimate;
+    }
+
+    /**
+     * @return boolean true if the request can be sent, it must then be reported to
+     *         {@link #release}
+     */
+    boolean acquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit)
+                return false;
+        } while (!inFlight.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    /**
+     * Reports the outcome of an acquired request
+     * 
+     * @param rttNanos the time the request took, ignored if negative
+     * @param failed whether the request failed or timed out
+     */
+    void release(long rttNanos, boolean failed) {
+        int current = inFlight.getAndDecrement();
+        if (failed || rttNanos >= 0)
+            update(rttNanos, failed, current);
+    }
+
+    private synchronized void update(long rttNanos, boolean failed, int inFlight) {
+        if (failed) {
+            estimate = Math.max(1, estimate * BACKOFF);
+            limit = (int) estimate;
+            return;
+        }
+
+        double rtt = Math.max(1, rttNanos);
+
+        // //////////////////////////////////////////////////
+        // The long term latency, lowered faster once the
+        // latency is back to normal after an overload
+        // //////////////////////////////////////////////////
+
+        if (samples < WARMUP) {
+            samples++;
+            longRtt += (rtt - longRtt) / samples;
+        } else {
+            longRtt += (rtt - longRtt) * 2 / (LONG_WINDOW + 1);
+        }
+
+        if (longRtt / rtt > 2)
+            longRtt *= 0.95;
+
+        // ////////////////////////////////////////////////////
+        // The host is not the bottleneck when the requests
+        // stay well below the limit, keep it as it is
+        // ////////////////////////////////////////////////////
+
+        if (inFlight < estimate / 2)
+            return;
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / rtt));
+        double target = estimate * gradient + Math.sqrt(estimate);
+
+        estimate = Math.max(1, Math.min(maxLimit, estimate * (1 - SMOOTHING) + target * SMOOTHING));
+        limit = (int) estimate;
+    }
+
+    /**
+     * @return int the current limit
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return int the requests in flight
+     */
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
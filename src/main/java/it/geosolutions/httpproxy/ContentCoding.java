@@ -0,0 +1,210 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.httpclient.HeaderElement;
+import org.apache.commons.httpclient.NameValuePair;
+
+/**
+ * How a response body is sent to the client, depending on the content coding of the remote response
+ * and on the codings the client accepts.
+ */
+enum ContentCoding {
+
+    /**
+     * The body is sent as received from the remote server
+     */
+    PASS,
+
+    /**
+     * The gzip body is decompressed for a client not accepting gzip
+     */
+    DECODE,
+
+    /**
+     * The uncompressed body is compressed by the proxy
+     */
+    ENCODE;
+
+    static final String GZIP = "gzip";
+
+    /**
+     * The level used while the load is unknown or low
+     */
+    private static final int DEFAULT_LEVEL = 6;
+
+    private static final long LEVEL_REFRESH_INTERVAL = 1000;
+
+    /**
+     * The automatic level, as level << 48 | time of the computation
+     */
+    private static final AtomicLong AUTO_LEVEL = new AtomicLong(-1);
+
+    /**
+     * Chooses how to send a response body to the client.
+     *
+     * @param request the client request
+     * @param contentEncoding the remote response <code>Content-Encoding</code>, if any
+     * @param contentType the remote response <code>Content-Type</code>, if any
+     * @param contentLength the remote response length, -1 if unknown
+     * @param config the proxy configuration
+     * @return ContentCoding
+     */
+    static ContentCoding choose(HttpServletRequest request, String contentEncoding,
+            String contentType, long contentLength, ProxyConfig config) {
+        if (contentEncoding != null) {
+            if (!isGzip(contentEncoding.trim()) || acceptsGzip(request))
+                return PASS;
+
+            return DECODE;
+        }
+
+        if (config.isCompressResponses() && acceptsGzip(request)
+                && (contentLength < 0 || contentLength >= config.getCompressMinBytes())
+                && isCompressible(contentType, config.getCompressibleTypes()))
+            return ENCODE;
+
+        return PASS;
+    }
+
+    /**
+     * @param request
+     * @return boolean true if the client accepts gzip compressed responses
+     */
+    @SuppressWarnings("rawtypes")
+    static boolean acceptsGzip(HttpServletRequest request) {
+        float gzip = -1, any = -1;
+
+        Enumeration values = request.getHeaders("Accept-Encoding");
+        while (values != null && values.hasMoreElements()) {
+            for (HeaderElement element : HeaderElement.parseElements((String) values
+                    .nextElement())) {
+                float q = quality(element);
+                if (isGzip(element.getName()))
+                    gzip = Math.max(gzip, q);
+                else if ("*".equals(element.getName()))
+                    any = Math.max(any, q);
+            }
+        }
+
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    /**
+     * @param contentType
+     * @param compressibleTypes the prefixes or suffixes of the compressible media types
+     * @return boolean true if it is worth compressing the content type
+     */
+    static boolean isCompressible(String contentType, Set<String> compressibleTypes) {
+        if (contentType == null)
+            return false;
+
+        String type = contentType.toLowerCase();
+        int params = type.indexOf(';');
+        if (params >= 0)
+            type = type.substring(0, params);
+        type = type.trim();
+
+        for (String compressible : compressibleTypes) {
+            compressible = compressible.trim().toLowerCase();
+            if (compressible.length() > 0
+                    && (type.startsWith(compressible) || type.endsWith(compressible)))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Wraps the client output stream in a gzip stream.
+     *
+     * @param out
+     * @param level the deflate level, -1 to choose it from the system load
+     * @return GZIPOutputStream
+     * @throws IOException
+     */
+    static GZIPOutputStream gzip(OutputStream out, int level) throws IOException {
+        final int deflateLevel = level >= 0 ? level : autoLevel();
+
+        return new GZIPOutputStream(out) {
+            {
+                def.setLevel(deflateLevel);
+            }
+        };
+    }
+
+    /**
+     * Lowers the compression level as the CPUs get busy, so that compressing never makes the proxy
+     * CPU bound. The level is computed at most once a second.
+     *
+     * @return int the deflate level
+     */
+    static int autoLevel() {
+        long now = System.currentTimeMillis();
+
+        long current = AUTO_LEVEL.get();
+        if (current >= 0 && now - (current & 0xffffffffffffL) < LEVEL_REFRESH_INTERVAL)
+            return (int) (current >>> 48);
+
+        int level = DEFAULT_LEVEL;
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        double load = os.getSystemLoadAverage();
+        if (load >= 0) {
+            double usage = load / os.getAvailableProcessors();
+            if (usage >= 1)
+                level = 1;
+            else if (usage >= 0.75)
+                level = 3;
+            else if (usage >= 0.5)
+                level = 4;
+        }
+
+        AUTO_LEVEL.compareAndSet(current, ((long) level << 48) | (now & 0xffffffffffffL));
+        return level;
+    }
+
+    private static boolean isGzip(String coding) {
+        return GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding);
+    }
+
+    private static float quality(HeaderElement element) {
+        NameValuePair q = element.getParameterByName("q");
+        if (q == null || q.getValue() == null)
+            return 1;
+
+        try {
+            return Float.parseFloat(q.getValue().trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+/**
+ * An {@link HttpConnection} forwarding every call to another one, such as the connection handed out
+ * by a connection manager, so that subclasses can track its use.
+ */
+@SuppressWarnings("deprecation")
+class DelegatingHttpConnection extends HttpConnection {
+
+    private final HttpConnection connection;
+
+    /**
+     * @param connection the connection the calls are forwarded to
+     */
+    DelegatingHttpConnection(HttpConnection connection) {
+        super(connection.getHost(), connection.getPort(), connection.getProtocol());
+        this.connection = connection;
+    }
+
+    @Override
+    public String getHost() {
+        return connection.getHost();
+    }
+
+    @Override
+    public void setHost(String host) {
+        connection.setHost(host);
+    }
+
+    @Override
+    public String getVirtualHost() {
+        return connection.getVirtualHost();
+    }
+
+    @Override
+    public void setVirtualHost(String host) {
+        connection.setVirtualHost(host);
+    }
+
+    @Override
+    public int getPort() {
+        return connection.getPort();
+    }
+
+    @Override
+    public void setPort(int port) {
+        connection.setPort(port);
+    }
+
+    @Override
+    public String getProxyHost() {
+        return connection.getProxyHost();
+    }
+
+    @Override
+    public void setProxyHost(String host) {
+        connection.setProxyHost(host);
+    }
+
+    @Override
+    public int getProxyPort() {
+        return connection.getProxyPort();
+    }
+
+    @Override
+    public void setProxyPort(int port) {
+        connection.setProxyPort(port);
+    }
+
+    @Override
+    public boolean isSecure() {
+        return connection.isSecure();
+    }
+
+    @Override
+    public Protocol getProtocol() {
+        return connection.getProtocol();
+    }
+
+    @Override
+    public void setProtocol(Protocol protocol) {
+        connection.setProtocol(protocol);
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public void setLocalAddress(InetAddress localAddress) {
+        connection.setLocalAddress(localAddress);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connection.isOpen();
+    }
+
+    @Override
+    public boolean closeIfStale() throws IOException {
+        return connection.closeIfStale();
+    }
+
+    @Override
+    public boolean isStaleCheckingEnabled() {
+        return connection.isStaleCheckingEnabled();
+    }
+
+    @Override
+    public void setStaleCheckingEnabled(boolean staleCheckEnabled) {
+        connection.setStaleCheckingEnabled(staleCheckEnabled);
+    }
+
+    @Override
+    public boolean isProxied() {
+        return connection.isProxied();
+    }
+
+    @Override
+    public void setLastResponseInputStream(InputStream inStream) {
+        connection.setLastResponseInputStream(inStream);
+    }
+
+    @Override
+    public InputStream getLastResponseInputStream() {
+        return connection.getLastResponseInputStream();
+    }
+
+    @Override
+    public HttpConnectionParams getParams() {
+        return connection.getParams();
+    }
+
+    @Override
+    public void setParams(HttpConnectionParams params) {
+        connection.setParams(params);
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) throws SocketException {
+        connection.setSoTimeout(timeout);
+    }
+
+    @Override
+    public void setSocketTimeout(int timeout) throws SocketException {
+        connection.setSocketTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        return connection.getSoTimeout();
+    }
+
+    @Override
+    public void setConnectionTimeout(int timeout) {
+        connection.setConnectionTimeout(timeout);
+    }
+
+    @Override
+    public void open() throws IOException {
+        connection.open();
+    }
+
+    @Override
+    public void tunnelCreated() throws IOException {
+        connection.tunnelCreated();
+    }
+
+    @Override
+    public boolean isTransparent() {
+        return connection.isTransparent();
+    }
+
+    @Override
+    public void flushRequestOutputStream() throws IOException {
+        connection.flushRequestOutputStream();
+    }
+
+    @Override
+    public OutputStream getRequestOutputStream() throws IOException {
+        return connection.getRequestOutputStream();
+    }
+
+    @Override
+    public InputStream getResponseInputStream() throws IOException {
+        return connection.getResponseInputStream();
+    }
+
+    @Override
+    public boolean isResponseAvailable() throws IOException {
+        return connection.isResponseAvailable();
+    }
+
+    @Override
+    public boolean isResponseAvailable(int timeout) throws IOException {
+        return connection.isResponseAvailable(timeout);
+    }
+
+    @Override
+    public void write(byte[] data) throws IOException {
+        connection.write(data);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        connection.write(data, offset, length);
+    }
+
+    @Override
+    public void writeLine(byte[] data) throws IOException {
+        connection.writeLine(data);
+    }
+
+    @Override
+    public void writeLine() throws IOException {
+        connection.writeLine();
+    }
+
+    @Override
+    public void print(String data) throws IOException {
+        connection.print(data);
+    }
+
+    @Override
+    public void print(String data, String charset) throws IOException {
+        connection.print(data, charset);
+    }
+
+    @Override
+    public void printLine(String data) throws IOException {
+        connection.printLine(data);
+    }
+
+    @Override
+    public void printLine(String data, String charset) throws IOException {
+        connection.printLine(data, charset);
+    }
+
+    @Override
+    public void printLine() throws IOException {
+        connection.printLine();
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        return connection.readLine();
+    }
+
+    @Override
+    public String readLine(String charset) throws IOException {
+        return connection.readLine(charset);
+    }
+
+    @Override
+    public void shutdownOutput() {
+        connection.shutdownOutput();
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+
+    @Override
+    public HttpConnectionManager getHttpConnectionManager() {
+        return connection.getHttpConnectionManager();
+    }
+
+    @Override
+    public void setHttpConnectionManager(HttpConnectionManager httpConnectionManager) {
+        connection.setHttpConnectionManager(httpConnectionManager);
+    }
+
+    @Override
+    public void releaseConnection() {
+        connection.releaseConnection();
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        return connection.getSendBufferSize();
+    }
+
+    @Override
+    public void setSendBufferSize(int sendBufferSize) throws SocketException {
+        connection.setSendBufferSize(sendBufferSize);
+    }
+}
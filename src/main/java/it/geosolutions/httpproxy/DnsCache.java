@@ -0,0 +1,312 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The addresses of the remote hosts, resolved once per TTL out of the request path.
+ * <p>
+ * A host is looked up on its first request, the requests to the same host waiting for the same
+ * lookup. Its addresses are then looked up again in the background before their TTL is over, as
+ * long as the host is used, and dropped once it has not been used for a TTL. A failed lookup
+ * keeps the last addresses of the host, retried after the negative TTL; a host failing its first
+ * lookup is unknown for the negative TTL, then dropped.
+ */
+class DnsCache {
+
+    private final static Logger LOGGER = Logger.getLogger(DnsCache.class.toString());
+
+    /**
+     * The hosts cached at most, the others are looked up on each connection
+     */
+    private static final int MAX_HOSTS = 10000;
+
+    /**
+     * The part of the TTL after which the addresses of a host are looked up again
+     */
+    private static final double REFRESH_RATIO = 0.8;
+
+    private final long ttl;
+
+    private final long negativeTtl;
+
+    private final Map<String, Long> hostTtls;
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final ConcurrentMap<String, FutureTask<Entry>> lookups = new ConcurrentHashMap<String, FutureTask<Entry>>();
+
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * @param ttl the time in milliseconds the addresses of a host are kept for
+     * @param negativeTtl the time in milliseconds a failed lookup is kept for
+     * @param hostTtls the TTLs of the hosts having their own, by lower case host name
+     */
+    DnsCache(long ttl, long negativeTtl, Map<String, Long> hostTtls) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.hostTtls = new HashMap<String, Long>(hostTtls);
+
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "proxy-dns-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param host
+     * @return InetAddress[] the addresses of the host
+     * @throws UnknownHostException if the host is unknown, or was at its last lookup
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException {
+        if (isLiteral(host))
+            return InetAddress.getAllByName(host);
+
+        host = host.toLowerCase();
+
+        Entry entry = entries.get(host);
+        if (entry == null || entry.addresses == null && System.nanoTime() - entry.expires >= 0)
+            entry = load(host);
+
+        if (entry.addresses == null)
+            throw new UnknownHostException(host);
+
+        if (!entry.used)
+            entry.used = true;
+        return entry.addresses;
+    }
+
+    /**
+     * @param host
+     * @return int the index of the address of the host to connect to first, in turn
+     */
+    int next(String host) {
+        Entry entry = entries.get(host.toLowerCase());
+        return entry != null ? entry.next.getAndIncrement() & Integer.MAX_VALUE : 0;
+    }
+
+    /**
+     * @return int the number of cached hosts
+     */
+    int size() {
+        return entries.size();
+    }
+
+    void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Looks up the addresses of a host, through the JVM resolver
+     * 
+     * @param host
+     * @return InetAddress[]
+     * @throws UnknownHostException
+     */
+    InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    private Entry load(final String host) throws UnknownHostException {
+        FutureTask<Entry> task = new FutureTask<Entry>(new Callable<Entry>() {
+            public Entry call() {
+                return resolved(host);
+            }
+        });
+
+        FutureTask<Entry> pending = lookups.putIfAbsent(host, task);
+        if (pending == null) {
+            try {
+                task.run();
+            } finally {
+                lookups.remove(host, task);
+            }
+        } else {
+            task = pending;
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @param host
+     * @return Entry the new entry of the host, cached if there is room
+     */
+    private Entry resolved(String host) {
+        long now = System.nanoTime();
+
+        Entry entry;
+        try {
+            entry = new Entry(lookup(host), 0, now);
+        } catch (UnknownHostException e) {
+            entry = new Entry(null, now + TimeUnit.MILLISECONDS.toNanos(negativeTtl), now);
+        }
+
+        if (entries.size() < MAX_HOSTS || entries.containsKey(host)) {
+            entries.put(host, entry);
+            schedule(host, entry, entry.addresses != null ? refreshDelay(host) : negativeTtl);
+        }
+
+        return entry;
+    }
+
+    private void refresh(String host, Entry entry) {
+        if (entries.get(host) != entry)
+            return;
+
+        // //////////////////////////////////////////////
+        // Unknown hosts and the hosts unused for a whole
+        // period are looked up again on their next request
+        // //////////////////////////////////////////////
+
+        long now = System.nanoTime();
+        long idleSince = entry.used ? now : entry.idleSince;
+
+        if (entry.addresses == null
+                || now - idleSince >= TimeUnit.MILLISECONDS.toNanos(refreshDelay(host))) {
+            entries.remove(host, entry);
+            return;
+        }
+
+        Entry next;
+        long delay;
+        try {
+            next = new Entry(lookup(host), 0, idleSince);
+            delay = refreshDelay(host);
+        } catch (UnknownHostException e) {
+            if (LOGGER.isLoggable(Level.WARNING))
+                LOGGER.log(Level.WARNING, "Lookup of " + host
+                        + " failed, keeping its last addresses");
+
+            next = new Entry(entry.addresses, 0, idleSince);
+            delay = negativeTtl;
+        }
+
+        if (entries.replace(host, entry, next))
+            schedule(host, next, delay);
+    }
+
+    private void schedule(final String host, final Entry entry, long delay) {
+        try {
+            refresher.schedule(new Runnable() {
+                public void run() {
+                    refresh(host, entry);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    private long refreshDelay(String host) {
+        Long ttl = hostTtls.get(host);
+        return (long) ((ttl != null ? ttl : this.ttl) * REFRESH_RATIO);
+    }
+
+    /**
+     * @param host
+     * @return boolean true if the host is an IPv6 or dotted IPv4 address, looked up by nobody
+     */
+    static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0)
+            return true;
+
+        int dots = 0, digits = 0, value = 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c == '.') {
+                if (digits == 0 || ++dots > 3)
+                    return false;
+                digits = 0;
+                value = 0;
+            } else if (c >= '0' && c <= '9') {
+                value = value * 10 + c - '0';
+                if (++digits > 3 || value > 255)
+                    return false;
+            } else {
+                return false;
+            }
+        }
+
+        return dots == 3 && digits > 0;
+    }
+
+    /**
+     * The addresses of a host
+     */
+    private static final class Entry {
+
+        /**
+         * The addresses, null if the host is unknown
+         */
+        final InetAddress[] addresses;
+
+        /**
+         * When an unknown host is looked up again
+         */
+        final long expires;
+
+        final AtomicInteger next = new AtomicInteger();
+
+        /**
+         * Since when, in nanoseconds, the host has not been connected to, but for this entry
+         */
+        final long idleSince;
+
+        /**
+         * Whether the host was connected to since this entry was cached
+         */
+        volatile boolean used;
+
+        Entry(InetAddress[] addresses, long expires, long idleSince) {
+            this.addresses = addresses;
+            this.expires = expires;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+/**
+ * Connects to the remote hosts at the addresses of the {@link DnsCache}, in turn, trying the next
+ * one when an address refuses the connection. Secure sockets are layered by the factory this one
+ * replaces over the connected socket. Without cache, the factory it replaces creates the sockets.
+ */
+class DnsSocketFactory implements ProtocolSocketFactory {
+
+    private static volatile DnsCache cache;
+
+    private final ProtocolSocketFactory factory;
+
+    DnsSocketFactory(ProtocolSocketFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Sets the cache the HTTP and HTTPS connections are resolved with, replacing their socket
+     * factories by resolving ones once: they stay registered for the commons HTTP client of this
+     * class loader, under the timed ones if any.
+     * 
+     * @param cache the cache, null to resolve the hosts as the replaced factories do
+     */
+    static synchronized void install(DnsCache cache) {
+        DnsSocketFactory.cache = cache;
+        if (cache == null)
+            return;
+
+        for (String scheme : new String[] { "http", "https" }) {
+            Protocol protocol = Protocol.getProtocol(scheme);
+            ProtocolSocketFactory factory = protocol.getSocketFactory();
+
+            boolean timed = factory instanceof TimedSocketFactory;
+            if (timed)
+                factory = ((TimedSocketFactory) factory).getFactory();
+            if (factory instanceof DnsSocketFactory)
+                continue;
+
+            factory = factory instanceof SecureProtocolSocketFactory ? new Secure(
+                    (SecureProtocolSocketFactory) factory) : new DnsSocketFactory(factory);
+            if (timed)
+                factory = TimedSocketFactory.wrap(factory);
+
+            Protocol.registerProtocol(scheme, new Protocol(scheme, factory, protocol
+                    .getDefaultPort()));
+        }
+    }
+
+    /**
+     * Stops resolving with the cache, if it is the installed one
+     * 
+     * @param cache
+     */
+    static synchronized void uninstall(DnsCache cache) {
+        if (DnsSocketFactory.cache == cache)
+            DnsSocketFactory.cache = null;
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        DnsCache current = cache;
+        if (current == null)
+            return factory.createSocket(host, port, localAddress, localPort);
+
+        return layer(connect(current, host, port, localAddress, localPort, 0), host, port);
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort,
+            HttpConnectionParams params) throws IOException {
+        DnsCache current = cache;
+        if (current == null)
+            return factory.createSocket(host, port, localAddress, localPort, params);
+
+        return layer(connect(current, host, port, localAddress, localPort, params
+                .getConnectionTimeout()), host, port);
+    }
+
+    public Socket createSocket(String host, int port) throws IOException {
+        DnsCache current = cache;
+        if (current == null)
+            return factory.createSocket(host, port);
+
+        return layer(connect(current, host, port, null, 0, 0), host, port);
+    }
+
+    /**
+     * @param socket the socket connected to the host
+     * @param host
+     * @param port
+     * @return Socket the socket to use for the protocol
+     * @throws IOException
+     */
+    Socket layer(Socket socket, String host, int port) throws IOException {
+        return socket;
+    }
+
+    private static Socket connect(DnsCache cache, String host, int port,
+            InetAddress localAddress, int localPort, int timeout) throws IOException {
+        InetAddress[] addresses = cache.resolve(host);
+        int first = addresses.length > 1 ? cache.next(host) % addresses.length : 0;
+
+        for (int i = 0;; i++) {
+            Socket socket = new Socket();
+            try {
+                if (localAddress != null)
+                    socket.bind(new InetSocketAddress(localAddress, localPort));
+
+                socket.connect(new InetSocketAddress(addresses[(first + i) % addresses.length],
+                        port), timeout);
+                return socket;
+            } catch (IOException e) {
+                socket.close();
+
+                // refused or unreachable, the next address is tried
+                if (!(e instanceof SocketException) || i == addresses.length - 1)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * The resolving factory of secure sockets.
+     */
+    static final class Secure extends DnsSocketFactory implements SecureProtocolSocketFactory {
+
+        private final SecureProtocolSocketFactory factory;
+
+        Secure(SecureProtocolSocketFactory factory) {
+            super(factory);
+            this.factory = factory;
+        }
+
+        @Override
+        Socket layer(Socket socket, String host, int port) throws IOException {
+            return factory.createSocket(socket, host, port, true);
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            return factory.createSocket(socket, host, port, autoClose);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+/**
+ * Policies used to flush the client output stream while relaying a remote response body.
+ */
+enum FlushPolicy {
+
+    /**
+     * Never flush explicitly, the servlet container flushes when its own buffer is full.
+     */
+    NONE,
+
+    /**
+     * Flush after every chunk read from the remote server.
+     */
+    CHUNK,
+
+    /**
+     * Flush every time the configured amount of bytes has been written.
+     */
+    BYTES;
+
+    /**
+     * @param value
+     * @param defaultPolicy
+     * @return FlushPolicy the policy matching the value (case insensitive) or the default one
+     */
+    static FlushPolicy parse(String value, FlushPolicy defaultPolicy) {
+        if (value != null) {
+            for (FlushPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(value.trim()))
+                    return policy;
+            }
+        }
+
+        return defaultPolicy;
+    }
+}
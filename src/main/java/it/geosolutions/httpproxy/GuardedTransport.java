@@ -0,0 +1,176 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+
+/**
+ * The {@link UpstreamTransport} guarding each remote host with a {@link CircuitBreaker} and, if
+ * <code>adaptiveConcurrency</code> is set, a {@link ConcurrencyLimiter}: the requests to a failing
+ * or overloaded host are rejected with 503 Service Unavailable before they take a pooled connection
+ * or wait for a timeout.
+ * <p>
+ * Connection errors, timeouts and the 502, 503 and 504 responses count as failures, the requests
+ * aborted by the proxy count as nothing.
+ */
+final class GuardedTransport implements UpstreamTransport {
+
+    private final static Logger LOGGER = Logger.getLogger(GuardedTransport.class.toString());
+
+    /**
+     * The hosts guarded at most, the others are not
+     */
+    private static final int MAX_HOSTS = 1000;
+
+    private final UpstreamTransport transport;
+
+    private final ProxyConfig proxyConfig;
+
+    private final ProxyMetrics metrics;
+
+    private final ConcurrentMap<String, Guard> guards = new ConcurrentHashMap<String, Guard>();
+
+    /**
+     * @param proxyConfig
+     * @return boolean true if the circuit breakers or the concurrency limits are enabled
+     */
+    static boolean isConfigured(ProxyConfig proxyConfig) {
+        return proxyConfig.getCircuitErrorRate() > 0 || proxyConfig.isAdaptiveConcurrency();
+    }
+
+    /**
+     * @param transport the transport executing the requests
+     * @param proxyConfig
+     * @param metrics the metrics counting the rejected requests, null if none
+     */
+    GuardedTransport(UpstreamTransport transport, ProxyConfig proxyConfig, ProxyMetrics metrics) {
+        this.transport = transport;
+        this.proxyConfig = proxyConfig;
+        this.metrics = metrics;
+    }
+
+    public int execute(UpstreamMethod method, UsernamePasswordCredentials credentials)
+            throws IOException {
+        String host = HostRoutingTransport.hostKey(method.getURI());
+        Guard guard = guard(host);
+        if (guard == null)
+            return transport.execute(method, credentials);
+
+        CircuitBreaker breaker = guard.breaker;
+        ConcurrencyLimiter limiter = guard.limiter;
+
+        if (limiter != null && !limiter.acquire()) {
+            if (metrics != null)
+                metrics.recordRejection(false);
+            throw new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "Too many requests in flight to " + host, 1);
+        }
+
+        long now = System.currentTimeMillis();
+        int allowed = breaker != null ? breaker.allow(now) : CircuitBreaker.CLOSED;
+        if (allowed == CircuitBreaker.OPEN) {
+            if (limiter != null)
+                limiter.release(-1, false);
+            if (metrics != null)
+                metrics.recordRejection(true);
+            throw new HttpErrorException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The remote server " + host + " is failing", Math.max(1, (breaker
+                            .getRemainingMillis(now) + 999) / 1000));
+        }
+
+        long started = System.nanoTime();
+        Boolean failed = Boolean.TRUE;
+        try {
+            int status = transport.execute(method, credentials);
+            failed = status == HttpServletResponse.SC_BAD_GATEWAY
+                    || status == HttpServletResponse.SC_SERVICE_UNAVAILABLE
+                    || status == HttpServletResponse.SC_GATEWAY_TIMEOUT;
+            return status;
+        } finally {
+            long rtt = System.nanoTime() - started;
+            if (method.isAborted())
+                failed = null;
+
+            if (limiter != null)
+                limiter.release(failed != null ? rtt : -1, Boolean.TRUE.equals(failed));
+            if (breaker != null)
+                complete(host, breaker, allowed, failed);
+        }
+    }
+
+    public void shutdown() {
+        transport.shutdown();
+    }
+
+    private void complete(String host, CircuitBreaker breaker, int allowed, Boolean failed) {
+        int before = breaker.getState();
+        breaker.complete(allowed, failed, System.currentTimeMillis());
+        int after = breaker.getState();
+
+        if (before == after)
+            return;
+
+        if (after == CircuitBreaker.OPEN && LOGGER.isLoggable(Level.WARNING))
+            LOGGER.log(Level.WARNING, "The circuit of " + host + " is open, its requests are"
+                    + " rejected for " + proxyConfig.getCircuitOpenTime() + "ms");
+        else if (after == CircuitBreaker.CLOSED && LOGGER.isLoggable(Level.INFO))
+            LOGGER.log(Level.INFO, "The circuit of " + host + " is closed again");
+    }
+
+    /**
+     * @param host
+     * @return Guard the guard of the host, null if too many hosts are guarded
+     */
+    private Guard guard(String host) {
+        Guard guard = guards.get(host);
+        if (guard != null || guards.size() >= MAX_HOSTS)
+            return guard;
+
+        guard = new Guard(proxyConfig);
+        Guard existing = guards.putIfAbsent(host, guard);
+        return existing != null ? existing : guard;
+    }
+
+    /**
+     * The circuit breaker and the concurrency limiter of a remote host
+     */
+    private static final class Guard {
+
+        final CircuitBreaker breaker;
+
+        final ConcurrencyLimiter limiter;
+
+        Guard(ProxyConfig proxyConfig) {
+            breaker = proxyConfig.getCircuitErrorRate() > 0 ? new CircuitBreaker(proxyConfig
+                    .getCircuitErrorRate(), proxyConfig.getCircuitMinRequests(), proxyConfig
+                    .getCircuitWindow(), proxyConfig.getCircuitOpenTime()) : null;
+            limiter = proxyConfig.isAdaptiveConcurrency() ? new ConcurrencyLimiter(proxyConfig
+                    .getConcurrencyInitialLimit(), proxyConfig.getConcurrencyMaxLimit()) : null;
+        }
+    }
+}
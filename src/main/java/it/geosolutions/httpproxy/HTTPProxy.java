@@ -19,20 +19,30 @@
  */
 package it.geosolutions.httpproxy;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
@@ -41,29 +51,25 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.Streams;
 import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
-import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
-import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.PutMethod;
-import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.FilePartSource;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
-import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.mortbay.util.ajax.ContinuationSupport;
 
 /**
  * HTTPProxy class.
@@ -87,15 +93,31 @@ public class HTTPProxy extends HttpServlet {
     private int maxFileUploadSize = Utils.DEFAULT_MAX_FILE_UPLOAD_SIZE;
 
     /**
-     * An Apache commons HTTP client backed by a multithreaded connection manager that allows to reuse connections to the backing server and to limit
-     * the max number of concurrent connections.
+     * Executes the remote requests, with the transport configured for each remote host, guarded by
+     * circuit breakers and hedged on the mirrors of the hosts having them.
      */
-    private MultiThreadedHttpConnectionManager connectionManager;
+    private UpstreamTransport upstreamTransport;
 
     /**
-     * An HTTP "user-agent", containing an HTTP state and one or more HTTP connections, to which HTTP methods can be applied.
+     * The executor running the remote requests of suspended client requests, null if asynchronous
+     * processing is disabled.
      */
-    private HttpClient httpClient;
+    private ExecutorService upstreamExecutor;
+
+    /**
+     * The cache of GET responses, null if caching is disabled.
+     */
+    private ResponseCache responseCache;
+
+    /**
+     * Shares the remote requests among identical concurrent GET requests, null if disabled.
+     */
+    private RequestCoalescer requestCoalescer;
+
+    /**
+     * The latency histograms of the proxied requests, null if disabled.
+     */
+    private ProxyMetrics metrics;
 
     /**
      * The proxy configuration.
@@ -105,7 +127,7 @@ public class HTTPProxy extends HttpServlet {
     /**
      * The proxy collbacks to provide checks.
      */
-    private List<ProxyCallback> callbacks;
+    private CallbackPipeline callbacks;
 
     /**
      * Initialize the <code>ProxyServlet</code>
@@ -118,30 +140,99 @@ public class HTTPProxy extends HttpServlet {
         ServletContext context = getServletContext();
         String proxyPropPath = context.getInitParameter("proxyPropPath");
 
-        proxyConfig = new ProxyConfig(getServletContext(), proxyPropPath);
+        init(new ProxyConfig(getServletContext(), proxyPropPath));
+
+        if (metrics != null) {
+            context.setAttribute(ProxyMetrics.ATTRIBUTE, metrics);
+            metrics.register(context.getContextPath() + "/" + servletConfig.getServletName());
+        }
+    }
+
+    /**
+     * Sets up the proxy with the given configuration, the servlet container aside
+     * 
+     * @param proxyConfig
+     */
+    void init(ProxyConfig proxyConfig) {
+        this.proxyConfig = proxyConfig;
+
+        HostRoutingTransport transport = new HostRoutingTransport(proxyConfig);
+        upstreamTransport = transport;
+
+        if (proxyConfig.getCacheMaxBytes() > 0)
+            responseCache = new ResponseCache(proxyConfig.getCacheMaxBytes(),
+                    proxyConfig.getCacheMaxEntryBytes());
+
+        if (proxyConfig.isCoalesceRequests())
+            requestCoalescer = new RequestCoalescer(proxyConfig.getCoalesceWindowBytes());
+
+        if (proxyConfig.isMetricsEnabled())
+            metrics = new ProxyMetrics(proxyConfig, transport.getConnectionManager(),
+                    responseCache, requestCoalescer);
+
+        // //////////////////////////////////////////////////
+        // Failing hosts are guarded against each request,
+        // including the hedged ones, the backends of a
+        // group by its balancer
+        // //////////////////////////////////////////////////
+
+        if (BalancingTransport.isConfigured(proxyConfig))
+            upstreamTransport = new BalancingTransport(upstreamTransport, proxyConfig);
+
+        if (GuardedTransport.isConfigured(proxyConfig))
+            upstreamTransport = new GuardedTransport(upstreamTransport, proxyConfig, metrics);
 
-        connectionManager = new MultiThreadedHttpConnectionManager();
-        HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+        if (HedgingTransport.isConfigured(proxyConfig))
+            upstreamTransport = new HedgingTransport(upstreamTransport, proxyConfig, metrics);
 
-        params.setSoTimeout(proxyConfig.getSoTimeout());
-        params.setConnectionTimeout(proxyConfig.getConnectionTimeout());
-        params.setMaxTotalConnections(proxyConfig.getMaxTotalConnections());
-        params.setDefaultMaxConnectionsPerHost(proxyConfig.getDefaultMaxConnectionsPerHost());
+        // //////////////////////////////////////////////////////
+        // One upstream thread per pooled connection (or one
+        // virtual thread per request): a thread is busy only
+        // while it holds a remote connection
+        // //////////////////////////////////////////////////////
 
-        connectionManager.setParams(params);
-        httpClient = new HttpClient(connectionManager);
+        if (proxyConfig.isAsyncEnabled()) {
+            if (proxyConfig.isVirtualThreads()) {
+                upstreamExecutor = Utils.newVirtualThreadExecutor("proxy-upstream-");
+
+                if (upstreamExecutor == null && LOGGER.isLoggable(Level.WARNING))
+                    LOGGER.log(Level.WARNING, "Virtual threads need Java 21,"
+                            + " using platform threads for the upstream requests");
+            }
+
+            if (upstreamExecutor == null)
+                upstreamExecutor = Executors.newFixedThreadPool(
+                        proxyConfig.getMaxTotalConnections(), new UpstreamThreadFactory());
+        }
 
         // //////////////////////////////////////////
-        // Setup the callbacks (in the future this
-        // will be a pluggable lookup).
+        // Setup the configured and the discovered
+        // callbacks, compiled by phase
         // //////////////////////////////////////////
 
-        callbacks = new ArrayList<ProxyCallback>();
-        callbacks.add(new MimeTypeChecker(proxyConfig));
-        callbacks.add(new HostNameChecker(proxyConfig));
-        callbacks.add(new RequestTypeChecker(proxyConfig));
-        callbacks.add(new MethodsChecker(proxyConfig));
-        callbacks.add(new HostChecker(proxyConfig));
+        callbacks = new CallbackPipeline(CallbackPipeline.load(proxyConfig));
+    }
+
+    /**
+     * Releases the resources held by the <code>ProxyServlet</code>
+     */
+    public void destroy() {
+        if (proxyConfig != null)
+            proxyConfig.dispose();
+
+        if (upstreamExecutor != null)
+            upstreamExecutor.shutdownNow();
+
+        if (upstreamTransport != null)
+            upstreamTransport.shutdown();
+
+        if (metrics != null) {
+            metrics.unregister();
+            if (getServletContext().getAttribute(ProxyMetrics.ATTRIBUTE) == metrics)
+                getServletContext().removeAttribute(ProxyMetrics.ATTRIBUTE);
+        }
+
+        super.destroy();
     }
 
     /**
@@ -151,28 +242,97 @@ public class HTTPProxy extends HttpServlet {
      */
     void onInit(HttpServletRequest request, HttpServletResponse response, URL url)
             throws IOException {
-        for (ProxyCallback callback : callbacks) {
-            callback.onRequest(request, response, url);
+        RequestTimer timer = RequestTimer.get(request);
+        if (timer != null)
+            timer.setTarget(url);
+
+        ProxyContext context = new ProxyContext(request, response, url, proxyConfig);
+        request.setAttribute(ProxyContext.ATTRIBUTE, context);
+
+        long started = System.nanoTime();
+        try {
+            callbacks.onRequest(context);
+        } finally {
+            if (timer != null)
+                timer.since(RequestTimer.Stage.CALLBACKS, started);
         }
     }
 
     /**
+     * @param request
      * @param method
      * @throws IOException
      */
-    void onRemoteResponse(HttpMethod method) throws IOException {
-        for (ProxyCallback callback : callbacks) {
-            callback.onRemoteResponse(method);
-        }
+    void onRemoteResponse(HttpServletRequest request, HttpMethod method) throws IOException {
+        callbacks.onRemoteResponse(context(request, null), method);
     }
 
     /**
+     * @param request
+     * @param response
      * @throws IOException
      */
-    void onFinish() throws IOException {
-        for (ProxyCallback callback : callbacks) {
-            callback.onFinish();
-        }
+    void onFinish(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ProxyContext context = context(request, response);
+        request.removeAttribute(ProxyContext.ATTRIBUTE);
+
+        callbacks.onFinish(context);
+    }
+
+    /**
+     * @param request
+     * @param response
+     * @return ProxyContext the context set up by {@link #onInit}, a new one if the request had
+     *         no remote URL
+     */
+    private ProxyContext context(HttpServletRequest request, HttpServletResponse response) {
+        ProxyContext context = ProxyContext.get(request);
+        return context != null ? context : new ProxyContext(request, response, null, proxyConfig);
+    }
+
+    /**
+     * Starts timing the request, on its first dispatch, if metrics are enabled
+     * 
+     * @param request
+     * @param response
+     * @return HttpServletResponse the response, recording its status for the metrics
+     */
+    private HttpServletResponse startTimer(HttpServletRequest request,
+            HttpServletResponse response) {
+        if (metrics == null)
+            return response;
+
+        return RequestTimer.start(request).wrap(response);
+    }
+
+    /**
+     * Records the stages of the finished request, if it has been proxied
+     * 
+     * @param request
+     */
+    private void stopTimer(HttpServletRequest request) {
+        RequestTimer timer = RequestTimer.get(request);
+        if (timer == null)
+            return;
+
+        request.removeAttribute(RequestTimer.ATTRIBUTE);
+        if (metrics != null && timer.getHost() != null)
+            metrics.record(timer);
+    }
+
+    /**
+     * Sends back to the client the error forced by the proxy
+     * 
+     * @param ex
+     * @param response
+     * @throws IOException
+     */
+    private void sendError(HttpErrorException ex, HttpServletResponse response)
+            throws IOException {
+        if (ex.getRetryAfter() > 0)
+            response.setHeader(Utils.HTTP_HEADER_RETRY_AFTER, String.valueOf(ex.getRetryAfter()));
+
+        response.sendError(ex.getCode(), ex.getMessage());
     }
 
     /**
@@ -184,8 +344,36 @@ public class HTTPProxy extends HttpServlet {
     public void doGet(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws IOException, ServletException {
 
+        httpServletResponse = startTimer(httpServletRequest, httpServletResponse);
+
         try {
 
+            // //////////////////////////////////////////
+            // Dispatched again once the remote server
+            // has answered a suspended request
+            // //////////////////////////////////////////
+
+            AsyncExchange exchange = AsyncExchange.get(httpServletRequest);
+            if (exchange != null) {
+                completeProxyRequest(exchange, httpServletRequest, httpServletResponse);
+                return;
+            }
+
+            // //////////////////////////////////////////
+            // A follower dispatched again with nothing
+            // to share keeps the context its callbacks
+            // ran with, and cannot be suspended again:
+            // it executes its own request on this thread
+            // //////////////////////////////////////////
+
+            RequestCoalescer.Flight followed = RequestCoalescer.getFollowed(httpServletRequest);
+            boolean redispatched = followed != null;
+            if (redispatched) {
+                httpServletRequest.removeAttribute(RequestCoalescer.FOLLOWER_ATTRIBUTE);
+                if (relayProxyResponse(followed, false, httpServletRequest, httpServletResponse))
+                    return;
+            }
+
             URL url = null;
             String user = null, password = null;
 
@@ -207,13 +395,15 @@ public class HTTPProxy extends HttpServlet {
 
             if (url != null) {
 
-                onInit(httpServletRequest, httpServletResponse, url);
+                if (!redispatched)
+                    onInit(httpServletRequest, httpServletResponse, url);
 
                 // //////////////////////////////
                 // Create a GET request
                 // //////////////////////////////
 
-                GetMethod getMethodProxyRequest = new GetMethod(url.toExternalForm());
+                UpstreamMethod getMethodProxyRequest = new UpstreamMethod("GET", url.toExternalForm());
+                getMethodProxyRequest.setTimer(RequestTimer.get(httpServletRequest));
 
                 // //////////////////////////////
                 // Forward the request headers
@@ -222,19 +412,82 @@ public class HTTPProxy extends HttpServlet {
                 final ProxyInfo proxyInfo = setProxyRequestHeaders(url, httpServletRequest,
                         getMethodProxyRequest);
 
+                // ///////////////////////////////////////////
+                // Serve fresh responses from the cache,
+                // revalidate the stale ones
+                // ///////////////////////////////////////////
+
+                if (responseCache != null) {
+                    ResponseCache.Lookup lookup = responseCache.lookup(url, user, password,
+                            httpServletRequest);
+
+                    if (lookup != null) {
+                        if (lookup.isFresh()) {
+                            serveCachedResponse(lookup.entry, httpServletRequest,
+                                    httpServletResponse);
+                            return;
+                        }
+
+                        responseCache.addValidators(lookup, getMethodProxyRequest);
+                        httpServletRequest.setAttribute(ResponseCache.ATTRIBUTE, lookup);
+                    }
+                }
+
+                // ///////////////////////////////////////////
+                // Share the remote request of an identical
+                // request still waiting for the response
+                // ///////////////////////////////////////////
+
+                if (requestCoalescer != null && !redispatched) {
+                    RequestCoalescer.Flight flight = requestCoalescer.join(url, user, password,
+                            httpServletRequest);
+
+                    if (flight != null && RequestCoalescer.get(httpServletRequest) != flight) {
+                        if (upstreamExecutor != null)
+                            flight.suspend(httpServletRequest, proxyConfig.getAsyncTimeout());
+
+                        if (relayProxyResponse(flight, upstreamExecutor == null,
+                                httpServletRequest, httpServletResponse))
+                            return;
+                    }
+                }
+
                 // //////////////////////////////
                 // Execute the proxy request
                 // //////////////////////////////
 
-                this.executeProxyRequest(getMethodProxyRequest, httpServletRequest,
-                        httpServletResponse, user, password, proxyInfo);
+                if (upstreamExecutor != null && !redispatched) {
+                    this.startProxyRequest(getMethodProxyRequest, httpServletRequest,
+                            httpServletResponse, user, password, proxyInfo);
+                } else {
+                    this.executeProxyRequest(getMethodProxyRequest, httpServletRequest,
+                            httpServletResponse, user, password, proxyInfo);
+                }
 
             }
 
         } catch (HttpErrorException ex) {
-            httpServletResponse.sendError(ex.getCode(), ex.getMessage());
+            RequestCoalescer.Flight flight = RequestCoalescer.get(httpServletRequest);
+            if (flight != null)
+                flight.fail(ex.getCode(), ex.getMessage());
+
+            sendError(ex, httpServletResponse);
+        } catch (IOException ex) {
+            RequestCoalescer.Flight flight = RequestCoalescer.get(httpServletRequest);
+            if (flight != null)
+                flight.fail(HttpServletResponse.SC_BAD_GATEWAY, ex.getMessage());
+
+            throw ex;
         } finally {
-            onFinish();
+            if (!AsyncExchange.isSuspended(httpServletRequest)
+                    && RequestCoalescer.getFollowed(httpServletRequest) == null) {
+                RequestCoalescer.Flight flight = RequestCoalescer.get(httpServletRequest);
+                if (flight != null)
+                    flight.land();
+
+                onFinish(httpServletRequest, httpServletResponse);
+                stopTimer(httpServletRequest);
+            }
         }
     }
 
@@ -246,6 +499,11 @@ public class HTTPProxy extends HttpServlet {
      */
     public void doPost(HttpServletRequest httpServletRequest,
             HttpServletResponse httpServletResponse) throws IOException, ServletException {
+
+        httpServletResponse = startTimer(httpServletRequest, httpServletResponse);
+
+        List<File> uploads = null;
+
         try {
 
             URL url = null;
@@ -275,7 +533,8 @@ public class HTTPProxy extends HttpServlet {
                 // Create a standard POST request
                 // /////////////////////////////////
 
-                PostMethod postMethodProxyRequest = new PostMethod(url.toExternalForm());
+                UpstreamMethod postMethodProxyRequest = new UpstreamMethod("POST", url.toExternalForm());
+                postMethodProxyRequest.setTimer(RequestTimer.get(httpServletRequest));
 
                 // /////////////////////////////////
                 // Forward the request headers
@@ -289,7 +548,7 @@ public class HTTPProxy extends HttpServlet {
                 // //////////////////////////////////////////////////
 
                 if (ServletFileUpload.isMultipartContent(httpServletRequest)) {
-                    this.handleMultipart(postMethodProxyRequest, httpServletRequest);
+                    uploads = this.handleMultipart(postMethodProxyRequest, httpServletRequest);
                 } else {
                     this.handleStandard(postMethodProxyRequest, httpServletRequest);
                 }
@@ -303,9 +562,11 @@ public class HTTPProxy extends HttpServlet {
             }
 
         } catch (HttpErrorException ex) {
-            httpServletResponse.sendError(ex.getCode(), ex.getMessage());
+            sendError(ex, httpServletResponse);
         } finally {
-            onFinish();
+            deleteUploads(uploads);
+            onFinish(httpServletRequest, httpServletResponse);
+            stopTimer(httpServletRequest);
         }
     }
 
@@ -318,6 +579,10 @@ public class HTTPProxy extends HttpServlet {
     public void doPut(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
             throws IOException, ServletException {
 
+        httpServletResponse = startTimer(httpServletRequest, httpServletResponse);
+
+        List<File> uploads = null;
+
         try {
 
             URL url = null;
@@ -346,7 +611,8 @@ public class HTTPProxy extends HttpServlet {
                 // Create a standard PUT request
                 // ////////////////////////////////
 
-                PutMethod putMethodProxyRequest = new PutMethod(url.toExternalForm());
+                UpstreamMethod putMethodProxyRequest = new UpstreamMethod("PUT", url.toExternalForm());
+                putMethodProxyRequest.setTimer(RequestTimer.get(httpServletRequest));
 
                 // ////////////////////////////////
                 // Forward the request headers
@@ -360,7 +626,7 @@ public class HTTPProxy extends HttpServlet {
                 // //////////////////////////////////////////////////
 
                 if (ServletFileUpload.isMultipartContent(httpServletRequest)) {
-                    this.handleMultipart(putMethodProxyRequest, httpServletRequest);
+                    uploads = this.handleMultipart(putMethodProxyRequest, httpServletRequest);
                 } else {
                     this.handleStandard(putMethodProxyRequest, httpServletRequest);
                 }
@@ -375,9 +641,11 @@ public class HTTPProxy extends HttpServlet {
             }
 
         } catch (HttpErrorException ex) {
-            httpServletResponse.sendError(ex.getCode(), ex.getMessage());
+            sendError(ex, httpServletResponse);
         } finally {
-            onFinish();
+            deleteUploads(uploads);
+            onFinish(httpServletRequest, httpServletResponse);
+            stopTimer(httpServletRequest);
         }
 
     }
@@ -391,7 +659,15 @@ public class HTTPProxy extends HttpServlet {
     public void doDelete(HttpServletRequest httpServletRequest,
             HttpServletResponse httpServletResponse) throws IOException, ServletException {
 
+        httpServletResponse = startTimer(httpServletRequest, httpServletResponse);
+
         try {
+            AsyncExchange exchange = AsyncExchange.get(httpServletRequest);
+            if (exchange != null) {
+                completeProxyRequest(exchange, httpServletRequest, httpServletResponse);
+                return;
+            }
+
             URL url = null;
             String user = null, password = null;
 
@@ -419,7 +695,9 @@ public class HTTPProxy extends HttpServlet {
                 // Create a standard DELETE request
                 // ////////////////////////////////
 
-                DeleteMethod deleteMethodProxyRequest = new DeleteMethod(url.toExternalForm());
+                UpstreamMethod deleteMethodProxyRequest = new UpstreamMethod("DELETE", url
+                        .toExternalForm());
+                deleteMethodProxyRequest.setTimer(RequestTimer.get(httpServletRequest));
 
                 // ////////////////////////////////
                 // Forward the request headers
@@ -432,59 +710,62 @@ public class HTTPProxy extends HttpServlet {
                 // Execute the proxy request
                 // ////////////////////////////////
 
-                this.executeProxyRequest(deleteMethodProxyRequest, httpServletRequest,
-                        httpServletResponse, user, password, proxyInfo);
+                if (upstreamExecutor != null) {
+                    this.startProxyRequest(deleteMethodProxyRequest, httpServletRequest,
+                            httpServletResponse, user, password, proxyInfo);
+                } else {
+                    this.executeProxyRequest(deleteMethodProxyRequest, httpServletRequest,
+                            httpServletResponse, user, password, proxyInfo);
+                }
 
             }
 
         } catch (HttpErrorException ex) {
-            httpServletResponse.sendError(ex.getCode(), ex.getMessage());
+            sendError(ex, httpServletResponse);
         } finally {
-            onFinish();
+            if (!AsyncExchange.isSuspended(httpServletRequest)) {
+                onFinish(httpServletRequest, httpServletResponse);
+                stopTimer(httpServletRequest);
+            }
         }
     }
 
     /**
-     * Sets up the given {@link PostMethod} to send the same multipart POST data as was sent in the given {@link HttpServletRequest}
+     * Sets up the given {@link EntityEnclosingMethod} to send the same multipart POST data as was sent in the given {@link HttpServletRequest}.
+     * By default the body is streamed as is, with its original boundary. When the parts must be re-encoded they are read with the
+     * streaming API and the uploaded files spooled to temporary files, so that no part is held in memory.
      * 
-     * @param postMethodProxyRequest The {@link PostMethod} that we are configuring to send a multipart POST request
-     * @param httpServletRequest The {@link HttpServletRequest} that contains the mutlipart POST data to be sent via the {@link PostMethod}
+     * @param postMethodProxyRequest The {@link EntityEnclosingMethod} that we are configuring to send a multipart POST request
+     * @param httpServletRequest The {@link HttpServletRequest} that contains the mutlipart POST data to be sent via the {@link EntityEnclosingMethod}
+     * @return List<File> the temporary files backing the file parts, to be deleted once the request has been executed
      */
-    private void handleMultipart(EntityEnclosingMethod methodProxyRequest,
-            HttpServletRequest httpServletRequest) throws ServletException {
-
-        // ////////////////////////////////////////////
-        // Create a factory for disk-based file items
-        // ////////////////////////////////////////////
+    private List<File> handleMultipart(EntityEnclosingMethod methodProxyRequest,
+            HttpServletRequest httpServletRequest) throws IOException, ServletException {
 
-        DiskFileItemFactory diskFileItemFactory = new DiskFileItemFactory();
+        // ////////////////////////////////////////////////////
+        // Stream the body as is: the boundary is unchanged,
+        // so is the Content-Type header already forwarded
+        // ////////////////////////////////////////////////////
 
-        // /////////////////////////////
-        // Set factory constraints
-        // /////////////////////////////
+        if (!proxyConfig.isMultipartRewrite()) {
+            methodProxyRequest.setRequestEntity(new InputStreamRequestEntity(httpServletRequest
+                    .getInputStream(), httpServletRequest.getContentLength(), httpServletRequest
+                    .getContentType()));
 
-        diskFileItemFactory.setSizeThreshold(this.getMaxFileUploadSize());
-        diskFileItemFactory.setRepository(Utils.DEFAULT_FILE_UPLOAD_TEMP_DIRECTORY);
+            return Collections.emptyList();
+        }
 
-        // //////////////////////////////////
-        // Create a new file upload handler
-        // //////////////////////////////////
+        // //////////////////////////////////////////
+        // Create a streaming file upload handler
+        // //////////////////////////////////////////
 
-        ServletFileUpload servletFileUpload = new ServletFileUpload(diskFileItemFactory);
+        ServletFileUpload servletFileUpload = new ServletFileUpload();
 
-        // //////////////////////////
-        // Parse the request
-        // //////////////////////////
+        List<File> files = new ArrayList<File>();
+        boolean parsed = false;
 
         try {
 
-            // /////////////////////////////////////
-            // Get the multipart items as a list
-            // /////////////////////////////////////
-
-            List<FileItem> listFileItems = (List<FileItem>) servletFileUpload
-                    .parseRequest(httpServletRequest);
-
             // /////////////////////////////////////////
             // Create a list to hold all of the parts
             // /////////////////////////////////////////
@@ -492,54 +773,45 @@ public class HTTPProxy extends HttpServlet {
             List<Part> listParts = new ArrayList<Part>();
 
             // /////////////////////////////////////////
-            // Iterate the multipart items list
+            // Iterate the multipart items as they
+            // are read from the request
             // /////////////////////////////////////////
 
-            for (FileItem fileItemCurrent : listFileItems) {
+            FileItemIterator fileItems = servletFileUpload.getItemIterator(httpServletRequest);
 
-                // //////////////////////////////////////
-                // If the current item is a form field,
-                // then create a string part
-                // //////////////////////////////////////
+            while (fileItems.hasNext()) {
+                FileItemStream fileItemCurrent = fileItems.next();
+                InputStream inputStreamItem = fileItemCurrent.openStream();
 
-                if (fileItemCurrent.isFormField()) {
-                    StringPart stringPart = new StringPart(
-                    // The field name
-                            fileItemCurrent.getFieldName(),
-                            // The field value
-                            fileItemCurrent.getString());
+                try {
 
-                    // ////////////////////////////
-                    // Add the part to the list
-                    // ////////////////////////////
+                    // //////////////////////////////////////
+                    // If the current item is a form field,
+                    // then create a string part
+                    // //////////////////////////////////////
 
-                    listParts.add(stringPart);
+                    if (fileItemCurrent.isFormField()) {
+                        listParts.add(new StringPart(fileItemCurrent.getFieldName(), Streams
+                                .asString(inputStreamItem, "ISO-8859-1")));
+                        continue;
+                    }
 
-                } else {
-
-                    // /////////////////////////////////////////////////////
-                    // The item is a file upload, so we create a FilePart
-                    // /////////////////////////////////////////////////////
-
-                    FilePart filePart = new FilePart(
+                    // ///////////////////////////////////////////////////
+                    // The item is a file upload, spool it to a file
+                    // and create a FilePart reading it back
+                    // ///////////////////////////////////////////////////
 
-                    // /////////////////////
-                    // The field name
-                    // /////////////////////
+                    File file = File.createTempFile("proxy-upload-", ".part",
+                            Utils.DEFAULT_FILE_UPLOAD_TEMP_DIRECTORY);
+                    files.add(file);
 
-                            fileItemCurrent.getFieldName(),
+                    Streams.copy(inputStreamItem, new FileOutputStream(file), true);
 
-                            new ByteArrayPartSource(
-                            // The uploaded file name
-                                    fileItemCurrent.getName(),
-                                    // The uploaded file contents
-                                    fileItemCurrent.get()));
-
-                    // /////////////////////////////
-                    // Add the part to the list
-                    // /////////////////////////////
-
-                    listParts.add(filePart);
+                    listParts.add(new FilePart(fileItemCurrent.getFieldName(),
+                            new FilePartSource(fileItemCurrent.getName(), file), fileItemCurrent
+                                    .getContentType(), null));
+                } finally {
+                    inputStreamItem.close();
                 }
             }
 
@@ -562,16 +834,37 @@ public class HTTPProxy extends HttpServlet {
             methodProxyRequest.setRequestHeader(Utils.CONTENT_TYPE_HEADER_NAME,
                     multipartRequestEntity.getContentType());
 
+            parsed = true;
+            return files;
+
         } catch (FileUploadException fileUploadException) {
             throw new ServletException(fileUploadException);
+        } finally {
+            if (!parsed)
+                deleteUploads(files);
         }
     }
 
     /**
-     * Sets up the given {@link PostMethod} to send the same standard POST data as was sent in the given {@link HttpServletRequest}
+     * Deletes the temporary files of a multipart request
      * 
-     * @param postMethodProxyRequest The {@link PostMethod} that we are configuring to send a standard POST request
-     * @param httpServletRequest The {@link HttpServletRequest} that contains the POST data to be sent via the {@link PostMethod}
+     * @param files The files, null if none
+     */
+    private static void deleteUploads(List<File> files) {
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            if (!file.delete() && file.exists() && LOGGER.isLoggable(Level.WARNING))
+                LOGGER.log(Level.WARNING, "Unable to delete the temporary file " + file);
+        }
+    }
+
+    /**
+     * Sets up the given {@link EntityEnclosingMethod} to send the same standard POST data as was sent in the given {@link HttpServletRequest}
+     * 
+     * @param postMethodProxyRequest The {@link EntityEnclosingMethod} that we are configuring to send a standard POST request
+     * @param httpServletRequest The {@link HttpServletRequest} that contains the POST data to be sent via the {@link EntityEnclosingMethod}
      * @throws IOException
      */
     private void handleStandard(EntityEnclosingMethod methodProxyRequest,
@@ -580,7 +873,9 @@ public class HTTPProxy extends HttpServlet {
 		      
 			  InputStream is =httpServletRequest.getInputStream();
 			 
-		      methodProxyRequest.setRequestEntity(new InputStreamRequestEntity(httpServletRequest.getInputStream()));
+		      // the length is given so that the body is streamed rather than buffered to measure it
+		      methodProxyRequest.setRequestEntity(new InputStreamRequestEntity(httpServletRequest.getInputStream(),
+		              httpServletRequest.getContentLength(), httpServletRequest.getContentType()));
 		      //LOGGER.info("original request content length:" + httpServletRequest.getContentLength());
 		      //LOGGER.info("proxied request content length:" +methodProxyRequest.getRequestEntity().getContentLength()+"");
 		      
@@ -597,32 +892,212 @@ public class HTTPProxy extends HttpServlet {
      * @param httpMethodProxyRequest An object representing the proxy request to be made
      * @param httpServletResponse An object by which we can send the proxied response back to the client
      * @param digest
-     * @throws IOException Can be thrown by the {@link HttpClient}.executeMethod
+     * @throws IOException Can be thrown by the {@link UpstreamTransport}.execute
      * @throws ServletException Can be thrown to indicate that another error has occurred
      */
-    private void executeProxyRequest(HttpMethod httpMethodProxyRequest,
+    private void executeProxyRequest(UpstreamMethod httpMethodProxyRequest,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            String user, String password, ProxyInfo proxyInfo) throws IOException, ServletException {
+
+        UsernamePasswordCredentials credentials = prepareProxyRequest(httpMethodProxyRequest,
+                user, password);
+
+        try {
+
+            // //////////////////////////
+            // Execute the request
+            // //////////////////////////
+
+            int intProxyResponseCode = upstreamTransport.execute(httpMethodProxyRequest,
+                    credentials);
+
+            sendProxyResponse(httpMethodProxyRequest, intProxyResponseCode, httpServletRequest,
+                    httpServletResponse, proxyInfo);
+
+        } catch (HttpException e) {
+            if (LOGGER.isLoggable(Level.SEVERE))
+                LOGGER.log(Level.SEVERE, "Error executing HTTP method ", e);
+        } finally {
+            httpMethodProxyRequest.releaseConnection();
+        }
+    }
+
+    /**
+     * Executes the {@link HttpMethod} passed in on the upstream executor and suspends the request
+     * until the remote server has answered, so that the container thread is not held while the
+     * remote server connects and responds. With Jetty the request is dispatched again once the
+     * response headers are available and {@link #completeProxyRequest} sends them back to the
+     * client, other containers just wait on the calling thread.
+     * 
+     * @param httpMethodProxyRequest An object representing the proxy request to be made
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the proxied response back to the client
+     * @throws IOException
+     * @throws ServletException
+     */
+    private void startProxyRequest(UpstreamMethod httpMethodProxyRequest,
             HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
             String user, String password, ProxyInfo proxyInfo) throws IOException, ServletException {
 
-        if (user != null && password != null) {
-            UsernamePasswordCredentials upc = new UsernamePasswordCredentials(user, password);
-            httpClient.getState().setCredentials(AuthScope.ANY, upc);
+        UsernamePasswordCredentials credentials = prepareProxyRequest(httpMethodProxyRequest,
+                user, password);
+
+        AsyncExchange exchange = new AsyncExchange(upstreamTransport, httpMethodProxyRequest,
+                credentials, proxyInfo, ContinuationSupport.getContinuation(httpServletRequest,
+                        null));
+        httpServletRequest.setAttribute(AsyncExchange.ATTRIBUTE, exchange);
+
+        upstreamExecutor.execute(exchange);
+
+        // ////////////////////////////////////////////////////////
+        // Jetty releases the thread here and dispatches the
+        // request again on completion, other containers block
+        // ////////////////////////////////////////////////////////
+
+        exchange.suspend(proxyConfig.getAsyncTimeout());
+
+        completeProxyRequest(exchange, httpServletRequest, httpServletResponse);
+    }
+
+    /**
+     * Sends back to the client the response of a proxy request started by {@link #startProxyRequest}
+     * 
+     * @param exchange The suspended exchange
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the proxied response back to the client
+     * @throws IOException
+     * @throws ServletException
+     */
+    private void completeProxyRequest(AsyncExchange exchange,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+            throws IOException, ServletException {
+
+        HttpMethod httpMethodProxyRequest = exchange.getMethod();
+
+        if (!exchange.complete()) {
+            httpMethodProxyRequest.abort();
+            throw new HttpErrorException(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+                    "The remote server did not answer in time");
         }
 
+        try {
+            IOException failure = exchange.getFailure();
+            if (failure instanceof HttpException) {
+                if (LOGGER.isLoggable(Level.SEVERE))
+                    LOGGER.log(Level.SEVERE, "Error executing HTTP method ", failure);
+            } else if (failure != null) {
+                throw failure;
+            } else {
+                sendProxyResponse(httpMethodProxyRequest, exchange.getStatus(),
+                        httpServletRequest, httpServletResponse, exchange.getProxyInfo());
+            }
+        } finally {
+            httpMethodProxyRequest.releaseConnection();
+        }
+    }
+
+    /**
+     * Sends back to the client the response of the identical request it has been coalesced with
+     * 
+     * @param flight The flight of the identical request
+     * @param wait Whether to wait for the remote response headers, if false and they are not
+     *        available yet the client gets 504 Gateway Timeout
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the proxied response back to the client
+     * @return boolean false if there is no response to share and the client request must be executed
+     * @throws IOException
+     */
+    private boolean relayProxyResponse(RequestCoalescer.Flight flight, boolean wait,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+            throws IOException {
+        InputStream body = flight.await(wait);
+        if (body == null)
+            return false;
+
+        try {
+            httpServletResponse.setStatus(flight.getStatus());
+            sendResponseEntity(flight.getHeaders(), body, httpServletRequest,
+                    httpServletResponse, null);
+        } finally {
+            body.close();
+        }
+        return true;
+    }
+
+    /**
+     * Sends a cached response back to the client
+     * 
+     * @param entry The cached response
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the cached response back to the client
+     * @throws IOException
+     */
+    private void serveCachedResponse(ResponseCache.Entry entry,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse)
+            throws IOException {
+        if (!responseCache.serve(entry, httpServletRequest, httpServletResponse))
+            sendResponseEntity(entry.headers, entry.openBody(), httpServletRequest,
+                    httpServletResponse, null);
+    }
+
+    /**
+     * Sets up the redirect handling of the {@link HttpMethod} passed in
+     * 
+     * @param httpMethodProxyRequest An object representing the proxy request to be made
+     * @param user
+     * @param password
+     * @return UsernamePasswordCredentials the remote server credentials, null if none
+     */
+    private UsernamePasswordCredentials prepareProxyRequest(HttpMethod httpMethodProxyRequest,
+            String user, String password) {
         httpMethodProxyRequest.setFollowRedirects(false);
 
+        if (user != null && password != null)
+            return new UsernamePasswordCredentials(user, password);
+
+        return null;
+    }
+
+    /**
+     * Sends the response of the executed {@link HttpMethod} back to the client via the given {@link HttpServletResponse}
+     * 
+     * @param httpMethodProxyRequest The executed proxy request
+     * @param intProxyResponseCode The remote server response code
+     * @param httpServletRequest The client request
+     * @param httpServletResponse An object by which we can send the proxied response back to the client
+     * @param proxyInfo
+     * @throws IOException
+     * @throws ServletException
+     */
+    private void sendProxyResponse(HttpMethod httpMethodProxyRequest, int intProxyResponseCode,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            ProxyInfo proxyInfo) throws IOException, ServletException {
+
         InputStream inputStreamServerResponse = null;
-        ByteArrayOutputStream baos = null;
-        
+        LimitedInputStream limitedBody = null;
+        boolean pending = false;
+
+        ResponseCache.Lookup lookup = (ResponseCache.Lookup) httpServletRequest
+                .getAttribute(ResponseCache.ATTRIBUTE);
+
+        RequestCoalescer.Flight flight = RequestCoalescer.get(httpServletRequest);
+
         try {
 
-            // //////////////////////////
-            // Execute the request
-            // //////////////////////////
+            // ////////////////////////////////////////////////////////
+            // The cached response is still valid: it has already
+            // been checked when stored, send it back to the client
+            // ////////////////////////////////////////////////////////
 
-            int intProxyResponseCode = httpClient.executeMethod(httpMethodProxyRequest);
+            if (lookup != null && lookup.entry != null
+                    && intProxyResponseCode == HttpServletResponse.SC_NOT_MODIFIED) {
+                serveCachedResponse(responseCache.revalidated(lookup, httpMethodProxyRequest),
+                        httpServletRequest, httpServletResponse);
+                return;
+            }
 
-            onRemoteResponse(httpMethodProxyRequest);
+            pending = true;
+            onRemoteResponse(httpServletRequest, httpMethodProxyRequest);
 
             // ////////////////////////////////////////////////////////////////////////////////
             // Check if the proxy response is a redirect
@@ -679,6 +1154,18 @@ public class HTTPProxy extends HttpServlet {
                 return;
             }
 
+            // /////////////////////////////////////////////
+            // Check the announced size of the response
+            // /////////////////////////////////////////////
+
+            long maxResponseBytes = getMaxResponseBytes(httpMethodProxyRequest);
+            if (maxResponseBytes > 0 && !"HEAD".equals(httpMethodProxyRequest.getName())
+                    && getContentLength(httpMethodProxyRequest) > maxResponseBytes) {
+                throw new HttpErrorException(HttpServletResponse.SC_BAD_GATEWAY,
+                        "The remote response exceeds the " + maxResponseBytes
+                                + " bytes allowed for this proxy");
+            }
+
             // /////////////////////////////////////////////
             // Pass the response code back to the client
             // /////////////////////////////////////////////
@@ -686,55 +1173,76 @@ public class HTTPProxy extends HttpServlet {
             httpServletResponse.setStatus(intProxyResponseCode);
 
             // /////////////////////////////////////////////
-            // Pass response headers back to the client
+            // Collect the response headers, the content
+            // coding is adapted to the client later on
             // /////////////////////////////////////////////
 
+            List<String[]> headers = new ArrayList<String[]>();
+
             Header[] headerArrayResponse = httpMethodProxyRequest.getResponseHeaders();
 
             for (Header header : headerArrayResponse) {
 
-                // /////////////////////////
-                // Skip GZIP Responses
-                // /////////////////////////
-
                 if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_ACCEPT_ENCODING)
                         && header.getValue().toLowerCase().contains("gzip"))
                     continue;
-                else if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)
-                        && header.getValue().toLowerCase().contains("gzip"))
-                    continue;
                 else if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_TRANSFER_ENCODING))
                     continue;
 //                else if (header.getName().equalsIgnoreCase(Utils.HTTP_HEADER_WWW_AUTHENTICATE))
 //                    continue;                
                 else
-                    httpServletResponse.setHeader(header.getName(), header.getValue());
+                    headers.add(new String[] { header.getName(), header.getValue() });
             }
 
+            ResponseCache.Recorder recorder = lookup != null ? responseCache.record(lookup,
+                    httpMethodProxyRequest, intProxyResponseCode) : null;
+
+            if (recorder != null)
+                for (String[] header : headers)
+                    recorder.addHeader(header[0], header[1]);
+
+            if (flight != null)
+                flight.start(intProxyResponseCode, headers);
+
             // ///////////////////////////////////
             // Send the content to the client
             // ///////////////////////////////////
             
             inputStreamServerResponse = httpMethodProxyRequest
             		.getResponseBodyAsStream();
-            
-            if(inputStreamServerResponse != null){
-                byte[] b = new byte[proxyConfig.getDefaultStreamByteSize()];
-                
-                baos = new ByteArrayOutputStream(b.length);
-                
-                int read = 0;
-    		    while((read = inputStreamServerResponse.read(b)) > 0){ 
-    		      	baos.write(b, 0, read);
-    		        baos.flush();
-    		    }
-    	            
-    		    baos.writeTo(httpServletResponse.getOutputStream());
+
+            InputStream body = inputStreamServerResponse;
+            if (body != null)
+                body = limitedBody = new LimitedInputStream(body, maxResponseBytes);
+            if (body != null && (recorder != null || flight != null))
+                body = new TeeInputStream(body, recorder, flight);
+
+            sendResponseEntity(headers, body, httpServletRequest, httpServletResponse, flight);
+
+            if (body != null) {
+                // the decompression may leave the gzip trailer unread
+                byte[] trailer = new byte[512];
+                while (body.read(trailer) != -1)
+                    ;
+
+                if (recorder != null)
+                    recorder.commit();
             }
+
+            if (flight != null)
+                flight.finish();
             
-        } catch (HttpException e) {
-            if (LOGGER.isLoggable(Level.SEVERE))
-                LOGGER.log(Level.SEVERE, "Error executing HTTP method ", e);
+        } catch (IOException e) {
+            // ///////////////////////////////////////////////
+            // Close the remote connection rather than read
+            // the rest of a body nobody is going to get
+            // ///////////////////////////////////////////////
+
+            if (pending) {
+                abortProxyResponse(httpMethodProxyRequest, limitedBody);
+                inputStreamServerResponse = null;
+            }
+            throw e;
         } finally {
 			try {
 	        	if(inputStreamServerResponse != null)
@@ -745,23 +1253,242 @@ public class HTTPProxy extends HttpServlet {
 							"Error closing request input stream ", e);
 				throw new ServletException(e.getMessage());
 			}
-			
-			try {
-	        	if(baos != null){
-	        		baos.flush();
-	        		baos.close();
-	        	}
-			} catch (IOException e) {
-				if (LOGGER.isLoggable(Level.SEVERE))
-					LOGGER.log(Level.SEVERE,
-							"Error closing response stream ", e);
-				throw new ServletException(e.getMessage());
-			}
-        	
-            httpMethodProxyRequest.releaseConnection();
         }
     }
 
+    /**
+     * @param httpMethodProxyRequest The executed proxy request
+     * @return long the maximum size in bytes of the remote response body, 0 for no limit
+     * @throws URIException
+     */
+    private long getMaxResponseBytes(HttpMethod httpMethodProxyRequest) throws URIException {
+        URI uri = httpMethodProxyRequest.getURI();
+        int port = uri.getPort() > 0 ? uri.getPort() : "https".equalsIgnoreCase(uri
+                .getScheme()) ? 443 : 80;
+
+        Header contentType = httpMethodProxyRequest
+                .getResponseHeader(Utils.CONTENT_TYPE_HEADER_NAME);
+
+        return proxyConfig.getMaxResponseBytes(uri.getHost(), port,
+                contentType != null ? contentType.getValue() : null);
+    }
+
+    /**
+     * @param httpMethodProxyRequest The executed proxy request
+     * @return long the announced length of the remote response body, -1 if unknown
+     */
+    private static long getContentLength(HttpMethod httpMethodProxyRequest) {
+        Header contentLength = httpMethodProxyRequest
+                .getResponseHeader(Utils.CONTENT_LENGTH_HEADER_NAME);
+        if (contentLength == null)
+            return -1;
+
+        try {
+            return Long.parseLong(contentLength.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Aborts the remote response, closing its connection instead of reading the rest of the body
+     * to reuse it.
+     * 
+     * @param httpMethodProxyRequest The executed proxy request
+     * @param body The remote response body as read so far, null if not read
+     */
+    private void abortProxyResponse(HttpMethod httpMethodProxyRequest, LimitedInputStream body) {
+        long unread = getContentLength(httpMethodProxyRequest);
+        if (unread > 0 && body != null)
+            unread -= body.getCount();
+
+        if (unread == 0)
+            return;
+
+        httpMethodProxyRequest.abort();
+
+        if (metrics != null)
+            metrics.recordAbort(Math.max(unread, 0));
+
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Aborted the remote response"
+                    + (unread > 0 ? ", " + unread + " bytes left unread" : ""));
+    }
+
+    /**
+     * Sends the headers and the body of a response to the client, adapting the content coding to
+     * the client: gzip bodies are passed through to the clients accepting gzip and decompressed for
+     * the others, uncompressed text bodies are compressed if so configured.
+     * 
+     * @param headers The name and value of the response headers
+     * @param body The response body as received from the remote server, null if none
+     * @param httpServletRequest The client request
+     * @param httpServletResponse The client response, its status already set
+     * @param flight The flight the body is shared with, null if none
+     * @throws IOException
+     */
+    private void sendResponseEntity(List<String[]> headers, InputStream body,
+            HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+            RequestCoalescer.Flight flight) throws IOException {
+
+        String contentEncoding = null, contentType = null, vary = null;
+        long contentLength = -1;
+        boolean partial = false;
+
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING))
+                contentEncoding = header[1];
+            else if (header[0].equalsIgnoreCase(Utils.CONTENT_TYPE_HEADER_NAME))
+                contentType = header[1];
+            else if (header[0].equalsIgnoreCase(Utils.HTTP_HEADER_VARY))
+                vary = header[1];
+            else if (header[0].equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_RANGE))
+                partial = true;
+            else if (header[0].equalsIgnoreCase(Utils.CONTENT_LENGTH_HEADER_NAME)) {
+                try {
+                    contentLength = Long.parseLong(header[1].trim());
+                } catch (NumberFormatException e) {
+                    contentLength = -1;
+                }
+            }
+        }
+
+        // ////////////////////////////////////////////////
+        // Partial contents (206, 416) are passed as is,
+        // their byte positions refer to the remote body
+        // ////////////////////////////////////////////////
+
+        if (contentType != null
+                && Utils.MULTIPART_BYTERANGES.equalsIgnoreCase(Utils.mimeType(contentType)))
+            partial = true;
+
+        ContentCoding coding = partial ? ContentCoding.PASS : ContentCoding.choose(
+                httpServletRequest, contentEncoding, contentType, contentLength, proxyConfig);
+
+        for (String[] header : headers) {
+            if (coding != ContentCoding.PASS
+                    && (header[0].equalsIgnoreCase(Utils.CONTENT_LENGTH_HEADER_NAME)
+                            || header[0].equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)
+                            || header[0].equalsIgnoreCase(Utils.HTTP_HEADER_ACCEPT_RANGES)))
+                continue;
+
+            httpServletResponse.setHeader(header[0], header[1]);
+        }
+
+        // ///////////////////////////////////////////////
+        // Caches between the proxy and the client must
+        // tell apart the compressed representation
+        // ///////////////////////////////////////////////
+
+        if (coding != ContentCoding.PASS || contentEncoding != null
+                || (proxyConfig.isCompressResponses() && ContentCoding.isCompressible(
+                        contentType, proxyConfig.getCompressibleTypes()))) {
+            if (vary == null)
+                httpServletResponse.setHeader(Utils.HTTP_HEADER_VARY, "Accept-Encoding");
+            else if (!vary.toLowerCase().contains(Utils.HTTP_HEADER_ACCEPT_ENCODING))
+                httpServletResponse.setHeader(Utils.HTTP_HEADER_VARY, vary + ", Accept-Encoding");
+        }
+
+        if (coding == ContentCoding.ENCODE)
+            httpServletResponse.setHeader(Utils.HTTP_HEADER_CONTENT_ENCODING, ContentCoding.GZIP);
+
+        if (body == null || contentLength == 0)
+            return;
+
+        RequestTimer timer = RequestTimer.get(httpServletRequest);
+        long started = System.nanoTime();
+        long copied = 0;
+
+        try {
+            OutputStream out = httpServletResponse.getOutputStream();
+
+            if (coding == ContentCoding.DECODE) {
+                copied = copyResponseBody(new GZIPInputStream(body), out, flight);
+            } else if (coding == ContentCoding.ENCODE) {
+                GZIPOutputStream gzip = ContentCoding.gzip(out, proxyConfig.getCompressionLevel());
+                copied = copyResponseBody(body, gzip, flight);
+                gzip.finish();
+                out.flush();
+            } else {
+                copied = copyResponseBody(body, out, flight);
+            }
+        } finally {
+            if (timer != null)
+                timer.since(RequestTimer.Stage.TRANSFER, started);
+
+            ProxyContext context = ProxyContext.get(httpServletRequest);
+            if (context != null)
+                context.addBytesSent(copied);
+        }
+    }
+
+    /**
+     * Relays the remote response body to the client while it arrives, so that no more than one
+     * buffer of <code>defaultStreamByteSize</code> bytes is held in memory whatever the body size.
+     * The first chunk is always flushed to let the client see the response as soon as the remote
+     * server starts sending it, the following ones according to the configured {@link FlushPolicy}.
+     * 
+     * @param inputStreamServerResponse The remote response body
+     * @param outputStreamClientResponse The client response body
+     * @param flight The flight the body is shared with, null if none
+     * @return long the number of bytes copied
+     * @throws IOException
+     */
+    long copyResponseBody(InputStream inputStreamServerResponse,
+            OutputStream outputStreamClientResponse, RequestCoalescer.Flight flight)
+            throws IOException {
+        final FlushPolicy flushPolicy = proxyConfig.getStreamFlushPolicy();
+        final int flushBytes = proxyConfig.getStreamFlushBytes();
+
+        byte[] b = new byte[proxyConfig.getDefaultStreamByteSize()];
+
+        boolean first = true;
+        long unflushed = 0;
+        long copied = 0;
+        IOException clientFailure = null;
+        int read = 0;
+        while ((read = inputStreamServerResponse.read(b)) != -1) {
+            if (read == 0)
+                continue;
+
+            copied += read;
+
+            // ///////////////////////////////////////////////
+            // Keep reading for the followers even if this
+            // client has gone away
+            // ///////////////////////////////////////////////
+
+            if (clientFailure != null)
+                continue;
+
+            try {
+                outputStreamClientResponse.write(b, 0, read);
+                unflushed += read;
+
+                if (first || flushPolicy == FlushPolicy.CHUNK
+                        || (flushPolicy == FlushPolicy.BYTES && unflushed >= flushBytes)) {
+                    outputStreamClientResponse.flush();
+                    unflushed = 0;
+                    first = false;
+                }
+            } catch (IOException e) {
+                if (flight == null || !flight.hasFollowers())
+                    throw e;
+
+                clientFailure = e;
+            }
+        }
+
+        if (clientFailure != null) {
+            if (flight != null)
+                flight.finish();
+            throw clientFailure;
+        }
+
+        outputStreamClientResponse.flush();
+        return copied;
+    }
+
     /**
      * Retrieves all of the headers from the servlet request and sets them on the proxy request
      * 
@@ -770,7 +1497,7 @@ public class HTTPProxy extends HttpServlet {
      * @return ProxyInfo
      */
     @SuppressWarnings("rawtypes")
-    private ProxyInfo setProxyRequestHeaders(URL url, HttpServletRequest httpServletRequest,
+    ProxyInfo setProxyRequestHeaders(URL url, HttpServletRequest httpServletRequest,
             HttpMethod httpMethodProxyRequest) {
 
         final String proxyHost = url.getHost();
@@ -814,12 +1541,12 @@ public class HTTPProxy extends HttpServlet {
                     stringHeaderValue = Utils.getProxyHostAndPort(proxyInfo);
                 }
 
-                // ////////////////////////
-                // Skip GZIP Responses
-                // ////////////////////////
+                // ////////////////////////////////////////
+                // The codings asked to the remote server
+                // are chosen by the proxy
+                // ////////////////////////////////////////
 
-                if (stringHeaderName.equalsIgnoreCase(Utils.HTTP_HEADER_ACCEPT_ENCODING)
-                        && stringHeaderValue.toLowerCase().contains("gzip"))
+                if (stringHeaderName.equalsIgnoreCase(Utils.HTTP_HEADER_ACCEPT_ENCODING))
                     continue;
                 if (stringHeaderName.equalsIgnoreCase(Utils.HTTP_HEADER_CONTENT_ENCODING)
                         && stringHeaderValue.toLowerCase().contains("gzip"))
@@ -837,10 +1564,21 @@ public class HTTPProxy extends HttpServlet {
             }
         }
 
+        // ////////////////////////////////////////////////////////
+        // Ranges are relayed as received: they must not address
+        // a gzip representation the client cannot decode
+        // ////////////////////////////////////////////////////////
+
+        if (proxyConfig.isUpstreamCompression()
+                && (httpServletRequest.getHeader(Utils.HTTP_HEADER_RANGE) == null || ContentCoding
+                        .acceptsGzip(httpServletRequest)))
+            httpMethodProxyRequest.setRequestHeader(Utils.HTTP_HEADER_ACCEPT_ENCODING,
+                    ContentCoding.GZIP);
+
         return proxyInfo;
     }
 
-    private Map<String,String> splitQuery(String query) throws UnsupportedEncodingException {
+    Map<String,String> splitQuery(String query) throws UnsupportedEncodingException {
         Map<String, String> query_pairs = new LinkedHashMap<String, String>();
         
         String[] pairs = query.split("&");
@@ -857,4 +1595,117 @@ public class HTTPProxy extends HttpServlet {
         return maxFileUploadSize;
     }
 
+    /**
+     * Hands the remote response body to the response cache and to the coalesced requests while it
+     * is read.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+
+        private final ResponseCache.Recorder recorder;
+
+        private final RequestCoalescer.Flight flight;
+
+        TeeInputStream(InputStream in, ResponseCache.Recorder recorder,
+                RequestCoalescer.Flight flight) {
+            super(in);
+            this.recorder = recorder;
+            this.flight = flight;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                if (recorder != null)
+                    recorder.write(b, off, read);
+                if (flight != null)
+                    flight.publish(b, off, read);
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] b = new byte[(int) Math.min(n, 4096)];
+            int read = read(b, 0, b.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Counts the remote response body bytes, failing once they exceed the limit.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+
+        private long count;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+                if (limit > 0 && count > limit)
+                    throw new IOException("The remote response exceeds the " + limit
+                            + " bytes allowed for this proxy");
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] b = new byte[(int) Math.min(n, 4096)];
+            int read = read(b, 0, b.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the daemon threads executing the remote requests.
+     */
+    private static final class UpstreamThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "proxy-upstream-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 }
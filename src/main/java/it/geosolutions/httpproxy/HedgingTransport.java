@@ -0,0 +1,550 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+
+/**
+ * The {@link UpstreamTransport} hedging the GET requests to the hosts having mirrors, set by
+ * <code>upstream.&lt;name&gt;.mirrors</code>: when the response headers of a request are later than
+ * the <code>hedgePercentile</code> of the recent first byte latencies of its host, the request is
+ * sent to a mirror too. The first response is kept and the other request aborted.
+ * <p>
+ * Both requests are copies of the proxy request, which is handed the winning response over. The
+ * hedged requests are limited to <code>hedgeBudget</code> per request to the hosts having mirrors,
+ * so that hedging does not add much load to remote servers that are slow because overloaded.
+ */
+final class HedgingTransport implements UpstreamTransport {
+
+    private final static Logger LOGGER = Logger.getLogger(HedgingTransport.class.toString());
+
+    /**
+     * The first byte latencies recorded for a host before its requests are hedged
+     */
+    private static final int MIN_SAMPLES = 32;
+
+    /**
+     * The latencies after which the histogram of a host starts afresh, so that its threshold
+     * follows the recent ones
+     */
+    private static final int WINDOW = 1024;
+
+    /**
+     * The latencies recorded between two updates of the threshold of a host
+     */
+    private static final int UPDATE_INTERVAL = 16;
+
+    /**
+     * The budget is counted in thousandths of request
+     */
+    private static final long TOKEN = 1000;
+
+    /**
+     * The hedged requests that can be saved up by a quiet period
+     */
+    private static final long MAX_TOKENS = 10 * TOKEN;
+
+    private final UpstreamTransport transport;
+
+    private final ProxyConfig proxyConfig;
+
+    private final ProxyMetrics metrics;
+
+    /**
+     * The hosts and their mirrors, by host and port
+     */
+    private final Map<String, Member> members = new HashMap<String, Member>();
+
+    private final AtomicLong tokens = new AtomicLong(TOKEN);
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ExecutorService hedges;
+
+    /**
+     * @param proxyConfig
+     * @return boolean true if an upstream host has mirrors
+     */
+    static boolean isConfigured(ProxyConfig proxyConfig) {
+        for (HostConfig host : proxyConfig.getUpstreamHosts())
+            if (!host.getMirrors().isEmpty())
+                return true;
+
+        return false;
+    }
+
+    /**
+     * @param transport the transport executing the requests
+     * @param proxyConfig
+     * @param metrics the metrics counting the hedged requests, null if none
+     */
+    HedgingTransport(UpstreamTransport transport, ProxyConfig proxyConfig, ProxyMetrics metrics) {
+        this.transport = transport;
+        this.proxyConfig = proxyConfig;
+        this.metrics = metrics;
+
+        for (HostConfig host : proxyConfig.getUpstreamHosts()) {
+            if (host.getMirrors().isEmpty())
+                continue;
+
+            List<String> authorities = new ArrayList<String>();
+            authorities.add(host.getPort() > 0 ? host.getHost() + ":" + host.getPort() : host
+                    .getHost());
+            authorities.addAll(host.getMirrors());
+
+            Group group = new Group(authorities, host.getHedgePercentile());
+            for (Member member : group.members) {
+                int[] ports = member.port > 0 ? new int[] { member.port } : new int[] { 80, 443 };
+                for (int port : ports) {
+                    String key = HostRoutingTransport.hostKey(member.host, port);
+                    if (!members.containsKey(key))
+                        members.put(key, member);
+                }
+            }
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new HedgeThreadFactory(
+                "proxy-hedge-timer"));
+        hedges = Executors.newCachedThreadPool(new HedgeThreadFactory("proxy-hedge-"));
+    }
+
+    public int execute(UpstreamMethod method, UsernamePasswordCredentials credentials)
+            throws IOException {
+        Member member = null;
+        if ("GET".equals(method.getName()) && method.getRequestEntity() == null)
+            member = members.get(HostRoutingTransport.hostKey(method.getURI()));
+
+        double budget = proxyConfig.getHedgeBudget();
+        if (member == null || budget <= 0)
+            return transport.execute(method, credentials);
+
+        earn(budget);
+
+        // //////////////////////////////////////////////////
+        // Not hedged until enough latencies are recorded
+        // //////////////////////////////////////////////////
+
+        long delay = member.delay;
+        if (delay < 0) {
+            long started = System.nanoTime();
+            int status = transport.execute(method, credentials);
+            member.record(System.nanoTime() - started, percentile(member));
+            return status;
+        }
+
+        return new Hedge(method, credentials, member).execute(delay);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        hedges.shutdownNow();
+        transport.shutdown();
+    }
+
+    private double percentile(Member member) {
+        Double percentile = member.group.percentile;
+        return percentile != null ? percentile : proxyConfig.getHedgePercentile();
+    }
+
+    private void earn(double budget) {
+        long earned = (long) (budget * TOKEN);
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= MAX_TOKENS)
+                return;
+        } while (!tokens.compareAndSet(current, Math.min(MAX_TOKENS, current + earned)));
+    }
+
+    private boolean spend() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN)
+                return false;
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+
+        return true;
+    }
+
+    /**
+     * @param method
+     * @param mirror the mirror to send the copy to, null to send it to the same host
+     * @return UpstreamMethod a copy of the request
+     * @throws URIException
+     */
+    private static UpstreamMethod copy(UpstreamMethod method, Member mirror) throws URIException {
+        URI uri = method.getURI();
+
+        String target = uri.getEscapedURI();
+        if (mirror != null) {
+            String pathQuery = uri.getEscapedPathQuery();
+            target = uri.getScheme() + "://" + mirror.authority
+                    + (pathQuery != null ? pathQuery : "/");
+        }
+
+        UpstreamMethod copy = new UpstreamMethod(method.getName(), target);
+        copy.setParams(new HttpMethodParams(method.getParams()));
+        copy.setFollowRedirects(method.getFollowRedirects());
+
+        for (Header header : method.getRequestHeaders())
+            if (mirror == null || !Utils.HOST_HEADER_NAME.equalsIgnoreCase(header.getName()))
+                copy.addRequestHeader(header.getName(), header.getValue());
+
+        return copy;
+    }
+
+    /**
+     * A request racing its hedged copy
+     */
+    private final class Hedge implements Runnable {
+
+        private final UpstreamMethod method;
+
+        private final UsernamePasswordCredentials credentials;
+
+        private final Member member;
+
+        private final Attempt primary;
+
+        private final AtomicReference<Attempt> winner = new AtomicReference<Attempt>();
+
+        /**
+         * Guarded by this
+         */
+        private Attempt backup;
+
+        /**
+         * Guarded by this, true once the first request has returned
+         */
+        private boolean done;
+
+        Hedge(UpstreamMethod method, UsernamePasswordCredentials credentials, Member member)
+                throws URIException {
+            this.method = method;
+            this.credentials = credentials;
+            this.member = member;
+
+            primary = new Attempt(copy(method, null), member);
+            primary.method.setTimer(method.getTimer());
+        }
+
+        int execute(long delay) throws IOException {
+            ScheduledFuture<?> trigger = scheduler.schedule(this, delay, TimeUnit.NANOSECONDS);
+
+            IOException failure = null;
+            try {
+                primary.execute();
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            Attempt backup;
+            synchronized (this) {
+                done = true;
+                backup = this.backup;
+            }
+            trigger.cancel(false);
+
+            if (failure == null && winner.compareAndSet(null, primary)) {
+                if (backup != null)
+                    backup.method.abort();
+                return primary.handOver(method);
+            }
+
+            // ////////////////////////////////////////////////
+            // Beaten by the mirror, or failed: the mirror
+            // may still answer
+            // ////////////////////////////////////////////////
+
+            if (backup != null) {
+                backup.await();
+                if (winner.get() == backup) {
+                    primary.method.abort();
+                    return backup.handOver(method);
+                }
+            }
+
+            primary.method.abort();
+            throw failure;
+        }
+
+        /**
+         * Sends the request to a mirror, the first one being late
+         */
+        public void run() {
+            Attempt backup;
+            synchronized (this) {
+                if (done)
+                    return;
+
+                Member mirror = member.group.mirror(member);
+                if (mirror == null || !spend())
+                    return;
+
+                try {
+                    backup = new Attempt(copy(method, mirror), mirror);
+                } catch (URIException e) {
+                    if (LOGGER.isLoggable(Level.WARNING))
+                        LOGGER.log(Level.WARNING, "Unable to hedge the request to "
+                                + mirror.authority, e);
+                    return;
+                }
+                this.backup = backup;
+            }
+
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Hedging the request to " + member.authority + " on "
+                        + backup.member.authority);
+
+            if (metrics != null)
+                metrics.recordHedge();
+
+            try {
+                hedges.execute(backup);
+            } catch (RejectedExecutionException e) {
+                backup.failure = new IOException("The proxy is shutting down");
+                backup.finished.countDown();
+            }
+        }
+
+        /**
+         * A copy of the request sent to a host of the group
+         */
+        private final class Attempt implements Runnable {
+
+            final UpstreamMethod method;
+
+            final Member member;
+
+            final CountDownLatch finished = new CountDownLatch(1);
+
+            int status;
+
+            IOException failure;
+
+            Attempt(UpstreamMethod method, Member member) {
+                this.method = method;
+                this.member = member;
+            }
+
+            void execute() throws IOException {
+                long started = System.nanoTime();
+                try {
+                    status = transport.execute(method, credentials);
+                    member.record(System.nanoTime() - started, percentile(member));
+                } catch (IOException e) {
+                    // ////////////////////////////////////////////
+                    // Aborted as beaten: a lower bound of its
+                    // latency is still worth recording
+                    // ////////////////////////////////////////////
+
+                    Attempt first = winner.get();
+                    if (first != null && first != this)
+                        member.record(System.nanoTime() - started, percentile(member));
+                    throw e;
+                }
+            }
+
+            /**
+             * Executes the hedged copy
+             */
+            public void run() {
+                try {
+                    execute();
+
+                    if (winner.compareAndSet(null, this)) {
+                        primary.method.abort();
+                        if (metrics != null)
+                            metrics.recordHedgeWin();
+                    } else {
+                        method.abort();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new IOException(e);
+                } finally {
+                    finished.countDown();
+                }
+            }
+
+            void await() throws IOException {
+                try {
+                    finished.await();
+                } catch (InterruptedException e) {
+                    method.abort();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for " + member.authority);
+                }
+            }
+
+            /**
+             * Hands the response over to the proxy request, releasing or aborting this copy along
+             * with it
+             * 
+             * @param carrier
+             * @return int the response status
+             * @throws IOException
+             */
+            int handOver(final UpstreamMethod carrier) throws IOException {
+                carrier.setResponse(method.getStatusLine().toString(), method
+                        .getResponseHeaders(), method.getResponseBodyAsStream());
+                carrier.setExchange(new Closeable() {
+                    public void close() {
+                        if (carrier.isAborted())
+                            method.abort();
+                        else
+                            method.releaseConnection();
+                    }
+                });
+
+                return status;
+            }
+        }
+    }
+
+    /**
+     * A host and its mirrors, serving the same resources
+     */
+    private static final class Group {
+
+        final Member[] members;
+
+        /**
+         * The percentile of the host, null for the default
+         */
+        final Double percentile;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        Group(List<String> authorities, Double percentile) {
+            this.percentile = percentile;
+
+            members = new Member[authorities.size()];
+            for (int i = 0; i < members.length; i++)
+                members[i] = new Member(authorities.get(i), this);
+        }
+
+        /**
+         * @param member
+         * @return Member another host of the group, in turn, null if none
+         */
+        Member mirror(Member member) {
+            if (members.length < 2)
+                return null;
+
+            int i = (next.getAndIncrement() & Integer.MAX_VALUE) % (members.length - 1);
+            return members[i] != member ? members[i] : members[members.length - 1];
+        }
+    }
+
+    /**
+     * A host of a group, along with its recent first byte latencies
+     */
+    private static final class Member {
+
+        final String authority;
+
+        final String host;
+
+        final int port;
+
+        final Group group;
+
+        private volatile LatencyHistogram latencies = new LatencyHistogram();
+
+        private volatile LatencyHistogram previous;
+
+        /**
+         * The delay in nanoseconds after which a request is hedged, -1 until enough latencies are
+         * recorded
+         */
+        volatile long delay = -1;
+
+        Member(String authority, Group group) {
+            int colon = authority.lastIndexOf(':');
+
+            this.authority = authority;
+            this.host = colon > 0 ? authority.substring(0, colon) : authority;
+            this.port = colon > 0 ? Integer.parseInt(authority.substring(colon + 1)) : -1;
+            this.group = group;
+        }
+
+        void record(long nanos, double percentile) {
+            LatencyHistogram current = latencies;
+            current.record(nanos);
+
+            long count = current.getCount();
+            if (count >= WINDOW && latencies == current) {
+                previous = current;
+                latencies = new LatencyHistogram();
+            }
+
+            if (count % UPDATE_INTERVAL == 0) {
+                LatencyHistogram recent = previous != null ? previous : current;
+                if (recent.getCount() >= MIN_SAMPLES)
+                    delay = (long) (recent.getPercentile(percentile) * 1e9);
+            }
+        }
+    }
+
+    private static final class HedgeThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        HedgeThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name.endsWith("-") ? name
+                    + count.incrementAndGet() : name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
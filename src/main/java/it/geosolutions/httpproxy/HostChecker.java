@@ -19,9 +19,10 @@
  */
 package it.geosolutions.httpproxy;
 
+import it.geosolutions.httpproxy.CallbackPhases.Phase;
+
 import java.io.IOException;
 import java.net.URL;
-import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -30,9 +31,14 @@ import org.apache.commons.httpclient.HttpMethod;
 
 /**
  * HostChecker class for host check.
+ * <p>
+ * The client address is the remote one, or the one a trusted proxy forwarded for. The
+ * <code>X-Forwarded-For</code> header is ignored unless the request comes from a trusted proxy, as
+ * any client can send it.
  * 
  * @author Tobia Di Pisa at tobia.dipisa@geo-solutions.it
  */
+@CallbackPhases(value = Phase.REQUEST, check = true)
 public class HostChecker implements ProxyCallback {
 
     ProxyConfig config;
@@ -51,19 +57,49 @@ public class HostChecker implements ProxyCallback {
      */
     public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
             throws IOException {
-        Set<String> hosts = config.getHostsWhitelist();
+        AddressMatcher allowed = config.getHostsMatcher();
+        AddressMatcher denied = config.getHostsDenyMatcher();
+
+        if (allowed.isEmpty() && denied.isEmpty())
+            return;
+
+        String source = getRemoteAddr(request, config.getTrustedProxiesMatcher());
 
         // ////////////////////////////////
-        // Check the whitelist of hosts
+        // Check the lists of hosts
         // ////////////////////////////////
 
-        if (hosts != null && hosts.size() > 0) {
-            String host = getRemoteAddr(request);
+        if (denied.matches(source) || !allowed.isEmpty() && !allowed.matches(source)) {
+            throw new HttpErrorException(403, "Client Host " + source
+                    + " is not among the ones allowed for this proxy");
+        }
+    }
+
+    /**
+     * Finds the client address, within the forwarded chain: the remote one, or the one the trusted
+     * proxies forwarded for. Without trusted proxies the remote address is always taken.
+     * 
+     * @param request
+     * @param trusted the addresses of the trusted proxies
+     * @return String the client address
+     */
+    static String getRemoteAddr(HttpServletRequest request, AddressMatcher trusted) {
+        String source = request.getRemoteAddr();
+
+        if (trusted.isEmpty() || !trusted.matches(source))
+            return source;
 
-            if (!hosts.contains(host)) {
-                throw new HttpErrorException(403, "Client Host " + host
-                        + " is not among the ones allowed for this proxy");
-            }
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        if (forwardedFor == null)
+            return source;
+
+        // walk the chain back until an address not added by a trusted proxy
+        int last = forwardedFor.length();
+        while (true) {
+            int comma = forwardedFor.lastIndexOf(',', last - 1);
+            if (comma < 0 || !trusted.matches(forwardedFor, comma + 1, last))
+                return forwardedFor.substring(comma + 1, last).trim();
+            last = comma;
         }
     }
 
@@ -83,18 +119,4 @@ public class HostChecker implements ProxyCallback {
     public void onFinish() throws IOException {
     }
 
-    /**
-     * @param req
-     * @return String
-     */
-    private String getRemoteAddr(HttpServletRequest req) {
-        String forwardedFor = req.getHeader("X-Forwarded-For");
-        if (forwardedFor != null) {
-            String[] ips = forwardedFor.split(", ");
-            return ips[0];
-        } else {
-            return req.getRemoteAddr();
-        }
-    }
-
 }
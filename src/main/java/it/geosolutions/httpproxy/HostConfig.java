@@ -0,0 +1,297 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+
+/**
+ * The connection settings of a remote host, read from the <code>upstream.&lt;name&gt;.*</code>
+ * properties. Unset options fall back to the connection manager ones.
+ */
+final class HostConfig {
+
+    private final String name;
+
+    private final String host;
+
+    private final int port;
+
+    private final int maxConnections;
+
+    private final Integer soTimeout;
+
+    private final Integer connectionTimeout;
+
+    private final Boolean tcpNoDelay;
+
+    private final Integer sendBufferSize;
+
+    private final Integer receiveBufferSize;
+
+    private final Boolean staleChecking;
+
+    private final String transport;
+
+    private final long maxResponseBytes;
+
+    private final List<String> mirrors;
+
+    private final Double hedgePercentile;
+
+    private final List<String> backends;
+
+    private final String healthCheck;
+
+    private final Long dnsTtl;
+
+    /**
+     * @param props
+     * @param name the name of the host in the <code>upstreamHosts</code> list
+     * @throws NumberFormatException if an option is not a number
+     * @throws IllegalArgumentException if the host is missing
+     */
+    HostConfig(Properties props, String name) {
+        String prefix = "upstream." + name + ".";
+
+        String address = props.getProperty(prefix + "host");
+        if (address == null || address.trim().length() == 0)
+            throw new IllegalArgumentException("Missing " + prefix + "host");
+
+        address = address.trim().toLowerCase();
+        int colon = address.lastIndexOf(':');
+
+        this.name = name;
+        this.host = colon > 0 ? address.substring(0, colon) : address;
+        this.port = colon > 0 ? Integer.parseInt(address.substring(colon + 1)) : -1;
+
+        String max = props.getProperty(prefix + "max_connections");
+        this.maxConnections = max != null ? Integer.parseInt(max.trim()) : 0;
+
+        this.soTimeout = integer(props, prefix + "timeout");
+        this.connectionTimeout = integer(props, prefix + "connection_timeout");
+        this.tcpNoDelay = bool(props, prefix + "tcp_nodelay");
+        this.sendBufferSize = integer(props, prefix + "send_buffer_size");
+        this.receiveBufferSize = integer(props, prefix + "receive_buffer_size");
+        this.staleChecking = bool(props, prefix + "stale_checking");
+
+        String transport = props.getProperty(prefix + "transport");
+        this.transport = transport != null ? transport.trim().toLowerCase() : null;
+
+        String maxResponse = props.getProperty(prefix + "max_response_bytes");
+        this.maxResponseBytes = maxResponse != null ? Long.parseLong(maxResponse.trim()) : 0;
+
+        this.mirrors = list(props, prefix + "mirrors");
+
+        String percentile = props.getProperty(prefix + "hedge_percentile");
+        this.hedgePercentile = percentile != null ? Double.valueOf(percentile.trim()) : null;
+
+        this.backends = list(props, prefix + "backends");
+
+        String healthCheck = props.getProperty(prefix + "health_check");
+        this.healthCheck = healthCheck != null && healthCheck.trim().length() > 0 ? healthCheck
+                .trim() : null;
+
+        String dnsTtl = props.getProperty(prefix + "dns_ttl");
+        this.dnsTtl = dnsTtl != null ? Long.valueOf(dnsTtl.trim()) : null;
+    }
+
+    /**
+     * A backend of a group, with the settings of the group
+     * 
+     * @param group
+     * @param backend the backend, as <code>host[:port]</code>
+     */
+    private HostConfig(HostConfig group, String backend) {
+        int colon = backend.lastIndexOf(':');
+
+        this.name = group.name;
+        this.host = colon > 0 ? backend.substring(0, colon) : backend;
+        this.port = colon > 0 ? Integer.parseInt(backend.substring(colon + 1)) : group.port;
+        this.maxConnections = group.maxConnections;
+        this.soTimeout = group.soTimeout;
+        this.connectionTimeout = group.connectionTimeout;
+        this.tcpNoDelay = group.tcpNoDelay;
+        this.sendBufferSize = group.sendBufferSize;
+        this.receiveBufferSize = group.receiveBufferSize;
+        this.staleChecking = group.staleChecking;
+        this.transport = group.transport;
+        this.maxResponseBytes = group.maxResponseBytes;
+        this.mirrors = Collections.emptyList();
+        this.hedgePercentile = null;
+        this.backends = Collections.emptyList();
+        this.healthCheck = null;
+        this.dnsTtl = group.dnsTtl;
+    }
+
+    /**
+     * @return String the name of the host in the <code>upstreamHosts</code> list
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return String the host name, lower case
+     */
+    String getHost() {
+        return host;
+    }
+
+    /**
+     * @return int the port, -1 for the default ports of HTTP and HTTPS
+     */
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * @return int the maximum number of connections to the host, 0 for the default
+     */
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return Integer the read timeout, null for the default
+     */
+    Integer getSoTimeout() {
+        return soTimeout;
+    }
+
+    /**
+     * @return Integer the connection timeout, null for the default
+     */
+    Integer getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * @return String the name of the upstream transport, null for the default
+     */
+    String getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return long the maximum size in bytes of the response bodies of the host, 0 for the default
+     */
+    long getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    /**
+     * @return List<String> the hosts serving the same resources as this one, as
+     *         <code>host[:port]</code>, empty if none
+     */
+    List<String> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * @return Double the first byte latency percentile after which a request is hedged, null for
+     *         the default
+     */
+    Double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return List<String> the servers the requests to this host are balanced on, as
+     *         <code>host[:port]</code>, empty if the host is not a group
+     */
+    List<String> getBackends() {
+        return backends;
+    }
+
+    /**
+     * @return List<HostConfig> the backends of this host, each with the settings of the host
+     */
+    List<HostConfig> getBackendConfigs() {
+        List<HostConfig> configs = new ArrayList<HostConfig>();
+        for (String backend : backends)
+            configs.add(new HostConfig(this, backend));
+
+        return configs;
+    }
+
+    /**
+     * @return String the path and query the backends are checked with, null for no active health
+     *         check
+     */
+    String getHealthCheck() {
+        return healthCheck;
+    }
+
+    /**
+     * @return Long the time in milliseconds the addresses of the host are cached for, null for the
+     *         default
+     */
+    Long getDnsTtl() {
+        return dnsTtl;
+    }
+
+    /**
+     * @return HttpConnectionParams the socket options set for the host, defaulting to nothing
+     */
+    HttpConnectionParams getConnectionParams() {
+        HttpConnectionParams params = new HttpConnectionParams();
+
+        if (soTimeout != null)
+            params.setSoTimeout(soTimeout);
+        if (connectionTimeout != null)
+            params.setConnectionTimeout(connectionTimeout);
+        if (tcpNoDelay != null)
+            params.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize != null)
+            params.setSendBufferSize(sendBufferSize);
+        if (receiveBufferSize != null)
+            params.setReceiveBufferSize(receiveBufferSize);
+        if (staleChecking != null)
+            params.setStaleCheckingEnabled(staleChecking);
+
+        return params;
+    }
+
+    private static List<String> list(Properties props, String key) {
+        List<String> list = new ArrayList<String>();
+        String value = props.getProperty(key);
+        if (value != null)
+            for (String element : value.split(","))
+                if (element.trim().length() > 0)
+                    list.add(element.trim().toLowerCase());
+
+        return Collections.unmodifiableList(list);
+    }
+
+    private static Integer integer(Properties props, String key) {
+        String value = props.getProperty(key);
+        return value != null ? Integer.valueOf(value.trim()) : null;
+    }
+
+    private static Boolean bool(Properties props, String key) {
+        String value = props.getProperty(key);
+        return value != null ? Boolean.valueOf(value.trim()) : null;
+    }
+}
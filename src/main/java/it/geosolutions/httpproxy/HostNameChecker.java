@@ -19,9 +19,10 @@
  */
 package it.geosolutions.httpproxy;
 
+import it.geosolutions.httpproxy.CallbackPhases.Phase;
+
 import java.io.IOException;
 import java.net.URL;
-import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -33,6 +34,7 @@ import org.apache.commons.httpclient.HttpMethod;
  * 
  * @author Tobia Di Pisa at tobia.dipisa@geo-solutions.it
  */
+@CallbackPhases(value = Phase.REQUEST, check = true)
 public class HostNameChecker implements ProxyCallback {
 
     ProxyConfig config;
@@ -51,16 +53,17 @@ public class HostNameChecker implements ProxyCallback {
      */
     public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
             throws IOException {
-        Set<String> hostNames = config.getHostnameWhitelist();
+        HostNameMatcher hostNames = config.getHostnameMatcher();
 
         // ////////////////////////////////
         // Check the whitelist of hosts
         // ////////////////////////////////
 
-        if (hostNames != null && hostNames.size() > 0) {
+        if (hostNames != null && !hostNames.isEmpty()) {
             String hostName = url.getHost();
+            int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
 
-            if (!hostNames.contains(hostName)) {
+            if (!hostNames.matches(hostName, port)) {
                 throw new HttpErrorException(403, "Host Name " + hostName
                         + " is not among the ones allowed for this proxy");
             }
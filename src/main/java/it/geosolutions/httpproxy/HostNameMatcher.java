@@ -0,0 +1,252 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Matches host names against the <code>hostnameWhitelist</code> entries, compiled once into a trie
+ * of the reversed name labels. An entry is either:
+ * <ul>
+ * <li>an exact name, such as <code>demo.geo-solutions.it</code></li>
+ * <li>a wildcard, such as <code>*.geo-solutions.it</code>, matching the subdomains at any depth
+ * but not the name itself</li>
+ * </ul>
+ * either optionally followed by a port, such as <code>localhost:8080</code>, restricting it to that
+ * port. Names are matched case insensitively.
+ * <p>
+ * A lookup walks one trie node per label of the host name and does not allocate: the labels are
+ * hashed and compared in place.
+ */
+final class HostNameMatcher {
+
+    private final static Logger LOGGER = Logger.getLogger(HostNameMatcher.class.toString());
+
+    private final Node root = new Node();
+
+    private final boolean empty;
+
+    /**
+     * @param entries the whitelist entries, blank ones are ignored, invalid ones never match
+     */
+    HostNameMatcher(Collection<String> entries) {
+        boolean empty = true;
+
+        for (String entry : entries) {
+            String name = entry.trim().toLowerCase();
+            if (name.length() == 0)
+                continue;
+
+            empty = false;
+
+            int port = -1;
+            int colon = name.lastIndexOf(':');
+            if ((colon > 0 && name.indexOf(':') == colon)
+                    || (name.startsWith("[") && name.lastIndexOf("]:") == colon - 1)) {
+                try {
+                    port = Integer.parseInt(name.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    if (LOGGER.isLoggable(Level.WARNING))
+                        LOGGER.log(Level.WARNING, "Invalid port in the hostnameWhitelist entry "
+                                + entry);
+                    continue;
+                }
+                name = name.substring(0, colon);
+            }
+
+            boolean wildcard = name.startsWith("*.");
+            if (wildcard)
+                name = name.substring(2);
+            if (name.endsWith("."))
+                name = name.substring(0, name.length() - 1);
+
+            add(name, wildcard, port);
+        }
+
+        this.empty = empty;
+    }
+
+    private void add(String name, boolean wildcard, int port) {
+        Node node = root;
+
+        int end = name.length();
+        while (end > 0) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            node = node.addChild(name.substring(start, end));
+            end = start - 1;
+        }
+
+        if (wildcard) {
+            if (port < 0)
+                node.wildcard = true;
+            else
+                node.wildcardPorts = append(node.wildcardPorts, port);
+        } else {
+            if (port < 0)
+                node.exact = true;
+            else
+                node.exactPorts = append(node.exactPorts, port);
+        }
+    }
+
+    /**
+     * @return boolean true if no entry is configured
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @param host the host name
+     * @param port the port, the default one of the protocol if the URL has none
+     * @return boolean true if an entry matches
+     */
+    boolean matches(String host, int port) {
+        int end = host.length();
+        if (end > 0 && host.charAt(end - 1) == '.')
+            end--;
+        if (end == 0)
+            return false;
+
+        Node node = root;
+        while (true) {
+            int start = host.lastIndexOf('.', end - 1) + 1;
+
+            // a label remains below this node
+            if (node != root && (node.wildcard || contains(node.wildcardPorts, port)))
+                return true;
+
+            node = node.getChild(host, start, end);
+            if (node == null)
+                return false;
+
+            if (start == 0)
+                return node.exact || contains(node.exactPorts, port);
+
+            end = start - 1;
+        }
+    }
+
+    private static boolean contains(int[] ports, int port) {
+        if (ports != null)
+            for (int p : ports)
+                if (p == port)
+                    return true;
+
+        return false;
+    }
+
+    private static int[] append(int[] ports, int port) {
+        if (contains(ports, port))
+            return ports;
+
+        int[] result = new int[ports != null ? ports.length + 1 : 1];
+        if (ports != null)
+            System.arraycopy(ports, 0, result, 0, ports.length);
+        result[result.length - 1] = port;
+        return result;
+    }
+
+    /**
+     * A label of the trie, its children in an open addressing table keyed by label.
+     */
+    private static final class Node {
+
+        private String[] labels = new String[2];
+
+        private Node[] children = new Node[2];
+
+        private int size;
+
+        boolean exact;
+
+        int[] exactPorts;
+
+        boolean wildcard;
+
+        int[] wildcardPorts;
+
+        Node addChild(String label) {
+            Node child = getChild(label, 0, label.length());
+            if (child != null)
+                return child;
+
+            if ((size + 1) * 2 > labels.length)
+                resize(labels.length * 2);
+
+            child = new Node();
+            put(label, child);
+            size++;
+            return child;
+        }
+
+        /**
+         * @param host
+         * @param start the first character of the label
+         * @param end after the last character of the label
+         * @return Node the child of the given label, null if none
+         */
+        Node getChild(String host, int start, int end) {
+            int len = end - start;
+            int mask = labels.length - 1;
+
+            for (int i = hash(host, start, end) & mask;; i = (i + 1) & mask) {
+                String label = labels[i];
+                if (label == null)
+                    return null;
+
+                if (label.length() == len && host.regionMatches(true, start, label, 0, len))
+                    return children[i];
+            }
+        }
+
+        private void put(String label, Node child) {
+            int mask = labels.length - 1;
+
+            int i = hash(label, 0, label.length()) & mask;
+            while (labels[i] != null)
+                i = (i + 1) & mask;
+
+            labels[i] = label;
+            children[i] = child;
+        }
+
+        private void resize(int capacity) {
+            String[] oldLabels = labels;
+            Node[] oldChildren = children;
+
+            labels = new String[capacity];
+            children = new Node[capacity];
+            for (int i = 0; i < oldLabels.length; i++)
+                if (oldLabels[i] != null)
+                    put(oldLabels[i], oldChildren[i]);
+        }
+
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++)
+                h = 31 * h + Character.toLowerCase(s.charAt(i));
+
+            return h ^ (h >>> 16);
+        }
+    }
+}
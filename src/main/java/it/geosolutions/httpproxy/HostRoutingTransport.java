@@ -0,0 +1,166 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+
+/**
+ * The {@link UpstreamTransport} executing each request with the transport of its remote host: the
+ * one set by <code>upstream.&lt;name&gt;.transport</code>, or else the
+ * <code>upstreamTransport</code> one.
+ * <p>
+ * The {@link RequestTimer} of the method is bound to the executing thread, so that the transports
+ * can report the pool wait and the connect time, and is given the time to the response headers.
+ */
+final class HostRoutingTransport implements UpstreamTransport {
+
+    private final static Logger LOGGER = Logger.getLogger(HostRoutingTransport.class.toString());
+
+    private final CommonsHttpTransport commons;
+
+    private final UpstreamTransport defaultTransport;
+
+    /**
+     * The transports of the remote hosts having their own, by host and port
+     */
+    private final Map<String, UpstreamTransport> hostTransports = new HashMap<String, UpstreamTransport>();
+
+    private final Set<UpstreamTransport> transports = new LinkedHashSet<UpstreamTransport>();
+
+    /**
+     * @param proxyConfig
+     */
+    HostRoutingTransport(ProxyConfig proxyConfig) {
+        commons = new CommonsHttpTransport(proxyConfig);
+        transports.add(commons);
+
+        defaultTransport = newTransport(proxyConfig.getUpstreamTransport(), proxyConfig, null,
+                commons);
+        transports.add(defaultTransport);
+
+        // ////////////////////////////////////////////////////
+        // The commons transport already has the settings of
+        // every host, the others need an instance per host
+        // ////////////////////////////////////////////////////
+
+        for (HostConfig host : proxyConfig.getUpstreamHosts()) {
+            String name = host.getTransport() != null ? host.getTransport() : proxyConfig
+                    .getUpstreamTransport();
+
+            UpstreamTransport transport = newTransport(name, proxyConfig, host, commons);
+            transports.add(transport);
+
+            // the backends of a group share its transport
+            List<HostConfig> targets = new ArrayList<HostConfig>();
+            targets.add(host);
+            targets.addAll(host.getBackendConfigs());
+
+            for (HostConfig target : targets) {
+                int[] ports = target.getPort() > 0 ? new int[] { target.getPort() } : new int[] {
+                        80, 443 };
+                for (int port : ports)
+                    hostTransports.put(hostKey(target.getHost(), port), transport);
+            }
+        }
+    }
+
+    public int execute(UpstreamMethod method, UsernamePasswordCredentials credentials)
+            throws IOException {
+        UpstreamTransport transport = defaultTransport;
+
+        if (!hostTransports.isEmpty()) {
+            UpstreamTransport host = hostTransports.get(hostKey(method.getURI()));
+            if (host != null)
+                transport = host;
+        }
+
+        RequestTimer timer = method.getTimer();
+        if (timer == null)
+            return transport.execute(method, credentials);
+
+        long started = System.nanoTime();
+        timer.attach();
+        try {
+            return transport.execute(method, credentials);
+        } finally {
+            RequestTimer.detach();
+            timer.since(RequestTimer.Stage.FIRST_BYTE, started);
+        }
+    }
+
+    /**
+     * @return UpstreamConnectionManager the connection pool of the commons transport
+     */
+    UpstreamConnectionManager getConnectionManager() {
+        return commons.getConnectionManager();
+    }
+
+    public void shutdown() {
+        for (UpstreamTransport transport : transports)
+            transport.shutdown();
+    }
+
+    private static UpstreamTransport newTransport(String name, ProxyConfig proxyConfig,
+            HostConfig host, UpstreamTransport commons) {
+        if (JDK.equals(name)) {
+            try {
+                return new JdkHttpTransport(proxyConfig, host);
+            } catch (UnsupportedOperationException e) {
+                if (LOGGER.isLoggable(Level.WARNING))
+                    LOGGER.log(Level.WARNING, "The JDK HTTP client needs Java 11,"
+                            + " using the commons one for the upstream requests");
+            }
+        } else if (!COMMONS.equals(name) && LOGGER.isLoggable(Level.WARNING)) {
+            LOGGER.log(Level.WARNING, "Unknown upstream transport " + name
+                    + ", using the commons one");
+        }
+
+        return commons;
+    }
+
+    /**
+     * @param uri
+     * @return String the lower case host and port of the URI, the default port of its scheme if
+     *         it has none
+     * @throws URIException
+     */
+    static String hostKey(URI uri) throws URIException {
+        int port = uri.getPort() > 0 ? uri.getPort()
+                : "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+
+        return hostKey(uri.getHost(), port);
+    }
+
+    static String hostKey(String host, int port) {
+        return host.toLowerCase() + ":" + port;
+    }
+}
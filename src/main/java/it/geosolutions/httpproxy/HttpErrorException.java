@@ -37,11 +37,24 @@ public class HttpErrorException extends IOException {
 
     private String message;
 
+    private long retryAfter;
+
     public HttpErrorException(int code, String message) {
         this.code = code;
         this.message = message;
     }
 
+    /**
+     * @param code
+     * @param message
+     * @param retryAfter the seconds after which the client may retry, sent as
+     *        <code>Retry-After</code>
+     */
+    public HttpErrorException(int code, String message, long retryAfter) {
+        this(code, message);
+        this.retryAfter = retryAfter;
+    }
+
     /**
      * The response status code
      * 
@@ -57,4 +70,11 @@ public class HttpErrorException extends IOException {
     public String getMessage() {
         return message;
     }
+
+    /**
+     * The seconds after which the client may retry, 0 if not known
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
 }
@@ -0,0 +1,351 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.BasicScheme;
+import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * The {@link UpstreamTransport} built on the JDK HTTP client (Java 11): HTTP/2 where the remote
+ * server supports it, so that concurrent requests to a host are multiplexed over a single
+ * connection, HTTP/1.1 otherwise.
+ * <p>
+ * The proxy is built for older JVMs, so the client is used through reflection.
+ */
+final class JdkHttpTransport implements UpstreamTransport {
+
+    private final static Logger LOGGER = Logger.getLogger(JdkHttpTransport.class.toString());
+
+    /**
+     * The headers the JDK client sets on its own or that HTTP/2 forbids
+     */
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "content-length", "expect", "host", "upgrade", "keep-alive",
+            "proxy-connection", "te", "transfer-encoding"));
+
+    private final Object client;
+
+    private final int timeout;
+
+    private final Class<?> supplierClass;
+
+    private final Method ofMillis;
+
+    private final Method sendAsync;
+
+    private final Method newRequest;
+
+    private final Method requestHeader;
+
+    private final Method requestTimeout;
+
+    private final Method requestMethod;
+
+    private final Method buildRequest;
+
+    private final Method noBody;
+
+    private final Method ofInputStream;
+
+    private final Method fromPublisher;
+
+    private final Object bodyHandler;
+
+    private final Method statusCode;
+
+    private final Method version;
+
+    private final Method headers;
+
+    private final Method headersMap;
+
+    private final Method body;
+
+    /**
+     * @param proxyConfig
+     * @param host the remote host the transport is used for, null for the default transport
+     * @throws UnsupportedOperationException if the running JVM has no JDK HTTP client
+     */
+    JdkHttpTransport(ProxyConfig proxyConfig, HostConfig host) {
+        int connectionTimeout = proxyConfig.getConnectionTimeout();
+        int soTimeout = proxyConfig.getSoTimeout();
+        if (host != null && host.getConnectionTimeout() != null)
+            connectionTimeout = host.getConnectionTimeout();
+        if (host != null && host.getSoTimeout() != null)
+            soTimeout = host.getSoTimeout();
+
+        this.timeout = soTimeout;
+
+        try {
+            Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+            Class<?> clientBuilderClass = Class.forName("java.net.http.HttpClient$Builder");
+            Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+            Class<?> redirectClass = Class.forName("java.net.http.HttpClient$Redirect");
+            Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+            Class<?> requestBuilderClass = Class.forName("java.net.http.HttpRequest$Builder");
+            Class<?> publishersClass = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+            Class<?> publisherClass = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+            Class<?> handlersClass = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+            Class<?> handlerClass = Class.forName("java.net.http.HttpResponse$BodyHandler");
+            Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+            Class<?> headersClass = Class.forName("java.net.http.HttpHeaders");
+
+            Class<?> durationClass = Class.forName("java.time.Duration");
+            ofMillis = durationClass.getMethod("ofMillis", long.class);
+            supplierClass = Class.forName("java.util.function.Supplier");
+
+            // ////////////////////////////////////////////////
+            // One client per transport: HTTP/2 when possible,
+            // redirects are relayed to the proxy client
+            // ////////////////////////////////////////////////
+
+            Object builder = clientClass.getMethod("newBuilder").invoke(null);
+            builder = clientBuilderClass.getMethod("version", versionClass).invoke(builder,
+                    versionClass.getField("HTTP_2").get(null));
+            builder = clientBuilderClass.getMethod("followRedirects", redirectClass).invoke(
+                    builder, redirectClass.getField("NEVER").get(null));
+            if (connectionTimeout > 0)
+                builder = clientBuilderClass.getMethod("connectTimeout", durationClass).invoke(
+                        builder, duration(connectionTimeout));
+            client = clientBuilderClass.getMethod("build").invoke(builder);
+
+            sendAsync = clientClass.getMethod("sendAsync", requestClass, handlerClass);
+
+            newRequest = requestClass.getMethod("newBuilder", URI.class);
+            requestHeader = requestBuilderClass.getMethod("header", String.class, String.class);
+            requestTimeout = requestBuilderClass.getMethod("timeout", durationClass);
+            requestMethod = requestBuilderClass.getMethod("method", String.class, publisherClass);
+            buildRequest = requestBuilderClass.getMethod("build");
+
+            noBody = publishersClass.getMethod("noBody");
+            ofInputStream = publishersClass.getMethod("ofInputStream", supplierClass);
+            fromPublisher = publishersClass.getMethod("fromPublisher",
+                    Class.forName("java.util.concurrent.Flow$Publisher"), long.class);
+
+            bodyHandler = handlersClass.getMethod("ofInputStream").invoke(null);
+
+            statusCode = responseClass.getMethod("statusCode");
+            version = responseClass.getMethod("version");
+            headers = responseClass.getMethod("headers");
+            headersMap = headersClass.getMethod("map");
+            body = responseClass.getMethod("body");
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("The JDK HTTP client needs Java 11", e);
+        }
+    }
+
+    public int execute(UpstreamMethod method, UsernamePasswordCredentials credentials)
+            throws IOException {
+        Object request = newRequest(method, credentials);
+
+        final Future<?> future = (Future<?>) invoke(sendAsync, client, request, bodyHandler);
+        method.setExchange(new Closeable() {
+            public void close() {
+                future.cancel(true);
+            }
+        });
+
+        Object response;
+        try {
+            response = future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the remote response");
+        } catch (CancellationException e) {
+            throw new IOException("The remote request has been aborted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+
+        // ////////////////////////////////////////
+        // Hand the response over to the method
+        // ////////////////////////////////////////
+
+        int status = (Integer) invoke(statusCode, response);
+
+        String protocol = "HTTP_2".equals(String.valueOf(invoke(version, response))) ? "HTTP/2.0"
+                : "HTTP/1.1";
+        String reason = HttpStatus.getStatusText(status);
+
+        List<Header> responseHeaders = new ArrayList<Header>();
+        Map<?, ?> map = (Map<?, ?>) invoke(headersMap, invoke(headers, response));
+        for (Map.Entry<?, ?> header : map.entrySet())
+            for (Object value : (List<?>) header.getValue())
+                responseHeaders.add(new Header((String) header.getKey(), (String) value));
+
+        method.setResponse(protocol + " " + status + (reason != null ? " " + reason : ""),
+                responseHeaders.toArray(new Header[responseHeaders.size()]),
+                (InputStream) invoke(body, response));
+
+        return status;
+    }
+
+    public void shutdown() {
+        // the client connections are closed once idle, the client has nothing to release before
+        // Java 21
+    }
+
+    private Object newRequest(UpstreamMethod method, UsernamePasswordCredentials credentials)
+            throws IOException {
+        Object builder = invoke(newRequest, null, URI.create(method.getURI().getEscapedURI()));
+
+        for (Header header : method.getRequestHeaders()) {
+            if (RESTRICTED_HEADERS.contains(header.getName().toLowerCase()))
+                continue;
+
+            try {
+                builder = requestHeader.invoke(builder, header.getName(), header.getValue());
+            } catch (InvocationTargetException e) {
+                // some JDK versions refuse more headers, such as Via
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.log(Level.FINE, "Header not forwarded: " + header.getName(),
+                            e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // ////////////////////////////////////////////////////
+        // Credentials are sent preemptively, the JDK client
+        // only supports them for the whole client
+        // ////////////////////////////////////////////////////
+
+        if (credentials != null && method.getRequestHeader("Authorization") == null)
+            builder = invoke(requestHeader, builder, "Authorization", BasicScheme
+                    .authenticate(credentials, "ISO-8859-1"));
+
+        if (timeout > 0)
+            builder = invoke(requestTimeout, builder, duration(timeout));
+
+        builder = invoke(requestMethod, builder, method.getName(), bodyPublisher(method
+                .getRequestEntity()));
+
+        return invoke(buildRequest, builder);
+    }
+
+    /**
+     * @param entity the request body, null if none
+     * @return Object the publisher streaming the body, with its length when known
+     */
+    private Object bodyPublisher(final RequestEntity entity) throws IOException {
+        long length = entity != null ? entity.getContentLength() : 0;
+        if (entity == null || length == 0)
+            return invoke(noBody, null);
+
+        final InputStream in = entity instanceof InputStreamRequestEntity ? ((InputStreamRequestEntity) entity)
+                .getContent() : pipe(entity);
+
+        Object supplier = Proxy.newProxyInstance(JdkHttpTransport.class.getClassLoader(),
+                new Class<?>[] { supplierClass }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("get".equals(method.getName()))
+                            return in;
+                        if ("hashCode".equals(method.getName()))
+                            return System.identityHashCode(proxy);
+                        if ("equals".equals(method.getName()))
+                            return proxy == args[0];
+                        return "RequestBody";
+                    }
+                });
+
+        Object publisher = invoke(ofInputStream, null, supplier);
+        return length > 0 ? invoke(fromPublisher, null, publisher, length) : publisher;
+    }
+
+    /**
+     * Streams an entity that can only write itself, such as a re-encoded multipart body, from a
+     * thread of its own.
+     */
+    private static InputStream pipe(final RequestEntity entity) throws IOException {
+        final PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out, 8192);
+
+        Thread writer = new Thread("proxy-request-body") {
+            @Override
+            public void run() {
+                try {
+                    entity.writeRequest(out);
+                } catch (IOException e) {
+                    if (LOGGER.isLoggable(Level.SEVERE))
+                        LOGGER.log(Level.SEVERE, "Error writing the request body ", e);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // the reader gets the end of the body anyway
+                    }
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        return in;
+    }
+
+    private Object duration(long millis) throws IOException {
+        return invoke(ofMillis, null, millis);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) throws IOException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
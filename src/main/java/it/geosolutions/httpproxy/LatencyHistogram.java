@@ -0,0 +1,139 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram recorded without locks: each bucket is an atomic counter, so concurrent
+ * requests only contend on the buckets they hit.
+ * <p>
+ * Latencies are kept in microseconds in log-linear buckets, every power of two split into
+ * <code>SUB_BUCKETS</code> linear ones, which bounds the error of the reported percentiles to
+ * about 6% from one microsecond to several hours.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Up to 2^40 microseconds, about 12 days
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the latency in nanoseconds, ignored if negative
+     */
+    void record(long nanos) {
+        if (nanos < 0)
+            return;
+
+        long micros = nanos / 1000;
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long current;
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros))
+            ;
+    }
+
+    /**
+     * @return long the number of recorded latencies
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return double the sum of the recorded latencies, in seconds
+     */
+    double getSum() {
+        return sum.get() / 1e6;
+    }
+
+    /**
+     * @return double the highest recorded latency, in seconds
+     */
+    double getMax() {
+        return max.get() / 1e6;
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return double the latency, in seconds, below which the given share of the recorded latencies
+     *         fall, 0 if none is recorded
+     */
+    double getPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max.get()) / 1e6;
+        }
+
+        // buckets updated while scanning
+        return max.get() / 1e6;
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param index
+     * @return long the highest latency, in microseconds, counted in the bucket
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
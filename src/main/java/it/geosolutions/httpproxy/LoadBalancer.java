@@ -0,0 +1,262 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Balances the requests to a group of backends serving the same resources.
+ * <p>
+ * A request goes to the available backend with the fewest requests outstanding, their latency
+ * breaking the ties: a peak EWMA of the time to the response headers, following a slower response
+ * at once and a faster one over a few seconds, decaying while the backend is not used so that it
+ * gets probed again. A backend failing <code>ejectFailures</code> requests in a row, or its health
+ * check, is ejected; once back, it takes a growing share of the requests during the slow start,
+ * as if it had fewer outstanding.
+ * <p>
+ * The times are <code>System.nanoTime()</code> ones.
+ */
+final class LoadBalancer {
+
+    /**
+     * The time constant of the latency average
+     */
+    static final double DECAY = 10e9;
+
+    /**
+     * The latency counted for a failed request, if it failed faster, so that a backend failing
+     * fast does not attract the requests
+     */
+    static final long FAILURE_LATENCY = 1000000000L;
+
+    /**
+     * The share of the requests a backend is given at the start of its slow start
+     */
+    private static final double MIN_WEIGHT = 0.1;
+
+    private final Backend[] backends;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param authorities the backends, as <code>host[:port]</code>
+     */
+    LoadBalancer(List<String> authorities) {
+        backends = new Backend[authorities.size()];
+        for (int i = 0; i < backends.length; i++)
+            backends[i] = new Backend(authorities.get(i));
+    }
+
+    /**
+     * @return Backend[] the backends of the group
+     */
+    Backend[] getBackends() {
+        return backends;
+    }
+
+    /**
+     * Chooses the backend of a request, counting it outstanding until {@link #complete}. If no
+     * backend is available, the requests are balanced on all of them rather than rejected.
+     * 
+     * @param now
+     * @param slowStart the slow start duration in nanoseconds
+     * @return Backend
+     */
+    Backend acquire(long now, long slowStart) {
+        Backend best = choose(now, slowStart, true);
+        if (best == null)
+            best = choose(now, slowStart, false);
+
+        best.outstanding.incrementAndGet();
+        return best;
+    }
+
+    private Backend choose(long now, long slowStart, boolean available) {
+        // start from a different backend each time, so that ties are spread
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % backends.length;
+
+        Backend best = null;
+        double bestLoad = 0;
+        for (int i = 0; i < backends.length; i++) {
+            Backend backend = backends[(start + i) % backends.length];
+            if (available && !backend.isAvailable(now))
+                continue;
+
+            double load = (backend.outstanding.get() + 1) / backend.weight(now, slowStart);
+            if (best == null || load < bestLoad || load == bestLoad
+                    && backend.getLatency(now) < best.getLatency(now)) {
+                best = backend;
+                bestLoad = load;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Reports a request to a backend as finished.
+     * 
+     * @param backend
+     * @param latency the time to the response headers, in nanoseconds
+     * @param failed true if the request failed, null if it was aborted
+     * @param now
+     * @param ejectFailures the consecutive failures ejecting the backend, 0 to never eject it
+     * @param ejectTime the ejection duration in nanoseconds
+     * @return boolean true if the backend was ejected by this failure
+     */
+    boolean complete(Backend backend, long latency, Boolean failed, long now, int ejectFailures,
+            long ejectTime) {
+        backend.outstanding.decrementAndGet();
+        if (failed == null)
+            return false;
+
+        if (!failed) {
+            backend.observe(latency, now);
+            if (backend.failures.get() != 0)
+                backend.failures.set(0);
+            return false;
+        }
+
+        backend.observe(Math.max(latency, FAILURE_LATENCY), now);
+        if (ejectFailures <= 0 || backend.failures.incrementAndGet() != ejectFailures)
+            return false;
+
+        backend.failures.set(0);
+        backend.eject(now, ejectTime);
+        return true;
+    }
+
+    /**
+     * A server of the group.
+     */
+    static final class Backend {
+
+        final String authority;
+
+        final String host;
+
+        final int port;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private double latency;
+
+        private long stamp;
+
+        private volatile long ejectedAt;
+
+        private volatile long ejectTime;
+
+        /**
+         * Whether the last health check failed
+         */
+        private volatile boolean down;
+
+        private volatile boolean warming;
+
+        private volatile long recoveredAt;
+
+        Backend(String authority) {
+            int colon = authority.lastIndexOf(':');
+
+            this.authority = authority;
+            this.host = colon > 0 ? authority.substring(0, colon) : authority;
+            this.port = colon > 0 ? Integer.parseInt(authority.substring(colon + 1)) : -1;
+        }
+
+        /**
+         * @param now
+         * @return boolean true if the backend is neither ejected nor failing its health check
+         */
+        boolean isAvailable(long now) {
+            return !down && (ejectTime == 0 || now - ejectedAt >= ejectTime);
+        }
+
+        /**
+         * @return int the requests outstanding
+         */
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @param now
+         * @return double the peak EWMA latency in nanoseconds, decayed since the last response
+         */
+        synchronized double getLatency(long now) {
+            return latency * Math.exp(-Math.max(0, now - stamp) / DECAY);
+        }
+
+        /**
+         * @param now
+         * @param slowStart
+         * @return double the share of the requests given to the backend, below 1 during its slow
+         *         start
+         */
+        double weight(long now, long slowStart) {
+            if (!warming)
+                return 1;
+
+            long elapsed = now - recoveredAt;
+            if (elapsed >= slowStart) {
+                warming = false;
+                return 1;
+            }
+
+            return Math.max(MIN_WEIGHT, (double) Math.max(0, elapsed) / slowStart);
+        }
+
+        /**
+         * Sets the result of the health check of the backend
+         * 
+         * @param healthy
+         * @param now
+         * @return boolean true if the backend was changed down or up by this check
+         */
+        boolean checked(boolean healthy, long now) {
+            if (healthy == !down)
+                return false;
+
+            if (healthy) {
+                failures.set(0);
+                recoveredAt = now;
+                warming = true;
+            }
+            down = !healthy;
+            return true;
+        }
+
+        private void eject(long now, long time) {
+            ejectedAt = now;
+            ejectTime = time;
+            recoveredAt = now + time;
+            warming = true;
+        }
+
+        private synchronized void observe(long sample, long now) {
+            double w = Math.exp(-Math.max(0, now - stamp) / DECAY);
+            latency = sample > latency ? sample : latency * w + sample * (1 - w);
+            stamp = now;
+        }
+    }
+}
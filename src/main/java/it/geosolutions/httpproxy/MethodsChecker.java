@@ -19,6 +19,8 @@
  */
 package it.geosolutions.httpproxy;
 
+import it.geosolutions.httpproxy.CallbackPhases.Phase;
+
 import java.io.IOException;
 import java.net.URL;
 import java.util.Set;
@@ -33,6 +35,7 @@ import org.apache.commons.httpclient.HttpMethod;
  * 
  * @author Tobia Di Pisa at tobia.dipisa@geo-solutions.it
  */
+@CallbackPhases(value = Phase.REQUEST, check = true)
 public class MethodsChecker implements ProxyCallback {
 
     ProxyConfig config;
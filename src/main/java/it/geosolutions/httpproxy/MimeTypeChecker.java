@@ -19,6 +19,8 @@
  */
 package it.geosolutions.httpproxy;
 
+import it.geosolutions.httpproxy.CallbackPhases.Phase;
+
 import java.io.IOException;
 import java.net.URL;
 import java.util.Set;
@@ -26,6 +28,7 @@ import java.util.Set;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
 
 /**
@@ -34,8 +37,16 @@ import org.apache.commons.httpclient.HttpMethod;
  * @author Andrea Aime - GeoSolutions
  * 
  */
+@CallbackPhases(value = Phase.REMOTE_RESPONSE, check = true)
 public class MimeTypeChecker implements ProxyCallback {
 
+    /**
+     * The maximum size of the preamble and headers of the first part of multiple ranges
+     */
+    private static final int PART_HEADERS_BYTES = 4096;
+
+    private static final byte[] END_OF_HEADERS = { '\r', '\n', '\r', '\n' };
+
     ProxyConfig config;
 
     /**
@@ -63,13 +74,36 @@ public class MimeTypeChecker implements ProxyCallback {
         Set<String> mimeTypes = config.getMimetypeWhitelist();
 
         if (mimeTypes != null && mimeTypes.size() > 0) {
-            String contentType = method.getResponseHeader("Content-type").getValue();
+            Header contentType = method.getResponseHeader("Content-type");
+
+            if (contentType == null) {
+                // responses without body need no type
+                Header contentLength = method.getResponseHeader("Content-Length");
+                int status = method.getStatusCode();
+                if (status == HttpServletResponse.SC_NO_CONTENT
+                        || status == HttpServletResponse.SC_NOT_MODIFIED
+                        || status == HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE
+                        || (contentLength != null && "0".equals(contentLength.getValue().trim())))
+                    return;
+
+                throw new HttpErrorException(403,
+                        "Responses without Content-type are not allowed for this proxy");
+            }
 
             // //////////////////////////////////
             // Trim off extraneous information
             // //////////////////////////////////
 
-            String firstType = contentType.split(";")[0];
+            String firstType = Utils.mimeType(contentType.getValue());
+
+            // ///////////////////////////////////////////////
+            // Multiple ranges are checked against the type
+            // of the parts, the one of the whole body
+            // ///////////////////////////////////////////////
+
+            if (Utils.MULTIPART_BYTERANGES.equalsIgnoreCase(firstType)
+                    && !mimeTypes.contains(firstType) && method instanceof UpstreamMethod)
+                firstType = getPartType((UpstreamMethod) method);
 
             if (!mimeTypes.contains(firstType)) {
                 throw new HttpErrorException(403, "Content-type " + firstType
@@ -78,6 +112,29 @@ public class MimeTypeChecker implements ProxyCallback {
         }
     }
 
+    /**
+     * @param method
+     * @return String the Content-type of the first part of a <code>multipart/byteranges</code>
+     *         body, null if not found
+     * @throws IOException
+     */
+    private static String getPartType(UpstreamMethod method) throws IOException {
+        String head = new String(method.peekResponseBody(PART_HEADERS_BYTES, END_OF_HEADERS),
+                "ISO-8859-1");
+
+        int boundary = head.indexOf("--");
+        if (boundary < 0)
+            return null;
+
+        for (String line : head.substring(boundary).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-type"))
+                return Utils.mimeType(line.substring(colon + 1));
+        }
+
+        return null;
+    }
+
     /*
      * (non-Javadoc)
      * 
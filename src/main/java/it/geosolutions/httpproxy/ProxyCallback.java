@@ -29,6 +29,10 @@ import org.apache.commons.httpclient.HttpMethod;
 
 /**
  * A pluggable callback that can perform checks or alter the request.
+ * <p>
+ * Callbacks are listed in the <code>proxyCallbacks</code> property or registered as service
+ * providers. {@link CallbackPhases} declares the phases a callback acts in, and
+ * {@link ProxyContext#current()} gives the state of the request across its phases.
  * 
  * @author Andrea Aime - GeoSolutions
  */
@@ -19,11 +19,22 @@
  */
 package it.geosolutions.httpproxy;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +42,11 @@ import javax.servlet.ServletContext;
 
 /**
  * ProxyConfig class to define the proxy configuration.
+ * <p>
+ * The properties file is parsed once into an immutable {@link Snapshot} published through a volatile
+ * reference, so that reading the configuration on the request path is a plain field read. When the
+ * properties file lives on the file system it is checked periodically and a new snapshot is swapped in
+ * as soon as it changes.
  * 
  * @author Tobia Di Pisa at tobia.dipisa@geo-solutions.it
  */
@@ -39,29 +55,15 @@ final class ProxyConfig {
     private final static Logger LOGGER = Logger.getLogger(ProxyConfig.class.toString());
 
     /**
-     * A list of regular expressions describing hostnames the proxy is permitted to forward to
+     * The request types read from the <code>reqtypeWhitelist.*</code> properties, in matching order
      */
-    private Set<String> hostnameWhitelist = new HashSet<String>();
+    static final String[] REQTYPE_NAMES = { "capabilities", "featureinfo", "csw", "geostore",
+            "generic" };
 
     /**
-     * A list of regular expressions describing MIMETypes the proxy is permitted to forward
+     * The current configuration, replaced as a whole when the properties file changes
      */
-    private Set<String> mimetypeWhitelist = new HashSet<String>();
-
-    /**
-     * A list of regular expressions describing Request Types the proxy is permitted to forward
-     */
-    private Set<String> reqtypeWhitelist = new HashSet<String>();
-
-    /**
-     * A list of regular expressions describing request METHODS the proxy is permitted to forward
-     */
-    private Set<String> methodsWhitelist = new HashSet<String>();
-
-    /**
-     * A list of regular expressions describing request HOSTS the proxy is permitted to forward
-     */
-    private Set<String> hostsWhitelist = new HashSet<String>();
+    private volatile Snapshot snapshot;
 
     /**
      * The servlet context
@@ -74,135 +76,117 @@ final class ProxyConfig {
     private String propertiesFilePath;
 
     /**
-     * The request timeout
-     */
-    private int soTimeout = 30000;
-
-    /**
-     * The connection timeout
-     */
-    private int connectionTimeout = 30000;
-
-    /**
-     * The maximum total connections available
+     * The timer checking the properties file for changes, null if hot reload is disabled
      */
-    private int maxTotalConnections = 60;
-
-    /**
-     * The maximum connections available per host
-     */
-    private int defaultMaxConnectionsPerHost = 6;
-    
-    private int defaultStreamByteSize = 1024;
+    private Timer watcher;
 
 	/**
      * @param context
      * @param propertiesFilePath
+     * @throws IllegalArgumentException if a numeric property is malformed
      */
     public ProxyConfig(ServletContext context, String propertiesFilePath) {
         this.context = context;
         this.propertiesFilePath = propertiesFilePath;
 
         configProxy();
+        startWatcher();
     }
 
     /**
-     * Provide the proxy configuration
+     * A configuration read from the given properties, without hot reload.
      * 
-     * @throws IOException
+     * @param props
+     * @throws IllegalArgumentException if a numeric property is malformed
+     */
+    ProxyConfig(Properties props) {
+        this.snapshot = new Snapshot(props);
+    }
+
+    /**
+     * Provide the proxy configuration
      */
     private void configProxy() {
         Properties props = propertiesLoader();
 
         // ////////////////////////////////////////////////////////////
-        // Load proxy configuration white lists from properties file
+        // Load proxy configuration from properties file, falling
+        // back on the defaults if it cannot be read
         // ////////////////////////////////////////////////////////////
 
-        if (props != null) {
-            Set<String> p = Utils.parseWhiteList(props.getProperty("hostnameWhitelist"));
-            if (p != null)
-                this.setHostnameWhitelist(p);
+        this.snapshot = new Snapshot(props != null ? props : new Properties());
+    }
 
-            p = Utils.parseWhiteList(props.getProperty("mimetypeWhitelist"));
-            if (p != null)
-                this.setMimetypeWhitelist(p);
+    /**
+     * Re-read the properties file and publish the new configuration. The current one is kept if the
+     * file cannot be read or holds a malformed value.
+     */
+    void reload() {
+        Properties props = propertiesLoader();
+        if (props != null)
+            reload(props);
+    }
 
-            p = Utils.parseWhiteList(props.getProperty("methodsWhitelist"));
-            if (p != null)
-                this.setMethodsWhitelist(p);
+    /**
+     * Publish the configuration read from the given properties, keeping the current one if they hold
+     * a malformed value.
+     * 
+     * @param props
+     */
+    void reload(Properties props) {
+        Snapshot snapshot;
+        try {
+            snapshot = new Snapshot(props);
+        } catch (IllegalArgumentException e) {
+            if (LOGGER.isLoggable(Level.SEVERE))
+                LOGGER.log(Level.SEVERE, "Error parsing the proxy properties file, keeping the"
+                        + " current configuration", e);
+            return;
+        }
 
-            p = Utils.parseWhiteList(props.getProperty("hostsWhitelist"));
-            if (p != null)
-                this.setHostsWhitelist(p);
+        this.snapshot = snapshot;
 
-            // ////////////////////////////////////////
-            // Read various request type properties
-            // ////////////////////////////////////////
+        if (LOGGER.isLoggable(Level.INFO))
+            LOGGER.log(Level.INFO, "Proxy configuration reloaded from " + propertiesFilePath);
+    }
 
-            Set<String> rt = new HashSet<String>();
-            String s = props.getProperty("reqtypeWhitelist.capabilities");
-            if (s != null)
-                rt.add(s);
-
-            s = props.getProperty("reqtypeWhitelist.geostore");
-            if (s != null)
-                rt.add(s);
-
-            s = props.getProperty("reqtypeWhitelist.csw");
-            if (s != null)
-                rt.add(s);
-            
-            s = props.getProperty("reqtypeWhitelist.featureinfo");
-            if (s != null)
-                rt.add(s);
-            
-            s = props.getProperty("reqtypeWhitelist.generic");
-            if (s != null)
-                rt.add(s);
-
-            this.setReqtypeWhitelist(rt);
+    /**
+     * Start watching the properties file for changes, if it lives on the file system and hot reload is
+     * enabled.
+     */
+    private void startWatcher() {
+        long interval = snapshot.configReloadInterval;
+        if (interval <= 0)
+            return;
+
+        URL resource = ProxyConfig.class.getResource(propertiesFilePath);
+        if (resource == null || !"file".equals(resource.getProtocol())) {
+            if (LOGGER.isLoggable(Level.INFO))
+                LOGGER.log(Level.INFO, "The properties file is not on the file system,"
+                        + " configuration hot reload is disabled");
+            return;
+        }
 
-            try {
-                // /////////////////////////////////////////////////
-                // Load byte size configuration from
-                // properties file.
-                // /////////////////////////////////////////////////
-            	
-                String bytesSize = props.getProperty("defaultStreamByteSize");
-                this.setDefaultStreamByteSize(bytesSize != null ? Integer.parseInt(bytesSize) : 
-                	this.defaultStreamByteSize);
-                
-                // /////////////////////////////////////////////////
-                // Load connection manager configuration from
-                // properties file.
-                // /////////////////////////////////////////////////
-                
-                String timeout = props.getProperty("timeout");
-                this.setSoTimeout(timeout != null ? Integer.parseInt(timeout) : this.soTimeout);
-
-                String conn_timeout = props.getProperty("connection_timeout");
-                this.setConnectionTimeout(conn_timeout != null ? Integer.parseInt(conn_timeout)
-                        : this.connectionTimeout);
-
-                String max_conn = props.getProperty("max_total_connections");
-                this.setMaxTotalConnections(max_conn != null ? Integer.parseInt(max_conn)
-                        : this.maxTotalConnections);
-
-                String def_conn_host = props.getProperty("default_max_connections_per_host");
-                this.setMaxTotalConnections(def_conn_host != null ? Integer.parseInt(def_conn_host)
-                        : this.defaultMaxConnectionsPerHost);
+        File file;
+        try {
+            file = new File(resource.toURI());
+        } catch (URISyntaxException e) {
+            if (LOGGER.isLoggable(Level.SEVERE))
+                LOGGER.log(Level.SEVERE, "Unable to watch the proxy properties file ", e);
+            return;
+        }
 
-            } catch (NumberFormatException e) {
-                if (LOGGER.isLoggable(Level.SEVERE))
-                    LOGGER.log(Level.SEVERE,
-                            "Error parsing the proxy properties file using default", e);
-
-                this.setSoTimeout(this.soTimeout);
-                this.setConnectionTimeout(this.connectionTimeout);
-                this.setMaxTotalConnections(this.maxTotalConnections);
-                this.setMaxTotalConnections(this.defaultMaxConnectionsPerHost);
-                this.setDefaultStreamByteSize(this.defaultStreamByteSize);
-            }
+        watcher = new Timer("proxy-config-watcher", true);
+        watcher.schedule(new WatchTask(file), interval, interval);
+    }
+
+    /**
+     * Stop watching the properties file.
+     */
+    public void dispose() {
+        if (watcher != null) {
+            watcher.cancel();
+            watcher = null;
         }
     }
 
@@ -245,185 +229,163 @@ final class ProxyConfig {
      * @return the soTimeout
      */
     public int getSoTimeout() {
-        return soTimeout;
+        return snapshot.soTimeout;
     }
 
     /**
-     * @param soTimeout the soTimeout to set
+     * @return the connectionTimeout
      */
-    public void setSoTimeout(int soTimeout) {
-        this.soTimeout = soTimeout;
+    public int getConnectionTimeout() {
+        return snapshot.connectionTimeout;
     }
 
     /**
-     * @return the connectionTimeout
+     * @return the maxTotalConnections
      */
-    public int getConnectionTimeout() {
-        return connectionTimeout;
+    public int getMaxTotalConnections() {
+        return snapshot.maxTotalConnections;
     }
 
     /**
-     * @param connectionTimeout the connectionTimeout to set
+     * @return the defaultMaxConnectionsPerHost
      */
-    public void setConnectionTimeout(int connectionTimeout) {
-        this.connectionTimeout = connectionTimeout;
+    public int getDefaultMaxConnectionsPerHost() {
+        return snapshot.defaultMaxConnectionsPerHost;
     }
 
     /**
-     * @return the maxTotalConnections
+     * @return the tcpNoDelay
      */
-    public int getMaxTotalConnections() {
-        return maxTotalConnections;
+    public boolean isTcpNoDelay() {
+        return snapshot.tcpNoDelay;
     }
 
     /**
-     * @param maxTotalConnections the maxTotalConnections to set
+     * @return the sendBufferSize, -1 for the system default
      */
-    public void setMaxTotalConnections(int maxTotalConnections) {
-        this.maxTotalConnections = maxTotalConnections;
+    public int getSendBufferSize() {
+        return snapshot.sendBufferSize;
     }
 
     /**
-     * @return the defaultMaxConnectionsPerHost
+     * @return the receiveBufferSize, -1 for the system default
      */
-    public int getDefaultMaxConnectionsPerHost() {
-        return defaultMaxConnectionsPerHost;
+    public int getReceiveBufferSize() {
+        return snapshot.receiveBufferSize;
     }
 
     /**
-     * @param defaultMaxConnectionsPerHost the defaultMaxConnectionsPerHost to set
+     * @return the staleChecking
      */
-    public void setDefaultMaxConnectionsPerHost(int defaultMaxConnectionsPerHost) {
-        this.defaultMaxConnectionsPerHost = defaultMaxConnectionsPerHost;
+    public boolean isStaleChecking() {
+        return snapshot.staleChecking;
     }
 
     /**
-     * @return the hostnameWhitelist
+     * @return the idleConnectionTimeout
      */
-    public Set<String> getHostnameWhitelist() {
-        Properties props = propertiesLoader();
+    public long getIdleConnectionTimeout() {
+        return snapshot.idleConnectionTimeout;
+    }
 
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("hostnameWhitelist"));
-            if (set != null)
-                this.setHostnameWhitelist(set);
-        }
+    /**
+     * @return the idleCheckInterval
+     */
+    public long getIdleCheckInterval() {
+        return snapshot.idleCheckInterval;
+    }
 
-        return hostnameWhitelist;
+    /**
+     * @return the remote hosts having their own connection settings
+     */
+    public List<HostConfig> getUpstreamHosts() {
+        return snapshot.upstreamHosts;
     }
 
     /**
-     * @param hostnameWhitelist the hostnameWhitelist to set
+     * @param host the remote host name
+     * @return boolean true if the host, or a backend of a host group, is in the
+     *         <code>upstreamHosts</code> list
      */
-    public void setHostnameWhitelist(Set<String> hostnameWhitelist) {
-        this.hostnameWhitelist = hostnameWhitelist;
+    boolean isUpstreamHost(String host) {
+        return snapshot.upstreamHostNames.contains(host.toLowerCase());
     }
 
     /**
-     * @return the mimetypeWhitelist
+     * @return the upstreamTransport, the transport of the hosts not setting their own
      */
-    public Set<String> getMimetypeWhitelist() {
-        Properties props = propertiesLoader();
+    public String getUpstreamTransport() {
+        return snapshot.upstreamTransport;
+    }
 
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("mimetypeWhitelist"));
-            if (set != null)
-                this.setMimetypeWhitelist(set);
-        }
+    /**
+     * @return the hostnameWhitelist
+     */
+    public Set<String> getHostnameWhitelist() {
+        return snapshot.hostnameWhitelist;
+    }
 
-        return mimetypeWhitelist;
+    /**
+     * @return the compiled hostnameWhitelist
+     */
+    HostNameMatcher getHostnameMatcher() {
+        return snapshot.hostnameMatcher;
     }
 
     /**
-     * @param mimetypeWhitelist the mimetypeWhitelist to set
+     * @return the mimetypeWhitelist
      */
-    public void setMimetypeWhitelist(Set<String> mimetypeWhitelist) {
-        this.mimetypeWhitelist = mimetypeWhitelist;
+    public Set<String> getMimetypeWhitelist() {
+        return snapshot.mimetypeWhitelist;
     }
 
     /**
      * @return the reqtypeWhitelist
      */
     public Set<String> getReqtypeWhitelist() {
-        Properties props = propertiesLoader();
-
-        if (props != null) {
-            Set<String> rt = new HashSet<String>();
-            String s = props.getProperty("reqtypeWhitelist.capabilities");
-            if (s != null)
-                rt.add(s);
-
-            s = props.getProperty("reqtypeWhitelist.geostore");
-            if (s != null)
-                rt.add(s);
-
-            s = props.getProperty("reqtypeWhitelist.csw");
-            if (s != null)
-                rt.add(s);
-            
-            s = props.getProperty("reqtypeWhitelist.featureinfo");
-            if (s != null)
-                rt.add(s);
-            
-            s = props.getProperty("reqtypeWhitelist.generic");
-            if (s != null)
-                rt.add(s);
-
-            this.setReqtypeWhitelist(rt);
-        }
-
-        return reqtypeWhitelist;
+        return snapshot.reqtypeWhitelist;
     }
 
     /**
-     * @param reqtypeWhitelist the reqtypeWhitelist to set
+     * @return the compiled reqtypeWhitelist
      */
-    public void setReqtypeWhitelist(Set<String> reqtypeWhitelist) {
-        this.reqtypeWhitelist = reqtypeWhitelist;
+    public RequestTypeMatcher getReqtypeMatcher() {
+        return snapshot.reqtypeMatcher;
     }
 
     /**
      * @return the methodsWhitelist
      */
     public Set<String> getMethodsWhitelist() {
-        Properties props = propertiesLoader();
-
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("methodsWhitelist"));
-            if (set != null)
-                this.setMethodsWhitelist(set);
-        }
-
-        return methodsWhitelist;
+        return snapshot.methodsWhitelist;
     }
 
     /**
-     * @param methodsWhitelist the methodsWhitelist to set
+     * @return the hostsWhitelist
      */
-    public void setMethodsWhitelist(Set<String> methodsWhitelist) {
-        this.methodsWhitelist = methodsWhitelist;
+    public Set<String> getHostsWhitelist() {
+        return snapshot.hostsWhitelist;
     }
 
     /**
-     * @return the hostsWhitelist
+     * @return the compiled hostsWhitelist
      */
-    public Set<String> getHostsWhitelist() {
-        Properties props = propertiesLoader();
-
-        if (props != null) {
-            Set<String> set = Utils.parseWhiteList(props.getProperty("hostsWhitelist"));
-            if (set != null)
-                this.setHostsWhitelist(set);
-        }
+    AddressMatcher getHostsMatcher() {
+        return snapshot.hostsMatcher;
+    }
 
-        return hostsWhitelist;
+    /**
+     * @return the compiled hostsBlacklist
+     */
+    AddressMatcher getHostsDenyMatcher() {
+        return snapshot.hostsDenyMatcher;
     }
 
     /**
-     * @param hostsWhitelist the hostsWhitelist to set
+     * @return the compiled trustedProxies
      */
-    public void setHostsWhitelist(Set<String> hostsWhitelist) {
-        this.hostsWhitelist = hostsWhitelist;
+    AddressMatcher getTrustedProxiesMatcher() {
+        return snapshot.trustedProxiesMatcher;
     }
 
     /**
@@ -447,25 +409,1107 @@ final class ProxyConfig {
         return propertiesFilePath;
     }
 
-    /**
-     * @param propertiesFilePath the propertiesFilePath to set
-     */
-    public void setPropertiesFilePath(String propertiesFilePath) {
-        this.propertiesFilePath = propertiesFilePath;
-    }
-    
     /**
 	 * @return the defaultStreamByteSize
 	 */
 	public int getDefaultStreamByteSize() {
-		return defaultStreamByteSize;
+		return snapshot.defaultStreamByteSize;
 	}
 
-	/**
-	 * @param defaultStreamByteSize the defaultStreamByteSize to set
-	 */
-	public void setDefaultStreamByteSize(int defaultStreamByteSize) {
-		this.defaultStreamByteSize = defaultStreamByteSize;
-	}
+    /**
+     * @return the streamFlushPolicy
+     */
+    public FlushPolicy getStreamFlushPolicy() {
+        return snapshot.streamFlushPolicy;
+    }
+
+    /**
+     * @return the streamFlushBytes
+     */
+    public int getStreamFlushBytes() {
+        return snapshot.streamFlushBytes;
+    }
+
+    /**
+     * @return the asyncEnabled
+     */
+    public boolean isAsyncEnabled() {
+        return snapshot.asyncEnabled;
+    }
+
+    /**
+     * @return the asyncTimeout
+     */
+    public long getAsyncTimeout() {
+        return snapshot.asyncTimeout;
+    }
+
+    /**
+     * @return true if upstreamThreads is virtual
+     */
+    public boolean isVirtualThreads() {
+        return snapshot.virtualThreads;
+    }
+
+    /**
+     * @return the configReloadInterval
+     */
+    public long getConfigReloadInterval() {
+        return snapshot.configReloadInterval;
+    }
+
+    /**
+     * @return the cacheMaxBytes
+     */
+    public long getCacheMaxBytes() {
+        return snapshot.cacheMaxBytes;
+    }
+
+    /**
+     * @return the cacheMaxEntryBytes
+     */
+    public int getCacheMaxEntryBytes() {
+        return snapshot.cacheMaxEntryBytes;
+    }
+
+    /**
+     * @return the coalesceRequests
+     */
+    public boolean isCoalesceRequests() {
+        return snapshot.coalesceRequests;
+    }
+
+    /**
+     * @return the coalesceWindowBytes, the maximum size of the body chunks kept for the followers
+     *         of a coalesced request
+     */
+    public int getCoalesceWindowBytes() {
+        return snapshot.coalesceWindowBytes;
+    }
+
+    /**
+     * @return the upstreamCompression
+     */
+    public boolean isUpstreamCompression() {
+        return snapshot.upstreamCompression;
+    }
+
+    /**
+     * @return the compressResponses
+     */
+    public boolean isCompressResponses() {
+        return snapshot.compressResponses;
+    }
+
+    /**
+     * @return the compressionLevel, -1 if chosen from the system load
+     */
+    public int getCompressionLevel() {
+        return snapshot.compressionLevel;
+    }
 
+    /**
+     * @return the compressMinBytes
+     */
+    public int getCompressMinBytes() {
+        return snapshot.compressMinBytes;
+    }
+
+    /**
+     * @return the compressibleTypes
+     */
+    public Set<String> getCompressibleTypes() {
+        return snapshot.compressibleTypes;
+    }
+
+    /**
+     * @return true if multipartMode is rewrite
+     */
+    public boolean isMultipartRewrite() {
+        return snapshot.multipartRewrite;
+    }
+
+    /**
+     * @return the metricsEnabled
+     */
+    public boolean isMetricsEnabled() {
+        return snapshot.metricsEnabled;
+    }
+
+    /**
+     * @return the authSchemeCacheSize, 0 if preemptive authentication is disabled
+     */
+    public int getAuthSchemeCacheSize() {
+        return snapshot.authSchemeCacheSize;
+    }
+
+    /**
+     * @return the proxyCallbacks, class names or simple names of the classes of this package, read
+     *         when the proxy starts
+     */
+    public List<String> getCallbacks() {
+        return snapshot.callbacks;
+    }
+
+    /**
+     * @return the hedgePercentile, the first byte latency percentile after which a GET request to a
+     *         host having mirrors is sent to one of them too
+     */
+    public double getHedgePercentile() {
+        return snapshot.hedgePercentile;
+    }
+
+    /**
+     * @return the hedgeBudget, the hedged requests allowed per request to a host having mirrors, 0
+     *         to disable hedging
+     */
+    public double getHedgeBudget() {
+        return snapshot.hedgeBudget;
+    }
+
+    /**
+     * @return the healthCheckInterval, in milliseconds, between two checks of the backends having
+     *         a health check
+     */
+    public long getHealthCheckInterval() {
+        return snapshot.healthCheckInterval;
+    }
+
+    /**
+     * @return the healthCheckTimeout
+     */
+    public int getHealthCheckTimeout() {
+        return snapshot.healthCheckTimeout;
+    }
+
+    /**
+     * @return the ejectFailures, the consecutive failed requests ejecting a backend, 0 to never
+     *         eject them
+     */
+    public int getEjectFailures() {
+        return snapshot.ejectFailures;
+    }
+
+    /**
+     * @return the ejectTime
+     */
+    public long getEjectTime() {
+        return snapshot.ejectTime;
+    }
+
+    /**
+     * @return the slowStartTime, in milliseconds, during which a recovered backend is given a
+     *         growing share of the requests
+     */
+    public long getSlowStartTime() {
+        return snapshot.slowStartTime;
+    }
+
+    /**
+     * @return the dnsCacheTtl, in milliseconds, the addresses of a remote host are cached for, 0
+     *         to let the JVM resolve the hosts
+     */
+    public long getDnsCacheTtl() {
+        return snapshot.dnsCacheTtl;
+    }
+
+    /**
+     * @return the dnsNegativeTtl
+     */
+    public long getDnsNegativeTtl() {
+        return snapshot.dnsNegativeTtl;
+    }
+
+    /**
+     * @return the circuitErrorRate, the share of failed requests to a remote host opening its
+     *         circuit, 0 to disable the circuit breakers
+     */
+    public double getCircuitErrorRate() {
+        return snapshot.circuitErrorRate;
+    }
+
+    /**
+     * @return the circuitMinRequests
+     */
+    public int getCircuitMinRequests() {
+        return snapshot.circuitMinRequests;
+    }
+
+    /**
+     * @return the circuitWindow
+     */
+    public long getCircuitWindow() {
+        return snapshot.circuitWindow;
+    }
+
+    /**
+     * @return the circuitOpenTime
+     */
+    public long getCircuitOpenTime() {
+        return snapshot.circuitOpenTime;
+    }
+
+    /**
+     * @return the adaptiveConcurrency
+     */
+    public boolean isAdaptiveConcurrency() {
+        return snapshot.adaptiveConcurrency;
+    }
+
+    /**
+     * @return the concurrencyInitialLimit
+     */
+    public int getConcurrencyInitialLimit() {
+        return snapshot.concurrencyInitialLimit;
+    }
+
+    /**
+     * @return the concurrencyMaxLimit
+     */
+    public int getConcurrencyMaxLimit() {
+        return snapshot.concurrencyMaxLimit;
+    }
+
+    /**
+     * @return true if rateLimitBy is user: the requests are limited by authenticated user, then by
+     *         client address
+     */
+    public boolean isRateLimitByUser() {
+        return snapshot.rateLimitByUser;
+    }
+
+    /**
+     * @return the rateLimitRequests, the requests per second allowed to a client, 0 for no limit
+     */
+    public double getRateLimitRequests() {
+        return snapshot.rateLimitRequests;
+    }
+
+    /**
+     * @return the rateLimitBurst
+     */
+    public int getRateLimitBurst() {
+        return snapshot.rateLimitBurst;
+    }
+
+    /**
+     * @return the rateLimitConcurrent, the requests in flight allowed to a client, 0 for no limit
+     */
+    public int getRateLimitConcurrent() {
+        return snapshot.rateLimitConcurrent;
+    }
+
+    /**
+     * @return the rateLimitBytes, the response bytes per second allowed to a client, 0 for no
+     *         limit
+     */
+    public long getRateLimitBytes() {
+        return snapshot.rateLimitBytes;
+    }
+
+    /**
+     * @return the rateLimitBurstBytes
+     */
+    public long getRateLimitBurstBytes() {
+        return snapshot.rateLimitBurstBytes;
+    }
+
+    /**
+     * @return the rateLimitIdleTime
+     */
+    public long getRateLimitIdleTime() {
+        return snapshot.rateLimitIdleTime;
+    }
+
+    /**
+     * @return the rateLimitMaxClients
+     */
+    public int getRateLimitMaxClients() {
+        return snapshot.rateLimitMaxClients;
+    }
+
+    /**
+     * The smallest of the limits set for the response type and for the remote host, each of them
+     * defaulting to <code>maxResponseBytes</code>.
+     * 
+     * @param host the remote host
+     * @param port the remote port
+     * @param contentType the remote response Content-type, null if none
+     * @return long the maximum size in bytes of the remote response body, 0 for no limit
+     */
+    long getMaxResponseBytes(String host, int port, String contentType) {
+        Snapshot current = snapshot;
+
+        long byType = current.maxResponseBytes;
+        if (contentType != null && !current.maxResponseBytesByType.isEmpty()) {
+            Long limit = current.maxResponseBytesByType.get(Utils.mimeType(contentType)
+                    .toLowerCase());
+            if (limit != null)
+                byType = limit;
+        }
+
+        long byHost = current.maxResponseBytes;
+        for (HostConfig upstream : current.upstreamHosts) {
+            if (upstream.getMaxResponseBytes() > 0 && upstream.getHost().equalsIgnoreCase(host)
+                    && (upstream.getPort() < 0 || upstream.getPort() == port)) {
+                byHost = upstream.getMaxResponseBytes();
+                break;
+            }
+        }
+
+        if (byType <= 0 || byHost <= 0)
+            return Math.max(byType, byHost);
+        return Math.min(byType, byHost);
+    }
+
+    /**
+     * Immutable view of the properties file, built once per (re)load.
+     */
+    private static final class Snapshot {
+
+        private static final String DEFAULT_COMPRESSIBLE_TYPES = "text/,application/xml,"
+                + "application/json,application/javascript,application/vnd.ogc.,+xml,+json,gml";
+
+        private static final String DEFAULT_CALLBACKS = "MimeTypeChecker,HostNameChecker,"
+                + "RequestTypeChecker,MethodsChecker,HostChecker,RateLimitChecker";
+
+        /**
+         * The host names, wildcards and ports the proxy is permitted to forward to
+         */
+        final Set<String> hostnameWhitelist;
+
+        /**
+         * The compiled hostname whitelist
+         */
+        final HostNameMatcher hostnameMatcher;
+
+        /**
+         * A list of regular expressions describing MIMETypes the proxy is permitted to forward
+         */
+        final Set<String> mimetypeWhitelist;
+
+        /**
+         * A list of regular expressions describing Request Types the proxy is permitted to forward
+         */
+        final Set<String> reqtypeWhitelist;
+
+        /**
+         * The compiled request type regular expressions
+         */
+        final RequestTypeMatcher reqtypeMatcher;
+
+        /**
+         * A list of regular expressions describing request METHODS the proxy is permitted to forward
+         */
+        final Set<String> methodsWhitelist;
+
+        /**
+         * A list of regular expressions describing request HOSTS the proxy is permitted to forward
+         */
+        final Set<String> hostsWhitelist;
+
+        /**
+         * The compiled client addresses and ranges the proxy accepts requests from
+         */
+        final AddressMatcher hostsMatcher;
+
+        /**
+         * The compiled client addresses and ranges the proxy rejects, whatever the whitelist
+         */
+        final AddressMatcher hostsDenyMatcher;
+
+        /**
+         * The compiled addresses of the proxies whose X-Forwarded-For entries are trusted
+         */
+        final AddressMatcher trustedProxiesMatcher;
+
+        /**
+         * The request timeout
+         */
+        final int soTimeout;
+
+        /**
+         * The connection timeout
+         */
+        final int connectionTimeout;
+
+        /**
+         * The maximum total connections available
+         */
+        final int maxTotalConnections;
+
+        /**
+         * The maximum connections available per host
+         */
+        final int defaultMaxConnectionsPerHost;
+
+        /**
+         * Whether Nagle's algorithm is disabled on the remote connections
+         */
+        final boolean tcpNoDelay;
+
+        /**
+         * The socket send buffer size of the remote connections, -1 for the system default
+         */
+        final int sendBufferSize;
+
+        /**
+         * The socket receive buffer size of the remote connections, -1 for the system default
+         */
+        final int receiveBufferSize;
+
+        /**
+         * Whether pooled connections are checked before being reused
+         */
+        final boolean staleChecking;
+
+        /**
+         * The time in milliseconds after which idle connections are closed, 0 to keep them open
+         */
+        final long idleConnectionTimeout;
+
+        /**
+         * The interval in milliseconds between two checks of the idle connections
+         */
+        final long idleCheckInterval;
+
+        /**
+         * The remote hosts having their own connection settings
+         */
+        final List<HostConfig> upstreamHosts;
+
+        /**
+         * The host names of the remote hosts and of the backends of the host groups
+         */
+        final Set<String> upstreamHostNames;
+
+        /**
+         * The name of the default upstream transport
+         */
+        final String upstreamTransport;
+
+        final int defaultStreamByteSize;
+
+        /**
+         * The policy used to flush the response body relayed to the client
+         */
+        final FlushPolicy streamFlushPolicy;
+
+        /**
+         * The amount of bytes written to the client between two flushes (BYTES policy only)
+         */
+        final int streamFlushBytes;
+
+        /**
+         * Whether GET and DELETE requests are suspended while the remote server answers
+         */
+        final boolean asyncEnabled;
+
+        /**
+         * The maximum time in milliseconds a request stays suspended
+         */
+        final long asyncTimeout;
+
+        /**
+         * Whether the remote requests of suspended requests run on virtual threads
+         */
+        final boolean virtualThreads;
+
+        /**
+         * The interval in milliseconds between two checks of the properties file, 0 to disable
+         */
+        final long configReloadInterval;
+
+        /**
+         * The maximum size in bytes of the cached GET responses, 0 to disable the cache
+         */
+        final long cacheMaxBytes;
+
+        /**
+         * The maximum size in bytes of a single cached response
+         */
+        final int cacheMaxEntryBytes;
+
+        /**
+         * Whether identical concurrent GET requests share a single remote request
+         */
+        final boolean coalesceRequests;
+
+        /**
+         * The maximum size in bytes of the body chunks a coalesced request keeps for its followers
+         */
+        final int coalesceWindowBytes;
+
+        /**
+         * Whether the remote servers are asked for gzip compressed responses
+         */
+        final boolean upstreamCompression;
+
+        /**
+         * Whether uncompressed responses are compressed for the clients accepting gzip
+         */
+        final boolean compressResponses;
+
+        /**
+         * The deflate level of the compressed responses, -1 to choose it from the system load
+         */
+        final int compressionLevel;
+
+        /**
+         * The minimum length of the responses compressed by the proxy
+         */
+        final int compressMinBytes;
+
+        /**
+         * The prefixes or suffixes of the media types compressed by the proxy
+         */
+        final Set<String> compressibleTypes;
+
+        /**
+         * Whether the multipart requests are re-encoded rather than streamed as they are
+         */
+        final boolean multipartRewrite;
+
+        /**
+         * Whether the time spent in each stage of the proxied requests is recorded
+         */
+        final boolean metricsEnabled;
+
+        /**
+         * The number of remote hosts whose authentication scheme is remembered
+         */
+        final int authSchemeCacheSize;
+
+        /**
+         * The maximum size in bytes of the remote response bodies, 0 for no limit
+         */
+        final long maxResponseBytes;
+
+        /**
+         * The maximum size in bytes of the remote response bodies by lower case MIME type
+         */
+        final Map<String, Long> maxResponseBytesByType;
+
+        /**
+         * The first byte latency percentile after which a request is hedged
+         */
+        final double hedgePercentile;
+
+        /**
+         * The share of the requests to hosts having mirrors allowed to be hedged
+         */
+        final double hedgeBudget;
+
+        /**
+         * The time in milliseconds between two health checks of a backend
+         */
+        final long healthCheckInterval;
+
+        /**
+         * The time in milliseconds a health check waits for the backend
+         */
+        final int healthCheckTimeout;
+
+        /**
+         * The consecutive failed requests ejecting a backend, 0 to never eject them
+         */
+        final int ejectFailures;
+
+        /**
+         * The time in milliseconds a backend is ejected for
+         */
+        final long ejectTime;
+
+        /**
+         * The time in milliseconds a recovered backend takes to get its full share of the requests
+         */
+        final long slowStartTime;
+
+        /**
+         * The time in milliseconds the addresses of a remote host are cached for, 0 to disable
+         */
+        final long dnsCacheTtl;
+
+        /**
+         * The time in milliseconds a failed lookup is cached for
+         */
+        final long dnsNegativeTtl;
+
+        /**
+         * The share of failed requests to a remote host opening its circuit, 0 to disable
+         */
+        final double circuitErrorRate;
+
+        /**
+         * The requests in the window needed to open a circuit
+         */
+        final int circuitMinRequests;
+
+        /**
+         * The time in milliseconds over which the failed requests are counted
+         */
+        final long circuitWindow;
+
+        /**
+         * The time in milliseconds a circuit stays open before a request probes the host
+         */
+        final long circuitOpenTime;
+
+        /**
+         * Whether the concurrent requests to each remote host are limited
+         */
+        final boolean adaptiveConcurrency;
+
+        /**
+         * The initial limit of the concurrent requests to a remote host
+         */
+        final int concurrencyInitialLimit;
+
+        /**
+         * The highest limit of the concurrent requests to a remote host
+         */
+        final int concurrencyMaxLimit;
+
+        /**
+         * Whether the requests are limited by authenticated user rather than by client address
+         */
+        final boolean rateLimitByUser;
+
+        /**
+         * The requests per second allowed to a client, 0 for no limit
+         */
+        final double rateLimitRequests;
+
+        /**
+         * The requests a client can send at once beyond its rate
+         */
+        final int rateLimitBurst;
+
+        /**
+         * The requests in flight allowed to a client, 0 for no limit
+         */
+        final int rateLimitConcurrent;
+
+        /**
+         * The response bytes per second allowed to a client, 0 for no limit
+         */
+        final long rateLimitBytes;
+
+        /**
+         * The response bytes a client can receive at once beyond its rate
+         */
+        final long rateLimitBurstBytes;
+
+        /**
+         * The time in milliseconds after which the limits of an idle client are dropped
+         */
+        final long rateLimitIdleTime;
+
+        /**
+         * The clients whose limits are tracked at most
+         */
+        final int rateLimitMaxClients;
+
+        /**
+         * The classes of the callbacks checking the requests
+         */
+        final List<String> callbacks;
+
+        Snapshot(Properties props) {
+
+            // ////////////////////////////////////////////////////////////
+            // Load proxy configuration white lists from properties file
+            // ////////////////////////////////////////////////////////////
+
+            hostnameWhitelist = whiteList(props, "hostnameWhitelist");
+            hostnameMatcher = new HostNameMatcher(hostnameWhitelist);
+            mimetypeWhitelist = whiteList(props, "mimetypeWhitelist");
+            methodsWhitelist = whiteList(props, "methodsWhitelist");
+            hostsWhitelist = whiteList(props, "hostsWhitelist");
+            hostsMatcher = new AddressMatcher(hostsWhitelist);
+            hostsDenyMatcher = new AddressMatcher(whiteList(props, "hostsBlacklist"));
+            trustedProxiesMatcher = new AddressMatcher(whiteList(props, "trustedProxies"));
+
+            // ////////////////////////////////////////
+            // Read various request type properties
+            // ////////////////////////////////////////
+
+            Map<String, String> rt = new LinkedHashMap<String, String>();
+            for (String name : REQTYPE_NAMES) {
+                String s = props.getProperty("reqtypeWhitelist." + name);
+                if (s != null)
+                    rt.put(name, s);
+            }
+
+            reqtypeWhitelist = Collections.unmodifiableSet(new HashSet<String>(rt.values()));
+
+            // /////////////////////////////////////////////////
+            // Load byte size configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            int defaultStreamByteSize = intProperty(props, "defaultStreamByteSize", 1024);
+            int streamFlushBytes = intProperty(props, "streamFlushBytes", 65536);
+
+            // /////////////////////////////////////////////////
+            // Load connection manager configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            int soTimeout = intProperty(props, "timeout", 30000);
+            int connectionTimeout = intProperty(props, "connection_timeout", 30000);
+            int maxTotalConnections = intProperty(props, "max_total_connections", 60);
+            int defaultMaxConnectionsPerHost = intProperty(props,
+                    "default_max_connections_per_host", 6);
+            int sendBufferSize = intProperty(props, "send_buffer_size", -1);
+            int receiveBufferSize = intProperty(props, "receive_buffer_size", -1);
+            long idleConnectionTimeout = longProperty(props, "idle_connection_timeout", 10000);
+            long idleCheckInterval = longProperty(props, "idle_check_interval", 5000);
+
+            // /////////////////////////////////////////////////
+            // Load the hot reload configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            long configReloadInterval = longProperty(props, "configReloadInterval", 5000);
+
+            // /////////////////////////////////////////////////
+            // Load the asynchronous processing configuration
+            // from properties file.
+            // /////////////////////////////////////////////////
+
+            long asyncTimeout = longProperty(props, "asyncTimeout", 60000);
+            int reqtypeCacheSize = intProperty(props, "reqtypeCacheSize", 1024);
+
+            // /////////////////////////////////////////////////
+            // Load the response cache configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            long cacheMaxBytes = longProperty(props, "cacheMaxBytes", 0);
+            int cacheMaxEntryBytes = intProperty(props, "cacheMaxEntryBytes", 1048576);
+            int coalesceWindowBytes = intProperty(props, "coalesceWindowBytes", 1048576);
+
+            // /////////////////////////////////////////////////
+            // Load the compression configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            int compressionLevel = "auto".equalsIgnoreCase(props.getProperty("compressionLevel",
+                    "auto").trim()) ? -1 : Math.max(1, Math.min(9, intProperty(props,
+                    "compressionLevel", -1)));
+            int compressMinBytes = intProperty(props, "compressMinBytes", 1024);
+
+            // /////////////////////////////////////////////////
+            // Load the authentication configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            int authSchemeCacheSize = intProperty(props, "authSchemeCacheSize", 256);
+
+            // /////////////////////////////////////////////////
+            // Load the response size limit from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            long maxResponseBytes = longProperty(props, "maxResponseBytes", 0);
+
+            // /////////////////////////////////////////////////
+            // Load the hedging configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            double hedgePercentile = doubleProperty(props, "hedgePercentile", 0.95);
+            double hedgeBudget = doubleProperty(props, "hedgeBudget", 0.05);
+
+            // /////////////////////////////////////////////////
+            // Load the load balancing configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            long healthCheckInterval = longProperty(props, "healthCheckInterval", 5000);
+            int healthCheckTimeout = intProperty(props, "healthCheckTimeout", 2000);
+            int ejectFailures = intProperty(props, "ejectFailures", 5);
+            long ejectTime = longProperty(props, "ejectTime", 30000);
+            long slowStartTime = longProperty(props, "slowStartTime", 30000);
+
+            // /////////////////////////////////////////////////
+            // Load the DNS cache configuration from
+            // properties file.
+            // /////////////////////////////////////////////////
+
+            long dnsCacheTtl = longProperty(props, "dnsCacheTtl", 30000);
+            long dnsNegativeTtl = longProperty(props, "dnsNegativeTtl", 5000);
+
+            // /////////////////////////////////////////////////
+            // Load the circuit breakers and concurrency limits
+            // configuration from properties file.
+            // /////////////////////////////////////////////////
+
+            double circuitErrorRate = doubleProperty(props, "circuitErrorRate", 0.5);
+            int circuitMinRequests = intProperty(props, "circuitMinRequests", 20);
+            long circuitWindow = longProperty(props, "circuitWindow", 10000);
+            long circuitOpenTime = longProperty(props, "circuitOpenTime", 5000);
+            int concurrencyInitialLimit = intProperty(props, "concurrencyInitialLimit", 20);
+            int concurrencyMaxLimit = intProperty(props, "concurrencyMaxLimit", 200);
+
+            // /////////////////////////////////////////////////
+            // Load the client rate limits from properties
+            // file.
+            // /////////////////////////////////////////////////
+
+            double rateLimitRequests = doubleProperty(props, "rateLimitRequests", 0);
+            int rateLimitBurst = intProperty(props, "rateLimitBurst", 20);
+            int rateLimitConcurrent = intProperty(props, "rateLimitConcurrent", 0);
+            long rateLimitBytes = longProperty(props, "rateLimitBytes", 0);
+            long rateLimitBurstBytes = longProperty(props, "rateLimitBurstBytes", 10485760);
+            long rateLimitIdleTime = longProperty(props, "rateLimitIdleTime", 60000);
+            int rateLimitMaxClients = intProperty(props, "rateLimitMaxClients", 100000);
+
+            this.soTimeout = soTimeout;
+            this.connectionTimeout = connectionTimeout;
+            this.maxTotalConnections = maxTotalConnections;
+            this.defaultMaxConnectionsPerHost = defaultMaxConnectionsPerHost;
+            this.sendBufferSize = sendBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+            this.idleConnectionTimeout = idleConnectionTimeout;
+            this.idleCheckInterval = idleCheckInterval;
+            this.tcpNoDelay = Boolean.parseBoolean(props.getProperty("tcp_nodelay", "true")
+                    .trim());
+            this.staleChecking = Boolean.parseBoolean(props.getProperty("stale_checking",
+                    "true").trim());
+            this.upstreamHosts = upstreamHosts(props);
+            this.upstreamHostNames = upstreamHostNames(upstreamHosts);
+            this.upstreamTransport = props.getProperty("upstreamTransport",
+                    UpstreamTransport.COMMONS).trim().toLowerCase();
+            this.defaultStreamByteSize = defaultStreamByteSize;
+            this.streamFlushBytes = streamFlushBytes;
+            this.configReloadInterval = configReloadInterval;
+            this.asyncTimeout = asyncTimeout;
+            this.cacheMaxBytes = cacheMaxBytes;
+            this.cacheMaxEntryBytes = cacheMaxEntryBytes;
+            this.coalesceRequests = Boolean.parseBoolean(props.getProperty("coalesceRequests",
+                    "false").trim());
+            this.coalesceWindowBytes = coalesceWindowBytes;
+            this.upstreamCompression = Boolean.parseBoolean(props.getProperty(
+                    "upstreamCompression", "true").trim());
+            this.compressResponses = Boolean.parseBoolean(props.getProperty("compressResponses",
+                    "false").trim());
+            this.compressionLevel = compressionLevel;
+            this.compressMinBytes = compressMinBytes;
+            this.authSchemeCacheSize = authSchemeCacheSize;
+            this.maxResponseBytes = maxResponseBytes;
+            this.maxResponseBytesByType = maxResponseBytesByType(props);
+            this.hedgePercentile = hedgePercentile;
+            this.hedgeBudget = hedgeBudget;
+            this.healthCheckInterval = healthCheckInterval;
+            this.healthCheckTimeout = healthCheckTimeout;
+            this.ejectFailures = ejectFailures;
+            this.ejectTime = ejectTime;
+            this.slowStartTime = slowStartTime;
+            this.dnsCacheTtl = dnsCacheTtl;
+            this.dnsNegativeTtl = dnsNegativeTtl;
+            this.circuitErrorRate = circuitErrorRate;
+            this.circuitMinRequests = circuitMinRequests;
+            this.circuitWindow = circuitWindow;
+            this.circuitOpenTime = circuitOpenTime;
+            this.adaptiveConcurrency = Boolean.parseBoolean(props.getProperty(
+                    "adaptiveConcurrency", "false").trim());
+            this.concurrencyInitialLimit = concurrencyInitialLimit;
+            this.concurrencyMaxLimit = concurrencyMaxLimit;
+            this.rateLimitByUser = "user".equalsIgnoreCase(props.getProperty("rateLimitBy",
+                    "address").trim());
+            this.rateLimitRequests = rateLimitRequests;
+            this.rateLimitBurst = rateLimitBurst;
+            this.rateLimitConcurrent = rateLimitConcurrent;
+            this.rateLimitBytes = rateLimitBytes;
+            this.rateLimitBurstBytes = rateLimitBurstBytes;
+            this.rateLimitIdleTime = rateLimitIdleTime;
+            this.rateLimitMaxClients = rateLimitMaxClients;
+
+            List<String> callbacks = new ArrayList<String>();
+            for (String name : props.getProperty("proxyCallbacks", DEFAULT_CALLBACKS).split(","))
+                if (name.trim().length() > 0)
+                    callbacks.add(name.trim());
+            this.callbacks = Collections.unmodifiableList(callbacks);
+
+            Set<String> types = Utils.parseWhiteList(props.getProperty("compressibleTypes",
+                    DEFAULT_COMPRESSIBLE_TYPES));
+            this.compressibleTypes = Collections.unmodifiableSet(types);
+
+            this.multipartRewrite = "rewrite".equalsIgnoreCase(props.getProperty("multipartMode",
+                    "stream").trim());
+            this.metricsEnabled = Boolean.parseBoolean(props.getProperty("metricsEnabled",
+                    "false").trim());
+            this.asyncEnabled = Boolean.parseBoolean(props.getProperty("asyncEnabled", "false")
+                    .trim());
+            this.virtualThreads = "virtual".equalsIgnoreCase(props.getProperty("upstreamThreads",
+                    "platform").trim());
+            this.reqtypeMatcher = new RequestTypeMatcher(rt, reqtypeCacheSize);
+            this.streamFlushPolicy = FlushPolicy.parse(props.getProperty("streamFlushPolicy"),
+                    FlushPolicy.BYTES);
+        }
+
+        /**
+         * @param props
+         * @return Map<String, Long> the <code>maxResponseBytes.&lt;type&gt;</code> limits by lower
+         *         case MIME type
+         * @throws IllegalArgumentException if a limit is not a number
+         */
+        private static Map<String, Long> maxResponseBytesByType(Properties props) {
+            Map<String, Long> limits = new HashMap<String, Long>();
+
+            String prefix = "maxResponseBytes.";
+            for (String name : props.stringPropertyNames()) {
+                if (!name.startsWith(prefix) || name.length() == prefix.length())
+                    continue;
+
+                limits.put(name.substring(prefix.length()).trim().toLowerCase(), longProperty(
+                        props, name, 0));
+            }
+
+            return Collections.unmodifiableMap(limits);
+        }
+
+        /**
+         * @param upstreamHosts
+         * @return Set<String> the lower case names of the upstream hosts and of their backends
+         */
+        private static Set<String> upstreamHostNames(List<HostConfig> upstreamHosts) {
+            Set<String> names = new HashSet<String>();
+            for (HostConfig upstream : upstreamHosts) {
+                names.add(upstream.getHost());
+                for (HostConfig backend : upstream.getBackendConfigs())
+                    names.add(backend.getHost());
+            }
+
+            return Collections.unmodifiableSet(names);
+        }
+
+        /**
+         * @param props
+         * @return List<HostConfig> the unmodifiable list of the upstream hosts
+         * @throws IllegalArgumentException if an upstream host is malformed
+         */
+        private static List<HostConfig> upstreamHosts(Properties props) {
+            List<HostConfig> hosts = new ArrayList<HostConfig>();
+
+            Set<String> names = Utils.parseWhiteList(props.getProperty("upstreamHosts"));
+            if (names != null) {
+                for (String name : names) {
+                    name = name.trim();
+                    if (name.length() == 0)
+                        continue;
+
+                    try {
+                        hosts.add(new HostConfig(props, name));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Malformed upstream host " + name, e);
+                    }
+                }
+            }
+
+            return Collections.unmodifiableList(hosts);
+        }
+
+        /**
+         * @param props
+         * @param name
+         * @param def
+         * @return int the value of the property, the default if not configured
+         * @throws IllegalArgumentException if the value is not a number
+         */
+        private static int intProperty(Properties props, String name, int def) {
+            String value = props.getProperty(name);
+            try {
+                return value != null ? Integer.parseInt(value.trim()) : def;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed proxy property " + name + "="
+                        + value, e);
+            }
+        }
+
+        /**
+         * @param props
+         * @param name
+         * @param def
+         * @return long the value of the property, the default if not configured
+         * @throws IllegalArgumentException if the value is not a number
+         */
+        private static long longProperty(Properties props, String name, long def) {
+            String value = props.getProperty(name);
+            try {
+                return value != null ? Long.parseLong(value.trim()) : def;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed proxy property " + name + "="
+                        + value, e);
+            }
+        }
+
+        /**
+         * @param props
+         * @param name
+         * @param def
+         * @return double the value of the property, the default if not configured
+         * @throws IllegalArgumentException if the value is not a number
+         */
+        private static double doubleProperty(Properties props, String name, double def) {
+            String value = props.getProperty(name);
+            try {
+                return value != null ? Double.parseDouble(value.trim()) : def;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed proxy property " + name + "="
+                        + value, e);
+            }
+        }
+
+        /**
+         * @param props
+         * @param name
+         * @return Set<String> the unmodifiable white list, empty if not configured
+         */
+        private static Set<String> whiteList(Properties props, String name) {
+            Set<String> set = Utils.parseWhiteList(props.getProperty(name));
+            if (set == null)
+                return Collections.emptySet();
+
+            return Collections.unmodifiableSet(set);
+        }
+    }
+
+    /**
+     * Checks the properties file modification time and reloads the configuration when it changes.
+     */
+    private final class WatchTask extends TimerTask {
+
+        private final File file;
+
+        private long lastModified;
+
+        private long length;
+
+        WatchTask(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+
+        @Override
+        public void run() {
+            try {
+                long modified = file.lastModified();
+                long size = file.length();
+
+                if (modified != lastModified || size != length) {
+                    lastModified = modified;
+                    length = size;
+
+                    reload();
+                }
+            } catch (RuntimeException e) {
+                if (LOGGER.isLoggable(Level.SEVERE))
+                    LOGGER.log(Level.SEVERE, "Error reloading the proxy configuration ", e);
+            }
+        }
+    }
 }
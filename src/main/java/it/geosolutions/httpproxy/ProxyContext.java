@@ -0,0 +1,169 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * The state of a proxy request shared by the {@link ProxyCallback} phases: what the callbacks
+ * learn while checking the request can be found again in the following phases, along with the
+ * remote response once received. The context of the request being processed is returned by
+ * {@link #current()} while the callbacks are called.
+ */
+public final class ProxyContext {
+
+    /**
+     * The request attribute holding the context of the request
+     */
+    static final String ATTRIBUTE = ProxyContext.class.getName();
+
+    private static final ThreadLocal<ProxyContext> CURRENT = new ThreadLocal<ProxyContext>();
+
+    private final HttpServletRequest request;
+
+    private final HttpServletResponse response;
+
+    private final URL url;
+
+    private final ProxyConfig config;
+
+    private HttpMethod method;
+
+    private long bytesSent;
+
+    private Map<String, Object> attributes;
+
+    ProxyContext(HttpServletRequest request, HttpServletResponse response, URL url,
+            ProxyConfig config) {
+        this.request = request;
+        this.response = response;
+        this.url = url;
+        this.config = config;
+    }
+
+    /**
+     * @param request
+     * @return ProxyContext the context of the request, null if not proxied
+     */
+    static ProxyContext get(HttpServletRequest request) {
+        return (ProxyContext) request.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * @return ProxyContext the context of the request whose callbacks are being called on this
+     *         thread, null if none
+     */
+    public static ProxyContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the context to the current thread until {@link #detach()}
+     */
+    void attach() {
+        CURRENT.set(this);
+    }
+
+    static void detach() {
+        CURRENT.remove();
+    }
+
+    /**
+     * @return HttpServletRequest the client request
+     */
+    public HttpServletRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return HttpServletResponse the client response
+     */
+    public HttpServletResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * @return URL the remote URL, null if the request has none
+     */
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     * @return ProxyConfig the proxy configuration, for the callbacks of this package
+     */
+    ProxyConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return HttpMethod the remote request, null until the remote response is received
+     */
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    void setMethod(HttpMethod method) {
+        this.method = method;
+    }
+
+    /**
+     * @return long the response body bytes relayed to the client, as received from the remote
+     *         server, 0 until the response is sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    void addBytesSent(long bytes) {
+        bytesSent += bytes;
+    }
+
+    /**
+     * @param name
+     * @return Object the value set by a callback, null if none
+     */
+    public Object getAttribute(String name) {
+        return attributes != null ? attributes.get(name) : null;
+    }
+
+    /**
+     * @param name
+     * @param value the value, null to remove it
+     */
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            if (attributes != null)
+                attributes.remove(name);
+            return;
+        }
+
+        if (attributes == null)
+            attributes = new HashMap<String, Object>();
+        attributes.put(name, value);
+    }
+}
@@ -0,0 +1,504 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms of each {@link RequestTimer.Stage} of the proxied requests, by remote host,
+ * request type and status, along with the connection pool gauges.
+ * <p>
+ * Recording takes no lock: the series are found in a concurrent map and the histograms are made of
+ * atomic counters. The hosts are chosen by the clients, so only the ones in the
+ * <code>upstreamHosts</code> list get their own series, the others are all recorded as
+ * <code>other</code>, and the number of series is bounded too. The response cache and request
+ * coalescing statistics are reported as well. The metrics are exposed as an MBean and in the Prometheus text format by the
+ * {@link MetricsServlet}.
+ */
+final class ProxyMetrics implements ProxyMetricsMBean {
+
+    private final static Logger LOGGER = Logger.getLogger(ProxyMetrics.class.toString());
+
+    /**
+     * The servlet context attribute holding the metrics of the proxy
+     */
+    static final String ATTRIBUTE = ProxyMetrics.class.getName();
+
+    static final String OTHER_HOST = "other";
+
+    static final String NO_TYPE = "none";
+
+    private static final int MAX_SERIES = 1000;
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final RequestTimer.Stage[] STAGES = RequestTimer.Stage.values();
+
+    private final ConcurrentMap<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong abortedResponses = new AtomicLong();
+
+    private final AtomicLong abortedBytes = new AtomicLong();
+
+    private final AtomicLong hedgedRequests = new AtomicLong();
+
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    private final AtomicLong circuitRejections = new AtomicLong();
+
+    private final AtomicLong concurrencyRejections = new AtomicLong();
+
+    private final ProxyConfig proxyConfig;
+
+    private final UpstreamConnectionManager connectionManager;
+
+    private final ResponseCache responseCache;
+
+    private final RequestCoalescer requestCoalescer;
+
+    private ObjectName objectName;
+
+    /**
+     * @param proxyConfig the configuration listing the hosts having their own series
+     * @param connectionManager the connection pool to report on, null if none
+     * @param responseCache the response cache to report on, null if none
+     * @param requestCoalescer the request coalescer to report on, null if none
+     */
+    ProxyMetrics(ProxyConfig proxyConfig, UpstreamConnectionManager connectionManager,
+            ResponseCache responseCache, RequestCoalescer requestCoalescer) {
+        this.proxyConfig = proxyConfig;
+        this.connectionManager = connectionManager;
+        this.responseCache = responseCache;
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * Records the stages of a finished request
+     * 
+     * @param timer
+     */
+    void record(RequestTimer timer) {
+        requests.incrementAndGet();
+
+        String type = timer.getRequestType() != null ? timer.getRequestType() : NO_TYPE;
+
+        Series current = series(timer.getHost(), type, timer.getStatus());
+        for (RequestTimer.Stage stage : STAGES)
+            current.histograms[stage.ordinal()].record(timer.get(stage));
+    }
+
+    /**
+     * Records a remote response aborted instead of read to its end
+     * 
+     * @param savedBytes the announced body bytes left unread, 0 if unknown
+     */
+    void recordAbort(long savedBytes) {
+        abortedResponses.incrementAndGet();
+        if (savedBytes > 0)
+            abortedBytes.addAndGet(savedBytes);
+    }
+
+    /**
+     * Records a request sent to a mirror of its remote host, the first request being late
+     */
+    void recordHedge() {
+        hedgedRequests.incrementAndGet();
+    }
+
+    /**
+     * Records a hedged request answered by the mirror first
+     */
+    void recordHedgeWin() {
+        hedgeWins.incrementAndGet();
+    }
+
+    /**
+     * Records a request rejected without being sent to its remote host
+     * 
+     * @param circuitOpen true if the circuit of the host is open, false if the host has too many
+     *        requests in flight
+     */
+    void recordRejection(boolean circuitOpen) {
+        (circuitOpen ? circuitRejections : concurrencyRejections).incrementAndGet();
+    }
+
+    private Series series(String host, String type, int status) {
+        host = label(host);
+        String key = host + ' ' + type + ' ' + status;
+
+        Series current = series.get(key);
+        if (current != null)
+            return current;
+
+        if (series.size() >= MAX_SERIES) {
+            host = OTHER_HOST;
+            key = host + ' ' + type + ' ' + status;
+
+            current = series.get(key);
+            if (current != null)
+                return current;
+        }
+
+        current = new Series(host, type, status);
+        Series existing = series.putIfAbsent(key, current);
+        return existing != null ? existing : current;
+    }
+
+    /**
+     * @param host the remote host of a request
+     * @return String the host if it is in the <code>upstreamHosts</code> list, {@link #OTHER_HOST}
+     *         otherwise
+     */
+    private String label(String host) {
+        if (host == null || !proxyConfig.isUpstreamHost(host))
+            return OTHER_HOST;
+        return host;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, replacing the ones registered with the
+     * same name
+     * 
+     * @param name
+     */
+    void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("it.geosolutions.httpproxy:type=ProxyMetrics,name="
+                    + ObjectName.quote(name));
+
+            try {
+                server.registerMBean(this, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(this, objectName);
+            }
+
+            this.objectName = objectName;
+        } catch (Exception e) {
+            if (LOGGER.isLoggable(Level.WARNING))
+                LOGGER.log(Level.WARNING, "Unable to register the proxy metrics MBean", e);
+        }
+    }
+
+    void unregister() {
+        if (objectName == null)
+            return;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.log(Level.FINE, "Unable to unregister the proxy metrics MBean", e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format
+     * 
+     * @param out
+     * @throws IOException
+     */
+    void write(Writer out) throws IOException {
+        out.write("# HELP http_proxy_requests_total The proxied requests.\n");
+        out.write("# TYPE http_proxy_requests_total counter\n");
+        out.write("http_proxy_requests_total " + requests.get() + "\n");
+        out.write("# HELP http_proxy_aborted_responses_total The remote responses aborted instead of read to their end.\n");
+        out.write("# TYPE http_proxy_aborted_responses_total counter\n");
+        out.write("http_proxy_aborted_responses_total " + abortedResponses.get() + "\n");
+        out.write("# HELP http_proxy_aborted_bytes_total The announced remote response bytes left unread.\n");
+        out.write("# TYPE http_proxy_aborted_bytes_total counter\n");
+        out.write("http_proxy_aborted_bytes_total " + abortedBytes.get() + "\n");
+        out.write("# HELP http_proxy_hedged_requests_total The requests sent to a mirror too, the first one being late.\n");
+        out.write("# TYPE http_proxy_hedged_requests_total counter\n");
+        out.write("http_proxy_hedged_requests_total " + hedgedRequests.get() + "\n");
+        out.write("# HELP http_proxy_hedge_wins_total The hedged requests answered by the mirror first.\n");
+        out.write("# TYPE http_proxy_hedge_wins_total counter\n");
+        out.write("http_proxy_hedge_wins_total " + hedgeWins.get() + "\n");
+        out.write("# HELP http_proxy_circuit_rejections_total The requests rejected as the circuit of their remote host is open.\n");
+        out.write("# TYPE http_proxy_circuit_rejections_total counter\n");
+        out.write("http_proxy_circuit_rejections_total " + circuitRejections.get() + "\n");
+        out.write("# HELP http_proxy_concurrency_rejections_total The requests rejected as their remote host has too many requests in flight.\n");
+        out.write("# TYPE http_proxy_concurrency_rejections_total counter\n");
+        out.write("http_proxy_concurrency_rejections_total " + concurrencyRejections.get() + "\n");
+
+        Map<String, Series> sorted = new TreeMap<String, Series>(series);
+
+        out.write("# HELP http_proxy_stage_seconds The time spent in each stage of the proxied requests.\n");
+        out.write("# TYPE http_proxy_stage_seconds summary\n");
+        for (Series current : sorted.values()) {
+            for (RequestTimer.Stage stage : STAGES) {
+                LatencyHistogram histogram = current.histograms[stage.ordinal()];
+                if (histogram.getCount() == 0)
+                    continue;
+
+                String labels = "stage=\"" + stage.getLabel() + "\"," + current.labels;
+                for (double quantile : QUANTILES)
+                    out.write("http_proxy_stage_seconds{" + labels + ",quantile=\"" + quantile
+                            + "\"} " + histogram.getPercentile(quantile) + "\n");
+                out.write("http_proxy_stage_seconds_sum{" + labels + "} " + histogram.getSum()
+                        + "\n");
+                out.write("http_proxy_stage_seconds_count{" + labels + "} "
+                        + histogram.getCount() + "\n");
+            }
+        }
+
+        out.write("# HELP http_proxy_stage_max_seconds The longest time spent in each stage.\n");
+        out.write("# TYPE http_proxy_stage_max_seconds gauge\n");
+        for (Series current : sorted.values()) {
+            for (RequestTimer.Stage stage : STAGES) {
+                LatencyHistogram histogram = current.histograms[stage.ordinal()];
+                if (histogram.getCount() > 0)
+                    out.write("http_proxy_stage_max_seconds{stage=\"" + stage.getLabel() + "\","
+                            + current.labels + "} " + histogram.getMax() + "\n");
+            }
+        }
+
+        if (responseCache != null) {
+            out.write("# HELP http_proxy_cache_hits_total The responses served from the cache.\n");
+            out.write("# TYPE http_proxy_cache_hits_total counter\n");
+            out.write("http_proxy_cache_hits_total " + getCacheHitCount() + "\n");
+            out.write("# HELP http_proxy_cache_misses_total The lookups not finding a fresh response.\n");
+            out.write("# TYPE http_proxy_cache_misses_total counter\n");
+            out.write("http_proxy_cache_misses_total " + getCacheMissCount() + "\n");
+            out.write("# HELP http_proxy_cache_revalidations_total The stale responses confirmed by the remote server.\n");
+            out.write("# TYPE http_proxy_cache_revalidations_total counter\n");
+            out.write("http_proxy_cache_revalidations_total " + getCacheRevalidationCount() + "\n");
+            out.write("# HELP http_proxy_cache_stores_total The responses stored in the cache.\n");
+            out.write("# TYPE http_proxy_cache_stores_total counter\n");
+            out.write("http_proxy_cache_stores_total " + getCacheStoreCount() + "\n");
+            out.write("# HELP http_proxy_cache_evictions_total The responses evicted to make room for new ones.\n");
+            out.write("# TYPE http_proxy_cache_evictions_total counter\n");
+            out.write("http_proxy_cache_evictions_total " + getCacheEvictionCount() + "\n");
+            out.write("# HELP http_proxy_cache_hit_ratio The requests served without transferring the body from the remote server.\n");
+            out.write("# TYPE http_proxy_cache_hit_ratio gauge\n");
+            out.write("http_proxy_cache_hit_ratio " + getCacheHitRatio() + "\n");
+            out.write("# HELP http_proxy_cache_bytes The size of the cached responses.\n");
+            out.write("# TYPE http_proxy_cache_bytes gauge\n");
+            out.write("http_proxy_cache_bytes " + getCacheBytes() + "\n");
+            out.write("# HELP http_proxy_cache_entries The cached responses.\n");
+            out.write("# TYPE http_proxy_cache_entries gauge\n");
+            out.write("http_proxy_cache_entries " + getCacheEntries() + "\n");
+        }
+
+        if (requestCoalescer != null) {
+            out.write("# HELP http_proxy_coalesce_leaders_total The remote requests other identical requests could join.\n");
+            out.write("# TYPE http_proxy_coalesce_leaders_total counter\n");
+            out.write("http_proxy_coalesce_leaders_total " + getCoalesceLeaderCount() + "\n");
+            out.write("# HELP http_proxy_coalesced_requests_total The requests that joined an identical remote request.\n");
+            out.write("# TYPE http_proxy_coalesced_requests_total counter\n");
+            out.write("http_proxy_coalesced_requests_total " + getCoalescedRequestCount() + "\n");
+        }
+
+        if (connectionManager == null)
+            return;
+
+        out.write("# HELP http_proxy_pool_max_connections The maximum number of pooled connections.\n");
+        out.write("# TYPE http_proxy_pool_max_connections gauge\n");
+        out.write("http_proxy_pool_max_connections " + getPoolMaxConnections() + "\n");
+        out.write("# HELP http_proxy_pool_connections The pooled connections, in use or idle.\n");
+        out.write("# TYPE http_proxy_pool_connections gauge\n");
+        out.write("http_proxy_pool_connections " + getPoolConnections() + "\n");
+
+        Map<String, int[]> hosts = new TreeMap<String, int[]>();
+        for (Map.Entry<String, int[]> pool : connectionManager.getHostUsage().entrySet()) {
+            String key = pool.getKey();
+            int colon = key.lastIndexOf(':');
+            if (colon >= 0 && label(key.substring(0, colon)) == OTHER_HOST)
+                key = OTHER_HOST;
+
+            int[] usage = hosts.get(key);
+            if (usage == null)
+                hosts.put(key, pool.getValue());
+            else {
+                usage[0] += pool.getValue()[0];
+                usage[1] += pool.getValue()[1];
+            }
+        }
+
+        out.write("# HELP http_proxy_pool_connections_in_use The pooled connections in use.\n");
+        out.write("# TYPE http_proxy_pool_connections_in_use gauge\n");
+        out.write("http_proxy_pool_connections_in_use " + getPoolConnectionsInUse() + "\n");
+        for (Map.Entry<String, int[]> host : hosts.entrySet())
+            out.write("http_proxy_pool_connections_in_use{host=\"" + escape(host.getKey())
+                    + "\"} " + host.getValue()[0] + "\n");
+
+        out.write("# HELP http_proxy_pool_waiting_threads The threads waiting for a pooled connection.\n");
+        out.write("# TYPE http_proxy_pool_waiting_threads gauge\n");
+        out.write("http_proxy_pool_waiting_threads " + getPoolWaitingThreads() + "\n");
+        for (Map.Entry<String, int[]> host : hosts.entrySet())
+            out.write("http_proxy_pool_waiting_threads{host=\"" + escape(host.getKey()) + "\"} "
+                    + host.getValue()[1] + "\n");
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getAbortedResponseCount() {
+        return abortedResponses.get();
+    }
+
+    public long getAbortedBytes() {
+        return abortedBytes.get();
+    }
+
+    public long getHedgedRequestCount() {
+        return hedgedRequests.get();
+    }
+
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    public long getCircuitRejectionCount() {
+        return circuitRejections.get();
+    }
+
+    public long getConcurrencyRejectionCount() {
+        return concurrencyRejections.get();
+    }
+
+    public long getCacheHitCount() {
+        return responseCache != null ? responseCache.getHits() : 0;
+    }
+
+    public long getCacheMissCount() {
+        return responseCache != null ? responseCache.getMisses() : 0;
+    }
+
+    public long getCacheRevalidationCount() {
+        return responseCache != null ? responseCache.getRevalidations() : 0;
+    }
+
+    public long getCacheStoreCount() {
+        return responseCache != null ? responseCache.getStores() : 0;
+    }
+
+    public long getCacheEvictionCount() {
+        return responseCache != null ? responseCache.getEvictions() : 0;
+    }
+
+    public double getCacheHitRatio() {
+        return responseCache != null ? responseCache.getHitRatio() : 0;
+    }
+
+    public long getCacheBytes() {
+        return responseCache != null ? responseCache.getBytes() : 0;
+    }
+
+    public int getCacheEntries() {
+        return responseCache != null ? responseCache.getEntries() : 0;
+    }
+
+    public long getCoalesceLeaderCount() {
+        return requestCoalescer != null ? requestCoalescer.getLed() : 0;
+    }
+
+    public long getCoalescedRequestCount() {
+        return requestCoalescer != null ? requestCoalescer.getCoalesced() : 0;
+    }
+
+    public int getPoolMaxConnections() {
+        return connectionManager != null ? connectionManager.getParams().getMaxTotalConnections()
+                : 0;
+    }
+
+    public int getPoolConnections() {
+        return connectionManager != null ? connectionManager.getConnectionsInPool() : 0;
+    }
+
+    public int getPoolConnectionsInUse() {
+        return connectionManager != null ? connectionManager.getLeasedConnections() : 0;
+    }
+
+    public int getPoolWaitingThreads() {
+        return connectionManager != null ? connectionManager.getWaitingThreads() : 0;
+    }
+
+    public String[] getSeries() {
+        return new TreeMap<String, Series>(series).keySet().toArray(new String[0]);
+    }
+
+    public double getLatencyMillis(String series, String stage, double percentile) {
+        Series current = this.series.get(series);
+        if (current == null)
+            return 0;
+
+        for (RequestTimer.Stage s : STAGES)
+            if (s.getLabel().equals(stage))
+                return current.histograms[s.ordinal()].getPercentile(percentile) * 1000;
+
+        throw new IllegalArgumentException("Unknown stage " + stage);
+    }
+
+    public String getText() {
+        StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (IOException e) {
+            // not thrown by a StringWriter
+        }
+        return out.toString();
+    }
+
+    public void reset() {
+        series.clear();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The histograms of the requests sharing host, request type and status.
+     */
+    private static final class Series {
+
+        final String labels;
+
+        final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+
+        Series(String host, String type, int status) {
+            this.labels = "host=\"" + escape(host) + "\",type=\"" + escape(type) + "\",status=\""
+                    + status + "\"";
+
+            for (int i = 0; i < histograms.length; i++)
+                histograms[i] = new LatencyHistogram();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+/**
+ * The JMX management interface of the proxy metrics.
+ */
+public interface ProxyMetricsMBean {
+
+    /**
+     * @return long the number of proxied requests recorded
+     */
+    long getRequestCount();
+
+    /**
+     * @return long the number of remote responses aborted instead of read to their end
+     */
+    long getAbortedResponseCount();
+
+    /**
+     * @return long the number of announced remote response bytes left unread by the aborts
+     */
+    long getAbortedBytes();
+
+    /**
+     * @return long the number of requests sent to a mirror of their remote host too
+     */
+    long getHedgedRequestCount();
+
+    /**
+     * @return long the number of hedged requests answered by the mirror first
+     */
+    long getHedgeWinCount();
+
+    /**
+     * @return long the number of requests rejected as the circuit of their remote host is open
+     */
+    long getCircuitRejectionCount();
+
+    /**
+     * @return long the number of requests rejected as their remote host has too many requests in
+     *         flight
+     */
+    long getConcurrencyRejectionCount();
+
+    /**
+     * @return long the number of responses served from the cache
+     */
+    long getCacheHitCount();
+
+    /**
+     * @return long the number of cache lookups not finding a fresh response
+     */
+    long getCacheMissCount();
+
+    /**
+     * @return long the number of stale cached responses confirmed by the remote server
+     */
+    long getCacheRevalidationCount();
+
+    /**
+     * @return long the number of responses stored in the cache
+     */
+    long getCacheStoreCount();
+
+    /**
+     * @return long the number of cached responses evicted to make room for new ones
+     */
+    long getCacheEvictionCount();
+
+    /**
+     * @return double the ratio of requests served without transferring the body from the remote
+     *         server, 0 without a cache
+     */
+    double getCacheHitRatio();
+
+    /**
+     * @return long the size of the cached responses
+     */
+    long getCacheBytes();
+
+    /**
+     * @return int the number of cached responses
+     */
+    int getCacheEntries();
+
+    /**
+     * @return long the number of remote requests other identical requests could join
+     */
+    long getCoalesceLeaderCount();
+
+    /**
+     * @return long the number of requests that joined an identical remote request rather than
+     *         sending their own
+     */
+    long getCoalescedRequestCount();
+
+    /**
+     * @return int the maximum number of pooled connections
+     */
+    int getPoolMaxConnections();
+
+    /**
+     * @return int the number of pooled connections, in use or idle
+     */
+    int getPoolConnections();
+
+    /**
+     * @return int the number of pooled connections in use
+     */
+    int getPoolConnectionsInUse();
+
+    /**
+     * @return int the number of threads waiting for a pooled connection
+     */
+    int getPoolWaitingThreads();
+
+    /**
+     * @return String[] the recorded series, as <code>host type status</code>
+     */
+    String[] getSeries();
+
+    /**
+     * @param series a series as returned by {@link #getSeries()}
+     * @param stage the stage, such as <code>total</code> or <code>first_byte</code>
+     * @param percentile between 0 and 1
+     * @return double the latency in milliseconds, 0 if nothing is recorded
+     */
+    double getLatencyMillis(String series, String stage, double percentile);
+
+    /**
+     * @return String the metrics in the Prometheus text format
+     */
+    String getText();
+
+    /**
+     * Forgets the recorded latencies
+     */
+    void reset();
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import it.geosolutions.httpproxy.CallbackPhases.Phase;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * RateLimitChecker class limiting the requests per second, the requests in flight and the response
+ * bytes per second of each client, by authenticated user or client address. The requests beyond
+ * the limits are rejected with 429 and a <code>Retry-After</code> header.
+ * <p>
+ * The bytes sent to a client are counted against its bandwidth once its request is over, so a
+ * client exceeding it is rejected until it is paid back.
+ * <p>
+ * Not a check: it takes a token and an in-flight slot, so it runs after the checks and only
+ * charges the requests they let through.
+ */
+@CallbackPhases(value = { Phase.REQUEST, Phase.FINISH })
+public class RateLimitChecker implements ProxyCallback {
+
+    private static final String ATTRIBUTE = RateLimitChecker.class.getName();
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    ProxyConfig config;
+
+    private final RateLimiter limiter;
+
+    /**
+     * @param config
+     */
+    public RateLimitChecker(ProxyConfig config) {
+        this.config = config;
+        this.limiter = new RateLimiter(config.getRateLimitMaxClients());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.geosolutions.httpproxy.ProxyCallback#onRequest(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
+            throws IOException {
+        double requests = config.getRateLimitRequests();
+        int concurrent = config.getRateLimitConcurrent();
+        long bytes = config.getRateLimitBytes();
+
+        if (requests <= 0 && concurrent <= 0 && bytes <= 0)
+            return;
+
+        String client = null;
+        if (config.isRateLimitByUser() && request.getRemoteUser() != null)
+            client = "user:" + request.getRemoteUser();
+        if (client == null)
+            client = HostChecker.getRemoteAddr(request, config.getTrustedProxiesMatcher());
+
+        long now = limiter.now();
+        RateLimiter.Bucket bucket = limiter.get(client, now,
+                TimeUnit.MILLISECONDS.toNanos(config.getRateLimitIdleTime()));
+
+        long requestInterval = requests > 0 ? RateLimiter.interval(requests) : 0;
+        long byteBurst = bytes > 0 ? Math.max(1, config.getRateLimitBurstBytes())
+                * RateLimiter.interval(bytes) : 0;
+
+        long wait = bucket.acquire(now, requestInterval, config.getRateLimitBurst(), concurrent,
+                byteBurst);
+
+        if (wait != 0) {
+            long retryAfter = wait < 0 ? 1 : Math.max(1,
+                    (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+            throw new HttpErrorException(TOO_MANY_REQUESTS, "Too many requests from client "
+                    + client, retryAfter);
+        }
+
+        ProxyContext context = ProxyContext.current();
+        if (context != null)
+            context.setAttribute(ATTRIBUTE, bucket);
+        else
+            bucket.release(now, 0, 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.geosolutions.httpproxy.ProxyCallback#onRemoteResponse(org.apache.commons.httpclient.HttpMethod)
+     */
+    public void onRemoteResponse(HttpMethod method) throws IOException {
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see it.geosolutions.httpproxy.ProxyCallback#onFinish()
+     */
+    public void onFinish() throws IOException {
+        ProxyContext context = ProxyContext.current();
+        if (context == null)
+            return;
+
+        RateLimiter.Bucket bucket = (RateLimiter.Bucket) context.getAttribute(ATTRIBUTE);
+        if (bucket == null)
+            return;
+
+        context.setAttribute(ATTRIBUTE, null);
+        bucket.release(limiter.now(), context.getBytesSent(), config.getRateLimitBytes());
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The request and bandwidth limits of the clients, by client.
+ * <p>
+ * Each client has a {@link Bucket} of atomic counters: the rate limits are token buckets kept as
+ * the theoretical arrival time of the next request (or byte), which a single compare and set
+ * updates, and the requests in flight are counted. The buckets are spread over shards, each one
+ * dropping its idle buckets every <code>idleTime</code>, on the thread of a request. A known
+ * client takes no lock, a new one locks a segment of its shard to be added.
+ */
+final class RateLimiter {
+
+    private static final int SHARD_BITS = 6;
+
+    private static final int SHARDS = 1 << SHARD_BITS;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final Shard[] shards = new Shard[SHARDS];
+
+    private final int maxPerShard;
+
+    /**
+     * The bucket shared by the clients beyond the maximum
+     */
+    private final Bucket overflow = new Bucket();
+
+    /**
+     * The times are counted from this one, so that they are never negative
+     */
+    private final long origin = System.nanoTime();
+
+    /**
+     * @param maxClients the clients tracked at most, the others sharing a single bucket
+     */
+    RateLimiter(int maxClients) {
+        maxPerShard = Math.max(1, maxClients / SHARDS);
+        for (int i = 0; i < SHARDS; i++)
+            shards[i] = new Shard();
+    }
+
+    /**
+     * @return long the current time in nanoseconds
+     */
+    long now() {
+        return System.nanoTime() - origin;
+    }
+
+    /**
+     * @param client
+     * @param now the current time in nanoseconds, as returned by {@link #now()}
+     * @param idleNanos the time after which an idle bucket is dropped
+     * @return Bucket the bucket of the client
+     */
+    Bucket get(String client, long now, long idleNanos) {
+        // the high bits of a multiplicative hash, spreading the addresses differing by a digit
+        Shard shard = shards[(client.hashCode() * 0x9E3779B9) >>> (32 - SHARD_BITS)];
+
+        long next = shard.nextSweep.get();
+        if (now >= next && shard.nextSweep.compareAndSet(next, now + idleNanos))
+            shard.sweep(now, idleNanos);
+
+        Bucket bucket = shard.buckets.get(client);
+        if (bucket != null)
+            return bucket;
+
+        if (shard.size.get() >= maxPerShard) {
+            shard.sweep(now, idleNanos);
+            if (shard.size.get() >= maxPerShard)
+                return overflow;
+        }
+
+        bucket = new Bucket();
+        Bucket existing = shard.buckets.putIfAbsent(client, bucket);
+        if (existing != null)
+            return existing;
+
+        shard.size.incrementAndGet();
+        return bucket;
+    }
+
+    /**
+     * @return int the number of tracked clients
+     */
+    int size() {
+        int size = 0;
+        for (Shard shard : shards)
+            size += shard.size.get();
+        return size;
+    }
+
+    /**
+     * @param rate the events per second
+     * @return long the nanoseconds between two events at the given rate
+     */
+    static long interval(double rate) {
+        return (long) Math.ceil(NANOS_PER_SECOND / rate);
+    }
+
+    /**
+     * The limits state of a client.
+     */
+    static final class Bucket {
+
+        private final AtomicLong requests = new AtomicLong();
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private volatile long lastSeen;
+
+        /**
+         * Takes a request from the limits of the client: the bytes are checked first, then the
+         * requests in flight, then the request rate
+         * 
+         * @param now the current time in nanoseconds
+         * @param requestInterval the nanoseconds between two requests, 0 for no rate limit
+         * @param burst the requests allowed at once
+         * @param maxInFlight the requests in flight allowed, 0 for no limit
+         * @param byteBurstNanos the bytes allowed at once, as the time to send them at the
+         *        allowed rate, 0 for no bandwidth limit
+         * @return long 0 if the request is allowed, it must then be reported to {@link #release},
+         *         or else the nanoseconds to wait before retrying, -1 if unknown
+         */
+        long acquire(long now, long requestInterval, int burst, int maxInFlight,
+                long byteBurstNanos) {
+            lastSeen = now;
+
+            if (byteBurstNanos > 0) {
+                long debt = bytes.get() - now;
+                if (debt > byteBurstNanos)
+                    return debt - byteBurstNanos;
+            }
+
+            if (maxInFlight > 0) {
+                int current;
+                do {
+                    current = inFlight.get();
+                    if (current >= maxInFlight)
+                        return -1;
+                } while (!inFlight.compareAndSet(current, current + 1));
+            } else {
+                inFlight.incrementAndGet();
+            }
+
+            if (requestInterval > 0) {
+                long tolerance = Math.max(0, burst - 1) * requestInterval;
+                long arrival, next;
+                do {
+                    arrival = requests.get();
+                    long base = Math.max(arrival, now);
+                    if (base - now > tolerance) {
+                        inFlight.decrementAndGet();
+                        return base - now - tolerance;
+                    }
+                    next = base + requestInterval;
+                } while (!requests.compareAndSet(arrival, next));
+            }
+
+            return 0;
+        }
+
+        /**
+         * Reports a request allowed by {@link #acquire} as finished
+         * 
+         * @param now the current time in nanoseconds
+         * @param sent the response bytes sent to the client
+         * @param byteRate the bytes per second allowed, 0 for no bandwidth limit
+         */
+        void release(long now, long sent, long byteRate) {
+            inFlight.decrementAndGet();
+            lastSeen = now;
+
+            if (sent <= 0 || byteRate <= 0)
+                return;
+
+            long cost = (long) (sent * ((double) NANOS_PER_SECOND / byteRate));
+            long arrival;
+            do {
+                arrival = bytes.get();
+            } while (!bytes.compareAndSet(arrival, Math.max(arrival, now) + cost));
+        }
+
+        /**
+         * @return int the requests in flight
+         */
+        int getInFlight() {
+            return inFlight.get();
+        }
+
+        boolean isIdle(long now, long idleNanos) {
+            return now - lastSeen > idleNanos && inFlight.get() == 0 && requests.get() <= now
+                    && bytes.get() <= now;
+        }
+    }
+
+    private static final class Shard {
+
+        final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>(16,
+                0.75f, 4);
+
+        final AtomicInteger size = new AtomicInteger();
+
+        final AtomicLong nextSweep = new AtomicLong();
+
+        void sweep(long now, long idleNanos) {
+            Iterator<Bucket> buckets = this.buckets.values().iterator();
+            while (buckets.hasNext()) {
+                if (buckets.next().isIdle(now, idleNanos)) {
+                    buckets.remove();
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+}
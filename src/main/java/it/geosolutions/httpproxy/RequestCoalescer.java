@@ -0,0 +1,603 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+
+/**
+ * Lets concurrent identical GET requests share a single remote request.
+ * <p>
+ * The first request (the leader) executes the remote request, the identical requests arriving before
+ * the remote response headers (the followers) wait for them. The leader then publishes the status,
+ * the headers and every chunk of the body as it relays them to its own client, and each follower
+ * reads them at its own pace. If the remote request fails before the headers, every
+ * follower answers with the leader error; if it fails while streaming, the followers responses are
+ * interrupted as the leader one.
+ * <p>
+ * The chunks are dropped as soon as every follower has read them, and no more than a window of
+ * bytes is kept: the leader never waits for its followers, those still reading the oldest chunk
+ * when the window is full are interrupted, those that have not started reading the body yet
+ * execute their own remote request.
+ * <p>
+ * Requests are identical when they have the same URL, credentials, cookies and content negotiation
+ * headers. Range and conditional requests are never coalesced.
+ */
+final class RequestCoalescer {
+
+    /**
+     * The request attribute holding the {@link Flight} led by the request
+     */
+    static final String ATTRIBUTE = RequestCoalescer.class.getName();
+
+    /**
+     * The request attribute holding the {@link Flight} a suspended request follows
+     */
+    static final String FOLLOWER_ATTRIBUTE = RequestCoalescer.class.getName() + ".follower";
+
+    private static final String[] CONDITIONAL_HEADERS = { "Range", "If-Match", "If-None-Match",
+            "If-Modified-Since", "If-Unmodified-Since", "If-Range" };
+
+    private static final int WAITING = 0;
+
+    private static final int STREAMING = 1;
+
+    private static final int FAILED = 2;
+
+    private static final int RETRY = 3;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    private final AtomicLong led = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final int windowBytes;
+
+    /**
+     * @param windowBytes the maximum size in bytes of the body chunks kept for the followers of a
+     *        flight
+     */
+    RequestCoalescer(int windowBytes) {
+        this.windowBytes = windowBytes;
+    }
+
+    /**
+     * Joins the flight of an identical request, or starts a new one.
+     *
+     * @param url the remote URL
+     * @param user the remote user, if any
+     * @param password the remote password, if any
+     * @param request the client request
+     * @return Flight the joined or started flight, null if the request cannot be coalesced
+     */
+    Flight join(URL url, String user, String password, HttpServletRequest request) {
+        for (String name : CONDITIONAL_HEADERS)
+            if (request.getHeader(name) != null)
+                return null;
+
+        String key = url.toExternalForm() + '\n'
+                + Utils.fingerprint(user, password, request.getHeader("Authorization"),
+                        request.getHeader("Cookie"), request.getHeader("Accept"),
+                        request.getHeader("Accept-Language"));
+
+        Flight flight = new Flight(key);
+        while (true) {
+            Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                led.incrementAndGet();
+                request.setAttribute(ATTRIBUTE, flight);
+                return flight;
+            }
+
+            if (existing.follow()) {
+                coalesced.incrementAndGet();
+                return existing;
+            }
+
+            // the existing flight got its headers meanwhile
+            flights.remove(key, existing);
+        }
+    }
+
+    /**
+     * @param request
+     * @return Flight the flight led by the request, null if none
+     */
+    static Flight get(HttpServletRequest request) {
+        return (Flight) request.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * @param request
+     * @return Flight the flight the request has been suspended for, null if none
+     */
+    static Flight getFollowed(HttpServletRequest request) {
+        return (Flight) request.getAttribute(FOLLOWER_ATTRIBUTE);
+    }
+
+    /**
+     * @return long the number of remote requests started with a flight other requests could join
+     */
+    long getLed() {
+        return led.get();
+    }
+
+    /**
+     * @return long the number of client requests that joined another request
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * A remote request shared by identical client requests.
+     */
+    final class Flight {
+
+        private final String key;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition changed = lock.newCondition();
+
+        // ///////////////////////////////////////
+        // The following fields are guarded by lock
+        // ///////////////////////////////////////
+
+        private int state = WAITING;
+
+        private int waiting;
+
+        private int status;
+
+        private List<String[]> headers;
+
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+        private long base;
+
+        private long buffered;
+
+        private boolean headDropped;
+
+        private final List<Reader> readers = new ArrayList<Reader>();
+
+        private final List<Continuation> suspended = new ArrayList<Continuation>();
+
+        private boolean complete;
+
+        private boolean aborted;
+
+        private int errorCode;
+
+        private String errorMessage;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return boolean true if some requests are waiting for this flight
+         */
+        boolean hasFollowers() {
+            lock.lock();
+            try {
+                return waiting > 0 || !readers.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return long the size in bytes of the body chunks kept for the followers
+         */
+        long getBufferedBytes() {
+            lock.lock();
+            try {
+                return buffered;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean follow() {
+            lock.lock();
+            try {
+                if (state != WAITING)
+                    return false;
+
+                waiting++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Drops the chunks every follower has read, must be called holding the lock
+         */
+        private void trim() {
+            if (waiting > 0)
+                return;
+
+            long first = base + chunks.size();
+            for (Reader reader : readers)
+                first = Math.min(first, reader.index);
+
+            drop((int) (first - base));
+        }
+
+        private void drop(int count) {
+            if (count <= 0)
+                return;
+
+            List<byte[]> dropped = chunks.subList(0, count);
+            for (byte[] chunk : dropped)
+                buffered -= chunk.length;
+            dropped.clear();
+            base += count;
+        }
+
+        /**
+         * Publishes the remote response status and headers, from now on identical requests start a
+         * new flight.
+         *
+         * @param status
+         * @param headers the name and value of the headers sent to the client
+         */
+        void start(int status, List<String[]> headers) {
+            flights.remove(key, this);
+
+            lock.lock();
+            try {
+                this.state = STREAMING;
+                this.status = status;
+                this.headers = headers;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            resume();
+        }
+
+        /**
+         * Publishes a chunk of the remote response body
+         *
+         * @param b
+         * @param off
+         * @param len
+         */
+        void publish(byte[] b, int off, int len) {
+            lock.lock();
+            try {
+                if (waiting == 0 && readers.isEmpty())
+                    return;
+
+                byte[] chunk = new byte[len];
+                System.arraycopy(b, off, chunk, 0, len);
+                chunks.add(chunk);
+                buffered += len;
+
+                // //////////////////////////////////////////
+                // Evict the oldest chunk while the window is
+                // full, along with the followers needing it
+                // //////////////////////////////////////////
+
+                while (buffered > windowBytes && chunks.size() > 1) {
+                    if (base == 0 && waiting > 0) {
+                        headDropped = true;
+                        waiting = 0;
+                    }
+
+                    for (Iterator<Reader> it = readers.iterator(); it.hasNext();) {
+                        Reader reader = it.next();
+                        if (reader.index == base) {
+                            reader.detached = true;
+                            it.remove();
+                        }
+                    }
+
+                    drop(1);
+                }
+
+                trim();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Marks the remote response body as complete
+         */
+        void finish() {
+            lock.lock();
+            try {
+                complete = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Fails the flight: followers still waiting for the headers answer with the given error.
+         *
+         * @param code
+         * @param message
+         */
+        void fail(int code, String message) {
+            flights.remove(key, this);
+
+            lock.lock();
+            try {
+                if (state == WAITING) {
+                    state = FAILED;
+                    errorCode = code;
+                    errorMessage = message;
+                } else {
+                    aborted = !complete;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            resume();
+        }
+
+        /**
+         * Ends the flight once the leader request is over. Followers still waiting for the headers
+         * execute their own remote request, those receiving the body are interrupted unless it is
+         * complete.
+         */
+        void land() {
+            flights.remove(key, this);
+
+            lock.lock();
+            try {
+                if (state == WAITING)
+                    state = RETRY;
+                else if (state == STREAMING && !complete)
+                    aborted = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            resume();
+        }
+
+        /**
+         * Suspends a follower request until the leader gets the remote response headers or the
+         * timeout expires, so that waiting followers do not hold container threads the leader
+         * needs. With Jetty the request is dispatched again and is found by {@link #getFollowed},
+         * other containers just wait on the calling thread.
+         *
+         * @param request the follower request
+         * @param timeout
+         */
+        void suspend(HttpServletRequest request, long timeout) {
+            Continuation continuation = ContinuationSupport.getContinuation(request, null);
+
+            lock.lock();
+            try {
+                if (state != WAITING)
+                    return;
+
+                suspended.add(continuation);
+            } finally {
+                lock.unlock();
+            }
+
+            request.setAttribute(FOLLOWER_ATTRIBUTE, this);
+            continuation.suspend(timeout);
+            request.removeAttribute(FOLLOWER_ATTRIBUTE);
+        }
+
+        private void resume() {
+            List<Continuation> continuations;
+
+            lock.lock();
+            try {
+                continuations = new ArrayList<Continuation>(suspended);
+                suspended.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            for (Continuation continuation : continuations)
+                continuation.resume();
+        }
+
+        /**
+         * Waits for the leader to get the remote response headers, then starts following the
+         * remote response body.
+         *
+         * @param wait whether to wait for the remote response headers, if false and the headers are
+         *        not available yet the follower answers 504 Gateway Timeout
+         * @return InputStream a new stream over the remote response body, blocking until the
+         *         leader publishes the next chunk, to be closed once done. Null if the leader got no
+         *         response to share, or if the first chunks are gone, and the follower must execute
+         *         its own request
+         * @throws HttpErrorException if the leader failed
+         */
+        InputStream await(boolean wait) throws HttpErrorException {
+            lock.lock();
+            try {
+                while (state == WAITING) {
+                    if (!wait) {
+                        waiting--;
+                        throw new HttpErrorException(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+                                "The remote server did not answer in time");
+                    }
+                    changed.awaitUninterruptibly();
+                }
+
+                if (headDropped)
+                    return null;
+
+                waiting--;
+
+                if (state == FAILED)
+                    throw new HttpErrorException(errorCode, errorMessage);
+
+                if (state == RETRY)
+                    return null;
+
+                Reader reader = new Reader(base);
+                readers.add(reader);
+                return reader;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return int the remote response status, once {@link #await} returned a stream
+         */
+        int getStatus() {
+            lock.lock();
+            try {
+                return status;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return List<String[]> the name and value of the remote response headers, once
+         *         {@link #await} returned a stream
+         */
+        List<String[]> getHeaders() {
+            lock.lock();
+            try {
+                return headers;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * A follower reading the remote response body from the chunks kept by the flight.
+         */
+        private final class Reader extends InputStream {
+
+            // ///////////////////////////////////////
+            // The following fields are guarded by lock
+            // ///////////////////////////////////////
+
+            private long index;
+
+            private boolean detached;
+
+            // ///////////////////////////////////////
+            // The following fields are only used by
+            // the follower thread
+            // ///////////////////////////////////////
+
+            private byte[] chunk;
+
+            private int position;
+
+            Reader(long index) {
+                this.index = index;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+
+                if (chunk == null || position == chunk.length) {
+                    lock.lock();
+                    try {
+                        while (!detached && index >= base + chunks.size() && !complete
+                                && !aborted)
+                            changed.awaitUninterruptibly();
+
+                        if (detached)
+                            throw new IOException(
+                                    "The client is too slow to follow the shared remote response");
+
+                        if (index >= base + chunks.size()) {
+                            leave();
+                            if (aborted)
+                                throw new IOException("The remote response has been interrupted");
+                            return -1;
+                        }
+
+                        chunk = chunks.get((int) (index++ - base));
+                        position = 0;
+                        trim();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+
+                int n = Math.min(len, chunk.length - position);
+                System.arraycopy(chunk, position, b, off, n);
+                position += n;
+                return n;
+            }
+
+            /**
+             * Stops following the flight, the chunks left unread can be dropped
+             */
+            @Override
+            public void close() {
+                lock.lock();
+                try {
+                    leave();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            private void leave() {
+                if (readers.remove(this))
+                    trim();
+            }
+        }
+    }
+}
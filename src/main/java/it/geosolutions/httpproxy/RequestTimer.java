@@ -0,0 +1,248 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * The time spent by a proxied request in each {@link Stage}, handed to {@link ProxyMetrics} once
+ * the request is over.
+ * <p>
+ * The timer is stored as a request attribute, so that it survives the dispatches of a suspended
+ * request, and bound to the thread executing the remote request, so that the connection manager
+ * can report the pool wait and the connect time.
+ */
+final class RequestTimer {
+
+    static final String ATTRIBUTE = RequestTimer.class.getName();
+
+    private static final ThreadLocal<RequestTimer> CURRENT = new ThreadLocal<RequestTimer>();
+
+    /**
+     * The stages of a proxied request
+     */
+    enum Stage {
+
+        /**
+         * The {@link ProxyCallback#onRequest} checks
+         */
+        CALLBACKS("callbacks"),
+
+        /**
+         * The wait for a pooled connection
+         */
+        POOL_WAIT("pool_wait"),
+
+        /**
+         * The opening of new connections
+         */
+        CONNECT("connect"),
+
+        /**
+         * From the execution of the remote request to its response headers, pool wait and connect
+         * included
+         */
+        FIRST_BYTE("first_byte"),
+
+        /**
+         * The relay of the response body to the client
+         */
+        TRANSFER("transfer"),
+
+        /**
+         * The whole request
+         */
+        TOTAL("total");
+
+        private final String label;
+
+        private Stage(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return String the name of the stage in the exported metrics
+         */
+        String getLabel() {
+            return label;
+        }
+    }
+
+    private final long start = System.nanoTime();
+
+    private final long[] stages = new long[Stage.values().length];
+
+    private String host;
+
+    private String requestType;
+
+    private int status = HttpServletResponse.SC_OK;
+
+    private RequestTimer() {
+        Arrays.fill(stages, -1);
+    }
+
+    /**
+     * @param request
+     * @return RequestTimer the timer of the request, created on its first dispatch
+     */
+    static RequestTimer start(HttpServletRequest request) {
+        RequestTimer timer = get(request);
+        if (timer == null) {
+            timer = new RequestTimer();
+            request.setAttribute(ATTRIBUTE, timer);
+        }
+
+        return timer;
+    }
+
+    /**
+     * @param request
+     * @return RequestTimer the timer of the request, null if it is not timed
+     */
+    static RequestTimer get(HttpServletRequest request) {
+        return (RequestTimer) request.getAttribute(ATTRIBUTE);
+    }
+
+    /**
+     * @return RequestTimer the timer bound to the current thread, null if none
+     */
+    static RequestTimer current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the timer to the current thread until {@link #detach()}
+     */
+    void attach() {
+        CURRENT.set(this);
+    }
+
+    static void detach() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Adds time to a stage, a stage can be entered several times
+     * 
+     * @param stage
+     * @param nanos
+     */
+    void add(Stage stage, long nanos) {
+        int i = stage.ordinal();
+        stages[i] = stages[i] < 0 ? nanos : stages[i] + nanos;
+    }
+
+    /**
+     * Adds the time elapsed since <code>started</code> to a stage
+     * 
+     * @param stage
+     * @param started a {@link System#nanoTime()} value
+     */
+    void since(Stage stage, long started) {
+        add(stage, System.nanoTime() - started);
+    }
+
+    /**
+     * @param stage
+     * @return long the nanoseconds spent in the stage, -1 if the request did not go through it
+     */
+    long get(Stage stage) {
+        if (stage == Stage.TOTAL && stages[stage.ordinal()] < 0)
+            return System.nanoTime() - start;
+
+        return stages[stage.ordinal()];
+    }
+
+    void setTarget(URL url) {
+        this.host = url.getHost().toLowerCase();
+    }
+
+    /**
+     * @return String the remote host, null until the remote URL is known
+     */
+    String getHost() {
+        return host;
+    }
+
+    void setRequestType(String requestType) {
+        this.requestType = requestType;
+    }
+
+    /**
+     * @return String the matching request type, null if none
+     */
+    String getRequestType() {
+        return requestType;
+    }
+
+    /**
+     * @return int the status sent to the client
+     */
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * @param response
+     * @return HttpServletResponse the response, recording the status it is given in this timer
+     */
+    HttpServletResponse wrap(HttpServletResponse response) {
+        return new HttpServletResponseWrapper(response) {
+
+            @Override
+            public void setStatus(int sc) {
+                status = sc;
+                super.setStatus(sc);
+            }
+
+            @Override
+            @SuppressWarnings("deprecation")
+            public void setStatus(int sc, String sm) {
+                status = sc;
+                super.setStatus(sc, sm);
+            }
+
+            @Override
+            public void sendError(int sc) throws IOException {
+                status = sc;
+                super.sendError(sc);
+            }
+
+            @Override
+            public void sendError(int sc, String msg) throws IOException {
+                status = sc;
+                super.sendError(sc, msg);
+            }
+
+            @Override
+            public void sendRedirect(String location) throws IOException {
+                status = HttpServletResponse.SC_MOVED_TEMPORARILY;
+                super.sendRedirect(location);
+            }
+        };
+    }
+}
@@ -19,12 +19,10 @@
  */
 package it.geosolutions.httpproxy;
 
+import it.geosolutions.httpproxy.CallbackPhases.Phase;
+
 import java.io.IOException;
 import java.net.URL;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -36,6 +34,7 @@ import org.apache.commons.httpclient.HttpMethod;
  * 
  * @author Tobia Di Pisa at tobia.dipisa@geo-solutions.it
  */
+@CallbackPhases(value = Phase.REQUEST, check = true)
 public class RequestTypeChecker implements ProxyCallback {
 
     ProxyConfig config;
@@ -54,37 +53,27 @@ public class RequestTypeChecker implements ProxyCallback {
      */
     public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
             throws IOException {
-        Set<String> reqTypes = config.getReqtypeWhitelist();
+        RequestTypeMatcher reqTypes = config.getReqtypeMatcher();
 
         // //////////////////////////////////////
         // Check off the request type
         // provided vs. permitted request types
         // //////////////////////////////////////
 
-        if (reqTypes != null && reqTypes.size() > 0) {
-            Iterator<String> iterator = reqTypes.iterator();
-
+        if (reqTypes != null && !reqTypes.isEmpty()) {
             String urlExtForm = url.toExternalForm();
             /*if (urlExtForm.indexOf("?") != -1) {
                 urlExtForm = urlExtForm.split("\\?")[1];
             }*/
 
-            boolean check = false;
-            while (iterator.hasNext()) {
-                String regex = iterator.next();
-
-                Pattern pattern = Pattern.compile(regex);
-                Matcher matcher = pattern.matcher(urlExtForm);
-
-                if (matcher.matches()) {
-                    check = true;
-                    break;
-                }
-            }
-
-            if (!check)
+            int reqType = reqTypes.match(urlExtForm);
+            if (reqType < 0)
                 throw new HttpErrorException(403, "Request Type"
                         + " is not among the ones allowed for this proxy");
+
+            RequestTimer timer = RequestTimer.get(request);
+            if (timer != null)
+                timer.setRequestType(reqTypes.getName(reqType));
         }
     }
 
@@ -0,0 +1,532 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+
+/**
+ * Matches URLs against all the configured request type regular expressions at once.
+ * <p>
+ * Patterns of the form <code>.*LITERAL.*</code>, possibly alternated as in
+ * <code>(.*a.*)|(.*b.*)</code>, where <code>LITERAL</code> is made of plain characters and simple
+ * character classes such as <code>[Gg]</code>, are compiled into a single Aho-Corasick automaton that
+ * scans the URL once in linear time. Any other pattern is precompiled and evaluated with
+ * {@link java.util.regex.Matcher#matches()}, exactly as before. Decisions are kept in a small bounded
+ * cache.
+ */
+final class RequestTypeMatcher {
+
+    private static final int ALPHABET = 128;
+
+    private static final int[] NO_OUTPUT = new int[0];
+
+    /**
+     * The request type names, in configuration order
+     */
+    private final String[] names;
+
+    /**
+     * The original patterns, used when the URL cannot be scanned by the automaton
+     */
+    private final Pattern[] patterns;
+
+    /**
+     * The patterns not handled by the automaton, null where the automaton applies
+     */
+    private final Pattern[] fallback;
+
+    /**
+     * The literal cores recognized by the automaton
+     */
+    private final Core[] cores;
+
+    /**
+     * The automaton transitions, <code>ALPHABET</code> entries per state, on lower cased characters
+     */
+    private final int[] delta;
+
+    /**
+     * The cores whose key ends in each state
+     */
+    private final int[][] outputs;
+
+    private final AtomicReferenceArray<Decision> cache;
+
+    private final int cacheMask;
+
+    /**
+     * @param reqTypes the request type regular expressions by name, in priority order
+     * @param cacheSize the number of cached decisions, 0 to disable the cache
+     */
+    RequestTypeMatcher(Map<String, String> reqTypes, int cacheSize) {
+        int n = reqTypes.size();
+        names = new String[n];
+        patterns = new Pattern[n];
+        fallback = new Pattern[n];
+
+        List<Core> coreList = new ArrayList<Core>();
+
+        int i = 0;
+        for (Map.Entry<String, String> entry : reqTypes.entrySet()) {
+            names[i] = entry.getKey();
+            patterns[i] = Pattern.compile(entry.getValue());
+
+            List<Core> parsed = parse(entry.getValue(), i);
+            if (parsed != null)
+                coreList.addAll(parsed);
+            else
+                fallback[i] = patterns[i];
+
+            i++;
+        }
+
+        cores = coreList.toArray(new Core[coreList.size()]);
+
+        // ////////////////////////////////////////
+        // Build the trie of the core keys, then
+        // turn it into a DFA following the
+        // failure links
+        // ////////////////////////////////////////
+
+        List<int[]> trie = new ArrayList<int[]>();
+        List<List<Integer>> out = new ArrayList<List<Integer>>();
+        trie.add(newNode());
+        out.add(new ArrayList<Integer>());
+
+        for (int c = 0; c < cores.length; c++) {
+            int state = 0;
+            for (char ch : cores[c].key) {
+                int next = trie.get(state)[ch];
+                if (next < 0) {
+                    next = trie.size();
+                    trie.get(state)[ch] = next;
+                    trie.add(newNode());
+                    out.add(new ArrayList<Integer>());
+                }
+                state = next;
+            }
+            out.get(state).add(c);
+        }
+
+        int states = trie.size();
+        delta = new int[states * ALPHABET];
+        int[] fail = new int[states];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+
+        for (int ch = 0; ch < ALPHABET; ch++) {
+            int next = trie.get(0)[ch];
+            if (next < 0) {
+                delta[ch] = 0;
+            } else {
+                delta[ch] = next;
+                fail[next] = 0;
+                queue.add(next);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            out.get(state).addAll(out.get(fail[state]));
+
+            for (int ch = 0; ch < ALPHABET; ch++) {
+                int next = trie.get(state)[ch];
+                if (next < 0) {
+                    delta[state * ALPHABET + ch] = delta[fail[state] * ALPHABET + ch];
+                } else {
+                    delta[state * ALPHABET + ch] = next;
+                    fail[next] = delta[fail[state] * ALPHABET + ch];
+                    queue.add(next);
+                }
+            }
+        }
+
+        outputs = new int[states][];
+        for (int s = 0; s < states; s++) {
+            List<Integer> list = out.get(s);
+            if (list.isEmpty()) {
+                outputs[s] = NO_OUTPUT;
+            } else {
+                outputs[s] = new int[list.size()];
+                for (int k = 0; k < outputs[s].length; k++)
+                    outputs[s][k] = list.get(k);
+            }
+        }
+
+        int size = 0;
+        if (cacheSize > 0) {
+            size = 1;
+            while (size < cacheSize)
+                size <<= 1;
+        }
+        cache = size > 0 ? new AtomicReferenceArray<Decision>(size) : null;
+        cacheMask = size - 1;
+    }
+
+    /**
+     * @return boolean true if no request type is configured
+     */
+    boolean isEmpty() {
+        return names.length == 0;
+    }
+
+    /**
+     * Finds the first request type, in configuration order, matching the given URL.
+     *
+     * @param url the URL external form
+     * @return int the index of the matching request type, -1 if none matches
+     */
+    int match(String url) {
+        Decision decision = null;
+        int slot = 0;
+        if (cache != null) {
+            int h = url.hashCode();
+            slot = (h ^ (h >>> 16)) & cacheMask;
+            decision = cache.get(slot);
+        }
+
+        if (decision != null && decision.url.equals(url))
+            return decision.result;
+
+        int result = scan(url);
+        if (cache != null)
+            cache.set(slot, new Decision(url, result));
+
+        return result;
+    }
+
+    /**
+     * @param index
+     * @return String the name of the request type
+     */
+    String getName(int index) {
+        return names[index];
+    }
+
+    private int scan(String text) {
+        int best = Integer.MAX_VALUE;
+
+        if (cores.length > 0) {
+            int state = 0;
+            for (int i = 0, length = text.length(); i < length; i++) {
+                char ch = text.charAt(i);
+
+                if (ch >= ALPHABET || ch == '\n' || ch == '\r') {
+                    if (isLineTerminator(ch))
+                        return matchAll(text);
+
+                    // no key contains non ASCII characters
+                    state = 0;
+                    continue;
+                }
+
+                state = delta[state * ALPHABET + Character.toLowerCase(ch)];
+
+                for (int c : outputs[state]) {
+                    Core core = cores[c];
+                    if (core.pattern < best && core.matchesAt(text, i))
+                        best = core.pattern;
+                }
+            }
+        }
+
+        // ///////////////////////////////////////////
+        // Patterns with a higher priority than the
+        // automaton match are evaluated as regex
+        // ///////////////////////////////////////////
+
+        for (int p = 0; p < fallback.length && p < best; p++) {
+            if (fallback[p] != null && fallback[p].matcher(text).matches())
+                return p;
+        }
+
+        return best == Integer.MAX_VALUE ? -1 : best;
+    }
+
+    private int matchAll(String text) {
+        for (int p = 0; p < patterns.length; p++) {
+            if (patterns[p].matcher(text).matches())
+                return p;
+        }
+
+        return -1;
+    }
+
+    private static boolean isLineTerminator(char ch) {
+        return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+    }
+
+    private static int[] newNode() {
+        int[] node = new int[ALPHABET];
+        for (int i = 0; i < ALPHABET; i++)
+            node[i] = -1;
+
+        return node;
+    }
+
+    // //////////////////////////////////////////////////////////////////
+    // Pattern parsing: recognizes ".*CORE.*" alternatives, returns null
+    // when the pattern needs the regular expression engine
+    // //////////////////////////////////////////////////////////////////
+
+    static List<Core> parse(String regex, int pattern) {
+        List<String> alternatives = splitAlternatives(regex);
+        if (alternatives == null)
+            return null;
+
+        List<Core> result = new ArrayList<Core>();
+        for (String alternative : alternatives) {
+            Core core = parseAlternative(stripGroups(alternative), pattern);
+            if (core == null)
+                return null;
+
+            result.add(core);
+        }
+
+        return result;
+    }
+
+    private static List<String> splitAlternatives(String regex) {
+        List<String> result = new ArrayList<String>();
+        int depth = 0, start = 0;
+        boolean inClass = false;
+
+        for (int i = 0; i < regex.length(); i++) {
+            char ch = regex.charAt(i);
+            if (ch == '\\') {
+                i++;
+            } else if (inClass) {
+                if (ch == ']')
+                    inClass = false;
+            } else if (ch == '[') {
+                inClass = true;
+            } else if (ch == '(') {
+                depth++;
+            } else if (ch == ')') {
+                depth--;
+            } else if (ch == '|' && depth == 0) {
+                result.add(regex.substring(start, i));
+                start = i + 1;
+            }
+        }
+
+        if (depth != 0 || inClass)
+            return null;
+
+        result.add(regex.substring(start));
+        return result;
+    }
+
+    private static String stripGroups(String alternative) {
+        String s = alternative;
+        while (s.length() > 1 && s.charAt(0) == '(' && closingGroup(s) == s.length() - 1) {
+            if (s.startsWith("(?:"))
+                s = s.substring(3, s.length() - 1);
+            else if (s.startsWith("(?"))
+                break;
+            else
+                s = s.substring(1, s.length() - 1);
+        }
+
+        return s;
+    }
+
+    private static int closingGroup(String s) {
+        int depth = 0;
+        boolean inClass = false;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '\\') {
+                i++;
+            } else if (inClass) {
+                if (ch == ']')
+                    inClass = false;
+            } else if (ch == '[') {
+                inClass = true;
+            } else if (ch == '(') {
+                depth++;
+            } else if (ch == ')') {
+                depth--;
+                if (depth == 0)
+                    return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static Core parseAlternative(String s, int pattern) {
+        if (s.startsWith("(?") && !s.startsWith("(?:"))
+            return null;
+        if (!s.startsWith(".*") || !s.endsWith(".*") || s.length() < 5)
+            return null;
+
+        String body = s.substring(2, s.length() - 2);
+
+        // an odd number of trailing backslashes escapes the final dot
+        int escapes = 0;
+        for (int i = body.length() - 1; i >= 0 && body.charAt(i) == '\\'; i--)
+            escapes++;
+        if (escapes % 2 != 0)
+            return null;
+
+        List<long[]> atoms = new ArrayList<long[]>();
+        for (int i = 0; i < body.length(); i++) {
+            char ch = body.charAt(i);
+            long[] atom = new long[2];
+
+            if (ch == '\\') {
+                if (++i >= body.length())
+                    return null;
+                ch = body.charAt(i);
+                if (Character.isLetterOrDigit(ch) || ch >= ALPHABET)
+                    return null;
+                add(atom, ch);
+            } else if (ch == '[') {
+                int end = body.indexOf(']', i + 1);
+                if (end < 0 || end == i + 1)
+                    return null;
+                for (int k = i + 1; k < end; k++) {
+                    char from = body.charAt(k);
+                    if (from == '^' || from == '\\' || from == '[' || from == '&' || from >= ALPHABET)
+                        return null;
+                    if (k + 2 < end && body.charAt(k + 1) == '-') {
+                        char to = body.charAt(k + 2);
+                        if (to < from || to >= ALPHABET || to == '\\' || to == '[')
+                            return null;
+                        for (char c = from; c <= to; c++)
+                            add(atom, c);
+                        k += 2;
+                    } else {
+                        add(atom, from);
+                    }
+                }
+                i = end;
+            } else if (".*+?{}()|^$]".indexOf(ch) >= 0 || ch >= ALPHABET) {
+                return null;
+            } else {
+                add(atom, ch);
+            }
+
+            atoms.add(atom);
+        }
+
+        if (atoms.isEmpty())
+            return null;
+
+        Core core = new Core(pattern, atoms.toArray(new long[atoms.size()][]));
+        return core.key.length > 0 ? core : null;
+    }
+
+    private static void add(long[] atom, char ch) {
+        atom[ch >> 6] |= 1L << (ch & 63);
+    }
+
+    /**
+     * A literal made of character classes, the longest run of classes folding to a single lower
+     * case character is used as the automaton key (empty if there is none).
+     */
+    static final class Core {
+
+        final int pattern;
+
+        final long[][] atoms;
+
+        final char[] key;
+
+        /**
+         * The position of the key last character in the core
+         */
+        final int keyEnd;
+
+        Core(int pattern, long[][] atoms) {
+            this.pattern = pattern;
+            this.atoms = atoms;
+
+            int bestStart = 0, bestLength = 0, start = 0;
+            char[] folded = new char[atoms.length];
+            for (int i = 0; i <= atoms.length; i++) {
+                int f = i < atoms.length ? fold(atoms[i]) : -1;
+                if (f < 0) {
+                    if (i - start > bestLength) {
+                        bestStart = start;
+                        bestLength = i - start;
+                    }
+                    start = i + 1;
+                } else {
+                    folded[i] = (char) f;
+                }
+            }
+
+            key = new char[bestLength];
+            System.arraycopy(folded, bestStart, key, 0, bestLength);
+            keyEnd = bestStart + bestLength - 1;
+        }
+
+        /**
+         * @param text
+         * @param end the position of the automaton key last character in the text
+         * @return boolean true if the whole core occurs around the position
+         */
+        boolean matchesAt(String text, int end) {
+            int start = end - keyEnd;
+            if (start < 0 || start + atoms.length > text.length())
+                return false;
+
+            for (int k = 0; k < atoms.length; k++) {
+                char ch = text.charAt(start + k);
+                if (ch >= ALPHABET || (atoms[k][ch >> 6] & (1L << (ch & 63))) == 0)
+                    return false;
+            }
+
+            return true;
+        }
+
+        private static int fold(long[] atom) {
+            int result = -1;
+            for (int ch = 0; ch < ALPHABET; ch++) {
+                if ((atom[ch >> 6] & (1L << (ch & 63))) != 0) {
+                    int lower = Character.toLowerCase((char) ch);
+                    if (result >= 0 && result != lower)
+                        return -1;
+                    result = lower;
+                }
+            }
+
+            return result;
+        }
+    }
+
+    private static final class Decision {
+
+        final String url;
+
+        final int result;
+
+        Decision(String url, int result) {
+            this.url = url;
+            this.result = result;
+        }
+    }
+}
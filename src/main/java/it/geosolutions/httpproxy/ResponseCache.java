@@ -0,0 +1,667 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HeaderElement;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+/**
+ * Byte bounded cache of GET responses.
+ * <p>
+ * Response bodies are kept off-heap in direct buffers, entries are evicted in LRU order once their
+ * total size exceeds the configured amount of bytes. Freshness follows the <code>Cache-Control</code>
+ * and <code>Expires</code> response headers, stale entries having an <code>ETag</code> or a
+ * <code>Last-Modified</code> header are revalidated with a conditional request. The cache key includes
+ * the credentials and cookies sent with the request, so that responses are never shared among users.
+ */
+final class ResponseCache {
+
+    /**
+     * The request attribute holding the {@link Lookup} of a GET request
+     */
+    static final String ATTRIBUTE = ResponseCache.class.getName();
+
+    private static final String CACHE_CONTROL = "Cache-Control";
+
+    private static final String ETAG = "ETag";
+
+    private static final String LAST_MODIFIED = "Last-Modified";
+
+    /**
+     * The headers sent with a 304 Not Modified response
+     */
+    private static final String[] NOT_MODIFIED_HEADERS = { ETAG, LAST_MODIFIED, CACHE_CONTROL,
+            "Expires", "Vary", "Content-Location" };
+
+    /**
+     * Rough per entry overhead accounted on top of the body and headers
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * The initial size of the buffer recording a response body
+     */
+    private static final int INITIAL_BUFFER_BYTES = 8192;
+
+    private final long maxBytes;
+
+    private final int maxEntryBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The entries in access order, guarded by lock
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+            0.75f, true);
+
+    /**
+     * The size of all entries, guarded by lock
+     */
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong revalidations = new AtomicLong();
+
+    private final AtomicLong stores = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes the maximum size of all the cached responses
+     * @param maxEntryBytes the maximum size of a single cached response
+     */
+    ResponseCache(long maxBytes, int maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+    }
+
+    /**
+     * Looks up the response cached for a GET request.
+     *
+     * @param url the remote URL
+     * @param user the remote user, if any
+     * @param password the remote password, if any
+     * @param request the client request
+     * @return Lookup or null if the request must bypass the cache
+     */
+    Lookup lookup(URL url, String user, String password, HttpServletRequest request) {
+        if (request.getHeader("Range") != null)
+            return null;
+
+        boolean revalidate = false;
+        for (HeaderElement element : elements(request.getHeader(CACHE_CONTROL))) {
+            String name = element.getName().toLowerCase();
+            if ("no-store".equals(name))
+                return null;
+            if ("no-cache".equals(name)
+                    || ("max-age".equals(name) && "0".equals(element.getValue())))
+                revalidate = true;
+        }
+
+        String pragma = request.getHeader("Pragma");
+        if (pragma != null && pragma.toLowerCase().contains("no-cache"))
+            revalidate = true;
+
+        String key = url.toExternalForm() + '\n'
+                + Utils.fingerprint(user, password, request.getHeader("Authorization"),
+                        request.getHeader("Cookie"));
+
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+
+        Lookup lookup = new Lookup(key, entry, revalidate);
+        if (!lookup.isFresh())
+            misses.incrementAndGet();
+
+        return lookup;
+    }
+
+    /**
+     * Adds the validators of the stale entry to the remote request
+     *
+     * @param lookup
+     * @param method
+     */
+    void addValidators(Lookup lookup, HttpMethod method) {
+        Entry entry = lookup.entry;
+        if (entry == null)
+            return;
+
+        if (entry.etag != null)
+            method.setRequestHeader("If-None-Match", entry.etag);
+        else
+            method.removeRequestHeader("If-None-Match");
+
+        if (entry.lastModified != null)
+            method.setRequestHeader("If-Modified-Since", entry.lastModified);
+        else
+            method.removeRequestHeader("If-Modified-Since");
+    }
+
+    /**
+     * Refreshes the stale entry the remote server answered 304 Not Modified for
+     *
+     * @param lookup
+     * @param method
+     * @return Entry the refreshed entry
+     */
+    Entry revalidated(Lookup lookup, HttpMethod method) {
+        Entry entry = lookup.entry;
+        long now = System.currentTimeMillis();
+
+        long lifetime = lifetime(method, now);
+        if (lifetime < 0)
+            lifetime = entry.lifetime;
+
+        Entry refreshed = new Entry(entry.headers, entry.body, entry.etag,
+                entry.lastModified, now, lifetime);
+        put(lookup.key, refreshed);
+
+        revalidations.incrementAndGet();
+        return refreshed;
+    }
+
+    /**
+     * Starts recording the remote response, if it can be cached
+     *
+     * @param lookup
+     * @param method the executed remote request
+     * @param status the remote response status
+     * @return Recorder or null if the response cannot be cached
+     */
+    Recorder record(Lookup lookup, HttpMethod method, int status) {
+        if (status != HttpServletResponse.SC_OK)
+            return null;
+
+        if (method.getResponseHeader("Set-Cookie") != null)
+            return null;
+
+        Header vary = method.getResponseHeader("Vary");
+        if (vary != null && !"accept-encoding".equalsIgnoreCase(vary.getValue().trim()))
+            return null;
+
+        for (Header header : method.getResponseHeaders(CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName().toLowerCase();
+                if ("no-store".equals(name) || "private".equals(name))
+                    return null;
+            }
+        }
+
+        long length = -1;
+        Header contentLength = method.getResponseHeader(Utils.CONTENT_LENGTH_HEADER_NAME);
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.getValue().trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (length > maxEntryBytes)
+                return null;
+        }
+
+        long now = System.currentTimeMillis();
+        long lifetime = lifetime(method, now);
+
+        Header etag = method.getResponseHeader(ETAG);
+        Header lastModified = method.getResponseHeader(LAST_MODIFIED);
+
+        if (lifetime <= 0 && etag == null && lastModified == null)
+            return null;
+
+        return new Recorder(lookup.key, (int) length, etag != null ? etag.getValue() : null,
+                lastModified != null ? lastModified.getValue() : null, now, Math.max(lifetime, 0));
+    }
+
+    /**
+     * Starts serving a cached response. Answers 304 Not Modified if the client already has it,
+     * otherwise sets the status and leaves the headers and the body of {@link Entry} to the caller.
+     *
+     * @param entry
+     * @param request
+     * @param response
+     * @return boolean true if the client already has the response and nothing more must be sent
+     */
+    boolean serve(Entry entry, HttpServletRequest request, HttpServletResponse response) {
+        hits.incrementAndGet();
+
+        response.setHeader("Age",
+                Long.toString((System.currentTimeMillis() - entry.storedAt) / 1000));
+
+        if (notModified(entry, request)) {
+            for (String[] header : entry.headers)
+                for (String name : NOT_MODIFIED_HEADERS)
+                    if (name.equalsIgnoreCase(header[0]))
+                        response.setHeader(header[0], header[1]);
+
+            response.setIntHeader(Utils.CONTENT_LENGTH_HEADER_NAME, 0);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        return false;
+    }
+
+    /**
+     * @return long the number of responses served from the cache
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return long the number of lookups not finding a fresh response
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return long the number of stale responses confirmed by the remote server
+     */
+    long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return long the number of responses stored
+     */
+    long getStores() {
+        return stores.get();
+    }
+
+    /**
+     * @return long the number of responses evicted to make room for new ones
+     */
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return double the ratio of requests served without transferring the body from the remote server
+     */
+    double getHitRatio() {
+        long served = hits.get();
+        long total = served + misses.get() - revalidations.get();
+        return total > 0 ? (double) served / total : 0;
+    }
+
+    /**
+     * @return long the size of the cached responses
+     */
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return int the number of cached responses
+     */
+    int getEntries() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        lock.lock();
+        try {
+            Entry old = entries.put(key, entry);
+            bytes += entry.size - (old != null ? old.size : 0);
+
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().size;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean notModified(Entry entry, HttpServletRequest request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (entry.etag == null)
+                return false;
+
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if ("*".equals(tag) || tag.equals(entry.etag))
+                    return true;
+            }
+
+            return false;
+        }
+
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null && entry.lastModified != null) {
+            try {
+                Date since = DateUtil.parseDate(ifModifiedSince);
+                Date modified = DateUtil.parseDate(entry.lastModified);
+                return !modified.after(since);
+            } catch (DateParseException e) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return long the freshness lifetime in milliseconds, 0 if the response must be revalidated, -1
+     *         if the response does not tell
+     */
+    private static long lifetime(HttpMethod method, long now) {
+        long maxAge = -1, sharedMaxAge = -1;
+        boolean noCache = false;
+
+        for (Header header : method.getResponseHeaders(CACHE_CONTROL)) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName().toLowerCase();
+                try {
+                    if ("no-cache".equals(name))
+                        noCache = true;
+                    else if ("max-age".equals(name) && element.getValue() != null)
+                        maxAge = Long.parseLong(element.getValue().trim()) * 1000;
+                    else if ("s-maxage".equals(name) && element.getValue() != null)
+                        sharedMaxAge = Long.parseLong(element.getValue().trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        if (noCache)
+            return 0;
+        if (sharedMaxAge >= 0)
+            return sharedMaxAge;
+        if (maxAge >= 0)
+            return maxAge;
+
+        Header expires = method.getResponseHeader("Expires");
+        if (expires != null) {
+            try {
+                long date = now;
+                Header dateHeader = method.getResponseHeader("Date");
+                if (dateHeader != null)
+                    date = DateUtil.parseDate(dateHeader.getValue()).getTime();
+
+                return Math.max(DateUtil.parseDate(expires.getValue()).getTime() - date, 0);
+            } catch (DateParseException e) {
+                // invalid dates mean already expired
+                return 0;
+            }
+        }
+
+        return -1;
+    }
+
+    private static HeaderElement[] elements(String value) {
+        return value != null ? HeaderElement.parseElements(value) : new HeaderElement[0];
+    }
+
+    /**
+     * The cache state for a client request.
+     */
+    static final class Lookup {
+
+        final String key;
+
+        /**
+         * The cached entry, possibly stale, or null
+         */
+        final Entry entry;
+
+        /**
+         * True if the client asked to revalidate the cached entry
+         */
+        final boolean revalidate;
+
+        Lookup(String key, Entry entry, boolean revalidate) {
+            this.key = key;
+            this.entry = entry;
+            this.revalidate = revalidate;
+        }
+
+        /**
+         * @return boolean true if the entry can be served without contacting the remote server
+         */
+        boolean isFresh() {
+            return entry != null && !revalidate && System.currentTimeMillis() < entry.expiresAt;
+        }
+    }
+
+    /**
+     * An immutable cached response.
+     */
+    static final class Entry {
+
+        /**
+         * The name and value of the response headers, including the body length
+         */
+        final List<String[]> headers;
+
+        /**
+         * The response body, a read only direct buffer
+         */
+        final ByteBuffer body;
+
+        final String etag;
+
+        final String lastModified;
+
+        final long storedAt;
+
+        final long lifetime;
+
+        final long expiresAt;
+
+        final long size;
+
+        Entry(List<String[]> headers, ByteBuffer body, String etag, String lastModified,
+                long storedAt, long lifetime) {
+            this.headers = headers;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+            this.lifetime = lifetime;
+            this.expiresAt = storedAt + lifetime;
+
+            long size = ENTRY_OVERHEAD + body.capacity();
+            for (String[] header : headers)
+                size += 2 * (header[0].length() + header[1].length());
+            this.size = size;
+        }
+
+        /**
+         * @return InputStream a new stream over the response body
+         */
+        InputStream openBody() {
+            final ByteBuffer buffer = body.duplicate();
+
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0)
+                        return 0;
+                    if (!buffer.hasRemaining())
+                        return -1;
+
+                    int n = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+    }
+
+    /**
+     * Collects the headers and the body of the remote response as they are relayed, and stores them
+     * once the body is complete. The body is collected in a growing heap buffer and copied off-heap
+     * only once complete, so that responses cut short or too large for the cache take no direct
+     * memory. Recording is given up as soon as the body exceeds the maximum entry size.
+     */
+    final class Recorder extends OutputStream {
+
+        private final String key;
+
+        private final int length;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private final long storedAt;
+
+        private final long lifetime;
+
+        private final List<String[]> headers = new ArrayList<String[]>();
+
+        private ByteArrayOutputStream heap;
+
+        private boolean overflow;
+
+        Recorder(String key, int length, String etag, String lastModified, long storedAt,
+                long lifetime) {
+            this.key = key;
+            this.length = length;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+            this.lifetime = lifetime;
+
+            this.heap = new ByteArrayOutputStream(length >= 0 ? Math.min(length,
+                    INITIAL_BUFFER_BYTES) : INITIAL_BUFFER_BYTES);
+        }
+
+        /**
+         * Records a header of the remote response
+         *
+         * @param name
+         * @param value
+         */
+        void addHeader(String name, String value) {
+            if (name.equalsIgnoreCase(Utils.CONTENT_LENGTH_HEADER_NAME)
+                    || name.equalsIgnoreCase("Age"))
+                return;
+
+            headers.add(new String[] { name, value });
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (overflow)
+                return;
+
+            if (heap.size() + len > (length >= 0 ? length : maxEntryBytes)) {
+                discard();
+                return;
+            }
+            heap.write(b, off, len);
+        }
+
+        /**
+         * Stores the recorded response, once the whole body has been relayed
+         */
+        void commit() {
+            if (overflow || heap == null)
+                return;
+
+            if (length >= 0 && heap.size() < length)
+                return;
+
+            byte[] bytes = heap.toByteArray();
+            heap = null;
+
+            ByteBuffer body = ByteBuffer.allocateDirect(bytes.length);
+            body.put(bytes);
+            body.flip();
+
+            headers.add(new String[] { Utils.CONTENT_LENGTH_HEADER_NAME,
+                    Integer.toString(body.remaining()) });
+
+            put(key, new Entry(Collections.unmodifiableList(headers), body.asReadOnlyBuffer(),
+                    etag, lastModified, storedAt, lifetime));
+            stores.incrementAndGet();
+        }
+
+        private void discard() {
+            overflow = true;
+            heap = null;
+        }
+    }
+}
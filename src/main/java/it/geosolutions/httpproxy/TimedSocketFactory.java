@@ -0,0 +1,135 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.protocol.Protocol;
+import org.apache.commons.httpclient.protocol.ProtocolSocketFactory;
+import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+
+/**
+ * Reports the time spent opening the connections to the {@link RequestTimer} of the current thread,
+ * delegating the socket creation to the factory it replaces.
+ */
+class TimedSocketFactory implements ProtocolSocketFactory {
+
+    private final ProtocolSocketFactory factory;
+
+    TimedSocketFactory(ProtocolSocketFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Replaces the socket factories of the HTTP and HTTPS protocols by timed ones, once: they stay
+     * registered for the commons HTTP client of this class loader and only time the connections of
+     * timed requests.
+     */
+    static synchronized void install() {
+        for (String scheme : new String[] { "http", "https" }) {
+            Protocol protocol = Protocol.getProtocol(scheme);
+            ProtocolSocketFactory factory = protocol.getSocketFactory();
+            if (factory instanceof TimedSocketFactory)
+                continue;
+
+            Protocol.registerProtocol(scheme, new Protocol(scheme, wrap(factory), protocol
+                    .getDefaultPort()));
+        }
+    }
+
+    /**
+     * @param factory
+     * @return TimedSocketFactory the timed factory delegating to the given one, a secure one if it
+     *         is
+     */
+    static TimedSocketFactory wrap(ProtocolSocketFactory factory) {
+        if (factory instanceof SecureProtocolSocketFactory)
+            return new Secure((SecureProtocolSocketFactory) factory);
+        return new TimedSocketFactory(factory);
+    }
+
+    /**
+     * @return ProtocolSocketFactory the factory this one delegates to
+     */
+    ProtocolSocketFactory getFactory() {
+        return factory;
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        long started = System.nanoTime();
+        try {
+            return factory.createSocket(host, port, localAddress, localPort);
+        } finally {
+            connected(started);
+        }
+    }
+
+    public Socket createSocket(String host, int port, InetAddress localAddress, int localPort,
+            HttpConnectionParams params) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return factory.createSocket(host, port, localAddress, localPort, params);
+        } finally {
+            connected(started);
+        }
+    }
+
+    public Socket createSocket(String host, int port) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return factory.createSocket(host, port);
+        } finally {
+            connected(started);
+        }
+    }
+
+    static void connected(long started) {
+        RequestTimer timer = RequestTimer.current();
+        if (timer != null)
+            timer.since(RequestTimer.Stage.CONNECT, started);
+    }
+
+    /**
+     * The timed factory of secure sockets, layered sockets included.
+     */
+    static final class Secure extends TimedSocketFactory implements SecureProtocolSocketFactory {
+
+        private final SecureProtocolSocketFactory factory;
+
+        Secure(SecureProtocolSocketFactory factory) {
+            super(factory);
+            this.factory = factory;
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+                throws IOException {
+            long started = System.nanoTime();
+            try {
+                return factory.createSocket(socket, host, port, autoClose);
+            } finally {
+                connected(started);
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpConnectionParams;
+
+/**
+ * A {@link MultiThreadedHttpConnectionManager} that makes callers wait for a free connection on fair
+ * {@link Semaphore}s, one per host plus a global one, sized as the pool limits.
+ * <p>
+ * The pool itself waits with <code>Object.wait()</code> inside a <code>synchronized</code> block,
+ * which pins the carrier thread of a virtual thread. Since a permit is granted only when the pool has a
+ * free slot, the pool never has to wait and waiting threads just park.
+ * <p>
+ * The permits of a connection are tracked by the {@link LeasedConnection} handed out, and returned
+ * once when it is released. A connection lost without being released, which the pool reclaims once
+ * it is garbage collected, has its permits returned as well, when the next connection is requested.
+ * Changing the limits resizes the permits in place, so that the connections checked out are still
+ * accounted for.
+ * <p>
+ * Remote hosts can be given their own connection limit and socket options, see
+ * {@link #configureHost(HostConfig)}.
+ * <p>
+ * The time spent waiting for a connection is reported to the {@link RequestTimer} of the calling
+ * thread.
+ */
+class UpstreamConnectionManager extends MultiThreadedHttpConnectionManager {
+
+    private final static Logger LOGGER = Logger.getLogger(UpstreamConnectionManager.class
+            .toString());
+
+    private final ConcurrentMap<String, Permits> hostPermits = new ConcurrentHashMap<String, Permits>();
+
+    private volatile Permits totalPermits;
+
+    /**
+     * The socket options of the remote hosts having their own, by host and port
+     */
+    private final ConcurrentMap<String, HttpConnectionParams> hostParams = new ConcurrentHashMap<String, HttpConnectionParams>();
+
+    /**
+     * The leases of the connections checked out, so that they are reachable until released
+     */
+    private final ConcurrentMap<Lease, Boolean> leases = new ConcurrentHashMap<Lease, Boolean>();
+
+    /**
+     * The leases of the connections garbage collected without being released
+     */
+    private final ReferenceQueue<LeasedConnection> lostLeases = new ReferenceQueue<LeasedConnection>();
+
+    @Override
+    public void setParams(HttpConnectionManagerParams params) {
+        super.setParams(params);
+
+        synchronized (this) {
+            if (totalPermits == null)
+                totalPermits = new Permits(params.getMaxTotalConnections(), null);
+            else
+                totalPermits.resize(params.getMaxTotalConnections());
+        }
+
+        for (Permits host : hostPermits.values())
+            host.resize(params.getMaxConnectionsPerHost(host.hostConfiguration));
+
+        for (HttpConnectionParams host : hostParams.values())
+            host.setDefaults(params);
+    }
+
+    /**
+     * Sets the connection limit and the socket options of a remote host, the options it does not set
+     * default to the ones of this manager. A host without port gets them for both HTTP and HTTPS.
+     * 
+     * @param host
+     */
+    void configureHost(HostConfig host) {
+        String[] protocols = { "http", "https" };
+        int[] ports = host.getPort() > 0 ? new int[] { host.getPort(), host.getPort() }
+                : new int[] { 80, 443 };
+
+        for (int i = 0; i < protocols.length; i++) {
+            HostConfiguration hostConfiguration = new HostConfiguration();
+            hostConfiguration.setHost(host.getHost(), ports[i], protocols[i]);
+            if (host.getMaxConnections() > 0)
+                getParams().setMaxConnectionsPerHost(hostConfiguration, host.getMaxConnections());
+
+            HttpConnectionParams params = host.getConnectionParams();
+            params.setDefaults(getParams());
+
+            String key = hostKey(host.getHost(), ports[i]);
+            hostParams.put(key, params);
+
+            Permits permits = hostPermits.get(key);
+            if (permits != null)
+                permits.resize(getParams().getMaxConnectionsPerHost(permits.hostConfiguration));
+        }
+    }
+
+    @Override
+    public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration,
+            long timeout) throws ConnectionPoolTimeoutException {
+        long started = System.nanoTime();
+        try {
+            return acquireConnection(hostConfiguration, timeout);
+        } finally {
+            RequestTimer timer = RequestTimer.current();
+            if (timer != null)
+                timer.since(RequestTimer.Stage.POOL_WAIT, started);
+        }
+    }
+
+    private HttpConnection acquireConnection(HostConfiguration hostConfiguration, long timeout)
+            throws ConnectionPoolTimeoutException {
+        releaseLostLeases();
+
+        Semaphore host = hostPermits(hostConfiguration);
+        Semaphore total = totalPermits();
+
+        // ///////////////////////////////////////////////////
+        // Host first, so that requests queued for a busy
+        // host do not hold connections other hosts need
+        // ///////////////////////////////////////////////////
+
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        acquire(host, deadline);
+
+        boolean acquired = false;
+        try {
+            acquire(total, deadline);
+            acquired = true;
+        } finally {
+            if (!acquired)
+                host.release();
+        }
+
+        boolean connected = false;
+        try {
+            HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+
+            // applied before the connection is opened
+            HttpConnectionParams params = hostParams.get(hostKey(hostConfiguration.getHost(),
+                    hostConfiguration.getPort()));
+            if (params != null)
+                connection.getParams().setDefaults(params);
+
+            LeasedConnection leased = new LeasedConnection(connection);
+            leased.lease = new Lease(leased, host, total);
+
+            connected = true;
+            return leased;
+        } finally {
+            if (!connected) {
+                total.release();
+                host.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the permits of the connections garbage collected without being released
+     */
+    private void releaseLostLeases() {
+        Lease lease;
+        while ((lease = (Lease) lostLeases.poll()) != null) {
+            if (lease.release() && LOGGER.isLoggable(Level.WARNING))
+                LOGGER.log(Level.WARNING, "A connection to " + lease.hostKey
+                        + " has been lost without being released");
+        }
+    }
+
+    /**
+     * @return int the number of connections handed out, or about to be
+     */
+    int getLeasedConnections() {
+        return totalPermits().getInUse();
+    }
+
+    /**
+     * @return int the number of threads waiting for a connection
+     */
+    int getWaitingThreads() {
+        int waiting = totalPermits().getQueueLength();
+        for (Permits host : hostPermits.values())
+            waiting += host.getQueueLength();
+
+        return waiting;
+    }
+
+    /**
+     * @return Map<String, int[]> the connections in use and the waiting threads of the remote hosts
+     *         contacted so far, by host and port
+     */
+    Map<String, int[]> getHostUsage() {
+        Map<String, int[]> usage = new TreeMap<String, int[]>();
+        for (Map.Entry<String, Permits> host : hostPermits.entrySet())
+            usage.put(host.getKey(), new int[] { host.getValue().getInUse(),
+                    host.getValue().getQueueLength() });
+
+        return usage;
+    }
+
+    private Permits totalPermits() {
+        Permits total = totalPermits;
+        if (total == null) {
+            synchronized (this) {
+                if (totalPermits == null)
+                    totalPermits = new Permits(getParams().getMaxTotalConnections(), null);
+                total = totalPermits;
+            }
+        }
+
+        return total;
+    }
+
+    private Semaphore hostPermits(HostConfiguration hostConfiguration) {
+        String key = hostKey(hostConfiguration.getHost(), hostConfiguration.getPort());
+
+        Permits permits = hostPermits.get(key);
+        if (permits == null) {
+            permits = new Permits(getParams().getMaxConnectionsPerHost(hostConfiguration),
+                    (HostConfiguration) hostConfiguration.clone());
+
+            Permits existing = hostPermits.putIfAbsent(key, permits);
+            if (existing != null)
+                permits = existing;
+        }
+
+        return permits;
+    }
+
+    private static String hostKey(String host, int port) {
+        return host.toLowerCase() + ":" + port;
+    }
+
+    private static void acquire(Semaphore permits, long deadline)
+            throws ConnectionPoolTimeoutException {
+        try {
+            if (deadline == 0) {
+                permits.acquire();
+            } else {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !permits.tryAcquire(wait, TimeUnit.MILLISECONDS))
+                    throw new ConnectionPoolTimeoutException(
+                            "Timeout waiting for connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionPoolTimeoutException("Interrupted waiting for connection");
+        }
+    }
+
+    /**
+     * The permits held by a connection checked out, returned once.
+     */
+    private final class Lease extends WeakReference<LeasedConnection> {
+
+        final String hostKey;
+
+        private final Semaphore host;
+
+        private final Semaphore total;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(LeasedConnection connection, Semaphore host, Semaphore total) {
+            super(connection, lostLeases);
+            this.hostKey = hostKey(connection.getHost(), connection.getPort());
+            this.host = host;
+            this.total = total;
+            leases.put(this, Boolean.TRUE);
+        }
+
+        /**
+         * @return boolean true if the permits have been returned, false if they already were
+         */
+        boolean release() {
+            if (!released.compareAndSet(false, true))
+                return false;
+
+            leases.remove(this);
+            host.release();
+            total.release();
+            return true;
+        }
+    }
+
+    /**
+     * A connection of the pool holding the permits of this manager until released.
+     */
+    final class LeasedConnection extends DelegatingHttpConnection {
+
+        private Lease lease;
+
+        LeasedConnection(HttpConnection connection) {
+            super(connection);
+        }
+
+        @Override
+        public void releaseConnection() {
+            if (isLocked())
+                return;
+
+            try {
+                super.releaseConnection();
+            } finally {
+                lease.release();
+                releaseLostLeases();
+            }
+        }
+    }
+
+    /**
+     * A fair semaphore remembering its size, which can be changed while permits are held.
+     */
+    private static final class Permits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The host the limit applies to, null for the total limit
+         */
+        final HostConfiguration hostConfiguration;
+
+        private volatile int size;
+
+        Permits(int size, HostConfiguration hostConfiguration) {
+            super(size, true);
+            this.size = size;
+            this.hostConfiguration = hostConfiguration;
+        }
+
+        synchronized void resize(int size) {
+            int delta = size - this.size;
+            this.size = size;
+
+            if (delta > 0)
+                release(delta);
+            else if (delta < 0)
+                reducePermits(-delta);
+        }
+
+        int getInUse() {
+            return size - availablePermits();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.StatusLine;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+
+/**
+ * A proxy request, whatever its HTTP method, executed by an {@link UpstreamTransport}.
+ * <p>
+ * Transports other than the commons HTTP client one execute the request on their own and hand the
+ * response over with {@link #setResponse}, so that callbacks, cache and response handling read it
+ * from the method as usual.
+ */
+final class UpstreamMethod extends EntityEnclosingMethod {
+
+    private final String name;
+
+    private volatile Closeable exchange;
+
+    private RequestTimer timer;
+
+    /**
+     * @param name the HTTP method name, such as <code>GET</code>
+     * @param uri
+     */
+    UpstreamMethod(String name, String uri) {
+        super(uri);
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param timer the timer of the client request, null if it is not timed
+     */
+    void setTimer(RequestTimer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * @return RequestTimer the timer of the client request, null if it is not timed
+     */
+    RequestTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Requests without body, such as GET, are sent without <code>Content-Length</code>
+     */
+    @Override
+    protected void addContentLengthRequestHeader(HttpState state, HttpConnection conn)
+            throws IOException, HttpException {
+        if (getRequestEntity() != null)
+            super.addContentLengthRequestHeader(state, conn);
+    }
+
+    /**
+     * Sets what aborts the exchange of a transport while the response is awaited.
+     * 
+     * @param exchange
+     */
+    void setExchange(Closeable exchange) {
+        this.exchange = exchange;
+
+        if (isAborted())
+            close();
+    }
+
+    /**
+     * Sets the response received by a transport.
+     * 
+     * @param statusLine the status line, such as <code>HTTP/1.1 200 OK</code>
+     * @param headers
+     * @param body the response body, null if none
+     * @throws HttpException if the status line is malformed
+     */
+    void setResponse(String statusLine, Header[] headers, InputStream body)
+            throws HttpException {
+        this.statusLine = new StatusLine(statusLine);
+
+        for (Header header : headers)
+            getResponseHeaderGroup().addHeader(header);
+
+        setResponseStream(body);
+    }
+
+    /**
+     * Reads the beginning of the response body, which is still read in full afterwards.
+     * 
+     * @param max the maximum number of bytes to read
+     * @param end stops reading once these bytes are read
+     * @return byte[] the bytes read, up to the end bytes included
+     * @throws IOException
+     */
+    byte[] peekResponseBody(int max, byte[] end) throws IOException {
+        InputStream body = getResponseBodyAsStream();
+        if (body == null)
+            return new byte[0];
+
+        PushbackInputStream pushback = new PushbackInputStream(body, max);
+        byte[] b = new byte[max];
+        int read = 0, matched = 0;
+        while (read < max && matched < end.length) {
+            int c = pushback.read();
+            if (c < 0)
+                break;
+
+            b[read++] = (byte) c;
+            matched = c == (end[matched] & 0xff) ? matched + 1 : c == (end[0] & 0xff) ? 1 : 0;
+        }
+
+        pushback.unread(b, 0, read);
+        setResponseStream(pushback);
+
+        byte[] peeked = new byte[read];
+        System.arraycopy(b, 0, peeked, 0, read);
+        return peeked;
+    }
+
+    @Override
+    public void releaseConnection() {
+        try {
+            super.releaseConnection();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Also interrupts the exchange of a transport, waiting for the response or reading its body
+     */
+    @Override
+    public void abort() {
+        boolean transported = exchange != null;
+
+        super.abort();
+        close();
+
+        InputStream body = getResponseStream();
+        if (transported && body != null) {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // aborted anyway
+            }
+        }
+    }
+
+    private void close() {
+        Closeable current = exchange;
+        if (current == null)
+            return;
+
+        exchange = null;
+        try {
+            current.close();
+        } catch (IOException e) {
+            // the exchange is over anyway
+        }
+    }
+}
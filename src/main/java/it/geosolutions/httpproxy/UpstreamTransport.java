@@ -0,0 +1,59 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+
+/**
+ * Executes the proxy requests on the remote servers.
+ * <p>
+ * Once executed, the response status, headers and body are read from the method as usual, and the
+ * method must be released when the response has been sent, or aborted.
+ */
+interface UpstreamTransport {
+
+    /**
+     * The transport built on the commons HTTP client, see {@link CommonsHttpTransport}
+     */
+    String COMMONS = "commons";
+
+    /**
+     * The transport built on the JDK HTTP client, see {@link JdkHttpTransport}
+     */
+    String JDK = "jdk";
+
+    /**
+     * Executes the request and waits for the response headers.
+     * 
+     * @param method
+     * @param credentials the remote server credentials, null if none
+     * @return int the response status
+     * @throws IOException
+     */
+    int execute(UpstreamMethod method, UsernamePasswordCredentials credentials)
+            throws IOException;
+
+    /**
+     * Closes the connections held by the transport
+     */
+    void shutdown();
+}
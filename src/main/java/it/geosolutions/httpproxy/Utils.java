@@ -20,8 +20,14 @@
 package it.geosolutions.httpproxy;
 
 import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Utility methods.
@@ -67,6 +73,21 @@ final class Utils {
     
     static final String HTTP_HEADER_WWW_AUTHENTICATE = "WWW-Authenticate";
 
+    static final String HTTP_HEADER_VARY = "Vary";
+
+    static final String HTTP_HEADER_RANGE = "Range";
+
+    static final String HTTP_HEADER_CONTENT_RANGE = "Content-Range";
+
+    static final String HTTP_HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+    static final String HTTP_HEADER_RETRY_AFTER = "Retry-After";
+
+    /**
+     * The content type of the responses to multiple ranges requests
+     */
+    static final String MULTIPART_BYTERANGES = "multipart/byteranges";
+
     static final int DEFAULT_PROXY_PORT = 80;
 
     /**
@@ -139,4 +160,66 @@ final class Utils {
             return null;
         }
     }
+
+    /**
+     * @param contentType a Content-type header value, such as <code>text/xml; charset=UTF-8</code>
+     * @return String the MIME type without parameters, such as <code>text/xml</code>
+     */
+    static final String mimeType(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        return (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim();
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task. Virtual threads are looked up
+     * reflectively, since they need a Java 21 runtime.
+     * 
+     * @param prefix the thread names prefix
+     * @return ExecutorService or null if virtual threads are not supported by the running JVM
+     */
+    static final ExecutorService newVirtualThreadExecutor(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+                    prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(
+                    builder);
+
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor",
+                    ThreadFactory.class).invoke(null, factory);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Digest of the given values, used to tell apart requests of different users without keeping
+     * their credentials in memory as they are.
+     * 
+     * @param values the values to digest, null values are allowed
+     * @return String the hex encoded SHA-256 digest
+     */
+    static final String fingerprint(String... values) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String value : values) {
+                if (value != null)
+                    digest.update(value.getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                        Character.forDigit(b & 0xf, 16));
+
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * AddressMatcherTest class. Checks IPv4 and IPv6 addresses and ranges of the client whitelists.
+ */
+public class AddressMatcherTest extends TestCase {
+
+    private static AddressMatcher matcher(String... entries) {
+        return new AddressMatcher(Arrays.asList(entries));
+    }
+
+    @Test
+    public void testIPv4() throws Exception {
+        AddressMatcher matcher = matcher("127.0.0.1", "10.0.0.0/8", "192.168.1.0/24 ", "0.0.0.0/32");
+
+        assertTrue(matcher.matches("127.0.0.1"));
+        assertFalse(matcher.matches("127.0.0.2"));
+        assertTrue(matcher.matches("10.255.3.4"));
+        assertFalse(matcher.matches("11.0.0.1"));
+        assertTrue(matcher.matches(" 192.168.1.77"));
+        assertFalse(matcher.matches("192.168.2.1"));
+        assertTrue(matcher.matches("0.0.0.0"));
+        assertTrue(matcher.matches("::ffff:10.1.2.3"));
+        assertFalse(matcher.matches("256.0.0.1"));
+        assertFalse(matcher.matches("10.0.0"));
+        assertFalse(matcher.matches("10.0.0.1.1"));
+        assertFalse(matcher.matches(""));
+    }
+
+    @Test
+    public void testIPv6() throws Exception {
+        AddressMatcher matcher = matcher("::1", "2001:db8::/32", "fe80::1%eth0", "[2001:dead::]/48");
+
+        assertTrue(matcher.matches("::1"));
+        assertTrue(matcher.matches("0:0:0:0:0:0:0:1"));
+        assertTrue(matcher.matches("[::1]"));
+        assertFalse(matcher.matches("::2"));
+        assertTrue(matcher.matches("2001:DB8:1::5"));
+        assertFalse(matcher.matches("2001:db9::1"));
+        assertTrue(matcher.matches("fe80::1"));
+        assertTrue(matcher.matches("2001:dead:0:ffff::1"));
+        assertFalse(matcher.matches("2001:dead:1::1"));
+        assertFalse(matcher.matches("1:2:3:4:5:6:7"));
+        assertFalse(matcher.matches("1::2::3"));
+        assertFalse(matcher.matches("12345::"));
+        assertFalse(matcher.matches("127.0.0.1"));
+    }
+
+    @Test
+    public void testNestedRanges() throws Exception {
+        AddressMatcher matcher = matcher("10.1.2.3", "10.1.0.0/16", "10.0.0.0/8", "10.1.2.0/24",
+                "0.0.0.0/0");
+
+        assertTrue(matcher.matches("10.1.2.3"));
+        assertTrue(matcher.matches("10.200.0.1"));
+        assertTrue(matcher.matches("8.8.8.8"));
+        assertFalse(matcher.matches("::1"));
+        assertTrue(matcher("::/0").matches("::1"));
+        assertTrue(matcher("::/0").matches("1.2.3.4"));
+    }
+
+    @Test
+    public void testNamesAndInvalidRanges() throws Exception {
+        AddressMatcher matcher = matcher("unknown", "10.0.0.0/33", "example/8");
+
+        assertTrue(matcher.matches("UNKNOWN"));
+        assertFalse(matcher.matches("10.0.0.1"));
+        assertFalse(matcher.matches("example"));
+        assertFalse(matcher.isEmpty());
+        assertTrue(matcher(" ").isEmpty());
+    }
+
+    @Test
+    public void testManyRanges() throws Exception {
+        List<String> entries = new ArrayList<String>();
+        for (int i = 0; i < 256; i += 2)
+            entries.add("172." + i + ".0.0/16");
+        AddressMatcher matcher = new AddressMatcher(entries);
+
+        for (int i = 0; i < 256; i++)
+            assertEquals(i % 2 == 0, matcher.matches("172." + i + ".3.4"));
+        assertTrue(matcher.matches("x 172.4.0.1 x", 2, 11));
+    }
+}
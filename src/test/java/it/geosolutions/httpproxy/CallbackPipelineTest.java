@@ -0,0 +1,178 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import it.geosolutions.httpproxy.CallbackPhases.Phase;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.junit.Test;
+
+/**
+ * CallbackPipelineTest class. Checks the phases, the ordering and the loading of the callbacks.
+ */
+public class CallbackPipelineTest extends TestCase {
+
+    private static ProxyContext context() {
+        return new ProxyContext(null, null, null, null);
+    }
+
+    @Test
+    public void testPhases() throws Exception {
+        Counting all = new Counting();
+        Rejecting request = new Rejecting(false);
+        CallbackPipeline pipeline = new CallbackPipeline(Arrays.<ProxyCallback> asList(all,
+                request));
+
+        assertEquals(Arrays.<ProxyCallback> asList(request, all), pipeline
+                .getCallbacks(Phase.REQUEST));
+        assertEquals(Arrays.<ProxyCallback> asList(all), pipeline.getCallbacks(Phase.FINISH));
+
+        ProxyContext context = context();
+        pipeline.onRequest(context);
+        pipeline.onRemoteResponse(context, null);
+        pipeline.onFinish(context);
+
+        assertEquals(3, all.calls);
+        assertEquals(1, request.calls);
+        assertSame(context, all.context);
+        assertNull(ProxyContext.current());
+    }
+
+    @Test
+    public void testReordering() throws Exception {
+        Slow slow = new Slow();
+        Rejecting rejecting = new Rejecting(true);
+        CallbackPipeline pipeline = new CallbackPipeline(Arrays.<ProxyCallback> asList(slow,
+                rejecting));
+
+        ProxyContext context = context();
+        for (int i = 0; i < CallbackPipeline.SAMPLE_RATE * CallbackPipeline.REORDER_SAMPLES * 2; i++) {
+            try {
+                pipeline.onRequest(context);
+                fail("Not rejected");
+            } catch (HttpErrorException e) {
+                assertEquals(403, e.getCode());
+            }
+        }
+
+        List<ProxyCallback> order = pipeline.getCallbacks(Phase.REQUEST);
+        assertSame(rejecting, order.get(0));
+        assertSame(slow, order.get(1));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("proxyCallbacks", "HostChecker, it.geosolutions.httpproxy.MethodsChecker,"
+                + Counting.class.getName());
+
+        List<ProxyCallback> callbacks = CallbackPipeline.load(new ProxyConfig(props));
+        assertEquals(3, callbacks.size());
+        assertTrue(callbacks.get(0) instanceof HostChecker);
+        assertTrue(callbacks.get(1) instanceof MethodsChecker);
+        assertTrue(callbacks.get(2) instanceof Counting);
+
+        props.setProperty("proxyCallbacks", "HostChecker,NoSuchChecker");
+        try {
+            CallbackPipeline.load(new ProxyConfig(props));
+            fail("Loaded a missing callback");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Called in every phase.
+     */
+    public static class Counting implements ProxyCallback {
+
+        int calls;
+
+        ProxyContext context;
+
+        public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
+                throws IOException {
+            calls++;
+            context = ProxyContext.current();
+        }
+
+        public void onRemoteResponse(HttpMethod method) throws IOException {
+            calls++;
+        }
+
+        public void onFinish() throws IOException {
+            calls++;
+        }
+    }
+
+    @CallbackPhases(value = Phase.REQUEST, check = true)
+    static class Rejecting implements ProxyCallback {
+
+        final boolean reject;
+
+        int calls;
+
+        Rejecting(boolean reject) {
+            this.reject = reject;
+        }
+
+        public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
+                throws IOException {
+            calls++;
+            if (reject)
+                throw new HttpErrorException(403, "Rejected");
+        }
+
+        public void onRemoteResponse(HttpMethod method) throws IOException {
+            fail("Called on remote response");
+        }
+
+        public void onFinish() throws IOException {
+            fail("Called on finish");
+        }
+    }
+
+    @CallbackPhases(value = Phase.REQUEST, check = true)
+    static class Slow extends Rejecting {
+
+        Slow() {
+            super(false);
+        }
+
+        @Override
+        public void onRequest(HttpServletRequest request, HttpServletResponse response, URL url)
+                throws IOException {
+            long until = System.nanoTime() + 20000;
+            while (System.nanoTime() < until)
+                ;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * CircuitBreakerTest class. Checks the transitions of the circuit of a remote host.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    @Test
+    public void testOpensOnErrorRate() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 10, 10000, 5000);
+        long now = 100000;
+
+        for (int i = 0; i < 6; i++)
+            breaker.complete(breaker.allow(now), Boolean.FALSE, now);
+        for (int i = 0; i < 3; i++)
+            breaker.complete(breaker.allow(now), Boolean.TRUE, now);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+
+        // aborted requests count as nothing
+        breaker.complete(breaker.allow(now), null, now);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+
+        breaker.complete(breaker.allow(now), Boolean.TRUE, now);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        breaker.complete(breaker.allow(now), Boolean.TRUE, now);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        breaker.complete(breaker.allow(now), Boolean.TRUE, now);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+
+        assertEquals(CircuitBreaker.OPEN, breaker.allow(now + 1000));
+        assertEquals(4000, breaker.getRemainingMillis(now + 1000));
+    }
+
+    @Test
+    public void testWindowExpires() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 1000, 5000);
+        long now = 100000;
+
+        for (int i = 0; i < 3; i++)
+            breaker.complete(breaker.allow(now), Boolean.TRUE, now);
+
+        // the old failures are out of the window
+        now += 2000;
+        breaker.complete(breaker.allow(now), Boolean.TRUE, now);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 1, 10000, 5000);
+        long now = 100000;
+
+        breaker.complete(breaker.allow(now), Boolean.TRUE, now);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+
+        // a single probe once open long enough
+        now += 5000;
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.allow(now));
+        assertEquals(CircuitBreaker.OPEN, breaker.allow(now));
+
+        // a request sent before the circuit opened is not the probe
+        breaker.complete(CircuitBreaker.CLOSED, Boolean.FALSE, now);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+
+        breaker.complete(CircuitBreaker.HALF_OPEN, Boolean.TRUE, now);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.OPEN, breaker.allow(now + 1000));
+
+        // an aborted probe lets the next request probe
+        now += 5000;
+        breaker.complete(breaker.allow(now), null, now);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.allow(now));
+
+        breaker.complete(CircuitBreaker.HALF_OPEN, Boolean.FALSE, now);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        assertEquals(CircuitBreaker.CLOSED, breaker.allow(now));
+    }
+}
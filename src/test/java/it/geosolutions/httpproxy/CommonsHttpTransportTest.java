@@ -0,0 +1,188 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+
+/**
+ * CommonsHttpTransportTest class. Checks the credentials sent to the remote hosts, against local
+ * servers asking for Basic and Digest authentication.
+ */
+public class CommonsHttpTransportTest extends TestCase {
+
+    private ChallengingServer basic;
+
+    private ChallengingServer otherBasic;
+
+    private ChallengingServer digest;
+
+    private CommonsHttpTransport transport;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        basic = new ChallengingServer("Basic realm=\"test\"");
+        otherBasic = new ChallengingServer("Basic realm=\"test\"");
+        digest = new ChallengingServer("Digest realm=\"test\", nonce=\"abc\", qop=\"auth\"");
+
+        transport = new CommonsHttpTransport(new ProxyConfig(new Properties()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        transport.shutdown();
+        basic.close();
+        otherBasic.close();
+        digest.close();
+        super.tearDown();
+    }
+
+    @Test
+    public void testCredentialsNotShared() throws Exception {
+        assertEquals(200, execute(basic, new UsernamePasswordCredentials("alice", "secret")));
+        assertEquals(2, basic.authorizations.size());
+
+        // a request without credentials gets the challenge, not the previous credentials
+        basic.authorizations.clear();
+        assertEquals(401, execute(basic, null));
+        assertEquals(Collections.singletonList((String) null), basic.authorizations);
+
+        // a request with other credentials sends its own only
+        basic.authorizations.clear();
+        assertEquals(200, execute(basic, new UsernamePasswordCredentials("bob", "password")));
+        assertEquals(1, basic.authorizations.size());
+        assertEquals("Basic Ym9iOnBhc3N3b3Jk", basic.authorizations.get(0));
+    }
+
+    @Test
+    public void testPreemptiveAfterBasicChallenge() throws Exception {
+        UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("alice",
+                "secret");
+
+        // the first request waits for the challenge
+        assertEquals(200, execute(basic, credentials));
+        assertEquals(2, basic.authorizations.size());
+        assertNull(basic.authorizations.get(0));
+        assertEquals("Basic YWxpY2U6c2VjcmV0", basic.authorizations.get(1));
+
+        // the following ones send the credentials up front
+        basic.authorizations.clear();
+        assertEquals(200, execute(basic, credentials));
+        assertEquals(Collections.singletonList("Basic YWxpY2U6c2VjcmV0"), basic.authorizations);
+
+        // another port of the same host has not asked for Basic
+        assertEquals(200, execute(otherBasic, credentials));
+        assertEquals(2, otherBasic.authorizations.size());
+        assertNull(otherBasic.authorizations.get(0));
+    }
+
+    @Test
+    public void testNoPreemptiveAfterDigestChallenge() throws Exception {
+        UsernamePasswordCredentials credentials = new UsernamePasswordCredentials("alice",
+                "secret");
+
+        for (int i = 0; i < 2; i++) {
+            digest.authorizations.clear();
+            assertEquals(200, execute(digest, credentials));
+            assertEquals(2, digest.authorizations.size());
+            assertNull(digest.authorizations.get(0));
+            assertTrue(digest.authorizations.get(1).startsWith("Digest "));
+        }
+    }
+
+    private int execute(ChallengingServer server, UsernamePasswordCredentials credentials)
+            throws IOException {
+        UpstreamMethod method = new UpstreamMethod("GET", "http://localhost:" + server.getPort()
+                + "/");
+        try {
+            int status = transport.execute(method, credentials);
+            method.getResponseBody();
+            return status;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * A local server answering 401 with its challenge to the requests without credentials, 200 to
+     * the others, recording the Authorization header of each request.
+     */
+    private static final class ChallengingServer extends AbstractHandler {
+
+        private final List<String> authorizations = Collections
+                .synchronizedList(new ArrayList<String>());
+
+        private final String challenge;
+
+        private final Server server = new Server();
+
+        private final SelectChannelConnector connector = new SelectChannelConnector();
+
+        ChallengingServer(String challenge) throws Exception {
+            this.challenge = challenge;
+
+            connector.setPort(0);
+            server.addConnector(connector);
+            server.setHandler(this);
+            server.start();
+        }
+
+        int getPort() {
+            return connector.getLocalPort();
+        }
+
+        void close() throws Exception {
+            server.stop();
+        }
+
+        public void handle(String target, HttpServletRequest request,
+                HttpServletResponse response, int dispatch) throws IOException, ServletException {
+            ((Request) request).setHandled(true);
+
+            String authorization = request.getHeader("Authorization");
+            authorizations.add(authorization);
+
+            if (authorization == null) {
+                response.setHeader("WWW-Authenticate", challenge);
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            } else {
+                response.setStatus(HttpServletResponse.SC_OK);
+            }
+            response.setContentLength(0);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * ConcurrencyLimiterTest class. Checks the adaptive limit of the concurrent requests to a host.
+ */
+public class ConcurrencyLimiterTest extends TestCase {
+
+    private static final long MILLIS = 1000000;
+
+    /**
+     * Runs rounds of requests keeping the limiter full, all of them taking the given time
+     */
+    private static void load(ConcurrencyLimiter limiter, int rounds, long rtt) {
+        for (int round = 0; round < rounds; round++) {
+            int acquired = 0;
+            while (limiter.acquire())
+                acquired++;
+            for (int i = 0; i < acquired; i++)
+                limiter.release(rtt, false);
+        }
+    }
+
+    @Test
+    public void testRejectsAboveLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10);
+
+        assertTrue(limiter.acquire());
+        assertTrue(limiter.acquire());
+        assertFalse(limiter.acquire());
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release(-1, false);
+        assertTrue(limiter.acquire());
+    }
+
+    @Test
+    public void testGrowsAndShrinks() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 100);
+
+        load(limiter, 50, 10 * MILLIS);
+        int grown = limiter.getLimit();
+        assertTrue(grown > 10);
+        assertTrue(grown <= 100);
+
+        // queueing on the host: the latency grows
+        load(limiter, 20, 100 * MILLIS);
+        assertTrue(limiter.getLimit() < grown);
+
+        int limit = limiter.getLimit();
+        assertTrue(limiter.acquire());
+        limiter.release(10 * MILLIS, true);
+        assertTrue(limiter.getLimit() < limit);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testIdleHostKeepsLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 100);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(i % 2 == 0 ? MILLIS : 100 * MILLIS, false);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * DnsCacheTest class. Checks the caching and the background refresh of the addresses of the
+ * remote hosts.
+ */
+public class DnsCacheTest extends TestCase {
+
+    /**
+     * A cache resolving hosts to 10.0.0.n, n counting the lookups
+     */
+    private static class StubCache extends DnsCache {
+
+        final AtomicInteger lookups = new AtomicInteger();
+
+        volatile boolean failing;
+
+        StubCache(long ttl, long negativeTtl) {
+            super(ttl, negativeTtl, Collections.singletonMap("slow.example.org", 60000L));
+        }
+
+        @Override
+        InetAddress[] lookup(String host) throws UnknownHostException {
+            int n = lookups.incrementAndGet();
+            if (failing || host.startsWith("unknown"))
+                throw new UnknownHostException(host);
+            return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 0, 0,
+                    (byte) n }) };
+        }
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        StubCache cache = new StubCache(60000, 60000);
+        try {
+            InetAddress[] addresses = cache.resolve("Example.org");
+            assertSame(addresses, cache.resolve("example.org"));
+            assertEquals(1, cache.lookups.get());
+
+            // literal addresses are not looked up
+            assertEquals("10.1.2.3", cache.resolve("10.1.2.3")[0].getHostAddress());
+            assertEquals(1, cache.lookups.get());
+
+            // unknown hosts neither, until the negative TTL is over
+            for (int i = 0; i < 2; i++) {
+                try {
+                    cache.resolve("unknown.example.org");
+                    fail();
+                } catch (UnknownHostException e) {
+                    // expected
+                }
+            }
+            assertEquals(2, cache.lookups.get());
+            assertEquals(2, cache.size());
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        StubCache cache = new StubCache(1000, 50);
+        try {
+            assertEquals("10.0.0.1", cache.resolve("example.org")[0].getHostAddress());
+            cache.resolve("slow.example.org");
+
+            // looked up again in the background while used
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!"10.0.0.3".equals(cache.resolve("example.org")[0].getHostAddress())) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            // a failed lookup keeps the last addresses, even unused while retried after the
+            // negative TTL
+            cache.failing = true;
+            int lookups = cache.lookups.get();
+            while (cache.lookups.get() == lookups) {
+                assertEquals("10.0.0.3", cache.resolve("example.org")[0].getHostAddress());
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            while (cache.lookups.get() < lookups + 2) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertEquals("10.0.0.3", cache.resolve("example.org")[0].getHostAddress());
+
+            // dropped once unused, but the host having a longer TTL
+            cache.failing = false;
+            while (cache.size() > 1) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            assertEquals("10.0.0.2", cache.resolve("slow.example.org")[0].getHostAddress());
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnknownExpired() throws Exception {
+        StubCache cache = new StubCache(60000, 100);
+        try {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    cache.resolve("unknown" + i + ".example.org");
+                    fail();
+                } catch (UnknownHostException e) {
+                    // expected
+                }
+            }
+            assertEquals(3, cache.size());
+
+            // dropped once the negative TTL is over, even if never asked for again
+            Thread.sleep(300);
+            assertEquals(0, cache.size());
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    public void testLiteral() throws Exception {
+        assertTrue(DnsCache.isLiteral("10.1.2.3"));
+        assertTrue(DnsCache.isLiteral("255.255.255.255"));
+        assertTrue(DnsCache.isLiteral("::1"));
+        assertTrue(DnsCache.isLiteral("2001:db8::1"));
+
+        assertFalse(DnsCache.isLiteral("geoserver2"));
+        assertFalse(DnsCache.isLiteral("gs1.internal"));
+        assertFalse(DnsCache.isLiteral("10.0.0.1.example.org"));
+        assertFalse(DnsCache.isLiteral("1.2.3"));
+        assertFalse(DnsCache.isLiteral("1.2.3.4.5"));
+        assertFalse(DnsCache.isLiteral("1.2.3.256"));
+        assertFalse(DnsCache.isLiteral("1..2.3"));
+        assertFalse(DnsCache.isLiteral(""));
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.junit.Test;
+
+/**
+ * HedgingTransportTest class. Checks the requests hedged on a mirror, against a stub transport
+ * answering each host after a given delay.
+ */
+public class HedgingTransportTest extends TestCase {
+
+    private static final long WARM_UP_MILLIS = 20;
+
+    private StubTransport stub;
+
+    private ProxyMetrics metrics;
+
+    private HedgingTransport transport;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (transport != null)
+            transport.shutdown();
+        super.tearDown();
+    }
+
+    @Test
+    public void testHedgeAfterPercentileDelay() throws Exception {
+        start("0.05");
+
+        // faster than the percentile, not hedged
+        stub.delays.put("primary", 1L);
+        assertEquals("primary", execute());
+        assertTrue(stub.calls("mirror").isEmpty());
+
+        stub.delays.put("primary", 2000L);
+        stub.delays.put("mirror", 1L);
+        long started = System.currentTimeMillis();
+        assertEquals("mirror", execute());
+
+        long hedged = stub.calls("mirror").get(0) - started;
+        assertTrue("Hedged after " + hedged + " ms", hedged >= WARM_UP_MILLIS / 2);
+        assertTrue("Hedged after " + hedged + " ms", hedged < 1000);
+        assertTrue(System.currentTimeMillis() - started < 1000);
+        assertEquals(1, metrics.getHedgedRequestCount());
+        assertEquals(1, metrics.getHedgeWinCount());
+    }
+
+    @Test
+    public void testFasterResponseWins() throws Exception {
+        start("0.05");
+
+        // the mirror answers first, the primary request is aborted
+        stub.delays.put("primary", 2000L);
+        stub.delays.put("mirror", 1L);
+        assertEquals("mirror", execute());
+        waitFor(stub.aborted, "primary");
+        assertFalse(stub.aborted.contains("mirror"));
+
+        // the primary answers first, the mirror request is aborted
+        stub.aborted.clear();
+        stub.delays.put("primary", 200L);
+        stub.delays.put("mirror", 2000L);
+        assertEquals("primary", execute());
+        waitFor(stub.aborted, "mirror");
+        assertFalse(stub.aborted.contains("primary"));
+
+        assertEquals(2, metrics.getHedgedRequestCount());
+        assertEquals(1, metrics.getHedgeWinCount());
+    }
+
+    @Test
+    public void testPrimaryFailureFallsBackToMirror() throws Exception {
+        start("0.05");
+
+        stub.delays.put("primary", 200L);
+        stub.failing.put("primary", Boolean.TRUE);
+        stub.delays.put("mirror", 400L);
+        assertEquals("mirror", execute());
+
+        // both failing, the primary failure is reported
+        stub.failing.put("mirror", Boolean.TRUE);
+        try {
+            execute();
+            fail("The request should have failed");
+        } catch (IOException e) {
+            assertEquals("primary failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testBudgetExhausted() throws Exception {
+        start("0.001");
+
+        stub.delays.put("primary", 200L);
+        stub.delays.put("mirror", 1L);
+        assertEquals("mirror", execute());
+
+        // no hedged request left until enough requests are sent
+        assertEquals("primary", execute());
+        assertEquals(1, stub.calls("mirror").size());
+        assertEquals(1, metrics.getHedgedRequestCount());
+    }
+
+    /**
+     * Starts hedging the requests to <code>primary</code> on <code>mirror</code>, once the
+     * latencies of enough requests are known
+     */
+    private void start(String budget) throws Exception {
+        Properties props = new Properties();
+        props.setProperty("upstreamHosts", "gs");
+        props.setProperty("upstream.gs.host", "primary:8080");
+        props.setProperty("upstream.gs.mirrors", "mirror:8080");
+        props.setProperty("hedgeBudget", budget);
+        ProxyConfig config = new ProxyConfig(props);
+
+        stub = new StubTransport();
+        metrics = new ProxyMetrics(config, null, null, null);
+        transport = new HedgingTransport(stub, config, metrics);
+
+        stub.delays.put("primary", WARM_UP_MILLIS);
+        for (int i = 0; i < 32; i++)
+            assertEquals("primary", execute());
+
+        assertTrue(stub.calls("mirror").isEmpty());
+        stub.calls.clear();
+    }
+
+    /**
+     * @return String the host that answered
+     */
+    private String execute() throws IOException {
+        UpstreamMethod method = new UpstreamMethod("GET", "http://primary:8080/geoserver/wms");
+        try {
+            assertEquals(200, transport.execute(method, null));
+            return method.getResponseHeader("X-From").getValue();
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    private static void waitFor(List<String> hosts, String host) throws InterruptedException {
+        for (int i = 0; i < 100 && !hosts.contains(host); i++)
+            Thread.sleep(10);
+        assertTrue(host + " not in " + hosts, hosts.contains(host));
+    }
+
+    /**
+     * Answers each host after its delay, or fails, recording the start time of the requests and
+     * the aborted ones.
+     */
+    private static final class StubTransport implements UpstreamTransport {
+
+        final Map<String, Long> delays = new ConcurrentHashMap<String, Long>();
+
+        final Map<String, Boolean> failing = new ConcurrentHashMap<String, Boolean>();
+
+        final ConcurrentMap<String, List<Long>> calls = new ConcurrentHashMap<String, List<Long>>();
+
+        final List<String> aborted = new CopyOnWriteArrayList<String>();
+
+        List<Long> calls(String host) {
+            List<Long> started = calls.get(host);
+            if (started == null) {
+                started = new CopyOnWriteArrayList<Long>();
+                List<Long> existing = calls.putIfAbsent(host, started);
+                if (existing != null)
+                    started = existing;
+            }
+            return started;
+        }
+
+        public int execute(UpstreamMethod method, UsernamePasswordCredentials credentials)
+                throws IOException {
+            final String host = method.getURI().getHost();
+            calls(host).add(System.currentTimeMillis());
+
+            final Thread thread = Thread.currentThread();
+            method.setExchange(new Closeable() {
+                public void close() {
+                    aborted.add(host);
+                    thread.interrupt();
+                }
+            });
+
+            Long delay = delays.get(host);
+            try {
+                Thread.sleep(delay != null ? delay : 0);
+            } catch (InterruptedException e) {
+                throw new IOException(host + " aborted");
+            } finally {
+                method.setExchange(null);
+                Thread.interrupted();
+            }
+
+            if (failing.containsKey(host))
+                throw new IOException(host + " failed");
+
+            method.setResponse("HTTP/1.1 200 OK", new Header[] { new Header("X-From", host) },
+                    new ByteArrayInputStream(new byte[0]));
+            return 200;
+        }
+
+        public void shutdown() {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * HostCheckerTest class. Checks the client address read from the forwarded chain.
+ */
+public class HostCheckerTest extends TestCase {
+
+    private static final AddressMatcher NONE = new AddressMatcher(Collections.<String> emptyList());
+
+    private static final AddressMatcher PROXIES = new AddressMatcher(Arrays.asList("10.0.0.1",
+            "10.0.0.2"));
+
+    @Test
+    public void testForwardedForIgnoredWithoutTrustedProxies() throws Exception {
+        assertEquals("203.0.113.7", HostChecker.getRemoteAddr(request("203.0.113.7", null), NONE));
+        assertEquals("203.0.113.7", HostChecker.getRemoteAddr(request("203.0.113.7",
+                "127.0.0.1"), NONE));
+        assertEquals("10.0.0.1", HostChecker.getRemoteAddr(request("10.0.0.1",
+                "198.51.100.1, 127.0.0.1"), NONE));
+    }
+
+    @Test
+    public void testForwardedForIgnoredFromUntrustedPeer() throws Exception {
+        assertEquals("203.0.113.7", HostChecker.getRemoteAddr(request("203.0.113.7",
+                "127.0.0.1"), PROXIES));
+    }
+
+    @Test
+    public void testForwardedForFromTrustedProxies() throws Exception {
+        assertEquals("10.0.0.1", HostChecker.getRemoteAddr(request("10.0.0.1", null), PROXIES));
+        assertEquals("198.51.100.1", HostChecker.getRemoteAddr(request("10.0.0.1",
+                "198.51.100.1"), PROXIES));
+
+        // the addresses before the first untrusted one may be forged by the client
+        assertEquals("198.51.100.1", HostChecker.getRemoteAddr(request("10.0.0.1",
+                "127.0.0.1, 198.51.100.1, 10.0.0.2"), PROXIES));
+    }
+
+    /**
+     * @return HttpServletRequest a request from the given address, with the given
+     *         X-Forwarded-For header
+     */
+    private static HttpServletRequest request(final String remoteAddr, final String forwardedFor) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HostCheckerTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getRemoteAddr"))
+                            return remoteAddr;
+                        if (method.getName().equals("getHeader")
+                                && "X-Forwarded-For".equalsIgnoreCase((String) args[0]))
+                            return forwardedFor;
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * HostNameMatcherTest class. Checks exact names, wildcards and ports of the hostname whitelist.
+ */
+public class HostNameMatcherTest extends TestCase {
+
+    private static HostNameMatcher matcher(String... entries) {
+        return new HostNameMatcher(Arrays.asList(entries));
+    }
+
+    @Test
+    public void testExactNames() throws Exception {
+        HostNameMatcher matcher = matcher("localhost", " demo1.geo-solutions.it", "Demo.Geo-Solutions.IT");
+
+        assertTrue(matcher.matches("localhost", 80));
+        assertTrue(matcher.matches("demo1.geo-solutions.it", 8080));
+        assertTrue(matcher.matches("DEMO.geo-solutions.it", 443));
+        assertTrue(matcher.matches("demo.geo-solutions.it.", 80));
+        assertFalse(matcher.matches("geo-solutions.it", 80));
+        assertFalse(matcher.matches("x.demo.geo-solutions.it", 80));
+        assertFalse(matcher.matches("emo.geo-solutions.it", 80));
+        assertFalse(matcher.matches("", 80));
+    }
+
+    @Test
+    public void testWildcards() throws Exception {
+        HostNameMatcher matcher = matcher("*.geo-solutions.it", "example.org");
+
+        assertTrue(matcher.matches("demo.geo-solutions.it", 80));
+        assertTrue(matcher.matches("a.b.geo-solutions.it", 80));
+        assertFalse(matcher.matches("geo-solutions.it", 80));
+        assertFalse(matcher.matches("geo-solutions.it.evil.com", 80));
+        assertFalse(matcher.matches("evilgeo-solutions.it", 80));
+        assertFalse(matcher.matches("a.example.org", 80));
+    }
+
+    @Test
+    public void testPorts() throws Exception {
+        HostNameMatcher matcher = matcher("localhost:8080", "*.local:443", "[::1]:80", "bad:port");
+
+        assertTrue(matcher.matches("localhost", 8080));
+        assertFalse(matcher.matches("localhost", 80));
+        assertTrue(matcher.matches("a.local", 443));
+        assertFalse(matcher.matches("a.local", 80));
+        assertTrue(matcher.matches("[::1]", 80));
+        assertFalse(matcher.matches("bad", 80));
+        assertFalse(matcher.isEmpty());
+        assertTrue(matcher().isEmpty());
+    }
+
+    @Test
+    public void testManyEntries() throws Exception {
+        List<String> entries = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++)
+            entries.add("host" + i + ".zone" + (i % 100) + ".example.com");
+        HostNameMatcher matcher = new HostNameMatcher(entries);
+
+        assertTrue(matcher.matches("host12345.zone45.example.com", 80));
+        assertFalse(matcher.matches("host12345.zone46.example.com", 80));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * LoadBalancerTest class. Checks the choice of the backends of a group, their ejection and
+ * recovery.
+ */
+public class LoadBalancerTest extends TestCase {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void testFewestOutstanding() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(Arrays.asList("a:8080", "b:8080", "c:8080"));
+        long now = 1000 * MS;
+
+        LoadBalancer.Backend first = balancer.acquire(now, 0);
+        LoadBalancer.Backend second = balancer.acquire(now, 0);
+        LoadBalancer.Backend third = balancer.acquire(now, 0);
+        assertNotSame(first, second);
+        assertNotSame(first, third);
+        assertNotSame(second, third);
+
+        // the first one to finish gets the next request
+        balancer.complete(second, 10 * MS, Boolean.FALSE, now, 5, 0);
+        assertSame(second, balancer.acquire(now, 0));
+    }
+
+    @Test
+    public void testLatencyBreaksTies() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(Arrays.asList("a", "b"));
+        LoadBalancer.Backend a = balancer.getBackends()[0], b = balancer.getBackends()[1];
+        long now = 1000 * MS;
+
+        for (int i = 0; i < 2; i++) {
+            LoadBalancer.Backend backend = balancer.acquire(now, 0);
+            balancer.complete(backend, (backend == a ? 200 : 20) * MS, Boolean.FALSE, now, 5, 0);
+        }
+
+        // the faster one gets the sequential requests, until the latency of the other one
+        // decays below its own
+        int probed = 0;
+        for (int i = 1; i <= 60 && probed == 0; i++) {
+            now += 1000 * MS;
+            LoadBalancer.Backend backend = balancer.acquire(now, 0);
+            if (backend == a)
+                probed = i;
+            balancer.complete(backend, 20 * MS, Boolean.FALSE, now, 5, 0);
+        }
+        assertTrue(probed > 20 && probed < 30);
+    }
+
+    @Test
+    public void testEjectionAndSlowStart() throws Exception {
+        LoadBalancer balancer = new LoadBalancer(Arrays.asList("a", "b"));
+        LoadBalancer.Backend a = balancer.getBackends()[0], b = balancer.getBackends()[1];
+        long now = 1000 * MS, ejectTime = 10000 * MS, slowStart = 10000 * MS;
+
+        // a fails 3 requests in a row
+        for (int i = 0; i < 3; i++) {
+            LoadBalancer.Backend first = balancer.acquire(now, slowStart);
+            LoadBalancer.Backend second = balancer.acquire(now, slowStart);
+            assertNotSame(first, second);
+
+            boolean ejected = balancer.complete(a, MS, Boolean.TRUE, now, 3, ejectTime);
+            assertEquals(i == 2, ejected);
+            balancer.complete(b, MS, Boolean.FALSE, now, 3, ejectTime);
+        }
+        assertFalse(a.isAvailable(now));
+
+        for (int i = 0; i < 5; i++)
+            assertSame(b, balancer.acquire(now, slowStart));
+
+        // back after the ejection, a takes a growing share of the requests
+        now += ejectTime;
+        assertTrue(a.isAvailable(now));
+        assertSame(b, balancer.acquire(now + MS, slowStart));
+        assertSame(a, balancer.acquire(now + slowStart / 2, slowStart));
+
+        // no backend available, they are all used rather than none
+        assertTrue(a.checked(false, now));
+        assertTrue(b.checked(false, now));
+        assertNotNull(balancer.acquire(now, slowStart));
+        assertTrue(b.checked(true, now));
+        assertFalse(b.checked(true, now));
+        assertSame(b, balancer.acquire(now, slowStart));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Properties;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+/**
+ * MaxResponseBytesTest class. Checks the size limit of the remote responses, announced by their
+ * Content-Length or reached while streaming, through a proxy and a remote server on localhost.
+ */
+public class MaxResponseBytesTest extends TestCase {
+
+    private static final int LIMIT = 10000;
+
+    private Server remote;
+
+    private SelectChannelConnector remoteConnector;
+
+    private Server proxy;
+
+    private SelectChannelConnector proxyConnector;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        remoteConnector = new SelectChannelConnector();
+        remoteConnector.setPort(0);
+        remote = new Server();
+        remote.addConnector(remoteConnector);
+        remote.setHandler(new RemoteHandler());
+        remote.start();
+
+        Properties props = new Properties();
+        props.setProperty("maxResponseBytes", String.valueOf(LIMIT));
+        final ProxyConfig config = new ProxyConfig(props);
+
+        proxyConnector = new SelectChannelConnector();
+        proxyConnector.setPort(0);
+        proxy = new Server();
+        proxy.addConnector(proxyConnector);
+        Context context = new Context(proxy, "/");
+        context.addServlet(new ServletHolder(new HTTPProxy() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void init(ServletConfig servletConfig) throws ServletException {
+                init(config);
+            }
+        }), "/proxy/*");
+        proxy.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        proxy.stop();
+        remote.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testWithinLimit() throws Exception {
+        HttpURLConnection con = get("size=" + LIMIT + "&length=true");
+        assertEquals(200, con.getResponseCode());
+        assertEquals(LIMIT, read(con.getInputStream()));
+
+        con = get("size=" + LIMIT);
+        assertEquals(200, con.getResponseCode());
+        assertEquals(LIMIT, read(con.getInputStream()));
+    }
+
+    @Test
+    public void testContentLengthRejected() throws Exception {
+        HttpURLConnection con = get("size=" + (LIMIT + 1) + "&length=true");
+        assertEquals(502, con.getResponseCode());
+    }
+
+    @Test
+    public void testCutOffWhileStreaming() throws Exception {
+        HttpURLConnection con = get("size=" + (10 * LIMIT));
+        assertEquals(200, con.getResponseCode());
+
+        int read = 0;
+        try {
+            read = read(con.getInputStream());
+        } catch (IOException e) {
+            // the response may be interrupted as well as cut short
+        }
+        assertTrue("Read " + read + " bytes", read <= LIMIT);
+    }
+
+    private HttpURLConnection get(String query) throws IOException {
+        String remoteUrl = "http://localhost:" + remoteConnector.getLocalPort() + "/?" + query;
+        URL url = new URL("http://localhost:" + proxyConnector.getLocalPort() + "/proxy/?url="
+                + URLEncoder.encode(remoteUrl, "UTF-8"));
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static int read(InputStream in) throws IOException {
+        try {
+            byte[] b = new byte[4096];
+            int total = 0, read;
+            while ((read = in.read(b)) != -1)
+                total += read;
+            return total;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Answers a body of <code>size</code> bytes, announced with Content-Length if
+     * <code>length</code> is set, streamed in flushed chunks otherwise.
+     */
+    private static final class RemoteHandler extends AbstractHandler {
+
+        public void handle(String target, HttpServletRequest request,
+                HttpServletResponse response, int dispatch) throws IOException, ServletException {
+            ((Request) request).setHandled(true);
+
+            int size = Integer.parseInt(request.getParameter("size"));
+            response.setContentType("application/octet-stream");
+            if (request.getParameter("length") != null)
+                response.setContentLength(size);
+
+            OutputStream out = response.getOutputStream();
+            byte[] chunk = new byte[1000];
+            try {
+                for (int written = 0; written < size; written += chunk.length) {
+                    out.write(chunk, 0, Math.min(chunk.length, size - written));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the proxy went away
+            }
+        }
+    }
+}
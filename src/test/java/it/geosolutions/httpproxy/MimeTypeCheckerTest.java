@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.Header;
+import org.junit.Test;
+
+/**
+ * MimeTypeCheckerTest class. Checks the remote responses against the Content-type whitelist.
+ */
+public class MimeTypeCheckerTest extends TestCase {
+
+    private MimeTypeChecker checker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Properties props = new Properties();
+        props.setProperty("mimetypeWhitelist", "image/png,text/plain");
+        checker = new MimeTypeChecker(new ProxyConfig(props));
+    }
+
+    @Test
+    public void testAllowedType() throws Exception {
+        checker.onRemoteResponse(response("HTTP/1.1 200 OK", "body", "Content-Type",
+                "text/plain; charset=UTF-8"));
+        assertRejected(response("HTTP/1.1 200 OK", "body", "Content-Type", "text/html"));
+    }
+
+    @Test
+    public void testMissingType() throws Exception {
+        // responses without body need no type
+        checker.onRemoteResponse(response("HTTP/1.1 204 No Content", null));
+        checker.onRemoteResponse(response("HTTP/1.1 304 Not Modified", null));
+        checker.onRemoteResponse(response("HTTP/1.1 200 OK", "", "Content-Length", "0"));
+
+        assertRejected(response("HTTP/1.1 200 OK", "body"));
+        assertRejected(response("HTTP/1.1 200 OK", "body", "Content-Length", "4"));
+    }
+
+    @Test
+    public void testByteRangesCheckedByPart() throws Exception {
+        String body = "\r\n--THIS_STRING_SEPARATES\r\nContent-Type: image/png\r\n"
+                + "Content-Range: bytes 0-3/100\r\n\r\nabcd\r\n--THIS_STRING_SEPARATES--\r\n";
+
+        String type = "multipart/byteranges; boundary=THIS_STRING_SEPARATES";
+
+        UpstreamMethod method = response("HTTP/1.1 206 Partial Content", body, "Content-Type",
+                type);
+        checker.onRemoteResponse(method);
+
+        // the part headers peeked at are still relayed
+        assertEquals(body, new String(method.getResponseBody(), "ISO-8859-1"));
+
+        assertRejected(response("HTTP/1.1 206 Partial Content", body.replace("image/png",
+                "text/html"), "Content-Type", type));
+        assertRejected(response("HTTP/1.1 206 Partial Content", "no parts", "Content-Type", type));
+    }
+
+    @Test
+    public void testPeekResponseBody() throws Exception {
+        byte[] end = { '\r', '\n', '\r', '\n' };
+
+        UpstreamMethod method = response("HTTP/1.1 200 OK", "a: b\r\r\n\r\nbody");
+        assertEquals("a: b\r\r\n\r\n", new String(method.peekResponseBody(100, end),
+                "ISO-8859-1"));
+        assertEquals("a: b\r\r\n\r\nbody", new String(method.getResponseBody(), "ISO-8859-1"));
+
+        method = response("HTTP/1.1 200 OK", "0123456789");
+        assertEquals("0123", new String(method.peekResponseBody(4, end), "ISO-8859-1"));
+        assertEquals("0123456789", new String(method.getResponseBody(), "ISO-8859-1"));
+
+        assertEquals(0, response("HTTP/1.1 204 No Content", null).peekResponseBody(4, end).length);
+    }
+
+    private void assertRejected(UpstreamMethod method) throws Exception {
+        try {
+            checker.onRemoteResponse(method);
+            fail("The response should have been rejected");
+        } catch (HttpErrorException e) {
+            assertEquals(403, e.getCode());
+        }
+    }
+
+    /**
+     * @param statusLine
+     * @param body the response body, null if none
+     * @param headers the name and value of the response headers
+     * @return UpstreamMethod a method having received the given response
+     */
+    static UpstreamMethod response(String statusLine, String body, String... headers)
+            throws Exception {
+        Header[] responseHeaders = new Header[headers.length / 2];
+        for (int i = 0; i < responseHeaders.length; i++)
+            responseHeaders[i] = new Header(headers[2 * i], headers[2 * i + 1]);
+
+        UpstreamMethod method = new UpstreamMethod("GET", "http://localhost/");
+        method.setResponse(statusLine, responseHeaders, body != null ? new ByteArrayInputStream(
+                body.getBytes("ISO-8859-1")) : null);
+        return method;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * ProxyConfigTest class. Checks the parsing of the properties and the hot reload.
+ */
+public class ProxyConfigTest extends TestCase {
+
+    @Test
+    public void testMalformed() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("timeout", "30s");
+
+        try {
+            new ProxyConfig(props);
+            fail("A malformed property must be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("timeout") >= 0);
+        }
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("timeout", "1000");
+        props.setProperty("connection_timeout", "2000");
+        ProxyConfig config = new ProxyConfig(props);
+
+        // a malformed value keeps the whole current configuration
+        props.setProperty("timeout", "3000");
+        props.setProperty("connection_timeout", "4s");
+        config.reload(props);
+        assertEquals(1000, config.getSoTimeout());
+        assertEquals(2000, config.getConnectionTimeout());
+
+        props.setProperty("connection_timeout", "4000");
+        config.reload(props);
+        assertEquals(3000, config.getSoTimeout());
+        assertEquals(4000, config.getConnectionTimeout());
+    }
+
+    @Test
+    public void testReloadResponseLimits() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("maxResponseBytes", "1000");
+        props.setProperty("maxResponseBytes.text/xml", "500");
+        props.setProperty("upstreamHosts", "geoserver");
+        props.setProperty("upstream.geoserver.host", "geoserver.example.com");
+        props.setProperty("upstream.geoserver.max_response_bytes", "200");
+        ProxyConfig config = new ProxyConfig(props);
+
+        // the limits are never lifted by a malformed value
+        props.setProperty("maxResponseBytes", "1MB");
+        config.reload(props);
+        assertEquals(1000, config.getMaxResponseBytes("example.com", 80, null));
+
+        props.setProperty("maxResponseBytes", "1000");
+        props.setProperty("maxResponseBytes.text/xml", "5k");
+        config.reload(props);
+        assertEquals(500, config.getMaxResponseBytes("example.com", 80, "text/xml"));
+
+        props.setProperty("maxResponseBytes.text/xml", "500");
+        props.setProperty("upstream.geoserver.max_response_bytes", "none");
+        config.reload(props);
+        assertEquals(200, config.getMaxResponseBytes("geoserver.example.com", 80, null));
+    }
+
+    @Test
+    public void testReloadRateLimits() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("rateLimitRequests", "10");
+        props.setProperty("rateLimitConcurrent", "4");
+        props.setProperty("rateLimitBytes", "100000");
+        ProxyConfig config = new ProxyConfig(props);
+
+        // the limits are never turned off by a malformed value
+        props.setProperty("rateLimitBurst", "-");
+        config.reload(props);
+        assertEquals(10.0, config.getRateLimitRequests());
+        assertEquals(4, config.getRateLimitConcurrent());
+        assertEquals(100000, config.getRateLimitBytes());
+    }
+}
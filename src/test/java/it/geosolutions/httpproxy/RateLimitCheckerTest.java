@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+/**
+ * RateLimitCheckerTest class. Checks the in-flight limit of the clients through a proxy and a remote
+ * server on localhost, with suspended followers of coalesced requests executing their own remote
+ * request once dispatched again.
+ */
+public class RateLimitCheckerTest extends TestCase {
+
+    private Server remote;
+
+    private SelectChannelConnector remoteConnector;
+
+    private RemoteHandler remoteHandler;
+
+    private Server proxy;
+
+    private SelectChannelConnector proxyConnector;
+
+    private Properties props;
+
+    private ProxyConfig config;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        remoteConnector = new SelectChannelConnector();
+        remoteConnector.setPort(0);
+        remote = new Server();
+        remote.addConnector(remoteConnector);
+        remoteHandler = new RemoteHandler();
+        remote.setHandler(remoteHandler);
+        remote.start();
+
+        props = new Properties();
+        props.setProperty("proxyCallbacks", "RateLimitChecker");
+        props.setProperty("rateLimitConcurrent", "2");
+        props.setProperty("coalesceRequests", "true");
+        props.setProperty("asyncEnabled", "true");
+        config = new ProxyConfig(props);
+
+        proxyConnector = new SelectChannelConnector();
+        proxyConnector.setPort(0);
+        proxy = new Server();
+        proxy.addConnector(proxyConnector);
+        Context context = new Context(proxy, "/");
+        context.addServlet(new ServletHolder(new HTTPProxy() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void init(ServletConfig servletConfig) throws ServletException {
+                init(config);
+            }
+        }), "/proxy/*");
+        proxy.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        proxy.stop();
+        remote.stop();
+        super.tearDown();
+    }
+
+    @Test
+    public void testCoalescedFollower() throws Exception {
+        // the leader gets a redirect, which is not shared: the follower
+        // executes its own request without taking a second slot
+        Client leader = new Client();
+        leader.start();
+        Thread.sleep(200);
+
+        HttpURLConnection follower = get();
+        assertEquals(302, follower.getResponseCode());
+        leader.join();
+        assertEquals(302, leader.status);
+        assertEquals(2, remoteHandler.calls.get());
+
+        // and its slot is released
+        props.setProperty("rateLimitConcurrent", "1");
+        config.reload(props);
+        assertEquals(302, get().getResponseCode());
+    }
+
+    private HttpURLConnection get() throws IOException {
+        String remoteUrl = "http://localhost:" + remoteConnector.getLocalPort() + "/";
+        URL url = new URL("http://localhost:" + proxyConnector.getLocalPort() + "/proxy/?url="
+                + URLEncoder.encode(remoteUrl, "UTF-8"));
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setInstanceFollowRedirects(false);
+        return con;
+    }
+
+    /**
+     * Sends a request in the background.
+     */
+    private final class Client extends Thread {
+
+        volatile int status;
+
+        @Override
+        public void run() {
+            try {
+                status = get().getResponseCode();
+            } catch (IOException e) {
+                status = -1;
+            }
+        }
+    }
+
+    /**
+     * Answers a redirect after a while.
+     */
+    private static final class RemoteHandler extends AbstractHandler {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public void handle(String target, HttpServletRequest request,
+                HttpServletResponse response, int dispatch) throws IOException, ServletException {
+            ((Request) request).setHandled(true);
+            calls.incrementAndGet();
+
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            response.sendRedirect("http://localhost/moved");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * RateLimiterTest class. Checks the request, concurrency and bandwidth limits of the clients.
+ */
+public class RateLimiterTest extends TestCase {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testRequestRate() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000);
+        long now = SECOND;
+        RateLimiter.Bucket bucket = limiter.get("10.0.0.1", now, 60 * SECOND);
+        long interval = RateLimiter.interval(10);
+
+        // a burst of 5, then one every 100ms
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.acquire(now, interval, 5, 0, 0));
+            bucket.release(now, 0, 0);
+        }
+        long wait = bucket.acquire(now, interval, 5, 0, 0);
+        assertEquals(interval, wait);
+        assertEquals(0, bucket.getInFlight());
+
+        now += wait;
+        assertEquals(0, bucket.acquire(now, interval, 5, 0, 0));
+        assertTrue(bucket.acquire(now, interval, 5, 0, 0) > 0);
+
+        // another client has its own bucket
+        assertNotSame(bucket, limiter.get("10.0.0.2", now, 60 * SECOND));
+        assertSame(bucket, limiter.get("10.0.0.1", now, 60 * SECOND));
+    }
+
+    @Test
+    public void testConcurrencyAndBytes() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000);
+        long now = SECOND;
+        RateLimiter.Bucket bucket = limiter.get("10.0.0.1", now, 60 * SECOND);
+
+        assertEquals(0, bucket.acquire(now, 0, 0, 2, 0));
+        assertEquals(0, bucket.acquire(now, 0, 0, 2, 0));
+        assertEquals(-1, bucket.acquire(now, 0, 0, 2, 0));
+        bucket.release(now, 0, 0);
+        assertEquals(0, bucket.acquire(now, 0, 0, 2, 0));
+        bucket.release(now, 0, 0);
+        bucket.release(now, 0, 0);
+
+        // 1000 bytes per second with a burst of 1000 bytes: 3000 bytes cost 2 more seconds
+        long burst = 1000 * RateLimiter.interval(1000);
+        assertEquals(0, bucket.acquire(now, 0, 0, 0, burst));
+        bucket.release(now, 3000, 1000);
+        assertEquals(2 * SECOND, bucket.acquire(now, 0, 0, 0, burst));
+        assertEquals(0, bucket.acquire(now + 2 * SECOND, 0, 0, 0, burst));
+    }
+
+    @Test
+    public void testIdleClients() throws Exception {
+        RateLimiter limiter = new RateLimiter(64);
+        long now = SECOND;
+
+        RateLimiter.Bucket first = limiter.get("10.0.0.0", now, SECOND);
+        assertEquals(0, first.acquire(now, 0, 0, 0, 0));
+        RateLimiter.Bucket second = limiter.get("10.0.0.1", now, SECOND);
+        for (int i = 2; i < 1000; i++)
+            limiter.get("10.0.0." + i, now, SECOND);
+        assertEquals(64, limiter.size());
+
+        // the clients beyond the maximum share a bucket
+        RateLimiter.Bucket overflow = limiter.get("10.1.0.0", now, SECOND);
+        assertSame(overflow, limiter.get("10.1.0.1", now, SECOND));
+
+        // the idle clients make room for the new ones, but the one in flight
+        now += 2 * SECOND;
+        for (int i = 0; i < 1000; i++)
+            limiter.get("10.1.0." + i, now, SECOND);
+        assertEquals(64, limiter.size());
+        assertSame(first, limiter.get("10.0.0.0", now, SECOND));
+        assertNotSame(second, limiter.get("10.0.0.1", now, SECOND));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * RequestCoalescerTest class. Checks the body chunks kept for the followers of a flight.
+ */
+public class RequestCoalescerTest extends TestCase {
+
+    private static final byte[] CHUNK = new byte[10];
+
+    @Test
+    public void testChunksDroppedOnceRead() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(1000);
+        RequestCoalescer.Flight flight = lead(coalescer);
+        assertSame(flight, follow(coalescer));
+        assertSame(flight, follow(coalescer));
+
+        start(flight);
+        InputStream first = flight.await(true);
+        InputStream second = flight.await(true);
+
+        for (int i = 0; i < 3; i++)
+            flight.publish(CHUNK, 0, CHUNK.length);
+        assertEquals(30, flight.getBufferedBytes());
+
+        assertEquals(30, read(first, 30));
+        assertEquals(30, flight.getBufferedBytes());
+        assertEquals(10, read(second, 10));
+        assertEquals(20, flight.getBufferedBytes());
+
+        // a follower closing its stream does not hold the chunks anymore
+        second.close();
+        assertEquals(0, flight.getBufferedBytes());
+
+        flight.finish();
+        assertEquals(-1, first.read());
+        assertFalse(flight.hasFollowers());
+    }
+
+    @Test
+    public void testSlowFollowerInterrupted() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(100);
+        RequestCoalescer.Flight flight = lead(coalescer);
+        follow(coalescer);
+        follow(coalescer);
+
+        start(flight);
+        InputStream fast = flight.await(true);
+        InputStream slow = flight.await(true);
+
+        for (int i = 0; i < 20; i++) {
+            flight.publish(CHUNK, 0, CHUNK.length);
+            assertEquals(10, read(fast, 10));
+            assertTrue(flight.getBufferedBytes() <= 100);
+        }
+
+        try {
+            slow.read();
+            fail("The slow follower should have been interrupted");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertTrue(flight.hasFollowers());
+        fast.close();
+        assertFalse(flight.hasFollowers());
+        assertEquals(0, flight.getBufferedBytes());
+    }
+
+    @Test
+    public void testLateFollowerExecutesItsOwnRequest() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(100);
+        RequestCoalescer.Flight flight = lead(coalescer);
+        follow(coalescer);
+
+        start(flight);
+        for (int i = 0; i < 20; i++)
+            flight.publish(CHUNK, 0, CHUNK.length);
+
+        // the start of the body is gone before the follower reads it
+        assertNull(flight.await(true));
+        assertFalse(flight.hasFollowers());
+
+        flight.publish(CHUNK, 0, CHUNK.length);
+        assertEquals(0, flight.getBufferedBytes());
+    }
+
+    @Test
+    public void testTimedOutFollowerLeaves() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(100);
+        RequestCoalescer.Flight flight = lead(coalescer);
+        follow(coalescer);
+        assertTrue(flight.hasFollowers());
+
+        try {
+            flight.await(false);
+            fail("The follower should have timed out");
+        } catch (HttpErrorException e) {
+            assertEquals(504, e.getCode());
+        }
+
+        assertFalse(flight.hasFollowers());
+    }
+
+    private static RequestCoalescer.Flight lead(RequestCoalescer coalescer) throws Exception {
+        HttpServletRequest request = request();
+        RequestCoalescer.Flight flight = coalescer.join(new URL("http://localhost/wms"), null,
+                null, request);
+        assertSame(flight, RequestCoalescer.get(request));
+        return flight;
+    }
+
+    private static RequestCoalescer.Flight follow(RequestCoalescer coalescer) throws Exception {
+        HttpServletRequest request = request();
+        RequestCoalescer.Flight flight = coalescer.join(new URL("http://localhost/wms"), null,
+                null, request);
+        assertNull(RequestCoalescer.get(request));
+        return flight;
+    }
+
+    private static void start(RequestCoalescer.Flight flight) {
+        flight.start(200, Collections.singletonList(new String[] { "Content-Type", "image/png" }));
+    }
+
+    private static int read(InputStream in, int len) throws IOException {
+        byte[] b = new byte[len];
+        int read = 0;
+        while (read < len) {
+            int n = in.read(b, read, len - read);
+            if (n < 0)
+                break;
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * @return HttpServletRequest a request without headers, only keeping its attributes
+     */
+    private static HttpServletRequest request() {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                RequestCoalescerTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("setAttribute"))
+                            attributes.put((String) args[0], args[1]);
+                        else if (method.getName().equals("getAttribute"))
+                            return attributes.get(args[0]);
+                        return null;
+                    }
+                });
+    }
+}
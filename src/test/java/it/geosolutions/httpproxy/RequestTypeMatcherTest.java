@@ -0,0 +1,109 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * RequestTypeMatcherTest class. Checks the compiled matcher agrees with the regular expressions.
+ */
+public class RequestTypeMatcherTest extends TestCase {
+
+    private static final String[] URLS = {
+            "http://demo1.geo-solutions.it/geoserver/wms?SERVICE=WMS&REQUEST=GetCapabilities&version=1.1.1",
+            "http://demo1.geo-solutions.it/geoserver/wms?SERVICE=WMS&REQUEST=getcapabilities",
+            "http://demo1.geo-solutions.it/geoserver/wms?SERVICE=WMS&REQUEST=GetCap&version=1.1.1",
+            "http://host/geoserver/wms?REQUEST=GetFeatureInfo&QUERY_LAYERS=a",
+            "http://host/geonetwork/srv/en/csw?request=GetRecords",
+            "http://host/geostore/rest/resources",
+            "http://host/fdh/servicebox/pdf",
+            "http://host/ows?service=WFS",
+            "http://host/wms?SERVICE=WMS&REQUEST=GETCAPABILITIES",
+            "http://host/wms?a=b\nGetCapabilities",
+            "http://host/\u00e8/GetFeatureInfo",
+            "http://host/x",
+            "" };
+
+    private static Map<String, String> reqTypes() {
+        Map<String, String> reqTypes = new LinkedHashMap<String, String>();
+        reqTypes.put("capabilities", ".*[Gg]et[Cc]apabilities.*");
+        reqTypes.put("featureinfo", ".*[Gg]et[Ff]eature[Ii]nfo.*");
+        reqTypes.put("csw", ".*csw.*");
+        reqTypes.put("geostore", ".*geostore.*");
+        reqTypes.put("version", "(([&]?([Rr][Ee][Qq][Uu][Ee][Ss][Tt]=[Gg]et[Cc]apabilities))|([&]?(version=1\\.1\\.1)))+");
+        reqTypes.put("generic", "(.*exist.*)|(.*servicebox.*)|(.*pdf.*)|(.*map.*)|(.*ows.*)");
+        return reqTypes;
+    }
+
+    @Test
+    public void testAgreesWithRegex() throws Exception {
+        Map<String, String> reqTypes = reqTypes();
+        RequestTypeMatcher matcher = new RequestTypeMatcher(reqTypes, 0);
+
+        for (String url : URLS) {
+            int expected = -1, i = 0;
+            for (String regex : reqTypes.values()) {
+                if (Pattern.compile(regex).matcher(url).matches()) {
+                    expected = i;
+                    break;
+                }
+                i++;
+            }
+
+            assertEquals(url, expected, matcher.match(url));
+        }
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        assertNotNull(RequestTypeMatcher.parse(".*[Gg]et[Cc]apabilities.*", 0));
+        assertEquals(2, RequestTypeMatcher.parse("(.*exist.*)|(?:.*pdf.*)", 0).size());
+        assertNotNull(RequestTypeMatcher.parse(".*version=1\\.1.*", 0));
+
+        assertNull(RequestTypeMatcher.parse("(.*exist.*)|(version=1.*)", 0));
+        assertNull(RequestTypeMatcher.parse(".*a+.*", 0));
+        assertNull(RequestTypeMatcher.parse(".*abc\\.*", 0));
+        assertNull(RequestTypeMatcher.parse("(?i).*abc.*", 0));
+        assertNull(RequestTypeMatcher.parse(".*[^a].*", 0));
+        assertNull(RequestTypeMatcher.parse(".*[a-z].*", 0));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        // two slots: most URLs share a slot with another one
+        RequestTypeMatcher matcher = new RequestTypeMatcher(reqTypes(), 2);
+        RequestTypeMatcher uncached = new RequestTypeMatcher(reqTypes(), 0);
+
+        for (int pass = 0; pass < 2; pass++)
+            for (String url : URLS)
+                assertEquals(url, uncached.match(url), matcher.match(url));
+
+        assertEquals(0, matcher.match(URLS[0]));
+        assertEquals(0, matcher.match(URLS[0]));
+        assertEquals(-1, matcher.match("http://host/x"));
+        assertEquals(-1, matcher.match("http://host/x"));
+    }
+}
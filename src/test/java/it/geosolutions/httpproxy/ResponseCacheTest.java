@@ -0,0 +1,235 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * ResponseCacheTest class. Checks the freshness of the cached responses, their revalidation and
+ * their eviction.
+ */
+public class ResponseCacheTest extends TestCase {
+
+    @Test
+    public void testFreshness() throws Exception {
+        ResponseCache cache = new ResponseCache(100000, 10000);
+        URL url = new URL("http://localhost/fresh");
+
+        ResponseCache.Lookup lookup = cache.lookup(url, null, null, request());
+        assertNull(lookup.entry);
+        assertFalse(lookup.isFresh());
+        store(cache, lookup, "hello", "Cache-Control", "max-age=60");
+
+        lookup = cache.lookup(url, null, null, request());
+        assertTrue(lookup.isFresh());
+        assertEquals("hello", body(lookup.entry));
+        assertEquals(1, cache.getStores());
+
+        // the client asks to revalidate
+        assertFalse(cache.lookup(url, null, null, request("Cache-Control", "no-cache"))
+                .isFresh());
+
+        // expired, or to be revalidated each time
+        url = new URL("http://localhost/expired");
+        store(cache, cache.lookup(url, null, null, request()), "stale", "Cache-Control",
+                "max-age=0", "ETag", "\"v1\"");
+        lookup = cache.lookup(url, null, null, request());
+        assertNotNull(lookup.entry);
+        assertFalse(lookup.isFresh());
+
+        // neither cacheable nor revalidable
+        lookup = cache.lookup(new URL("http://localhost/private"), null, null, request());
+        assertNull(cache.record(lookup, MimeTypeCheckerTest.response("HTTP/1.1 200 OK", null,
+                "Cache-Control", "private, max-age=60"), 200));
+        assertNull(cache.record(lookup, MimeTypeCheckerTest.response("HTTP/1.1 200 OK", null),
+                200));
+        assertNull(cache.record(lookup, MimeTypeCheckerTest.response("HTTP/1.1 404 Not Found",
+                null, "Cache-Control", "max-age=60"), 404));
+
+        // never shared among users
+        assertNull(cache.lookup(url, null, null, request("Cookie", "session=1")).entry);
+    }
+
+    @Test
+    public void testRevalidation() throws Exception {
+        ResponseCache cache = new ResponseCache(100000, 10000);
+        URL url = new URL("http://localhost/revalidated");
+        store(cache, cache.lookup(url, null, null, request()), "hello", "Cache-Control",
+                "max-age=0", "ETag", "\"v1\"", "Last-Modified", "Mon, 01 Jan 2024 00:00:00 GMT");
+
+        ResponseCache.Lookup lookup = cache.lookup(url, null, null, request());
+        assertFalse(lookup.isFresh());
+
+        UpstreamMethod method = new UpstreamMethod("GET", url.toExternalForm());
+        cache.addValidators(lookup, method);
+        assertEquals("\"v1\"", method.getRequestHeader("If-None-Match").getValue());
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", method.getRequestHeader(
+                "If-Modified-Since").getValue());
+
+        // the remote server answers 304 with a new lifetime
+        ResponseCache.Entry entry = cache.revalidated(lookup, MimeTypeCheckerTest.response(
+                "HTTP/1.1 304 Not Modified", null, "Cache-Control", "max-age=60"));
+        assertEquals("hello", body(entry));
+        assertEquals(1, cache.getRevalidations());
+
+        lookup = cache.lookup(url, null, null, request());
+        assertTrue(lookup.isFresh());
+        assertSame(entry, lookup.entry);
+
+        // the client already has it
+        Map<String, Object> sent = new HashMap<String, Object>();
+        assertTrue(cache.serve(entry, request("If-None-Match", "\"v0\", \"v1\""),
+                response(sent)));
+        assertEquals(304, sent.get("status"));
+        assertEquals("\"v1\"", sent.get("ETag"));
+
+        sent.clear();
+        assertFalse(cache.serve(entry, request("If-None-Match", "\"v0\""), response(sent)));
+        assertEquals(200, sent.get("status"));
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        String body = new String(new char[1000]).replace('\0', 'x');
+        ResponseCache cache = new ResponseCache(3000, 2000);
+        URL a = new URL("http://localhost/a");
+        URL b = new URL("http://localhost/b");
+        URL c = new URL("http://localhost/c");
+
+        store(cache, cache.lookup(a, null, null, request()), body, "Cache-Control", "max-age=60");
+        store(cache, cache.lookup(b, null, null, request()), body, "Cache-Control", "max-age=60");
+        assertEquals(2, cache.getEntries());
+        assertTrue(cache.getBytes() <= 3000);
+
+        // a is used again, b is the least recently used
+        assertTrue(cache.lookup(a, null, null, request()).isFresh());
+        store(cache, cache.lookup(c, null, null, request()), body, "Cache-Control", "max-age=60");
+
+        assertEquals(2, cache.getEntries());
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.lookup(a, null, null, request()).isFresh());
+        assertNull(cache.lookup(b, null, null, request()).entry);
+        assertTrue(cache.lookup(c, null, null, request()).isFresh());
+    }
+
+    @Test
+    public void testEntrySize() throws Exception {
+        ResponseCache cache = new ResponseCache(100000, 10);
+        URL url = new URL("http://localhost/large");
+
+        // announced too large
+        ResponseCache.Lookup lookup = cache.lookup(url, null, null, request());
+        assertNull(cache.record(lookup, MimeTypeCheckerTest.response("HTTP/1.1 200 OK", null,
+                "Cache-Control", "max-age=60", "Content-Length", "11"), 200));
+
+        // found too large while relayed
+        store(cache, lookup, "hello world", "Cache-Control", "max-age=60");
+        assertNull(cache.lookup(url, null, null, request()).entry);
+
+        // cut short
+        ResponseCache.Recorder recorder = cache.record(lookup, MimeTypeCheckerTest.response(
+                "HTTP/1.1 200 OK", null, "Cache-Control", "max-age=60", "Content-Length", "5"),
+                200);
+        recorder.write("hell".getBytes("ISO-8859-1"));
+        recorder.commit();
+        assertNull(cache.lookup(url, null, null, request()).entry);
+        assertEquals(0, cache.getStores());
+    }
+
+    /**
+     * Records the body of a 200 response with the given headers
+     */
+    private static void store(ResponseCache cache, ResponseCache.Lookup lookup, String body,
+            String... headers) throws Exception {
+        UpstreamMethod method = MimeTypeCheckerTest.response("HTTP/1.1 200 OK", body, headers);
+        ResponseCache.Recorder recorder = cache.record(lookup, method, 200);
+        assertNotNull(recorder);
+
+        for (int i = 0; i < headers.length; i += 2)
+            recorder.addHeader(headers[i], headers[i + 1]);
+
+        byte[] bytes = body.getBytes("ISO-8859-1");
+        recorder.write(bytes, 0, bytes.length / 2);
+        recorder.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+        recorder.commit();
+    }
+
+    private static String body(ResponseCache.Entry entry) throws Exception {
+        InputStream in = entry.openBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1)
+            out.write(b);
+        return out.toString("ISO-8859-1");
+    }
+
+    /**
+     * @return HttpServletRequest a request with the given header names and values
+     */
+    private static HttpServletRequest request(String... headers) {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < headers.length; i += 2)
+            values.put(headers[i].toLowerCase(), headers[i + 1]);
+
+        return (HttpServletRequest) Proxy.newProxyInstance(ResponseCacheTest.class
+                .getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getHeader"))
+                            return values.get(((String) args[0]).toLowerCase());
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * @return HttpServletResponse a response recording its status and headers in the given map
+     */
+    private static HttpServletResponse response(final Map<String, Object> sent) {
+        return (HttpServletResponse) Proxy.newProxyInstance(ResponseCacheTest.class
+                .getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+                new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("setStatus"))
+                            sent.put("status", args[0]);
+                        else if (method.getName().startsWith("set") && args.length == 2)
+                            sent.put((String) args[0], args[1]);
+                        return null;
+                    }
+                });
+    }
+}
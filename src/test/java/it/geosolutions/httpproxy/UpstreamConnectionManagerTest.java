@@ -0,0 +1,139 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.junit.Test;
+
+/**
+ * UpstreamConnectionManagerTest class. Checks that the permits of the pooled connections are
+ * returned once, whether the connections are released or lost, and survive limit changes.
+ */
+public class UpstreamConnectionManagerTest extends TestCase {
+
+    private UpstreamConnectionManager manager;
+
+    private HostConfiguration host;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+        params.setMaxTotalConnections(10);
+        params.setDefaultMaxConnectionsPerHost(1);
+        manager = new UpstreamConnectionManager();
+        manager.setParams(params);
+
+        host = new HostConfiguration();
+        host.setHost("localhost", 80, "http");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager.shutdown();
+        super.tearDown();
+    }
+
+    @Test
+    public void testReleasedOnce() throws Exception {
+        HttpConnection connection = manager.getConnectionWithTimeout(host, 100);
+        assertEquals(1, manager.getLeasedConnections());
+        assertTimeout();
+
+        connection.releaseConnection();
+        connection.releaseConnection();
+        assertEquals(0, manager.getLeasedConnections());
+
+        // a single connection still
+        connection = manager.getConnectionWithTimeout(host, 100);
+        assertTimeout();
+        connection.releaseConnection();
+    }
+
+    @Test
+    public void testLost() throws Exception {
+        manager.getConnectionWithTimeout(host, 100);
+
+        // its permits are back once the connection is collected
+        HttpConnection connection = null;
+        long deadline = System.currentTimeMillis() + 10000;
+        while (connection == null) {
+            System.gc();
+            try {
+                connection = manager.getConnectionWithTimeout(host, 50);
+            } catch (ConnectionPoolTimeoutException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+            }
+        }
+
+        assertEquals(1, manager.getLeasedConnections());
+        connection.releaseConnection();
+        assertEquals(0, manager.getLeasedConnections());
+    }
+
+    @Test
+    public void testResized() throws Exception {
+        HttpConnection first = manager.getConnectionWithTimeout(host, 100);
+
+        Properties props = new Properties();
+        props.setProperty("upstream.local.host", "localhost:80");
+        props.setProperty("upstream.local.max_connections", "2");
+        manager.configureHost(new HostConfig(props, "local"));
+
+        // the connection checked out counts against the new limit
+        HttpConnection second = manager.getConnectionWithTimeout(host, 100);
+        assertEquals(2, manager.getHostUsage().get("localhost:80")[0]);
+        assertTimeout();
+
+        first.releaseConnection();
+        second.releaseConnection();
+        assertEquals(0, manager.getHostUsage().get("localhost:80")[0]);
+        assertEquals(0, manager.getLeasedConnections());
+
+        // the total limit too
+        HttpConnectionManagerParams params = new HttpConnectionManagerParams();
+        params.setMaxTotalConnections(1);
+        params.setDefaultMaxConnectionsPerHost(2);
+        first = manager.getConnectionWithTimeout(host, 100);
+        manager.setParams(params);
+        assertTimeout();
+        first.releaseConnection();
+        manager.getConnectionWithTimeout(host, 100).releaseConnection();
+        assertEquals(0, manager.getLeasedConnections());
+    }
+
+    private void assertTimeout() {
+        try {
+            manager.getConnectionWithTimeout(host, 50).releaseConnection();
+            fail("No connection should be available");
+        } catch (ConnectionPoolTimeoutException e) {
+            // expected
+        }
+    }
+}
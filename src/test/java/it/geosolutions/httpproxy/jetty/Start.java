@@ -23,11 +23,14 @@ import java.io.File;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.mortbay.jetty.AbstractConnector;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.bio.SocketConnector;
+import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.jetty.webapp.WebAppContext;
-import org.mortbay.thread.BoundedThreadPool;
+import org.mortbay.thread.QueuedThreadPool;
+import org.mortbay.thread.ThreadPool;
 
 /**
  * Start class for test using JETTY server.
@@ -45,18 +48,6 @@ public class Start {
         Server jettyServer = null;
 
         try {
-            jettyServer = new Server();
-
-            // /////////////////////////////////////////////////////
-            // Don't even think of serving more than XX requests
-            // in parallel... we have a limit in our processing
-            // and memory capacities.
-            // /////////////////////////////////////////////////////
-
-            BoundedThreadPool tp = new BoundedThreadPool();
-            tp.setMaxThreads(50);
-
-            SocketConnector conn = new SocketConnector();
             String portVariable = System.getProperty("jetty.port");
             int port = parsePort(portVariable);
 
@@ -64,17 +55,7 @@ public class Start {
                 port = 8080;
             }
 
-            conn.setPort(port);
-            conn.setThreadPool(tp);
-            conn.setAcceptQueueSize(100);
-            jettyServer.setConnectors(new Connector[] { conn });
-
-            WebAppContext wah = new WebAppContext();
-            wah.setContextPath("/http_proxy");
-            wah.setWar("src/main/webapp");
-            jettyServer.setHandler(wah);
-            wah.setTempDirectory(new File("target/work"));
-
+            jettyServer = newServer(port, null);
             jettyServer.start();
 
             // ////////////////////////////////////////////////////////////////////////
@@ -100,6 +81,63 @@ public class Start {
         }
     }
 
+    /**
+     * Creates the Jetty server running the proxy web application, not started yet. The
+     * <code>jetty.threads</code> and <code>jetty.nio</code> system properties choose the thread
+     * pool and the connector.
+     * 
+     * @param port
+     * @param overrideDescriptor a web.xml applied over the proxy one, such as to read another
+     *        properties file, null if none
+     * @return Server
+     */
+    public static Server newServer(int port, String overrideDescriptor) {
+        Server jettyServer = new Server();
+
+        // /////////////////////////////////////////////////////
+        // Don't even think of serving more than XX requests
+        // in parallel... we have a limit in our processing
+        // and memory capacities.
+        // /////////////////////////////////////////////////////
+
+        // /////////////////////////////////////////////////////
+        // ...unless running with -Djetty.threads=virtual on
+        // Java 21, then every request gets a virtual thread
+        // /////////////////////////////////////////////////////
+
+        ThreadPool tp;
+        if ("virtual".equals(System.getProperty("jetty.threads"))) {
+            tp = new VirtualThreadPool();
+        } else {
+            QueuedThreadPool qtp = new QueuedThreadPool();
+            qtp.setMaxThreads(Integer.getInteger("jetty.maxThreads", 50));
+            tp = qtp;
+        }
+
+        // /////////////////////////////////////////////////////
+        // The NIO connector is needed to release the request
+        // threads of suspended requests (asyncEnabled)
+        // /////////////////////////////////////////////////////
+
+        AbstractConnector conn = Boolean.getBoolean("jetty.nio") ? new SelectChannelConnector()
+                : new SocketConnector();
+
+        conn.setPort(port);
+        conn.setThreadPool(tp);
+        conn.setAcceptQueueSize(100);
+        jettyServer.setConnectors(new Connector[] { conn });
+
+        WebAppContext wah = new WebAppContext();
+        wah.setContextPath("/http_proxy");
+        wah.setWar("src/main/webapp");
+        if (overrideDescriptor != null)
+            wah.setOverrideDescriptor(overrideDescriptor);
+        jettyServer.setHandler(wah);
+        wah.setTempDirectory(new File("target/work"));
+
+        return jettyServer;
+    }
+
     /**
      * @param portVariable
      * @return int
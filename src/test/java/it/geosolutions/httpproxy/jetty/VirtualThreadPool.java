@@ -0,0 +1,94 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy.jetty;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mortbay.thread.ThreadPool;
+
+/**
+ * Jetty thread pool running every job on a new virtual thread (Java 21).
+ */
+public class VirtualThreadPool implements ThreadPool {
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    /**
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    public VirtualThreadPool() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+                    "jetty-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(
+                    builder);
+
+            executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor",
+                    ThreadFactory.class).invoke(null, factory);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21", e);
+        }
+    }
+
+    public boolean dispatch(final Runnable job) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    threads.incrementAndGet();
+                    try {
+                        job.run();
+                    } finally {
+                        threads.decrementAndGet();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public void join() throws InterruptedException {
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+            ;
+    }
+
+    public int getThreads() {
+        return threads.get();
+    }
+
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
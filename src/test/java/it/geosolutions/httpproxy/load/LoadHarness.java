@@ -0,0 +1,304 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy.load;
+
+import it.geosolutions.httpproxy.jetty.Start;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.mortbay.jetty.Server;
+
+/**
+ * Load test of the proxy on localhost: starts the proxy as {@link Start} does and an
+ * {@link UpstreamSimulator} behind it, then runs concurrent clients for a while and reports the
+ * throughput and the latency percentiles. Configured through system properties:
+ * <ul>
+ * <li><code>load.concurrency</code>: the number of clients (default 50)</li>
+ * <li><code>load.duration</code>: the measured seconds (default 30)</li>
+ * <li><code>load.warmup</code>: the seconds run before measuring (default 5)</li>
+ * <li><code>load.size</code>, <code>load.latency</code>, <code>load.jitter</code>,
+ * <code>load.bandwidth</code>, <code>load.errors</code>: the remote responses, see
+ * {@link UpstreamSimulator}</li>
+ * <li><code>load.slowClients</code>: the fraction of clients reading the responses at
+ * <code>load.slowRate</code> bytes per second (default 0 and 65536)</li>
+ * <li><code>load.urls</code>: the number of distinct URLs requested, 0 to make every request
+ * unique (default 0)</li>
+ * <li><code>load.config</code>: the proxy properties in the classpath (default
+ * /load.properties)</li>
+ * <li><code>load.proxyPort</code>, <code>load.upstreamPort</code>: the local ports (default 18080
+ * and 18081)</li>
+ * <li><code>load.proxy</code>: the URL of an already running proxy servlet, instead of starting
+ * one</li>
+ * </ul>
+ * The <code>jetty.*</code> properties of {@link Start} apply to the proxy.
+ */
+public class LoadHarness {
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int concurrency = Integer.getInteger("load.concurrency", 50);
+        long duration = Long.getLong("load.duration", 30) * 1000;
+        long warmup = Long.getLong("load.warmup", 5) * 1000;
+        double slowClients = Double.parseDouble(System.getProperty("load.slowClients", "0"));
+        long slowRate = Long.getLong("load.slowRate", 65536);
+        int urls = Integer.getInteger("load.urls", 0);
+        int proxyPort = Integer.getInteger("load.proxyPort", 18080);
+        int upstreamPort = Integer.getInteger("load.upstreamPort", 18081);
+        String proxy = System.getProperty("load.proxy");
+
+        StringBuilder upstreamUrl = new StringBuilder("http://localhost:" + upstreamPort
+                + "/data?size=" + Long.getLong("load.size", 16384) + "&latency="
+                + Long.getLong("load.latency", 20));
+        appendParameter(upstreamUrl, "jitter");
+        appendParameter(upstreamUrl, "bandwidth");
+        appendParameter(upstreamUrl, "errors");
+        upstreamUrl.append("&n=");
+
+        UpstreamSimulator upstream = new UpstreamSimulator(upstreamPort, concurrency * 2 + 10);
+        upstream.getServer().start();
+
+        Server proxyServer = null;
+        if (proxy == null) {
+            proxyServer = Start.newServer(proxyPort, writeDescriptor(System.getProperty(
+                    "load.config", "/load.properties")));
+            proxyServer.start();
+            proxy = "http://localhost:" + proxyPort + "/http_proxy/proxy/";
+        }
+
+        MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = manager.getParams();
+        params.setDefaultMaxConnectionsPerHost(concurrency);
+        params.setMaxTotalConnections(concurrency);
+        params.setSoTimeout(60000);
+        HttpClient client = new HttpClient(manager);
+
+        long start = System.currentTimeMillis();
+        long measureFrom = start + warmup;
+        long end = measureFrom + duration;
+
+        int slow = (int) Math.round(concurrency * slowClients);
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < concurrency; i++) {
+            Worker worker = new Worker(client, proxy + "?url=", upstreamUrl.toString(), urls,
+                    i < slow ? slowRate : 0, measureFrom, end);
+            worker.start();
+            workers.add(worker);
+        }
+
+        while (System.currentTimeMillis() < measureFrom)
+            Thread.sleep(10);
+        long upstreamBefore = upstream.getRequests();
+
+        for (Worker worker : workers)
+            worker.join();
+        long upstreamRequests = upstream.getRequests() - upstreamBefore;
+
+        report(workers, upstreamRequests, duration, concurrency, slow);
+
+        manager.shutdown();
+        if (proxyServer != null)
+            proxyServer.stop();
+        upstream.getServer().stop();
+    }
+
+    private static void appendParameter(StringBuilder url, String name) {
+        String value = System.getProperty("load." + name);
+        if (value != null)
+            url.append('&').append(name).append('=').append(value);
+    }
+
+    /**
+     * Writes a web.xml pointing the proxy to the given properties file.
+     */
+    private static String writeDescriptor(String config) throws IOException {
+        File file = new File("target/load-web.xml");
+        file.getParentFile().mkdirs();
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<web-app xmlns=\"http://java.sun.com/xml/ns/j2ee\" version=\"2.4\">\n"
+                    + "  <context-param>\n"
+                    + "    <param-name>proxyPropPath</param-name>\n"
+                    + "    <param-value>" + config + "</param-value>\n"
+                    + "  </context-param>\n"
+                    + "</web-app>\n");
+        } finally {
+            writer.close();
+        }
+
+        return file.getPath();
+    }
+
+    private static void report(List<Worker> workers, long upstreamRequests, long duration,
+            int concurrency, int slow) {
+        long requests = 0, errors = 0, bytes = 0;
+        for (Worker worker : workers) {
+            requests += worker.count;
+            errors += worker.errors;
+            bytes += worker.bytes;
+        }
+
+        long[] latencies = new long[(int) requests];
+        int n = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, n, worker.count);
+            n += worker.count;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = duration / 1000d;
+        System.out.println(String.format("clients          %d (%d slow)", concurrency, slow));
+        System.out.println(String.format("requests         %d in %.1f s", requests, seconds));
+        System.out.println(String.format("errors           %d", errors));
+        System.out.println(String.format("remote requests  %d", upstreamRequests));
+        System.out.println(String.format("throughput       %.1f req/s, %.2f MB/s", requests
+                / seconds, bytes / seconds / (1024 * 1024)));
+        System.out.println(String.format("latency (ms)     p50 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                percentile(latencies, 0.5), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), percentile(latencies, 1)));
+    }
+
+    /**
+     * @param sorted the latencies in nanoseconds, sorted
+     * @param p
+     * @return double the latency in milliseconds below which p of the requests completed
+     */
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * A client sending one request after the other, recording the time until the response body
+     * is completely read.
+     */
+    private static final class Worker extends Thread {
+
+        private final HttpClient client;
+
+        private final String prefix;
+
+        private final String upstreamUrl;
+
+        private final int urls;
+
+        private final long readRate;
+
+        private final long measureFrom;
+
+        private final long end;
+
+        private final Random random = new Random();
+
+        private long[] latencies = new long[1024];
+
+        private int count;
+
+        private long errors;
+
+        private long bytes;
+
+        Worker(HttpClient client, String prefix, String upstreamUrl, int urls, long readRate,
+                long measureFrom, long end) {
+            this.client = client;
+            this.prefix = prefix;
+            this.upstreamUrl = upstreamUrl;
+            this.urls = urls;
+            this.readRate = readRate;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[8192];
+
+            long now;
+            while ((now = System.currentTimeMillis()) < end) {
+                boolean measured = now >= measureFrom;
+
+                long n = urls > 0 ? random.nextInt(urls) : random.nextLong() & Long.MAX_VALUE;
+                GetMethod method;
+                try {
+                    method = new GetMethod(prefix + URLEncoder.encode(upstreamUrl + n, "UTF-8"));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+
+                long started = System.nanoTime();
+                long read = 0;
+                boolean failed;
+                try {
+                    failed = client.executeMethod(method) != 200;
+
+                    InputStream in = method.getResponseBodyAsStream();
+                    if (in != null) {
+                        long readStart = System.currentTimeMillis();
+                        int len;
+                        while ((len = in.read(buffer)) >= 0) {
+                            read += len;
+                            if (readRate > 0)
+                                UpstreamSimulator.sleep(read * 1000 / readRate
+                                        - (System.currentTimeMillis() - readStart));
+                        }
+                    }
+                } catch (IOException e) {
+                    failed = true;
+                } finally {
+                    method.releaseConnection();
+                }
+                long elapsed = System.nanoTime() - started;
+
+                if (!measured)
+                    continue;
+
+                if (failed)
+                    errors++;
+                bytes += read;
+
+                if (count == latencies.length)
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                latencies[count++] = elapsed;
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright (C) 2007 - 2011 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.httpproxy.load;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.thread.QueuedThreadPool;
+
+/**
+ * A local remote server answering every request with a generated body, shaped by the request
+ * parameters:
+ * <ul>
+ * <li><code>size</code>: the body length in bytes (default 1024)</li>
+ * <li><code>latency</code>: the milliseconds waited before the response headers (default 0)</li>
+ * <li><code>jitter</code>: a random delay up to these milliseconds added to the latency</li>
+ * <li><code>bandwidth</code>: the bytes per second the body is written at, 0 for no limit</li>
+ * <li><code>errors</code>: the probability, between 0 and 1, of answering 500</li>
+ * <li><code>type</code>: the content type (default application/octet-stream)</li>
+ * </ul>
+ */
+public class UpstreamSimulator extends AbstractHandler {
+
+    private static final int CHUNK = 8192;
+
+    private static final byte[] BODY = new byte[CHUNK];
+
+    static {
+        new Random(0).nextBytes(BODY);
+    }
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final Server server;
+
+    /**
+     * @param port
+     * @param maxThreads the maximum number of requests handled in parallel
+     */
+    public UpstreamSimulator(int port, int maxThreads) {
+        QueuedThreadPool tp = new QueuedThreadPool();
+        tp.setMaxThreads(maxThreads);
+
+        SelectChannelConnector conn = new SelectChannelConnector();
+        conn.setPort(port);
+        conn.setThreadPool(tp);
+        conn.setAcceptQueueSize(maxThreads);
+
+        server = new Server();
+        server.setConnectors(new Connector[] { conn });
+        server.setHandler(this);
+    }
+
+    /**
+     * @return Server the Jetty server to start and stop
+     */
+    public Server getServer() {
+        return server;
+    }
+
+    /**
+     * @return long the number of requests received
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return long the number of requests answered with an error
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public void handle(String target, HttpServletRequest request, HttpServletResponse response,
+            int dispatch) throws IOException, ServletException {
+        requests.incrementAndGet();
+        ((Request) request).setHandled(true);
+
+        long size = longParameter(request, "size", 1024);
+        long latency = longParameter(request, "latency", 0);
+        long jitter = longParameter(request, "jitter", 0);
+        long bandwidth = longParameter(request, "bandwidth", 0);
+        String errors = request.getParameter("errors");
+        String type = request.getParameter("type");
+
+        Random random = new Random();
+        if (jitter > 0)
+            latency += (long) (random.nextDouble() * jitter);
+        sleep(latency);
+
+        if (errors != null && random.nextDouble() < Double.parseDouble(errors)) {
+            failed.incrementAndGet();
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Simulated error");
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(type != null ? type : "application/octet-stream");
+        response.setHeader("Content-Length", String.valueOf(size));
+
+        OutputStream out = response.getOutputStream();
+        long start = System.currentTimeMillis();
+        long written = 0;
+        while (written < size) {
+            int len = (int) Math.min(CHUNK, size - written);
+            out.write(BODY, 0, len);
+            written += len;
+
+            if (bandwidth > 0)
+                sleep(written * 1000 / bandwidth - (System.currentTimeMillis() - start));
+        }
+        out.flush();
+    }
+
+    static long longParameter(HttpServletRequest request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    static void sleep(long millis) throws IOException {
+        if (millis <= 0)
+            return;
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+}